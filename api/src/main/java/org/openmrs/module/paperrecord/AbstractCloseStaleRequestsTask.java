@@ -0,0 +1,107 @@
+package org.openmrs.module.paperrecord;
+
+import org.apache.commons.lang.time.DateUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.api.context.Context;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+
+/**
+ * Base class for the tasks that close out stale requests.
+ * <p/>
+ * By default, all the stale requests are closed out in a single transaction. If the expireBatchSize property is set,
+ * they are instead closed out in batches of that size, in order of request id, each batch in its own transaction,
+ * pausing for expireBatchPauseMillis (if set) between batches. After each batch the id of the last request closed
+ * out is saved in the expireWatermark property, so that if the server stops part way through a long backlog, the next
+ * run picks up where this one left off rather than starting over; the watermark is cleared once a run completes.
+ */
+public abstract class AbstractCloseStaleRequestsTask extends AbstractTask {
+
+    public static final String EXPIRE_BATCH_SIZE_PROPERTY = "expireBatchSize";
+
+    public static final String EXPIRE_BATCH_PAUSE_MILLIS_PROPERTY = "expireBatchPauseMillis";
+
+    public static final String EXPIRE_WATERMARK_PROPERTY = "expireWatermark";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    @Override
+    public void execute() {
+
+        Date expireDate = DateUtils.addHours(new Date(), -getExpireHours());
+
+        Integer batchSize = getIntegerProperty(EXPIRE_BATCH_SIZE_PROPERTY, null);
+        if (batchSize == null || batchSize <= 0) {
+            expireRequests(expireDate);
+            return;
+        }
+
+        int pauseMillis = getIntegerProperty(EXPIRE_BATCH_PAUSE_MILLIS_PROPERTY, 0);
+
+        Integer watermark = getIntegerProperty(EXPIRE_WATERMARK_PROPERTY, null);
+        if (watermark != null) {
+            log.info("Resuming closing out stale requests after request " + watermark);
+        }
+
+        do {
+            watermark = expireRequests(expireDate, watermark, batchSize);
+            saveWatermark(watermark);
+
+            if (watermark != null && pauseMillis > 0) {
+                try {
+                    Thread.sleep(pauseMillis);
+                }
+                catch (InterruptedException e) {
+                    // the watermark has been saved, so the next run will resume from here
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } while (watermark != null);
+    }
+
+    /**
+     * @return the number of hours after which a pending request is stale
+     */
+    protected abstract int getExpireHours();
+
+    /**
+     * Closes out all the requests created before the given date, in a single transaction
+     *
+     * @param expireDate
+     */
+    protected abstract void expireRequests(Date expireDate);
+
+    /**
+     * Closes out one batch of the requests created before the given date, in its own transaction
+     *
+     * @param expireDate
+     * @param afterRequestId
+     * @param batchSize
+     * @return the id of the last request closed out, or null if there are no more requests to close out
+     */
+    protected abstract Integer expireRequests(Date expireDate, Integer afterRequestId, int batchSize);
+
+    protected Integer getIntegerProperty(String name, Integer defaultValue) {
+        String value = taskDefinition.getProperty(name);
+        return StringUtils.isNotBlank(value) ? Integer.valueOf(value.trim()) : defaultValue;
+    }
+
+    private void saveWatermark(Integer watermark) {
+
+        if (watermark != null) {
+            taskDefinition.setProperty(EXPIRE_WATERMARK_PROPERTY, watermark.toString());
+        } else {
+            taskDefinition.getProperties().remove(EXPIRE_WATERMARK_PROPERTY);
+        }
+
+        // a task definition that was never saved (e.g. one created to run the task by hand) has nowhere to keep it
+        if (taskDefinition.getId() != null) {
+            Context.getSchedulerService().saveTaskDefinition(taskDefinition);
+        }
+    }
+
+}
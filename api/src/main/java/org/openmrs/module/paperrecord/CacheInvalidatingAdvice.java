@@ -0,0 +1,78 @@
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.api.context.Context;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+
+/**
+ * Base class for advice around core services that evicts entries from the module's caches whenever a method that
+ * modifies data returns.
+ * <p/>
+ * Eviction happens straight away, so that the rest of the transaction sees the change, and again once the transaction
+ * completes, so that anything cached by another thread before the change was committed doesn't linger. Subclasses only
+ * say which methods modify data (by name prefix) and what to evict.
+ */
+public abstract class CacheInvalidatingAdvice implements AfterReturningAdvice {
+
+    private final String[] modifyingMethodPrefixes;
+
+    protected CacheInvalidatingAdvice(String... modifyingMethodPrefixes) {
+        this.modifyingMethodPrefixes = modifyingMethodPrefixes;
+    }
+
+    @Override
+    public final void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+
+        if (!isModifyingMethod(method)) {
+            return;
+        }
+
+        final Runnable eviction = createEviction(args != null ? args : new Object[0]);
+        if (eviction == null) {
+            return;
+        }
+
+        eviction.run();
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    eviction.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * @param args the arguments the modifying method was called with
+     * @return the eviction to run now and once the transaction completes, or null if there is nothing to evict
+     */
+    protected abstract Runnable createEviction(Object[] args);
+
+    /**
+     * @return the module's bean with the given name, or null if the module's context hasn't been refreshed yet, in
+     *         which case there is nothing cached
+     */
+    protected <T> T getComponent(String beanName, Class<T> type) {
+        try {
+            return Context.getRegisteredComponent(beanName, type);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    private boolean isModifyingMethod(Method method) {
+        for (String prefix : modifyingMethodPrefixes) {
+            if (method.getName().startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -1,9 +1,6 @@
 package org.openmrs.module.paperrecord;
 
-import org.apache.commons.lang.time.DateUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.openmrs.api.context.Context;
-import org.openmrs.scheduler.tasks.AbstractTask;
 
 import java.util.Date;
 
@@ -14,24 +11,26 @@ import java.util.Date;
  * <p/>
  * Note that this task is not scheduled by default, but can be scheduled in a customization module (see the
  * Mirebalais module for an example of this)
+ * <p/>
+ * Large backlogs can be closed out in batches; see {@link AbstractCloseStaleRequestsTask}
  */
-
-public class CloseStalePullRequestsTask extends AbstractTask {
+public class CloseStalePullRequestsTask extends AbstractCloseStaleRequestsTask {
 
     private static Integer DEFAULT_PULL_RECORD_EXPIRE_HOURS = 12;
 
     @Override
-    public void execute() {
-
-        Integer pullRecordExpireHours = DEFAULT_PULL_RECORD_EXPIRE_HOURS;
-
-        if (taskDefinition.getProperty("pullRecordExpireHours") != null
-                && StringUtils.isNotBlank(taskDefinition.getProperty("pullRecordExpireHours"))) {
-            pullRecordExpireHours = Integer.valueOf(taskDefinition.getProperty("pullRecordExpireHours"));
-        }
-
-        Date expireDate = DateUtils.addHours(new Date(), -pullRecordExpireHours);
+    protected int getExpireHours() {
+        return getIntegerProperty("pullRecordExpireHours", DEFAULT_PULL_RECORD_EXPIRE_HOURS);
+    }
 
+    @Override
+    protected void expireRequests(Date expireDate) {
         Context.getService(PaperRecordService.class).expirePendingPullRequests(expireDate);
     }
+
+    @Override
+    protected Integer expireRequests(Date expireDate, Integer afterRequestId, int batchSize) {
+        return Context.getService(PaperRecordService.class).expirePendingPullRequests(expireDate, afterRequestId, batchSize);
+    }
+
 }
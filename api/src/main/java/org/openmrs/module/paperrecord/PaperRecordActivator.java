@@ -16,14 +16,24 @@ package org.openmrs.module.paperrecord;
 
 import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.DaemonTokenAware;
 import org.openmrs.module.emrapi.adt.AdtService;
+import org.openmrs.module.paperrecord.identifier.PaperRecordIdentifierPool;
 import org.openmrs.module.paperrecord.merge.FixPaperRecordsForMerge;
+import org.openmrs.module.paperrecord.print.LabelPrintSpooler;
 
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
  */
-public class PaperRecordActivator extends BaseModuleActivator {
+public class PaperRecordActivator extends BaseModuleActivator implements DaemonTokenAware {
 
+    private DaemonToken daemonToken;
+
+    @Override
+    public void setDaemonToken(DaemonToken daemonToken) {
+        this.daemonToken = daemonToken;
+    }
 
     @Override
     public void started() {
@@ -32,6 +42,12 @@ public class PaperRecordActivator extends BaseModuleActivator {
         Context.getService(AdtService.class)
                 .addPatientMergeAction(Context.getRegisteredComponent("fixPaperRecordsForMerge", FixPaperRecordsForMerge.class));
 
+        // start sending any queued labels to the label printers
+        Context.getRegisteredComponent("paperRecordLabelPrintSpooler", LabelPrintSpooler.class).start(daemonToken);
+
+        // start generating paper record identifiers ahead of time
+        Context.getRegisteredComponent("paperRecordIdentifierPool", PaperRecordIdentifierPool.class).start(daemonToken);
+
     }
 
     @Override
@@ -41,5 +57,9 @@ public class PaperRecordActivator extends BaseModuleActivator {
         Context.getService(AdtService.class)
                 .removePatientMergeAction(Context.getRegisteredComponent("fixPaperRecordsForMerge", FixPaperRecordsForMerge.class));
 
+        Context.getRegisteredComponent("paperRecordLabelPrintSpooler", LabelPrintSpooler.class).stop();
+
+        Context.getRegisteredComponent("paperRecordIdentifierPool", PaperRecordIdentifierPool.class).stop();
+
     }
 }
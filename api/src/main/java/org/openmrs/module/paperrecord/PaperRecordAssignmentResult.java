@@ -0,0 +1,37 @@
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.module.paperrecord.print.LabelPrintResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of assigning a batch of record requests: the paper record identifiers of the requests that were
+ * assigned, those of the requests that had already been assigned by someone else in the meantime, and what happened
+ * to the labels printed for the assigned requests.
+ */
+public class PaperRecordAssignmentResult {
+
+    private final List<String> assignedIdentifiers = new ArrayList<String>();
+
+    private final List<String> alreadyAssignedIdentifiers = new ArrayList<String>();
+
+    private LabelPrintResult labelPrintResult = LabelPrintResult.PRINTED;
+
+    public List<String> getAssignedIdentifiers() {
+        return assignedIdentifiers;
+    }
+
+    public List<String> getAlreadyAssignedIdentifiers() {
+        return alreadyAssignedIdentifiers;
+    }
+
+    public LabelPrintResult getLabelPrintResult() {
+        return labelPrintResult;
+    }
+
+    public void setLabelPrintResult(LabelPrintResult labelPrintResult) {
+        this.labelPrintResult = labelPrintResult;
+    }
+
+}
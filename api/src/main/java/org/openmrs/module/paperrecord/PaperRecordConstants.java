@@ -13,6 +13,14 @@ public class PaperRecordConstants {
 
     public static final String GP_EXTERNAL_DOSSIER_IDENTIFIER_TYPE = "emr.externalDossierIdentifierType";
 
+    public static final String GP_CLUSTERED_PATIENT_LOCKING = "paperrecord.clusteredPatientLocking";
+
+    public static final String GP_ASYNCHRONOUS_LABEL_PRINTING = "paperrecord.asynchronousLabelPrinting";
+
+    public static final String GP_MAX_LABELS_PER_PRINT_JOB = "paperrecord.maxLabelsPerPrintJob";
+
+    public static final String GP_IDENTIFIER_POOL_SIZE = "paperrecord.identifierPoolSize";
+
     public static final String LOCATION_TAG_MEDICAL_RECORD_LOCATION = "Medical Record Location";
 
     public static final String LOCATION_TAG_ARCHIVES_LOCATION = "Archives Location";
@@ -27,4 +35,8 @@ public class PaperRecordConstants {
 
     public final static int NUMBER_OF_FORM_LABELS_TO_PRINT = 2;
 
+    public final static int DEFAULT_MAX_LABELS_PER_PRINT_JOB = 50;
+
+    public final static int DEFAULT_IDENTIFIER_POOL_SIZE = 0;
+
 }
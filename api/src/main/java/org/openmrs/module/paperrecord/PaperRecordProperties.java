@@ -1,8 +1,11 @@
 package org.openmrs.module.paperrecord;
 
+import org.apache.commons.lang.StringUtils;
 import org.openmrs.LocationTag;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.emrapi.utils.ModuleProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 /**
@@ -11,6 +14,8 @@ import org.springframework.stereotype.Component;
 @Component("paperRecordProperties")
 public class PaperRecordProperties extends ModuleProperties {
 
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
     public PatientIdentifierType getPaperRecordIdentifierType() {
         return getPatientIdentifierTypeByGlobalProperty(PaperRecordConstants.GP_PAPER_RECORD_IDENTIFIER_TYPE, true);
     }
@@ -27,4 +32,35 @@ public class PaperRecordProperties extends ModuleProperties {
         return locationService.getLocationTagByName(PaperRecordConstants.LOCATION_TAG_ARCHIVES_LOCATION);
     }
 
+    public boolean getClusteredPatientLockingEnabled() {
+        return Boolean.parseBoolean(getGlobalProperty(PaperRecordConstants.GP_CLUSTERED_PATIENT_LOCKING, false));
+    }
+
+    public int getMaxLabelsPerPrintJob() {
+        return getIntegerGlobalProperty(PaperRecordConstants.GP_MAX_LABELS_PER_PRINT_JOB, PaperRecordConstants.DEFAULT_MAX_LABELS_PER_PRINT_JOB);
+    }
+
+    public int getIdentifierPoolSize() {
+        return getIntegerGlobalProperty(PaperRecordConstants.GP_IDENTIFIER_POOL_SIZE, PaperRecordConstants.DEFAULT_IDENTIFIER_POOL_SIZE);
+    }
+
+    public boolean getAsynchronousLabelPrintingEnabled() {
+        return Boolean.parseBoolean(getGlobalProperty(PaperRecordConstants.GP_ASYNCHRONOUS_LABEL_PRINTING, false));
+    }
+
+    // a mistyped value falls back to the default rather than breaking every caller
+    private int getIntegerGlobalProperty(String globalPropertyName, int defaultValue) {
+        String value = getGlobalProperty(globalPropertyName, false);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            log.warn("Invalid value " + value + " for global property " + globalPropertyName + ", using " + defaultValue + " instead");
+            return defaultValue;
+        }
+    }
+
 }
@@ -0,0 +1,63 @@
+package org.openmrs.module.paperrecord;
+
+/**
+ * The number of requests in each of the archives room queues (open or assigned, to pull or to create) at one medical
+ * record location.
+ * <p/>
+ * Counts are built from a single grouped count query, so polling them for badges and tabs doesn't require loading
+ * the queues themselves.
+ */
+public class PaperRecordQueueCounts {
+
+    private long openToPull;
+
+    private long openToCreate;
+
+    private long assignedToPull;
+
+    private long assignedToCreate;
+
+    /**
+     * Adds to the count of the queue that requests with the given status, for paper records with the given status,
+     * belong in; requests that aren't pending (i.e., OPEN or ASSIGNED) aren't in any queue and are ignored
+     *
+     * @param status
+     * @param paperRecordStatus
+     * @param count
+     */
+    public void add(PaperRecordRequest.Status status, PaperRecord.Status paperRecordStatus, long count) {
+
+        boolean toCreate = PaperRecord.Status.PENDING_CREATION.equals(paperRecordStatus);
+
+        if (PaperRecordRequest.Status.OPEN.equals(status)) {
+            if (toCreate) {
+                openToCreate += count;
+            } else {
+                openToPull += count;
+            }
+        } else if (PaperRecordRequest.Status.ASSIGNED.equals(status)) {
+            if (toCreate) {
+                assignedToCreate += count;
+            } else {
+                assignedToPull += count;
+            }
+        }
+    }
+
+    public long getOpenToPull() {
+        return openToPull;
+    }
+
+    public long getOpenToCreate() {
+        return openToCreate;
+    }
+
+    public long getAssignedToPull() {
+        return assignedToPull;
+    }
+
+    public long getAssignedToCreate() {
+        return assignedToCreate;
+    }
+
+}
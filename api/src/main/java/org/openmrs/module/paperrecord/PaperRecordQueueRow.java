@@ -0,0 +1,135 @@
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.Location;
+import org.openmrs.PersonName;
+
+import java.util.Date;
+
+/**
+ * Flat, read-only view of a paper record request as displayed in the archives room queues.
+ * <p/>
+ * Rows are built from projection queries, so rendering a queue doesn't require loading the request, paper record,
+ * patient identifier and patient entities for each row. The patient name is a detached PersonName holding just the
+ * name fields, suitable for formatting.
+ */
+public class PaperRecordQueueRow {
+
+    private Integer requestId;
+
+    private PaperRecordRequest.Status status;
+
+    private Integer paperRecordId;
+
+    private PaperRecord.Status paperRecordStatus;
+
+    private Integer patientId;
+
+    private String paperRecordIdentifier;
+
+    private Location requestLocation;
+
+    private Date dateCreated;
+
+    private PersonName patientName;
+
+    private String primaryIdentifier;
+
+    private Location locationLastSent;
+
+    private Date dateLastSent;
+
+    public PaperRecordQueueRow(Integer requestId, PaperRecordRequest.Status status, Integer paperRecordId,
+                               PaperRecord.Status paperRecordStatus, Integer patientId, String paperRecordIdentifier,
+                               Location requestLocation, Date dateCreated) {
+        this.requestId = requestId;
+        this.status = status;
+        this.paperRecordId = paperRecordId;
+        this.paperRecordStatus = paperRecordStatus;
+        this.patientId = patientId;
+        this.paperRecordIdentifier = paperRecordIdentifier;
+        this.requestLocation = requestLocation;
+        this.dateCreated = dateCreated;
+    }
+
+    public Integer getRequestId() {
+        return requestId;
+    }
+
+    public PaperRecordRequest.Status getStatus() {
+        return status;
+    }
+
+    public Integer getPaperRecordId() {
+        return paperRecordId;
+    }
+
+    public PaperRecord.Status getPaperRecordStatus() {
+        return paperRecordStatus;
+    }
+
+    /**
+     * @return true if the paper record for this request needs to be created, rather than pulled
+     */
+    public boolean isToCreate() {
+        return PaperRecord.Status.PENDING_CREATION.equals(paperRecordStatus);
+    }
+
+    public Integer getPatientId() {
+        return patientId;
+    }
+
+    /**
+     * @return the identifier of the paper record (the dossier number)
+     */
+    public String getPaperRecordIdentifier() {
+        return paperRecordIdentifier;
+    }
+
+    public Location getRequestLocation() {
+        return requestLocation;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public PersonName getPatientName() {
+        return patientName;
+    }
+
+    public void setPatientName(PersonName patientName) {
+        this.patientName = patientName;
+    }
+
+    /**
+     * @return the patient's primary identifier, or null if the patient doesn't have one
+     */
+    public String getPrimaryIdentifier() {
+        return primaryIdentifier;
+    }
+
+    public void setPrimaryIdentifier(String primaryIdentifier) {
+        this.primaryIdentifier = primaryIdentifier;
+    }
+
+    /**
+     * @return the request location of the most recent "sent" request for the record, or null if the record has
+     *         never been sent (always null for requests for records that need to be created)
+     */
+    public Location getLocationLastSent() {
+        return locationLastSent;
+    }
+
+    public void setLocationLastSent(Location locationLastSent) {
+        this.locationLastSent = locationLastSent;
+    }
+
+    public Date getDateLastSent() {
+        return dateLastSent;
+    }
+
+    public void setDateLastSent(Date dateLastSent) {
+        this.dateLastSent = dateLastSent;
+    }
+
+}
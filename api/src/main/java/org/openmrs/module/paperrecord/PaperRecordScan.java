@@ -0,0 +1,83 @@
+package org.openmrs.module.paperrecord;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * What a barcode scanned in the archives room refers to: the paper record with the scanned paper record identifier
+ * (or belonging to the patient with the scanned primary identifier), along with the record's pending request, if any,
+ * and any requests for it that are currently sent.
+ * <p/>
+ * The pending and sent requests are fetched together, so marking a record as sent or returned only has to resolve
+ * the scanned identifier once.
+ */
+public class PaperRecordScan {
+
+    private String identifier;
+
+    private PaperRecord paperRecord;
+
+    private List<PaperRecordRequest> pendingRequests;
+
+    private List<PaperRecordRequest> sentRequests;
+
+    public PaperRecordScan(String identifier, PaperRecord paperRecord, List<PaperRecordRequest> pendingRequests,
+                           List<PaperRecordRequest> sentRequests) {
+        this.identifier = identifier;
+        this.paperRecord = paperRecord;
+        this.pendingRequests = pendingRequests != null ? pendingRequests : Collections.<PaperRecordRequest>emptyList();
+        this.sentRequests = sentRequests != null ? sentRequests : Collections.<PaperRecordRequest>emptyList();
+    }
+
+    /**
+     * @return the identifier that was scanned
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the paper record the scanned identifier refers to, or null if there is no such record
+     */
+    public PaperRecord getPaperRecord() {
+        return paperRecord;
+    }
+
+    /**
+     * @return the pending (i.e, OPEN or ASSIGNED) request for the record, or null if there is none
+     * @throws IllegalStateException if the record has more than one pending request
+     */
+    public PaperRecordRequest getPendingRequest() {
+        if (pendingRequests.size() > 1) {
+            throw new IllegalStateException("Duplicate record requests in the pending state with identifier " + identifier);
+        }
+        return pendingRequests.size() > 0 ? pendingRequests.get(0) : null;
+    }
+
+    /**
+     * @return the sent requests for the record, oldest first (there may be more than one if for some reason a record
+     *         was sent out twice without ever being returned)
+     */
+    public List<PaperRecordRequest> getSentRequests() {
+        return sentRequests;
+    }
+
+    /**
+     * @return the sent request for the record that was sent most recently, or null if the record hasn't been sent
+     */
+    public PaperRecordRequest getLatestSentRequest() {
+        PaperRecordRequest latest = null;
+        for (PaperRecordRequest request : sentRequests) {
+            if (latest == null || !isBefore(request.getDateStatusChanged(), latest.getDateStatusChanged())) {
+                latest = request;
+            }
+        }
+        return latest;
+    }
+
+    private boolean isBefore(Date date, Date other) {
+        return date != null && other != null && date.before(other);
+    }
+
+}
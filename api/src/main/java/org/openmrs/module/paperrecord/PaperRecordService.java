@@ -21,8 +21,11 @@ import org.openmrs.Person;
 import org.openmrs.annotation.Authorized;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.paperrecord.print.LabelPrintJob;
+import org.openmrs.module.paperrecord.print.LabelPrintResult;
 import org.openmrs.module.printer.PrinterService;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -221,11 +224,13 @@ public interface PaperRecordService extends OpenmrsService {
      * @param requests
      * @param assignee
      * @param location the location to print any required registration labels at
-     * @return the list that was passed in, but with assignees and status set
+     * @return the identifiers of the requests that were assigned, the identifiers of any requests that had already been
+     *         assigned by someone else in the meantime, and whether the labels were sent straight to the printer or
+     *         queued
      * @throws IllegalStateException if any of the requests are not in the OPEN status
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
-    Map<String, List<String>> assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException;
+    PaperRecordAssignmentResult assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException;
 
     /**
      * This internal method should not be invoked directly!
@@ -235,7 +240,7 @@ public interface PaperRecordService extends OpenmrsService {
      * http://stackoverflow.com/questions/3423972/spring-transaction-method-call-by-the-method-within-the-same-class-does-not-wo
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
-    Map<String, List<String>> assignRequestsInternal(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException;
+    PaperRecordAssignmentResult assignRequestsInternal(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException;
 
     /**
      * Retrieves all record requests in the ASSIGNED state
@@ -287,6 +292,145 @@ public interface PaperRecordService extends OpenmrsService {
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate(Location medicalRecordLocation);
 
+    /**
+     * Gets the version of the archives room queues at the specified medical record location, which increases with
+     * every change to a request or merge request there, made on any server sharing the database
+     *
+     * @param medicalRecordLocation
+     * @return the version, or 0 if the queues there have never changed
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    long getPaperRecordQueueVersion(Location medicalRecordLocation);
+
+    /**
+     * Retrieves flat queue rows, including the location and date the record was last sent, for those of the given
+     * requests that are still pending (open or assigned); used to refresh just the changed rows of the queues
+     *
+     * @param requestIds
+     * @return the queue rows for the requests that are still pending, ordered by date created
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getPendingPaperRecordQueueRows(Collection<Integer> requestIds);
+
+    /**
+     * Retrieves flat queue rows for all record requests from the specified medical record location that are open
+     * and need to be pulled, including the location and date the record was last sent
+     *
+     * @param medicalRecordLocation
+     * @return the queue rows, ordered by date created
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getOpenPaperRecordQueueRowsToPull(Location medicalRecordLocation);
+
+    /**
+     * Retrieves one page of the rows returned by {@link #getOpenPaperRecordQueueRowsToPull(Location)}; pages are keyed
+     * on the date created and id of the last row of the previous page, so rows added or removed meanwhile don't
+     * shift the pages that follow
+     *
+     * @param medicalRecordLocation
+     * @param afterDateCreated the date created of the last row of the previous page (null for the first page)
+     * @param afterRequestId the request id of the last row of the previous page (null for the first page)
+     * @param maxResults the maximum number of rows to return (null for all the remaining rows)
+     * @return the queue rows, ordered by date created and then by request id
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getOpenPaperRecordQueueRowsToPull(Location medicalRecordLocation, Date afterDateCreated,
+                                                       Integer afterRequestId, Integer maxResults);
+
+    /**
+     * Retrieves flat queue rows for all record requests from the specified medical record location that are open
+     * and need to be created
+     *
+     * @param medicalRecordLocation
+     * @return the queue rows, ordered by date created
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getOpenPaperRecordQueueRowsToCreate(Location medicalRecordLocation);
+
+    /**
+     * Retrieves one page of the rows returned by {@link #getOpenPaperRecordQueueRowsToCreate(Location)}; pages are keyed
+     * on the date created and id of the last row of the previous page, so rows added or removed meanwhile don't
+     * shift the pages that follow
+     *
+     * @param medicalRecordLocation
+     * @param afterDateCreated the date created of the last row of the previous page (null for the first page)
+     * @param afterRequestId the request id of the last row of the previous page (null for the first page)
+     * @param maxResults the maximum number of rows to return (null for all the remaining rows)
+     * @return the queue rows, ordered by date created and then by request id
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getOpenPaperRecordQueueRowsToCreate(Location medicalRecordLocation, Date afterDateCreated,
+                                                       Integer afterRequestId, Integer maxResults);
+
+    /**
+     * Retrieves flat queue rows for all record requests from the specified medical record location that have been
+     * assigned and need to be pulled, including the location and date the record was last sent
+     *
+     * @param medicalRecordLocation
+     * @return the queue rows, ordered by date created
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getAssignedPaperRecordQueueRowsToPull(Location medicalRecordLocation);
+
+    /**
+     * Retrieves one page of the rows returned by {@link #getAssignedPaperRecordQueueRowsToPull(Location)}; pages are keyed
+     * on the date created and id of the last row of the previous page, so rows added or removed meanwhile don't
+     * shift the pages that follow
+     *
+     * @param medicalRecordLocation
+     * @param afterDateCreated the date created of the last row of the previous page (null for the first page)
+     * @param afterRequestId the request id of the last row of the previous page (null for the first page)
+     * @param maxResults the maximum number of rows to return (null for all the remaining rows)
+     * @return the queue rows, ordered by date created and then by request id
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getAssignedPaperRecordQueueRowsToPull(Location medicalRecordLocation, Date afterDateCreated,
+                                                       Integer afterRequestId, Integer maxResults);
+
+    /**
+     * Retrieves flat queue rows for all record requests from the specified medical record location that have been
+     * assigned and need to be created
+     *
+     * @param medicalRecordLocation
+     * @return the queue rows, ordered by date created
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getAssignedPaperRecordQueueRowsToCreate(Location medicalRecordLocation);
+
+    /**
+     * Retrieves one page of the rows returned by {@link #getAssignedPaperRecordQueueRowsToCreate(Location)}; pages are keyed
+     * on the date created and id of the last row of the previous page, so rows added or removed meanwhile don't
+     * shift the pages that follow
+     *
+     * @param medicalRecordLocation
+     * @param afterDateCreated the date created of the last row of the previous page (null for the first page)
+     * @param afterRequestId the request id of the last row of the previous page (null for the first page)
+     * @param maxResults the maximum number of rows to return (null for all the remaining rows)
+     * @return the queue rows, ordered by date created and then by request id
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    List<PaperRecordQueueRow> getAssignedPaperRecordQueueRowsToCreate(Location medicalRecordLocation, Date afterDateCreated,
+                                                       Integer afterRequestId, Integer maxResults);
+
+    /**
+     * Counts the requests in each of the queues (open or assigned, to pull or to create) at the specified medical
+     * record location, without loading the queues
+     *
+     * @param medicalRecordLocation
+     * @return the queue counts
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    PaperRecordQueueCounts getPaperRecordQueueCounts(Location medicalRecordLocation);
+
+    /**
+     * Counts the requests in each of the queues (open or assigned, to pull or to create) at every medical record
+     * location, with a single query
+     *
+     * @return the queue counts, by medical record location; locations with empty queues are left out
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    Map<Location, PaperRecordQueueCounts> getPaperRecordQueueCounts();
+
     /**
      * Returns the pending (i.e, OPEN or ASSIGNED) paper record request (if any) for the record with the specified identifier and location
      * (there should only be one pending request per identifier & *location*)
@@ -295,7 +439,10 @@ public interface PaperRecordService extends OpenmrsService {
      * @param medicalRecordLocation
      * @return the pending paper record request with the specified identifier (returns null if no request found)
      * @throws IllegalStateException if more than one request is found
+     * @deprecated the archives room now uses {@link #resolveScan(String, Location)}, which fetches the pending and sent
+     *             requests together
      */
+    @Deprecated
     PaperRecordRequest getPendingPaperRecordRequestByIdentifier(String identifier, Location medicalRecordLocation);
 
     /**
@@ -318,10 +465,26 @@ public interface PaperRecordService extends OpenmrsService {
      * @param identifier the paper record identifier OR the patient identifier associated with the request
      * @param medicalRecordLocation
      * @return returns the "sent" paper record requests (if any) for the record with specified identifier
+     * @deprecated the archives room now uses {@link #resolveScan(String, Location)}, which fetches the pending and sent
+     *             requests together
      */
+    @Deprecated
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
     List<PaperRecordRequest> getSentPaperRecordRequestByIdentifier(String identifier, Location medicalRecordLocation);
 
+    /**
+     * Resolves an identifier scanned in the archives room, fetching the pending and sent requests for the record it
+     * refers to together, rather than looking up the identifier once for each status
+     *
+     * @param identifier the paper record identifier OR the primary identifier of the patient
+     * @param medicalRecordLocation
+     * @return the paper record (if any) along with its pending and sent requests; if there is more than one pending
+     *         request, {@link PaperRecordScan#getPendingRequest()} throws an IllegalStateException, but the sent
+     *         requests can still be returned
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    PaperRecordScan resolveScan(String identifier, Location medicalRecordLocation);
+
 
     /**
      * Returns the most recent "sent" paper record request (if any) for the record
@@ -362,9 +525,10 @@ public interface PaperRecordService extends OpenmrsService {
      *
      * @param request
      * @param location
+     * @return whether the labels were sent to the printer or queued, and if so their position in the queue
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
-    void printPaperRecordLabel(PaperRecordRequest request, Location location) throws UnableToPrintLabelException;
+    LabelPrintResult printPaperRecordLabel(PaperRecordRequest request, Location location) throws UnableToPrintLabelException;
 
 
     /**
@@ -374,9 +538,10 @@ public interface PaperRecordService extends OpenmrsService {
      * @param request
      * @param location
      * @param count    the number of labels to print
+     * @return whether the labels were sent to the printer or queued, and if so their position in the queue
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
-    void printPaperRecordLabels(PaperRecordRequest request, Location location, Integer count) throws UnableToPrintLabelException;
+    LabelPrintResult printPaperRecordLabels(PaperRecordRequest request, Location location, Integer count) throws UnableToPrintLabelException;
 
     /**
      * Prints x numbers of paper record labels for the paper record associated with the patient at the given location
@@ -384,9 +549,10 @@ public interface PaperRecordService extends OpenmrsService {
      * @param patient  the patient we want to print the label for
      * @param location the location where the record should be printed
      * @param count    the of labels to print
+     * @return whether the labels were sent to the printer or queued, and if so their position in the queue
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
-    void printPaperRecordLabels(Patient patient, Location location, Integer count) throws UnableToPrintLabelException;
+    LabelPrintResult printPaperRecordLabels(Patient patient, Location location, Integer count) throws UnableToPrintLabelException;
 
     /**
      * Prints x numbers of paper form labels for the paper record associated with the request
@@ -395,9 +561,10 @@ public interface PaperRecordService extends OpenmrsService {
      * @param request
      * @param location
      * @param count    the number of labels to print
+     * @return whether the labels were sent to the printer or queued, and if so their position in the queue
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
-    void printPaperFormLabels(PaperRecordRequest request, Location location, Integer count) throws UnableToPrintLabelException;
+    LabelPrintResult printPaperFormLabels(PaperRecordRequest request, Location location, Integer count) throws UnableToPrintLabelException;
 
 
     /**
@@ -406,9 +573,10 @@ public interface PaperRecordService extends OpenmrsService {
      * @param patient  the patient we want to print the label for
      * @param location the location where the record should be printed
      * @param count    the of labels to print
+     * @return whether the labels were sent to the printer or queued, and if so their position in the queue
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
-    void printPaperFormLabels(Patient patient, Location location, Integer count) throws UnableToPrintLabelException;
+    LabelPrintResult printPaperFormLabels(Patient patient, Location location, Integer count) throws UnableToPrintLabelException;
 
     /**
      * Prints a label with the patient's paper record number(s), intended to be attached to the back of
@@ -416,9 +584,10 @@ public interface PaperRecordService extends OpenmrsService {
      *
      * @param patient
      * @param location the location where the record should be printed
+     * @return whether the labels were sent to the printer or queued, and if so their position in the queue
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
-    void printIdCardLabel(Patient patient, Location location) throws UnableToPrintLabelException;
+    LabelPrintResult printIdCardLabel(Patient patient, Location location) throws UnableToPrintLabelException;
 
     /**
      * Prints a full set of labels for a paper record:
@@ -427,9 +596,44 @@ public interface PaperRecordService extends OpenmrsService {
      *
      * @param paperRecordRequest
      * @param location
+     * @return whether the labels were sent to the printer or queued, and if so their position in the queue
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
+    LabelPrintResult printPaperRecordLabelSet(PaperRecordRequest paperRecordRequest, Location location) throws UnableToPrintLabelException;
+
+    /**
+     * Prints the labels needed to fulfill each of the given requests: a full label set (see printPaperRecordLabelSet)
+     * for records that need to be created, and x Form Labels for records that need to be pulled.
+     * <p/>
+     * All the labels are sent to the printer together, split into as few jobs as the maximum job size allows
+     * (see the paperrecord.maxLabelsPerPrintJob global property), rather than one job per request
+     *
+     * @param requests
+     * @param location the location where the labels should be printed
+     * @return whether the labels were sent to the printer or queued, and if so their position in the queue
      */
     @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_MANAGE_REQUESTS)
-    void printPaperRecordLabelSet(PaperRecordRequest paperRecordRequest, Location location) throws UnableToPrintLabelException;
+    LabelPrintResult printLabelsForPaperRecordRequests(List<PaperRecordRequest> requests, Location location) throws UnableToPrintLabelException;
+
+    /**
+     * Returns the label print jobs printed at the given location that are waiting to be sent (or are being sent) to
+     * the printer; only used when asynchronous label printing is enabled
+     *
+     * @param location
+     * @return the pending jobs, oldest first
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
+    List<LabelPrintJob> getPendingLabelPrintJobs(Location location);
+
+    /**
+     * Returns the label print jobs printed at the given location that could not be sent to the printer
+     *
+     * @param location
+     * @param since only return jobs created on or after this date
+     * @return the failed jobs, oldest first
+     */
+    @Authorized(PaperRecordConstants.PRIVILEGE_PAPER_RECORDS_REQUEST_RECORDS)
+    List<LabelPrintJob> getFailedLabelPrintJobs(Location location, Date since);
 
     /**
      * Creates a request to merge two paper records
@@ -510,6 +714,30 @@ public interface PaperRecordService extends OpenmrsService {
      */
     void expirePendingCreateRequests(Date expireDate);
 
+    /**
+     * Expires one batch of pending pull requests with a date_created before the specified expire date, in order of
+     * request id, so that a long backlog can be expired in a series of short transactions
+     *
+     * @param expireDate
+     * @param afterRequestId only requests with a greater id are expired (null to start from the first request)
+     * @param batchSize the maximum number of requests to expire
+     * @return the id of the last request in the batch, to pass as afterRequestId for the next batch, or null if there are
+     *         no more requests to expire
+     */
+    Integer expirePendingPullRequests(Date expireDate, Integer afterRequestId, int batchSize);
+
+    /**
+     * Expires one batch of pending create requests with a date_created before the specified expire date, in order of
+     * request id, so that a long backlog can be expired in a series of short transactions
+     *
+     * @param expireDate
+     * @param afterRequestId only requests with a greater id are expired (null to start from the first request)
+     * @param batchSize the maximum number of requests to expire
+     * @return the id of the last request in the batch, to pass as afterRequestId for the next batch, or null if there are
+     *         no more requests to expire
+     */
+    Integer expirePendingCreateRequests(Date expireDate, Integer afterRequestId, int batchSize);
+
     /**
      * Finds the medical record location associated with the given location
      * (This searches up the hierarchy and returns the first location the Medical Record Location)
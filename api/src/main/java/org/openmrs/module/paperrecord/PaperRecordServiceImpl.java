@@ -14,9 +14,7 @@
 
 package org.openmrs.module.paperrecord;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.ListUtils;
-import org.apache.commons.collections.Predicate;
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.Location;
 import org.openmrs.Patient;
@@ -24,19 +22,35 @@ import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.Person;
 import org.openmrs.api.APIException;
+import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.utils.GeneralUtils;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.paperrecord.db.LabelPrintJobDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordMergeRequestDAO;
+import org.openmrs.module.paperrecord.db.PaperRecordQueueVersionDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordRequestDAO;
+import org.openmrs.module.paperrecord.identifier.PaperRecordIdentifierPool;
+import org.openmrs.module.paperrecord.identifier.PatientIdentifierCache;
+import org.openmrs.module.paperrecord.location.LocationResolutionCache;
+import org.openmrs.module.paperrecord.lock.PatientLockProvider;
+import org.openmrs.module.paperrecord.lock.PatientLockRegistry;
+import org.openmrs.module.paperrecord.print.LabelBatch;
+import org.openmrs.module.paperrecord.print.LabelPrintJob;
+import org.openmrs.module.paperrecord.print.LabelPrintResult;
+import org.openmrs.module.paperrecord.print.LabelPrintSpooler;
+import org.openmrs.module.paperrecord.print.PrinterRateLimiter;
+import org.openmrs.module.paperrecord.print.RenderedLabelCache;
+import org.openmrs.module.paperrecord.queue.QueueChangeFeed;
 import org.openmrs.module.paperrecord.template.IdCardLabelTemplate;
 import org.openmrs.module.paperrecord.template.LabelTemplate;
 import org.openmrs.module.paperrecord.template.PaperFormLabelTemplate;
 import org.openmrs.module.paperrecord.template.PaperRecordLabelTemplate;
+import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterService;
 import org.openmrs.module.printer.PrinterType;
 import org.slf4j.Logger;
@@ -44,14 +58,17 @@ import org.slf4j.LoggerFactory;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 import static org.openmrs.module.paperrecord.PaperRecordRequest.PENDING_STATUSES;
 import static org.openmrs.module.paperrecord.PaperRecordRequest.Status;
@@ -64,9 +81,13 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     // TODO db changeset to remove location\
     // TODO merge request location?
 
-    // the methods to request and create a record use this method to make sure they have a lock on the patient before operating,
-    // so we can avoid creating duplicate requests and/or creates
-    private static Map<Integer, Object> patientLock = new HashMap<Integer, Object>();
+    // requests for records that are pending creation need to be created, requests for any other records need to be pulled
+    private static final List<PaperRecord.Status> PAPER_RECORD_STATUSES_TO_CREATE = Collections.singletonList(PaperRecord.Status.PENDING_CREATION);
+
+    private static final List<PaperRecord.Status> PAPER_RECORD_STATUSES_TO_PULL = getAllPaperRecordStatusesExcept(PaperRecord.Status.PENDING_CREATION);
+
+    // the number of stale requests cancelled by each bulk update
+    private static final int EXPIRE_BATCH_SIZE = 500;
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
@@ -76,8 +97,12 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
     private PaperRecordMergeRequestDAO paperRecordMergeRequestDAO;
 
+    private LabelPrintJobDAO labelPrintJobDAO;
+
     private PatientService patientService;
 
+    private LocationService locationService;
+
     private IdentifierSourceService identifierSourceService;
 
     private PrinterService printerService;
@@ -92,6 +117,35 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
     private IdCardLabelTemplate idCardLabelTemplate;
 
+    // the methods to request and create a record lock on the patient before operating, so we can avoid creating
+    // duplicate requests and/or creates; the database-backed lock provider is used instead of the in-JVM registry
+    // when clustered patient locking is enabled
+    private PatientLockRegistry patientLockRegistry = new PatientLockRegistry();
+
+    private PatientLockProvider databasePatientLockProvider;
+
+    private QueueChangeFeed queueChangeFeed = new QueueChangeFeed();
+
+    // bumped in the same transaction as every write to a request or merge request, so that clients on any node can
+    // tell whether the queues at a location have changed
+    private PaperRecordQueueVersionDAO paperRecordQueueVersionDAO;
+
+    private LocationResolutionCache locationResolutionCache = new LocationResolutionCache();
+
+    // labels are queued with the spooler when asynchronous label printing is enabled, or the printer is saturated
+    private LabelPrintSpooler labelPrintSpooler;
+
+    private PrinterRateLimiter printerRateLimiter = new PrinterRateLimiter();
+
+    // labels are always rendered afresh if there is no cache
+    private RenderedLabelCache renderedLabelCache;
+
+    // paper record identifiers are always generated when the record is created if there is no pool
+    private PaperRecordIdentifierPool paperRecordIdentifierPool;
+
+    // primary identifiers are always looked up in the database if there is no cache
+    private PatientIdentifierCache patientIdentifierCache;
+
     public void setPaperRecordDAO(PaperRecordDAO paperRecordDAO) {
         this.paperRecordDAO = paperRecordDAO;
     }
@@ -104,10 +158,18 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         this.paperRecordMergeRequestDAO = paperRecordMergeRequestDAO;
     }
 
+    public void setLabelPrintJobDAO(LabelPrintJobDAO labelPrintJobDAO) {
+        this.labelPrintJobDAO = labelPrintJobDAO;
+    }
+
     public void setPatientService(PatientService patientService) {
         this.patientService = patientService;
     }
 
+    public void setLocationService(LocationService locationService) {
+        this.locationService = locationService;
+    }
+
     public void setEmrApiProperties(EmrApiProperties emrApiProperties) {
         this.emrApiProperties = emrApiProperties;
     }
@@ -128,6 +190,46 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         this.idCardLabelTemplate = idCardLabelTemplate;
     }
 
+    public void setPatientLockRegistry(PatientLockRegistry patientLockRegistry) {
+        this.patientLockRegistry = patientLockRegistry;
+    }
+
+    public void setQueueChangeFeed(QueueChangeFeed queueChangeFeed) {
+        this.queueChangeFeed = queueChangeFeed;
+    }
+
+    public void setPaperRecordQueueVersionDAO(PaperRecordQueueVersionDAO paperRecordQueueVersionDAO) {
+        this.paperRecordQueueVersionDAO = paperRecordQueueVersionDAO;
+    }
+
+    public void setLocationResolutionCache(LocationResolutionCache locationResolutionCache) {
+        this.locationResolutionCache = locationResolutionCache;
+    }
+
+    public void setLabelPrintSpooler(LabelPrintSpooler labelPrintSpooler) {
+        this.labelPrintSpooler = labelPrintSpooler;
+    }
+
+    public void setPrinterRateLimiter(PrinterRateLimiter printerRateLimiter) {
+        this.printerRateLimiter = printerRateLimiter;
+    }
+
+    public void setRenderedLabelCache(RenderedLabelCache renderedLabelCache) {
+        this.renderedLabelCache = renderedLabelCache;
+    }
+
+    public void setPaperRecordIdentifierPool(PaperRecordIdentifierPool paperRecordIdentifierPool) {
+        this.paperRecordIdentifierPool = paperRecordIdentifierPool;
+    }
+
+    public void setPatientIdentifierCache(PatientIdentifierCache patientIdentifierCache) {
+        this.patientIdentifierCache = patientIdentifierCache;
+    }
+
+    public void setDatabasePatientLockProvider(PatientLockProvider databasePatientLockProvider) {
+        this.databasePatientLockProvider = databasePatientLockProvider;
+    }
+
     @Override
     public void setPrinterService(PrinterService printerService) {
         this.printerService = printerService;
@@ -141,34 +243,31 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Override
     @Transactional(readOnly = true)
     public boolean paperRecordIdentifierInUse(String identifier, Location medicalRecordLocation) {
-        List<PatientIdentifier> identifiers = patientService.getPatientIdentifiers(identifier,
-                Collections.singletonList(paperRecordProperties.getPaperRecordIdentifierType()),
-                Collections.singletonList(getMedicalRecordLocationAssociatedWith(medicalRecordLocation)), null, null);
-
-        return identifiers != null && identifiers.size() > 0 ? true : false;
+        return paperRecordDAO.patientIdentifierInUse(identifier, paperRecordProperties.getPaperRecordIdentifierType(),
+                getMedicalRecordLocationAssociatedWith(medicalRecordLocation));
     }
 
     @Override
     @Transactional(readOnly = true)
     public boolean paperRecordExistsWithIdentifier(String identifier, Location medicalRecordLocation) {
-        return paperRecordDAO.findPaperRecord(identifier, getMedicalRecordLocationAssociatedWith(medicalRecordLocation)) != null;
+        return paperRecordDAO.paperRecordExists(identifier, getMedicalRecordLocationAssociatedWith(medicalRecordLocation));
     }
 
     @Override
     @Transactional(readOnly = true)
     public boolean paperRecordExistsForPatientWithPrimaryIdentifier(String patientIdentifier, Location medicalRecordLocation) {
 
-        List<Patient> patients = patientService.getPatients(null, patientIdentifier, Collections.singletonList(emrApiProperties.getPrimaryIdentifierType()), true);
+        List<Integer> patientIds = getPatientIdsWithPrimaryIdentifier(patientIdentifier);
 
-        if (patients == null || patients.size() == 0) {
+        if (patientIds.size() == 0) {
             return false;
         }
 
-        if (patients.size() > 1) {
+        if (patientIds.size() > 1) {
             // data model should prevent us from ever getting her, but just in case
             throw new APIException("Multiple patients found with identifier " + patientIdentifier);
         } else {
-           return paperRecordExistsForPatient(patients.get(0), medicalRecordLocation);
+           return paperRecordExistsForPatient(patientService.getPatient(patientIds.get(0)), medicalRecordLocation);
         }
 
     }
@@ -193,7 +292,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     }
 
     @Override
-    public List<PaperRecordRequest> requestPaperRecord(Patient patient, Location medicalRecordLocation, Location requestLocation) {
+    public List<PaperRecordRequest> requestPaperRecord(final Patient patient, Location medicalRecordLocation, final Location requestLocation) {
 
         // TODO: we will have to handle the case if there is already a request for this patient's record in the "SENT" state
         // TODO: (ie, what to do if the record is already out on the floor--right now it will just create a new request)
@@ -212,15 +311,14 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
 
         // fetch the nearest medical record location (or just return the given location if it is a valid
         // medical record location)
-        Location recordLocation = getMedicalRecordLocationAssociatedWith(medicalRecordLocation);
-
-        List<PaperRecordRequest> requests;
-
-        synchronized(lockOnPatient(patient)) {
-            requests = Context.getService(PaperRecordService.class).requestPaperRecordInternal(patient, recordLocation,requestLocation);
-        }
+        final Location recordLocation = getMedicalRecordLocationAssociatedWith(medicalRecordLocation);
 
-        return requests;
+        return getPatientLockProvider().executeWithLock(patient, new PatientLockProvider.Work<List<PaperRecordRequest>>() {
+            @Override
+            public List<PaperRecordRequest> execute() {
+                return Context.getService(PaperRecordService.class).requestPaperRecordInternal(patient, recordLocation, requestLocation);
+            }
+        });
     }
 
     @Override
@@ -241,12 +339,12 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             Iterator<PaperRecordRequest> i = requests.iterator();
             PaperRecordRequest firstRequest = i.next();
             firstRequest.setRequestLocation(requestLocation);
-            paperRecordRequestDAO.saveOrUpdate(firstRequest);
+            saveAndPublishChange(firstRequest);
 
             while (i.hasNext()) {
                 PaperRecordRequest request = i.next();
                 request.updateStatus(Status.CANCELLED);
-                paperRecordRequestDAO.saveOrUpdate(request);
+                saveAndPublishChange(request);
             }
 
             return requests;
@@ -275,7 +373,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
                 request.setCreator(Context.getAuthenticatedUser());
                 request.setDateCreated(new Date());
                 request.setRequestLocation(requestLocation);
-                paperRecordRequestDAO.saveOrUpdate(request);
+                saveAndPublishChange(request);
 
                 requests.add(request);
             }
@@ -288,7 +386,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Transactional
     public PaperRecordRequest savePaperRecordRequest(PaperRecordRequest paperRecordRequest) {
         if (paperRecordRequest != null) {
-            return paperRecordRequestDAO.saveOrUpdate(paperRecordRequest);
+            return saveAndPublishChange(paperRecordRequest);
         }
         return null;
     }
@@ -308,54 +406,33 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToPull() {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getOpenPaperRecordRequests(), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ! ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                PAPER_RECORD_STATUSES_TO_PULL, null, null, null);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToPull(Location medicalRecordLocation) {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getOpenPaperRecordRequests(medicalRecordLocation), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ! ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                PAPER_RECORD_STATUSES_TO_PULL, null, getMedicalRecordLocationAssociatedWith(medicalRecordLocation), null);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToCreate() {
-       return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getOpenPaperRecordRequests(), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
-
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                PAPER_RECORD_STATUSES_TO_CREATE, null, null, null);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getOpenPaperRecordRequestsToCreate(Location medicalRecordLocation) {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getOpenPaperRecordRequests(medicalRecordLocation), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
-
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                PAPER_RECORD_STATUSES_TO_CREATE, null, getMedicalRecordLocationAssociatedWith(medicalRecordLocation), null);
     }
 
-    // we break this out into an external public and internal private method because we want the transaction to
-    // occur within the synchronized block
-
     @Override
-    public synchronized Map<String, List<String>> assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException {
+    public PaperRecordAssignmentResult assignRequests(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException {
 
         if (requests == null) {
             throw new IllegalArgumentException("Requests cannot be null");
@@ -365,8 +442,6 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
             throw new IllegalArgumentException("Assignee cannot be null");
         }
 
-        // this outer block allows us to synchronize outside of the @Transaction (I think?)
-
         // HACK: we need to reference the service here because an internal call won't pick up the @Transactional on the
         // internal method; we could potentially wire the bean into itself, but are unsure of that
         // see PaperRecordService.assignRequestsInternal(...  for more information
@@ -377,33 +452,51 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     // HACK; note that this method must be public in order for Spring to pick up the @Transactional annotation;
     // see PaperRecordService.assignRequestsInternal(...  for more information
     @Transactional(rollbackFor = UnableToPrintLabelException.class)
-    public Map<String, List<String>> assignRequestsInternal(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException {
+    public PaperRecordAssignmentResult assignRequestsInternal(List<PaperRecordRequest> requests, Person assignee, Location location) throws UnableToPrintLabelException {
 
-        Map<String, List<String>> response = new HashMap<String, List<String>>();
-        response.put("success", new LinkedList<String>());
-        response.put("error", new LinkedList<String>());
+        PaperRecordAssignmentResult result = new PaperRecordAssignmentResult();
 
-        for (PaperRecordRequest request : requests) {
+        // concurrent assignments are coordinated by row locks on the requests themselves (held until this transaction
+        // completes) rather than by a global monitor, so archivists assigning disjoint requests don't wait on each other;
+        // the requests are locked in a consistent order so that two overlapping assignments can't deadlock
+        List<PaperRecordRequest> sortedRequests = new ArrayList<PaperRecordRequest>(requests);
+        Collections.sort(sortedRequests, new Comparator<PaperRecordRequest>() {
+            @Override
+            public int compare(PaperRecordRequest request1, PaperRecordRequest request2) {
+                if (request1.getId() == null || request2.getId() == null) {
+                    return request1.getId() == null ? (request2.getId() == null ? 0 : 1) : -1;
+                }
+                return request1.getId().compareTo(request2.getId());
+            }
+        });
+
+        List<PaperRecordRequest> assignedRequests = new ArrayList<PaperRecordRequest>();
+
+        for (PaperRecordRequest request : sortedRequests) {
 
             // as a sanity check, ignore any requests that aren't open
             if (request.getStatus() == Status.OPEN) {
 
-                // we chose a different printing scheme based on whether or not a paper record needs to be created
-                if (request.getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION)) {
-                    printPaperRecordLabelSet(request, location);
-                } else {
-                    printPaperFormLabels(request, location, PaperRecordConstants.NUMBER_OF_FORM_LABELS_TO_PRINT);
+                // now that we hold the lock, make sure another archivist hasn't assigned this request in the meantime
+                if (paperRecordRequestDAO.lockPaperRecordRequest(request) != Status.OPEN) {
+                    log.info("Not assigning request " + request + " as it is no longer open");
+                    result.getAlreadyAssignedIdentifiers().add(request.getPaperRecord().getPatientIdentifier().getIdentifier());
+                    continue;
                 }
 
                 request.updateStatus(Status.ASSIGNED);
                 request.setAssignee(assignee);
-                paperRecordRequestDAO.saveOrUpdate(request);
+                saveAndPublishChange(request);
+                assignedRequests.add(request);
 
-                response.get("success").add(request.getPaperRecord().getPatientIdentifier().getIdentifier());
+                result.getAssignedIdentifiers().add(request.getPaperRecord().getPatientIdentifier().getIdentifier());
             }
         }
 
-        return response;
+        // print the labels for all the assigned requests together; if printing fails, the whole assignment is rolled back
+        result.setLabelPrintResult(printLabelsForPaperRecordRequests(assignedRequests, location));
+
+        return result;
     }
 
     @Override
@@ -423,45 +516,127 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToPull() {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getAssignedPaperRecordRequests(), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ! ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED),
+                PAPER_RECORD_STATUSES_TO_PULL, null, null, null);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToPull(Location medicalRecordLocation) {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getAssignedPaperRecordRequests(medicalRecordLocation), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ! ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED),
+                PAPER_RECORD_STATUSES_TO_PULL, null, getMedicalRecordLocationAssociatedWith(medicalRecordLocation), null);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate(Location medicalRecordLocation) {
-        return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getAssignedPaperRecordRequests(medicalRecordLocation), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED),
+                PAPER_RECORD_STATUSES_TO_CREATE, null, getMedicalRecordLocationAssociatedWith(medicalRecordLocation), null);
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getAssignedPaperRecordRequestsToCreate() {
-    return new ArrayList<PaperRecordRequest> (CollectionUtils.select(getAssignedPaperRecordRequests(), new Predicate() {
-            @Override
-            public boolean evaluate(Object request) {
-                return ((PaperRecordRequest) request).getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION);
-            }
-        }));
+        return paperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED),
+                PAPER_RECORD_STATUSES_TO_CREATE, null, null, null);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getOpenPaperRecordQueueRowsToPull(Location medicalRecordLocation) {
+        return getOpenPaperRecordQueueRowsToPull(medicalRecordLocation, null, null, null);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getOpenPaperRecordQueueRowsToPull(Location medicalRecordLocation, Date afterDateCreated, Integer afterRequestId,
+                                                              Integer maxResults) {
+        List<PaperRecordQueueRow> rows = paperRecordRequestDAO.findPaperRecordQueueRows(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                PAPER_RECORD_STATUSES_TO_PULL, getMedicalRecordLocationAssociatedWith(medicalRecordLocation), emrApiProperties.getPrimaryIdentifierType(),
+                afterDateCreated, afterRequestId, maxResults);
+        paperRecordRequestDAO.populateLastSent(rows);
+        return rows;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getOpenPaperRecordQueueRowsToCreate(Location medicalRecordLocation) {
+        return getOpenPaperRecordQueueRowsToCreate(medicalRecordLocation, null, null, null);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getOpenPaperRecordQueueRowsToCreate(Location medicalRecordLocation, Date afterDateCreated, Integer afterRequestId,
+                                                              Integer maxResults) {
+        return paperRecordRequestDAO.findPaperRecordQueueRows(Collections.singletonList(PaperRecordRequest.Status.OPEN),
+                PAPER_RECORD_STATUSES_TO_CREATE, getMedicalRecordLocationAssociatedWith(medicalRecordLocation), emrApiProperties.getPrimaryIdentifierType(),
+                afterDateCreated, afterRequestId, maxResults);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getAssignedPaperRecordQueueRowsToPull(Location medicalRecordLocation) {
+        return getAssignedPaperRecordQueueRowsToPull(medicalRecordLocation, null, null, null);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getAssignedPaperRecordQueueRowsToPull(Location medicalRecordLocation, Date afterDateCreated, Integer afterRequestId,
+                                                              Integer maxResults) {
+        List<PaperRecordQueueRow> rows = paperRecordRequestDAO.findPaperRecordQueueRows(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED),
+                PAPER_RECORD_STATUSES_TO_PULL, getMedicalRecordLocationAssociatedWith(medicalRecordLocation), emrApiProperties.getPrimaryIdentifierType(),
+                afterDateCreated, afterRequestId, maxResults);
+        paperRecordRequestDAO.populateLastSent(rows);
+        return rows;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getAssignedPaperRecordQueueRowsToCreate(Location medicalRecordLocation) {
+        return getAssignedPaperRecordQueueRowsToCreate(medicalRecordLocation, null, null, null);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getAssignedPaperRecordQueueRowsToCreate(Location medicalRecordLocation, Date afterDateCreated, Integer afterRequestId,
+                                                              Integer maxResults) {
+        return paperRecordRequestDAO.findPaperRecordQueueRows(Collections.singletonList(PaperRecordRequest.Status.ASSIGNED),
+                PAPER_RECORD_STATUSES_TO_CREATE, getMedicalRecordLocationAssociatedWith(medicalRecordLocation), emrApiProperties.getPrimaryIdentifierType(),
+                afterDateCreated, afterRequestId, maxResults);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public PaperRecordQueueCounts getPaperRecordQueueCounts(Location medicalRecordLocation) {
+        Location recordLocation = getMedicalRecordLocationAssociatedWith(medicalRecordLocation);
+        PaperRecordQueueCounts counts = paperRecordRequestDAO.countPaperRecordQueueRows(PENDING_STATUSES, recordLocation)
+                .get(recordLocation.getId());
+        return counts != null ? counts : new PaperRecordQueueCounts();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Location, PaperRecordQueueCounts> getPaperRecordQueueCounts() {
+        Map<Location, PaperRecordQueueCounts> counts = new HashMap<Location, PaperRecordQueueCounts>();
+        for (Map.Entry<Integer, PaperRecordQueueCounts> entry : paperRecordRequestDAO.countPaperRecordQueueRows(PENDING_STATUSES, null).entrySet()) {
+            counts.put(locationService.getLocation(entry.getKey()), entry.getValue());
+        }
+        return counts;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public long getPaperRecordQueueVersion(Location medicalRecordLocation) {
+        return paperRecordQueueVersionDAO.getVersion(medicalRecordLocation.getId());
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<PaperRecordQueueRow> getPendingPaperRecordQueueRows(Collection<Integer> requestIds) {
+        List<PaperRecordQueueRow> rows = paperRecordRequestDAO.findPaperRecordQueueRows(requestIds, PENDING_STATUSES,
+                emrApiProperties.getPrimaryIdentifierType());
+        paperRecordRequestDAO.populateLastSent(rows);
+        return rows;
     }
 
     @Override
@@ -471,6 +646,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     }
 
     @Override
+    @Deprecated
     @Transactional(readOnly = true)
     public PaperRecordRequest getPendingPaperRecordRequestByIdentifier(String identifier, Location medicalRecordLocation) {
         List<PaperRecordRequest> requests = getPaperRecordRequestByIdentifierAndStatus(identifier, PENDING_STATUSES, medicalRecordLocation);
@@ -500,30 +676,127 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     }
 
     @Override
+    @Deprecated
     @Transactional(readOnly = true)
     public List<PaperRecordRequest> getSentPaperRecordRequestByIdentifier(String identifier, Location medicalRecordLocation) {
         return getPaperRecordRequestByIdentifierAndStatus(identifier, Collections.singletonList(Status.SENT), medicalRecordLocation);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public PaperRecordScan resolveScan(String identifier, Location medicalRecordLocation) {
+
+        List<Status> statusList = new ArrayList<Status>(PENDING_STATUSES);
+        statusList.add(Status.SENT);
+
+        // fetch the pending and sent requests in one go, so the identifier only has to be resolved once
+        List<PaperRecordRequest> requests = getPaperRecordRequestByIdentifierAndStatus(identifier, statusList, medicalRecordLocation);
+        if (requests == null) {
+            requests = new ArrayList<PaperRecordRequest>();
+        }
+
+        // duplicate pending requests are only an error when marking the record as sent (see PaperRecordScan#getPendingRequest),
+        // so they don't stop a record from being returned
+        List<PaperRecordRequest> pendingRequests = new ArrayList<PaperRecordRequest>();
+        List<PaperRecordRequest> sentRequests = new ArrayList<PaperRecordRequest>();
+
+        for (PaperRecordRequest request : requests) {
+            if (request.getStatus() == Status.SENT) {
+                sentRequests.add(request);
+            } else {
+                pendingRequests.add(request);
+            }
+        }
+
+        PaperRecord paperRecord;
+        if (requests.size() > 0) {
+            paperRecord = requests.get(0).getPaperRecord();
+        } else {
+            paperRecord = getPaperRecordByIdentifier(identifier, medicalRecordLocation);
+        }
+
+        return new PaperRecordScan(identifier, paperRecord, pendingRequests, sentRequests);
+    }
+
+    // finds the record with the given paper record identifier, or failing that, the record for the patient with the given primary identifier
+    private PaperRecord getPaperRecordByIdentifier(String identifier, Location medicalRecordLocation) {
+
+        if (StringUtils.isBlank(identifier)) {
+            return null;
+        }
+
+        Location recordLocation = getMedicalRecordLocationAssociatedWith(medicalRecordLocation);
+
+        PaperRecord paperRecord = paperRecordDAO.findPaperRecord(identifier, recordLocation);
+        if (paperRecord != null) {
+            return paperRecord;
+        }
+
+        List<Integer> patientIds = getPatientIdsWithPrimaryIdentifier(identifier);
+        if (patientIds.size() > 1) {
+            throw new IllegalStateException("Duplicate patients exist with identifier " + identifier);
+        } else if (patientIds.size() == 1) {
+            List<PaperRecord> paperRecords = paperRecordDAO.findPaperRecords(patientService.getPatient(patientIds.get(0)), recordLocation);
+            if (paperRecords != null && paperRecords.size() > 0) {
+                return paperRecords.get(0);
+            }
+        }
+
+        return null;
+    }
+
     private List<PaperRecordRequest> getPaperRecordRequestByIdentifierAndStatus(String identifier, List<Status> statusList, Location medicalRecordLocation) {
         // first see if we find any requests by paper record identifier
         List<PaperRecordRequest> requests = getPaperRecordRequestByPaperRecordIdentifierAndStatus(identifier, statusList, medicalRecordLocation);
 
-        // if no requests, see if this is another type of patient identifier (note tha this appears to be computationally expensive)
+        // if no requests, see if this is the patient's primary identifier (e.g. the barcode on the record was scanned)
         if ((requests == null || requests.size() == 0)) {
-            List<Patient> patients = patientService.getPatients(null, identifier, Collections.singletonList(emrApiProperties.getPrimaryIdentifierType()), true);
-            if (patients != null && patients.size() > 0) {
-                if (patients.size() > 1) {
+            List<Integer> patientIds = getPatientIdsWithPrimaryIdentifier(identifier);
+            if (patientIds.size() > 0) {
+                if (patientIds.size() > 1) {
                     throw new IllegalStateException("Duplicate patients exist with identifier " + identifier);
                 } else {
-                    requests = paperRecordRequestDAO.findPaperRecordRequests(statusList, patients.get(0), getMedicalRecordLocationAssociatedWith(medicalRecordLocation),
-                            null);
+                    requests = paperRecordRequestDAO.findPaperRecordRequests(statusList, patientService.getPatient(patientIds.get(0)),
+                            getMedicalRecordLocationAssociatedWith(medicalRecordLocation), null);
                 }
             }
         }
         return requests;
     }
 
+    /**
+     * Looks up the patients with the given primary identifier with a single exact-match query, rather than the
+     * patient search, consulting the patient identifier cache first; callers load the patient only once they know the
+     * identifier isn't ambiguous
+     *
+     * @param identifier
+     * @return the ids of the patients with the given primary identifier (at most two)
+     */
+    private List<Integer> getPatientIdsWithPrimaryIdentifier(String identifier) {
+
+        if (StringUtils.isBlank(identifier)) {
+            return Collections.emptyList();
+        }
+
+        long generation = 0;
+        if (patientIdentifierCache != null) {
+            Integer patientId = patientIdentifierCache.getPatientId(identifier);
+            if (patientId != null) {
+                return Collections.singletonList(patientId);
+            }
+            generation = patientIdentifierCache.getGeneration();
+        }
+
+        List<Integer> patientIds = paperRecordDAO.findPatientIdsByIdentifier(identifier, emrApiProperties.getPrimaryIdentifierType());
+
+        // only unambiguous identifiers are cached, so duplicates are always reported
+        if (patientIdentifierCache != null && patientIds.size() == 1) {
+            patientIdentifierCache.putPatientId(generation, identifier, patientIds.get(0));
+        }
+
+        return patientIds;
+    }
+
     private List<PaperRecordRequest> getPaperRecordRequestByPaperRecordIdentifierAndStatus(String identifier, List<Status> statusList, Location medicalRecordLocation) {
         if (StringUtils.isBlank(identifier)) {
             return new ArrayList<PaperRecordRequest>();
@@ -584,90 +857,162 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     }
 
     @Override
-    @Transactional(readOnly = true)
-    public void printPaperRecordLabel(PaperRecordRequest request, Location location) throws UnableToPrintLabelException {
-        printPaperRecordLabels(request, location, 1);
+    @Transactional
+    public LabelPrintResult printPaperRecordLabel(PaperRecordRequest request, Location location) throws UnableToPrintLabelException {
+        return printPaperRecordLabels(request, location, 1);
     }
 
 
     @Override
-    @Transactional(readOnly = true)
-    public void printPaperRecordLabels(PaperRecordRequest request, Location location, Integer count) throws UnableToPrintLabelException {
-        printLabels(request.getPaperRecord().getPatientIdentifier().getPatient(), request.getPaperRecord().getPatientIdentifier().getIdentifier(), location, count, paperRecordLabelTemplate);
+    @Transactional
+    public LabelPrintResult printPaperRecordLabels(PaperRecordRequest request, Location location, Integer count) throws UnableToPrintLabelException {
+        return printLabels(request.getPaperRecord().getPatientIdentifier().getPatient(), request.getPaperRecord().getPatientIdentifier().getIdentifier(), location, count, paperRecordLabelTemplate);
     }
 
     @Override
-    @Transactional(readOnly = true)
-    public void printPaperRecordLabels(Patient patient, Location location, Integer count) throws UnableToPrintLabelException {
+    @Transactional
+    public LabelPrintResult printPaperRecordLabels(Patient patient, Location location, Integer count) throws UnableToPrintLabelException {
+
+        LabelPrintResult result = LabelPrintResult.PRINTED;
 
         // generally, in our current design, a patient should only have one paper record per location
         List<PaperRecord> paperRecords = getPaperRecords(patient, location);
 
         if (paperRecords != null && paperRecords.size() > 0) {
             for (PaperRecord paperRecord : paperRecords) {
-                    printLabels(patient, paperRecord.getPatientIdentifier().getIdentifier(), location, count, paperRecordLabelTemplate);
+                result = result.and(printLabels(patient, paperRecord.getPatientIdentifier().getIdentifier(), location, count, paperRecordLabelTemplate));
             }
         }
+
+        return result;
     }
 
     @Override
-    @Transactional(readOnly = true)
-    public void printPaperFormLabels(PaperRecordRequest request, Location location, Integer count) throws UnableToPrintLabelException {
-        printLabels(request.getPaperRecord().getPatientIdentifier().getPatient(), request.getPaperRecord().getPatientIdentifier().getIdentifier(), location, count, paperFormLabelTemplate);
+    @Transactional
+    public LabelPrintResult printPaperFormLabels(PaperRecordRequest request, Location location, Integer count) throws UnableToPrintLabelException {
+        return printLabels(request.getPaperRecord().getPatientIdentifier().getPatient(), request.getPaperRecord().getPatientIdentifier().getIdentifier(), location, count, paperFormLabelTemplate);
 
     }
 
     @Override
-    @Transactional(readOnly = true)
-    public void printPaperFormLabels(Patient patient, Location location, Integer count) throws UnableToPrintLabelException {
+    @Transactional
+    public LabelPrintResult printPaperFormLabels(Patient patient, Location location, Integer count) throws UnableToPrintLabelException {
+
+        LabelPrintResult result = LabelPrintResult.PRINTED;
 
         // generally, in our current design, a patient should only have one paper record per location
         List<PaperRecord> paperRecords = getPaperRecords(patient, location);
 
         if (paperRecords != null && paperRecords.size() > 0) {
             for (PaperRecord paperRecord : paperRecords) {
-                printLabels(patient, paperRecord.getPatientIdentifier().getIdentifier(), location, count, paperFormLabelTemplate);
+                result = result.and(printLabels(patient, paperRecord.getPatientIdentifier().getIdentifier(), location, count, paperFormLabelTemplate));
             }
         }
+
+        return result;
     }
 
     @Override
-    @Transactional(readOnly = true)
-    public void printIdCardLabel(Patient patient, Location location) throws UnableToPrintLabelException {
-        printLabels(patient, null, location, 1, idCardLabelTemplate);
+    @Transactional
+    public LabelPrintResult printIdCardLabel(Patient patient, Location location) throws UnableToPrintLabelException {
+        return printLabels(patient, null, location, 1, idCardLabelTemplate);
     }
 
     @Override
-    public void printPaperRecordLabelSet(PaperRecordRequest request, Location location) throws UnableToPrintLabelException{
-        printPaperRecordLabel(request, location);
-        printPaperFormLabels(request, location, PaperRecordConstants.NUMBER_OF_FORM_LABELS_TO_PRINT);
-        printIdCardLabel(request.getPaperRecord().getPatientIdentifier().getPatient(), location);
+    @Transactional
+    public LabelPrintResult printPaperRecordLabelSet(PaperRecordRequest request, Location location) throws UnableToPrintLabelException{
+        return printPaperRecordLabel(request, location)
+                .and(printPaperFormLabels(request, location, PaperRecordConstants.NUMBER_OF_FORM_LABELS_TO_PRINT))
+                .and(printIdCardLabel(request.getPaperRecord().getPatientIdentifier().getPatient(), location));
+    }
+
+    @Override
+    @Transactional
+    public LabelPrintResult printLabelsForPaperRecordRequests(List<PaperRecordRequest> requests, Location location) throws UnableToPrintLabelException {
+
+        LabelBatch batch = new LabelBatch(paperRecordProperties.getMaxLabelsPerPrintJob(), renderedLabelCache);
+
+        for (PaperRecordRequest request : requests) {
+
+            Patient patient = request.getPaperRecord().getPatientIdentifier().getPatient();
+            String identifier = request.getPaperRecord().getPatientIdentifier().getIdentifier();
+
+            // we chose a different printing scheme based on whether or not a paper record needs to be created
+            if (request.getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION)) {
+                batch.add(paperRecordLabelTemplate, patient, identifier, 1);
+                batch.add(paperFormLabelTemplate, patient, identifier, PaperRecordConstants.NUMBER_OF_FORM_LABELS_TO_PRINT);
+                batch.add(idCardLabelTemplate, patient, null, 1);
+            } else {
+                batch.add(paperFormLabelTemplate, patient, identifier, PaperRecordConstants.NUMBER_OF_FORM_LABELS_TO_PRINT);
+            }
+        }
+
+        LabelPrintResult result = LabelPrintResult.PRINTED;
+
+        for (LabelBatch.Job job : batch.getJobs()) {
+            result = result.and(sendLabels(job.getData(), job.getEncoding(), job.getLabelCount(), location,
+                    "Unable to print labels for " + requests.size() + " requests at location " + location));
+        }
+
+        return result;
     }
 
-    private void printLabels(Patient patient, String identifier, Location location, Integer count, LabelTemplate template) throws UnableToPrintLabelException {
+    private LabelPrintResult printLabels(Patient patient, String identifier, Location location, Integer count, LabelTemplate template) throws UnableToPrintLabelException {
         if (count == null || count == 0) {
-            return;  // just do nothing if we don't have a count
+            return LabelPrintResult.PRINTED;  // just do nothing if we don't have a count
+        }
+
+        // all the copies go in a single job, as they always have
+        LabelBatch batch = new LabelBatch(0, renderedLabelCache);
+        batch.add(template, patient, identifier, count);
+
+        LabelPrintResult result = LabelPrintResult.PRINTED;
+
+        for (LabelBatch.Job job : batch.getJobs()) {
+            result = result.and(sendLabels(job.getData(), job.getEncoding(), job.getLabelCount(), location,
+                    "Unable to print paper record label at location " + location + " for patient " + patient));
         }
 
-        String data = template.generateLabel(patient, identifier);
-        String encoding = template.getEncoding();
+        return result;
+    }
 
-        // just duplicate the data if we are printing multiple labels
-        StringBuffer dataBuffer = new StringBuffer();
-        dataBuffer.append(data);
+    private LabelPrintResult sendLabels(String data, String encoding, int labelCount, Location location, String errorMessage) throws UnableToPrintLabelException {
 
-        int countDown = count;
+        Printer printer = printerService.getDefaultPrinter(location, PrinterType.LABEL);
+        if (printer == null) {
+            throw new UnableToPrintLabelException("No default label printer configured for location " + location);
+        }
 
-        while (countDown > 1) {
-            dataBuffer.append(data);
-            countDown--;
+        // queue the labels to be sent once the current transaction commits if asynchronous printing is enabled, or if
+        // the printer is saturated, rather than making the user wait on the printer; labels are also queued whenever
+        // the printer already has jobs in its queue, so they can't jump ahead of those jobs (or take the tokens the
+        // spooler is waiting on for them)
+        if (labelPrintSpooler != null && (paperRecordProperties.getAsynchronousLabelPrintingEnabled()
+                || labelPrintSpooler.hasPendingJobs(printer.getId())
+                || !printerRateLimiter.tryAcquire(printer.getId(), labelCount))) {
+            LabelPrintJob job = labelPrintSpooler.enqueue(printer, location, data, encoding, labelCount);
+            return LabelPrintResult.queued(labelPrintSpooler.getQueuePosition(job));
         }
 
         try {
-            printerService.printViaSocket(dataBuffer.toString(), PrinterType.LABEL, location, encoding, false, 500 + (count * 100));   // add a slight delay to avoid overloading a single printer
+            printerService.printViaSocket(data, printer, encoding);
         } catch (Exception e) {
-            throw new UnableToPrintLabelException("Unable to print paper record label at location " + location + " for patient " + patient, e);
+            throw new UnableToPrintLabelException(errorMessage, e);
         }
+
+        return LabelPrintResult.PRINTED;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<LabelPrintJob> getPendingLabelPrintJobs(Location location) {
+        return labelPrintJobDAO.findLabelPrintJobs(Arrays.asList(LabelPrintJob.Status.QUEUED, LabelPrintJob.Status.PRINTING), location, null);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<LabelPrintJob> getFailedLabelPrintJobs(Location location, Date since) {
+        return labelPrintJobDAO.findLabelPrintJobs(Collections.singletonList(LabelPrintJob.Status.FAILED), location, since);
     }
 
     @Override
@@ -702,7 +1047,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         mergeRequest.setCreator(Context.getAuthenticatedUser());
         mergeRequest.setDateCreated(new Date());
 
-        paperRecordMergeRequestDAO.saveOrUpdate(mergeRequest);
+        saveAndPublishChange(mergeRequest);
 
         // void the non-preferred identifier; we do this now (instead of when the merge is confirmed)
         // so that all new requests for records for this patient use the right identifier
@@ -714,7 +1059,7 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     public void markPaperRecordsAsMerged(PaperRecordMergeRequest mergeRequest) {
         // then just mark the request as merged
         mergeRequest.setStatus(PaperRecordMergeRequest.Status.MERGED);
-        paperRecordMergeRequestDAO.saveOrUpdate(mergeRequest);
+        saveAndPublishChange(mergeRequest);
     }
 
     @Override
@@ -728,58 +1073,78 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Override
     @Transactional
     public void expirePendingPullRequests(Date expireDate) {
+        Integer afterRequestId = null;
+        do {
+            afterRequestId = expirePendingRequests(PAPER_RECORD_STATUSES_TO_PULL, expireDate, afterRequestId, EXPIRE_BATCH_SIZE);
+        } while (afterRequestId != null);
+    }
 
-        List<PaperRecordRequest> pullRequests = new ArrayList<PaperRecordRequest>();
-
-        // note that since we are calling the other service methods directly, they
-        // won't be transactional, so we need to make sure this method is transactional
-
-        pullRequests.addAll(getOpenPaperRecordRequestsToPull());
-        pullRequests.addAll(getAssignedPaperRecordRequestsToPull());
+    @Override
+    @Transactional
+    public void expirePendingCreateRequests(Date expireDate) {
+        Integer afterRequestId = null;
+        do {
+            afterRequestId = expirePendingRequests(PAPER_RECORD_STATUSES_TO_CREATE, expireDate, afterRequestId, EXPIRE_BATCH_SIZE);
+        } while (afterRequestId != null);
+    }
 
-        for (PaperRecordRequest request : pullRequests) {
-            if (request.getDateCreated().before(expireDate)) {
-                markPaperRecordRequestAsCancelled(request);
-            }
-        }
+    @Override
+    @Transactional
+    public Integer expirePendingPullRequests(Date expireDate, Integer afterRequestId, int batchSize) {
+        return expirePendingRequests(PAPER_RECORD_STATUSES_TO_PULL, expireDate, afterRequestId, batchSize);
     }
 
     @Override
     @Transactional
-    public void expirePendingCreateRequests(Date expireDate) {
+    public Integer expirePendingCreateRequests(Date expireDate, Integer afterRequestId, int batchSize) {
+        return expirePendingRequests(PAPER_RECORD_STATUSES_TO_CREATE, expireDate, afterRequestId, batchSize);
+    }
 
-        List<PaperRecordRequest> createRequests = new ArrayList<PaperRecordRequest>();
+    // cancels a batch of stale requests with a bulk update, so that they never need to be loaded, and returns the
+    // id of the last request in the batch, or null if there are no stale requests left
+    private Integer expirePendingRequests(List<PaperRecord.Status> paperRecordStatusList, Date expireDate,
+                                          Integer afterRequestId, int batchSize) {
 
-        // note that since we are calling the other service methods directly, they
-        // won't be transactional, so we need to make sure this method is transactional
+        Map<Integer, Integer> staleRequests = paperRecordRequestDAO.findPaperRecordRequestIdsCreatedBefore(PENDING_STATUSES,
+                paperRecordStatusList, expireDate, afterRequestId, batchSize);
 
-        createRequests.addAll(getOpenPaperRecordRequestsToCreate());
-        createRequests.addAll(getAssignedPaperRecordRequestsToCreate());
+        // only the requests that were actually cancelled have changed (any sent in the meantime are skipped)
+        Map<Integer, Integer> cancelled = new LinkedHashMap<Integer, Integer>(staleRequests);
+        cancelled.keySet().retainAll(paperRecordRequestDAO.cancelPaperRecordRequests(staleRequests.keySet(), PENDING_STATUSES));
 
-        for (PaperRecordRequest request : createRequests) {
-            if (request.getDateCreated().before(expireDate)) {
-                markPaperRecordRequestAsCancelled(request);
-            }
+        // bump each location once, in id order, so that concurrent batches always lock the version rows in the same order
+        Map<Integer, Long> versions = new HashMap<Integer, Long>();
+        for (Integer recordLocationId : new TreeSet<Integer>(cancelled.values())) {
+            versions.put(recordLocationId, paperRecordQueueVersionDAO.incrementVersion(recordLocationId));
         }
+        queueChangeFeed.requestsChanged(cancelled, versions);
 
+        if (staleRequests.size() < batchSize) {
+            return null;
+        }
+
+        Integer lastRequestId = null;
+        for (Integer requestId : staleRequests.keySet()) {
+            lastRequestId = requestId;
+        }
+        return lastRequestId;
     }
 
     @Override
-    public PaperRecord createPaperRecord(Patient patient, Location location) {
+    public PaperRecord createPaperRecord(final Patient patient, Location location) {
 
         if (patient == null) {
             throw new IllegalArgumentException("Patient shouldn't be null");
         }
 
-        PaperRecord paperRecord;
-
-        Location medicalRecordLocation = getMedicalRecordLocationAssociatedWith(location);
-
-        synchronized(lockOnPatient(patient)) {
-            paperRecord = Context.getService(PaperRecordService.class).createPaperRecordInternal(patient, medicalRecordLocation);
-        }
+        final Location medicalRecordLocation = getMedicalRecordLocationAssociatedWith(location);
 
-        return paperRecord;
+        return getPatientLockProvider().executeWithLock(patient, new PatientLockProvider.Work<PaperRecord>() {
+            @Override
+            public PaperRecord execute() {
+                return Context.getService(PaperRecordService.class).createPaperRecordInternal(patient, medicalRecordLocation);
+            }
+        });
     }
 
     @Override
@@ -795,21 +1160,25 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         if (paperRecordIdentifier == null) {
             PatientIdentifierType paperRecordIdentifierType = paperRecordProperties.getPaperRecordIdentifierType();
 
-            String paperRecordId = "";
-
-            paperRecordId = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
-                    "generating a new paper record identifier number");
+            // use an identifier generated ahead of time if there is one
+            String paperRecordId = takePooledPaperRecordIdentifier(medicalRecordLocation);
 
             if (paperRecordId == null) {
-                throw new APIException("Unable to generate paper record identifier for patient " + patient +
-                        ". Either no auto generation option has been provided for the identifier type, or auto-generation has been disabled.");
-            }
 
-            // double check to make sure this identifier is not in use
-            while (paperRecordIdentifierInUse(paperRecordId, medicalRecordLocation)) {
-                log.error("Attempted to generate duplicate paper record identifier " + paperRecordId );
                 paperRecordId = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
                         "generating a new paper record identifier number");
+
+                if (paperRecordId == null) {
+                    throw new APIException("Unable to generate paper record identifier for patient " + patient +
+                            ". Either no auto generation option has been provided for the identifier type, or auto-generation has been disabled.");
+                }
+
+                // double check to make sure this identifier is not in use
+                while (paperRecordIdentifierInUse(paperRecordId, medicalRecordLocation)) {
+                    log.error("Attempted to generate duplicate paper record identifier " + paperRecordId );
+                    paperRecordId = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
+                            "generating a new paper record identifier number");
+                }
             }
 
             paperRecordIdentifier = new PatientIdentifier(paperRecordId, paperRecordIdentifierType,
@@ -868,15 +1237,27 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     public Location getMedicalRecordLocationAssociatedWith(Location location) {
 
         if (location != null) {
-            if (location.hasTag(paperRecordProperties.getMedicalRecordLocationLocationTag().toString())) {
-                return location;
-            } else {
-                return getMedicalRecordLocationAssociatedWith(location.getParentLocation());
+            Location cached = getCachedLocation(location, locationResolutionCache.getMedicalRecordLocationId(location.getId()));
+            if (cached != null) {
+                return cached;
             }
         }
 
-        throw new IllegalStateException(
-                "Location " + location + " has is no matching parent location with the tag: " + paperRecordProperties.getMedicalRecordLocationLocationTag().toString());
+        long generation = locationResolutionCache.getGeneration();
+        String medicalRecordLocationTag = paperRecordProperties.getMedicalRecordLocationLocationTag().toString();
+
+        Location medicalRecordLocation = location;
+        while (medicalRecordLocation != null && !medicalRecordLocation.hasTag(medicalRecordLocationTag)) {
+            medicalRecordLocation = medicalRecordLocation.getParentLocation();
+        }
+
+        if (medicalRecordLocation == null) {
+            throw new IllegalStateException(
+                    "Location " + location + " has is no matching parent location with the tag: " + medicalRecordLocationTag);
+        }
+
+        locationResolutionCache.putMedicalRecordLocationId(generation, location.getId(), medicalRecordLocation.getId());
+        return medicalRecordLocation;
     }
 
     @Override
@@ -893,24 +1274,44 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
     @Override
     public Location getArchivesLocationAssociatedWith(Location location) {
 
-        Location l = getArchivesLocationHelper(getMedicalRecordLocationAssociatedWith(location));
+        Location medicalRecordLocation = getMedicalRecordLocationAssociatedWith(location);
+
+        Location cached = getCachedLocation(medicalRecordLocation, locationResolutionCache.getArchivesLocationId(medicalRecordLocation.getId()));
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = locationResolutionCache.getGeneration();
+        Location l = getArchivesLocationHelper(medicalRecordLocation, paperRecordProperties.getArchivesLocationTag().toString());
 
         if (l == null) {
             throw new IllegalStateException("No archives room location found for location " + location);
         }
 
+        locationResolutionCache.putArchivesLocationId(generation, medicalRecordLocation.getId(), l.getId());
         return l;
     }
 
-    private Location getArchivesLocationHelper(Location location) {
+    private Location getCachedLocation(Location location, Integer cachedLocationId) {
+        if (cachedLocationId == null) {
+            return null;
+        }
+        if (cachedLocationId.equals(location.getId())) {
+            return location;
+        }
+        // null if the location has since been purged, in which case we resolve it again
+        return locationService.getLocation(cachedLocationId);
+    }
+
+    private Location getArchivesLocationHelper(Location location, String archivesLocationTag) {
 
-        if (location.hasTag(paperRecordProperties.getArchivesLocationTag().toString())) {
+        if (location.hasTag(archivesLocationTag)) {
             return location;
         }
 
         if (location.getChildLocations(false) != null) {
             for (Location l : location.getChildLocations(false)) {
-                Location match = getArchivesLocationHelper(l);
+                Location match = getArchivesLocationHelper(l, archivesLocationTag);
                 if (match != null) {
                     return match;
                 }
@@ -920,13 +1321,63 @@ public class PaperRecordServiceImpl extends BaseOpenmrsService implements PaperR
         return null;
     }
 
-    private Object lockOnPatient(Patient patient) {
+    // pooled identifiers were only checked when they were generated, and may have been used since (on another node, or
+    // entered by hand), so each is checked again and discarded if taken; returns null once the pool is empty
+    private String takePooledPaperRecordIdentifier(Location medicalRecordLocation) {
+        if (paperRecordIdentifierPool == null) {
+            return null;
+        }
+        String paperRecordId = paperRecordIdentifierPool.take(medicalRecordLocation);
+        while (paperRecordId != null && paperRecordIdentifierInUse(paperRecordId, medicalRecordLocation)) {
+            log.warn("Discarding pooled paper record identifier " + paperRecordId + ", which is already in use");
+            paperRecordId = paperRecordIdentifierPool.take(medicalRecordLocation);
+        }
+        return paperRecordId;
+    }
+
+    private PaperRecordRequest saveAndPublishChange(PaperRecordRequest request) {
+        boolean created = request.getId() == null;
+        PaperRecordRequest savedRequest = paperRecordRequestDAO.saveOrUpdate(request);
+        Long version = incrementQueueVersion(request.getPaperRecord());
+        if (created) {
+            queueChangeFeed.requestCreated(request, version);
+        }
+        else {
+            queueChangeFeed.requestChanged(request, version);
+        }
+        return savedRequest;
+    }
 
-        if (!patientLock.containsKey(patient.getId())) {
-            patientLock.put(patient.getId(), new Object());
+    private PaperRecordMergeRequest saveAndPublishChange(PaperRecordMergeRequest mergeRequest) {
+        boolean created = mergeRequest.getId() == null;
+        PaperRecordMergeRequest savedMergeRequest = paperRecordMergeRequestDAO.saveOrUpdate(mergeRequest);
+        Long version = incrementQueueVersion(mergeRequest.getPreferredPaperRecord());
+        if (created) {
+            queueChangeFeed.mergeRequestCreated(mergeRequest, version);
         }
+        else {
+            queueChangeFeed.mergeRequestChanged(mergeRequest, version);
+        }
+        return savedMergeRequest;
+    }
+
+    // returns null if the paper record has no record location, since then it can't be in any queue
+    private Long incrementQueueVersion(PaperRecord paperRecord) {
+        if (paperRecord == null || paperRecord.getRecordLocation() == null) {
+            return null;
+        }
+        return paperRecordQueueVersionDAO.incrementVersion(paperRecord.getRecordLocation().getId());
+    }
+
+    private static List<PaperRecord.Status> getAllPaperRecordStatusesExcept(PaperRecord.Status excludedStatus) {
+        List<PaperRecord.Status> statuses = new ArrayList<PaperRecord.Status>(Arrays.asList(PaperRecord.Status.values()));
+        statuses.remove(excludedStatus);
+        return Collections.unmodifiableList(statuses);
+    }
 
-        return patientLock.get(patient.getId());
+    private PatientLockProvider getPatientLockProvider() {
+        return databasePatientLockProvider != null && paperRecordProperties.getClusteredPatientLockingEnabled() ?
+                databasePatientLockProvider : patientLockRegistry;
     }
 
     private PatientIdentifier getPaperRecordIdentifier(Patient patient, Location medicalRecordLocation) {
@@ -0,0 +1,82 @@
+package org.openmrs.module.paperrecord;
+
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonName;
+import org.openmrs.module.paperrecord.identifier.PatientIdentifierCache;
+import org.openmrs.module.paperrecord.print.RenderedLabelCache;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Advice around the PatientService and PersonService that evicts a patient from the module's patient caches (the
+ * {@link RenderedLabelCache} and the {@link PatientIdentifierCache}) whenever the patient, or one of their names,
+ * addresses, attributes or identifiers, is saved, voided, merged or purged.
+ */
+public class PatientCacheInvalidator extends CacheInvalidatingAdvice {
+
+    public PatientCacheInvalidator() {
+        super("save", "void", "unvoid", "merge", "purge");
+    }
+
+    @Override
+    protected Runnable createEviction(Object[] args) {
+
+        final Set<Integer> patientIds = new HashSet<Integer>();
+        for (Object arg : args) {
+            addPatientIds(patientIds, arg);
+        }
+        if (patientIds.isEmpty()) {
+            return null;
+        }
+
+        final RenderedLabelCache renderedLabelCache = getComponent("paperRecordRenderedLabelCache", RenderedLabelCache.class);
+        final PatientIdentifierCache patientIdentifierCache = getComponent("paperRecordPatientIdentifierCache", PatientIdentifierCache.class);
+        if (renderedLabelCache == null && patientIdentifierCache == null) {
+            return null;
+        }
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                for (Integer patientId : patientIds) {
+                    if (renderedLabelCache != null) {
+                        renderedLabelCache.evictPatient(patientId);
+                    }
+                    if (patientIdentifierCache != null) {
+                        patientIdentifierCache.evictPatient(patientId);
+                    }
+                }
+            }
+        };
+    }
+
+    private void addPatientIds(Set<Integer> patientIds, Object arg) {
+        Person person = null;
+        if (arg instanceof Person) {
+            person = (Person) arg;  // includes patients, whose ids are their person ids
+        } else if (arg instanceof PatientIdentifier) {
+            person = ((PatientIdentifier) arg).getPatient();
+        } else if (arg instanceof PersonName) {
+            person = ((PersonName) arg).getPerson();
+        } else if (arg instanceof PersonAddress) {
+            person = ((PersonAddress) arg).getPerson();
+        } else if (arg instanceof PersonAttribute) {
+            person = ((PersonAttribute) arg).getPerson();
+        } else if (arg instanceof Collection) {
+            // e.g. merging a list of patients into one
+            for (Object element : (Collection<?>) arg) {
+                addPatientIds(patientIds, element);
+            }
+        }
+
+        if (person != null && person.getPersonId() != null) {
+            patientIds.add(person.getPersonId());
+        }
+    }
+
+}
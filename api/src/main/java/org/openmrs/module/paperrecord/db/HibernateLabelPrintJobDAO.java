@@ -0,0 +1,101 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.hibernate.Criteria;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.openmrs.Location;
+import org.openmrs.module.emrapi.db.HibernateSingleClassDAO;
+import org.openmrs.module.paperrecord.print.LabelPrintJob;
+
+import java.util.Date;
+import java.util.List;
+
+public class HibernateLabelPrintJobDAO extends HibernateSingleClassDAO<LabelPrintJob> implements LabelPrintJobDAO {
+
+    public HibernateLabelPrintJobDAO() {
+        super(LabelPrintJob.class);
+    }
+
+    @Override
+    public LabelPrintJob findNextQueuedLabelPrintJob(Integer printerId) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(LabelPrintJob.class);
+        criteria.add(Restrictions.eq("status", LabelPrintJob.Status.QUEUED));
+        criteria.add(Restrictions.eq("printerId", printerId));
+        criteria.addOrder(Order.asc("labelPrintJobId"));
+        criteria.setMaxResults(1);
+
+        return (LabelPrintJob) criteria.uniqueResult();
+    }
+
+    @Override
+    public List<Integer> findPrinterIdsWithQueuedLabelPrintJobs() {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(LabelPrintJob.class);
+        criteria.add(Restrictions.eq("status", LabelPrintJob.Status.QUEUED));
+        criteria.setProjection(Projections.distinct(Projections.property("printerId")));
+
+        return (List<Integer>) criteria.list();
+    }
+
+    @Override
+    public int countLabelPrintJobs(Integer printerId, List<LabelPrintJob.Status> statusList) {
+        return countLabelPrintJobs(printerId, statusList, null);
+    }
+
+    @Override
+    public int countLabelPrintJobs(Integer printerId, List<LabelPrintJob.Status> statusList, Integer maxLabelPrintJobId) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(LabelPrintJob.class);
+        criteria.add(Restrictions.eq("printerId", printerId));
+        criteria.add(Restrictions.in("status", statusList));
+        if (maxLabelPrintJobId != null) {
+            criteria.add(Restrictions.le("labelPrintJobId", maxLabelPrintJobId));
+        }
+        criteria.setProjection(Projections.rowCount());
+
+        return ((Number) criteria.uniqueResult()).intValue();
+    }
+
+    @Override
+    public List<LabelPrintJob> findLabelPrintJobs(List<LabelPrintJob.Status> statusList, Location location, Date createdSince) {
+
+        Criteria criteria = sessionFactory.getCurrentSession().createCriteria(LabelPrintJob.class);
+
+        if (statusList != null) {
+            criteria.add(Restrictions.in("status", statusList));
+        }
+
+        if (location != null) {
+            criteria.add(Restrictions.eq("location", location));
+        }
+
+        if (createdSince != null) {
+            criteria.add(Restrictions.ge("dateCreated", createdSince));
+        }
+
+        criteria.addOrder(Order.asc("dateCreated"));
+
+        return (List<LabelPrintJob>) criteria.list();
+    }
+
+    @Override
+    public int requeueInterruptedLabelPrintJobs() {
+        return sessionFactory.getCurrentSession()
+                .createQuery("update LabelPrintJob set status = :queued where status = :printing")
+                .setParameter("queued", LabelPrintJob.Status.QUEUED)
+                .setParameter("printing", LabelPrintJob.Status.PRINTING)
+                .executeUpdate();
+    }
+
+    @Override
+    public int purgeLabelPrintJobs(List<LabelPrintJob.Status> statusList, Date createdBefore) {
+        return sessionFactory.getCurrentSession()
+                .createQuery("delete from LabelPrintJob where status in (:statusList) and dateCreated < :createdBefore")
+                .setParameterList("statusList", statusList)
+                .setParameter("createdBefore", createdBefore)
+                .executeUpdate();
+    }
+
+}
@@ -5,6 +5,7 @@ import org.hibernate.criterion.Restrictions;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.emrapi.db.HibernateSingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecord;
 
@@ -73,6 +74,45 @@ public class HibernatePaperRecordDAO  extends HibernateSingleClassDAO<PaperRecor
         return (PaperRecord)  criteria.uniqueResult();
     }
 
+    @Override
+    public boolean paperRecordExists(String paperRecordIdentifier, Location paperRecordLocation) {
+        return !sessionFactory.getCurrentSession()
+                .createQuery("select pr.id from PaperRecord pr join pr.patientIdentifier pi " +
+                        "where pi.identifier = :identifier and pr.recordLocation = :location and pi.voided = false")
+                .setString("identifier", paperRecordIdentifier)
+                .setEntity("location", paperRecordLocation)
+                .setMaxResults(1)
+                .list().isEmpty();
+    }
+
+    @Override
+    public boolean patientIdentifierInUse(String identifier, PatientIdentifierType identifierType, Location location) {
+        // only fetches an id, and only the first match, rather than loading every matching identifier and patient
+        return !sessionFactory.getCurrentSession()
+                .createQuery("select pi.id from PatientIdentifier pi " +
+                        "where pi.identifier = :identifier and pi.identifierType = :identifierType and pi.location = :location " +
+                        "and pi.voided = false and pi.patient.voided = false")
+                .setString("identifier", identifier)
+                .setEntity("identifierType", identifierType)
+                .setEntity("location", location)
+                .setMaxResults(1)
+                .list().isEmpty();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Integer> findPatientIdsByIdentifier(String identifier, PatientIdentifierType identifierType) {
+        // unlike PatientService.getPatients, this is a single exact match on the identifier, and doesn't load the patients
+        return sessionFactory.getCurrentSession()
+                .createQuery("select distinct pi.patient.patientId from PatientIdentifier pi " +
+                        "where pi.identifier = :identifier and pi.identifierType = :identifierType " +
+                        "and pi.voided = false and pi.patient.voided = false")
+                .setString("identifier", identifier)
+                .setEntity("identifierType", identifierType)
+                .setMaxResults(2)
+                .list();
+    }
+
     private Criteria createPaperRecordCriteria() {
         return sessionFactory.getCurrentSession().createCriteria(PaperRecord.class)
                 .createAlias("patientIdentifier", "pi");
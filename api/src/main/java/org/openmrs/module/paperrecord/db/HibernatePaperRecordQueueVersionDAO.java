@@ -0,0 +1,89 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.paperrecord.queue.PaperRecordQueueVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class HibernatePaperRecordQueueVersionDAO implements PaperRecordQueueVersionDAO {
+
+    // attempts at creating a version row, when other nodes are creating it at the same time
+    private static final int MAX_INSERT_ATTEMPTS = 3;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private DbSessionFactory sessionFactory;
+
+    private PlatformTransactionManager transactionManager;
+
+    public void setSessionFactory(DbSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    @Override
+    public long getVersion(Integer recordLocationId) {
+        Long version = selectVersion(recordLocationId);
+        return version != null ? version : 0;
+    }
+
+    @Override
+    public long incrementVersion(Integer recordLocationId) {
+
+        // version rows are never deleted, so if this (non-locking) read finds the row it is safe to go straight to
+        // the update; updating a missing row would instead take a gap lock on MySQL, blocking the insert
+        if (selectVersion(recordLocationId) == null) {
+            createVersionRowIfAbsent(recordLocationId);
+        }
+
+        sessionFactory.getCurrentSession()
+                .createQuery("update PaperRecordQueueVersion v set v.version = v.version + 1 where v.recordLocationId = :recordLocationId")
+                .setInteger("recordLocationId", recordLocationId)
+                .executeUpdate();
+
+        return selectVersion(recordLocationId);
+    }
+
+    // the version row is created in a transaction of its own, as the patient lock rows are (see
+    // DatabasePatientLockProvider): a failed insert can roll back the whole transaction it runs in
+    private void createVersionRowIfAbsent(final Integer recordLocationId) {
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        if (selectVersion(recordLocationId) == null) {
+                            sessionFactory.getCurrentSession().save(new PaperRecordQueueVersion(recordLocationId));
+                        }
+                    }
+                });
+                return;
+            } catch (RuntimeException e) {
+                if (!InsertConflicts.isInsertConflict(e) || attempt >= MAX_INSERT_ATTEMPTS) {
+                    throw e;
+                }
+                log.debug("Conflict inserting queue version row for location " + recordLocationId + ", trying again", e);
+            }
+        }
+    }
+
+    private Long selectVersion(Integer recordLocationId) {
+        return (Long) sessionFactory.getCurrentSession()
+                .createQuery("select v.version from PaperRecordQueueVersion v where v.recordLocationId = :recordLocationId")
+                .setInteger("recordLocationId", recordLocationId)
+                .uniqueResult();
+    }
+
+}
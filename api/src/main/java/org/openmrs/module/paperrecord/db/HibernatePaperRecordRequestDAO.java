@@ -15,16 +15,32 @@
 package org.openmrs.module.paperrecord.db;
 
 import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.criterion.Disjunction;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonName;
 import org.openmrs.module.emrapi.db.HibernateSingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecord;
+import org.openmrs.module.paperrecord.PaperRecordQueueCounts;
+import org.openmrs.module.paperrecord.PaperRecordQueueRow;
 import org.openmrs.module.paperrecord.PaperRecordRequest;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class HibernatePaperRecordRequestDAO extends HibernateSingleClassDAO<PaperRecordRequest> implements PaperRecordRequestDAO {
 
@@ -34,11 +50,17 @@ public class HibernatePaperRecordRequestDAO extends HibernateSingleClassDAO<Pape
 
     @Override
     public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Patient patient, Location recordLocation, String identifier) {
+        return findPaperRecordRequests(statusList, null, patient, recordLocation, identifier);
+    }
+
+    @Override
+    public List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, List<PaperRecord.Status> paperRecordStatusList,
+                                                            Patient patient, Location recordLocation, String identifier) {
 
         Criteria criteria = createPaperRecordRequestCriteria();
 
         // only add the aliases/joins if necessary
-        if (patient != null || identifier !=null || recordLocation != null) {
+        if (patient != null || identifier !=null || recordLocation != null || paperRecordStatusList != null) {
             addAliases(criteria);
         }
 
@@ -46,6 +68,10 @@ public class HibernatePaperRecordRequestDAO extends HibernateSingleClassDAO<Pape
             addStatusDisjunctionRestriction(criteria, statusList);
         }
 
+        if (paperRecordStatusList != null) {
+            addPaperRecordStatusRestriction(criteria, paperRecordStatusList);
+        }
+
         if (patient != null) {
             addPatientRestriction(criteria, patient);
         }
@@ -79,6 +105,309 @@ public class HibernatePaperRecordRequestDAO extends HibernateSingleClassDAO<Pape
         return (List<PaperRecordRequest>) criteria.list();
     }
 
+    @Override
+    public List<PaperRecordQueueRow> findPaperRecordQueueRows(List<PaperRecordRequest.Status> statusList, List<PaperRecord.Status> paperRecordStatusList,
+                                                              Location recordLocation, PatientIdentifierType primaryIdentifierType) {
+        return findPaperRecordQueueRows(statusList, paperRecordStatusList, recordLocation, null, primaryIdentifierType, null, null, null);
+    }
+
+    @Override
+    public List<PaperRecordQueueRow> findPaperRecordQueueRows(List<PaperRecordRequest.Status> statusList, List<PaperRecord.Status> paperRecordStatusList,
+                                                              Location recordLocation, PatientIdentifierType primaryIdentifierType,
+                                                              Date afterDateCreated, Integer afterRequestId, Integer maxResults) {
+        return findPaperRecordQueueRows(statusList, paperRecordStatusList, recordLocation, null, primaryIdentifierType,
+                afterDateCreated, afterRequestId, maxResults);
+    }
+
+    @Override
+    public List<PaperRecordQueueRow> findPaperRecordQueueRows(Collection<Integer> requestIds, List<PaperRecordRequest.Status> statusList,
+                                                              PatientIdentifierType primaryIdentifierType) {
+
+        if (requestIds == null || requestIds.isEmpty()) {
+            return new ArrayList<PaperRecordQueueRow>();
+        }
+
+        return findPaperRecordQueueRows(statusList, null, null, requestIds, primaryIdentifierType, null, null, null);
+    }
+
+    @Override
+    public Map<Integer, PaperRecordQueueCounts> countPaperRecordQueueRows(List<PaperRecordRequest.Status> statusList, Location recordLocation) {
+
+        Query query = sessionFactory.getCurrentSession().createQuery(
+                "select pr.recordLocation.id, r.status, pr.status, count(r.requestId) " +
+                "from PaperRecordRequest r join r.paperRecord pr " +
+                "where r.status in (:statuses)" +
+                (recordLocation != null ? " and pr.recordLocation = :recordLocation" : "") +
+                " group by pr.recordLocation.id, r.status, pr.status")
+                .setParameterList("statuses", statusList);
+
+        if (recordLocation != null) {
+            query.setParameter("recordLocation", recordLocation);
+        }
+
+        Map<Integer, PaperRecordQueueCounts> counts = new HashMap<Integer, PaperRecordQueueCounts>();
+
+        for (Object[] result : (List<Object[]>) query.list()) {
+            Integer recordLocationId = (Integer) result[0];
+            PaperRecordQueueCounts locationCounts = counts.get(recordLocationId);
+            if (locationCounts == null) {
+                locationCounts = new PaperRecordQueueCounts();
+                counts.put(recordLocationId, locationCounts);
+            }
+            locationCounts.add((PaperRecordRequest.Status) result[1], (PaperRecord.Status) result[2], ((Number) result[3]).longValue());
+        }
+
+        return counts;
+    }
+
+    @Override
+    public void populateLastSent(List<PaperRecordQueueRow> rows) {
+
+        if (rows == null || rows.isEmpty()) {
+            return;
+        }
+
+        Set<Integer> paperRecordIds = new HashSet<Integer>();
+        for (PaperRecordQueueRow row : rows) {
+            paperRecordIds.add(row.getPaperRecordId());
+        }
+
+        // ordered by request id so that, if two requests were sent at exactly the same time, the one created last wins
+        List<Object[]> results = sessionFactory.getCurrentSession().createQuery(
+                "select r.paperRecord.id, r.requestLocation, r.dateStatusChanged, r.requestId from PaperRecordRequest r " +
+                "where r.status = :status and r.paperRecord.id in (:paperRecordIds) " +
+                "and r.dateStatusChanged = (select max(r2.dateStatusChanged) from PaperRecordRequest r2 " +
+                "where r2.paperRecord = r.paperRecord and r2.status = :status) " +
+                "order by r.requestId asc")
+                .setParameter("status", PaperRecordRequest.Status.SENT)
+                .setParameterList("paperRecordIds", paperRecordIds)
+                .list();
+
+        Map<Integer, Object[]> lastSent = new HashMap<Integer, Object[]>();
+        for (Object[] result : results) {
+            lastSent.put((Integer) result[0], result);
+        }
+
+        for (PaperRecordQueueRow row : rows) {
+            Object[] result = lastSent.get(row.getPaperRecordId());
+
+            // the rows may have been loaded before this query ran, so if a request was marked as sent in the
+            // meantime, it would show up as its own last sent request
+            if (result != null && !result[3].equals(row.getRequestId())) {
+                row.setLocationLastSent((Location) result[1]);
+                row.setDateLastSent((Date) result[2]);
+            }
+        }
+    }
+
+    @Override
+    public PaperRecordRequest.Status lockPaperRecordRequest(PaperRecordRequest request) {
+
+        if (request.getId() == null) {
+            return null;
+        }
+
+        // synchronize on the request table so that any pending changes to requests are flushed before we read the status
+        Object status = sessionFactory.getCurrentSession()
+                .createSQLQuery("select status from paperrecord_paper_record_request where request_id = :requestId for update")
+                .addSynchronizedEntityClass(PaperRecordRequest.class)
+                .setInteger("requestId", request.getId())
+                .uniqueResult();
+
+        return status != null ? PaperRecordRequest.Status.valueOf(status.toString()) : null;
+    }
+
+    @Override
+    public Map<Integer, Integer> findPaperRecordRequestIdsCreatedBefore(List<PaperRecordRequest.Status> statusList,
+                                                                         List<PaperRecord.Status> paperRecordStatusList,
+                                                                         Date createdBefore, Integer afterRequestId, int maxResults) {
+
+        // only fetches the ids, walking the index on status and request id from the last id of the previous batch,
+        // rather than loading the requests
+        List<Object[]> results = sessionFactory.getCurrentSession().createQuery(
+                "select r.requestId, pr.recordLocation.id from PaperRecordRequest r join r.paperRecord pr " +
+                "where r.status in (:statuses) and pr.status in (:paperRecordStatuses) and r.dateCreated < :createdBefore " +
+                "and r.requestId > :afterRequestId " +
+                "order by r.requestId asc")
+                .setParameterList("statuses", statusList)
+                .setParameterList("paperRecordStatuses", paperRecordStatusList)
+                .setTimestamp("createdBefore", createdBefore)
+                .setInteger("afterRequestId", afterRequestId != null ? afterRequestId : 0)
+                .setMaxResults(maxResults)
+                .list();
+
+        Map<Integer, Integer> recordLocationIdsByRequestId = new LinkedHashMap<Integer, Integer>();
+        for (Object[] result : results) {
+            recordLocationIdsByRequestId.put((Integer) result[0], (Integer) result[1]);
+        }
+        return recordLocationIdsByRequestId;
+    }
+
+    @Override
+    public List<Integer> cancelPaperRecordRequests(Collection<Integer> requestIds, List<PaperRecordRequest.Status> statusList) {
+
+        if (requestIds.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+
+        Session session = sessionFactory.getCurrentSession();
+
+        List<String> statuses = new ArrayList<String>();
+        for (PaperRecordRequest.Status status : statusList) {
+            statuses.add(status.name());
+        }
+
+        // lock the requests that still have one of the statuses, so that none of them can be sent or cancelled
+        // before the update below, and the ids returned are exactly the requests that update cancels
+        List<Integer> cancelled = new ArrayList<Integer>();
+        for (Object requestId : session.createSQLQuery("select request_id from paperrecord_paper_record_request " +
+                "where request_id in (:requestIds) and status in (:statuses) order by request_id for update")
+                .addSynchronizedEntityClass(PaperRecordRequest.class)
+                .setParameterList("requestIds", requestIds)
+                .setParameterList("statuses", statuses)
+                .list()) {
+            cancelled.add(((Number) requestId).intValue());
+        }
+
+        if (cancelled.isEmpty()) {
+            return cancelled;
+        }
+
+        session.createQuery("update PaperRecordRequest r set r.status = :cancelled, r.dateStatusChanged = :now " +
+                "where r.requestId in (:requestIds)")
+                .setParameter("cancelled", PaperRecordRequest.Status.CANCELLED)
+                .setTimestamp("now", new Date())
+                .setParameterList("requestIds", cancelled)
+                .executeUpdate();
+
+        // the bulk update bypasses the session, so refresh any of the requests it has already loaded; they are looked up
+        // by id in the persistence context, so nothing is loaded (or proxied) just to check
+        SessionImplementor sessionImplementor = (SessionImplementor) session;
+        EntityPersister persister = sessionImplementor.getFactory().getEntityPersister(PaperRecordRequest.class.getName());
+        for (Integer requestId : cancelled) {
+            Object request = sessionImplementor.getPersistenceContext().getEntity(sessionImplementor.generateEntityKey(requestId, persister));
+            if (request != null) {
+                session.refresh(request);
+            }
+        }
+
+        return cancelled;
+    }
+
+    private List<PaperRecordQueueRow> findPaperRecordQueueRows(List<PaperRecordRequest.Status> statusList, List<PaperRecord.Status> paperRecordStatusList,
+                                                               Location recordLocation, Collection<Integer> requestIds,
+                                                               PatientIdentifierType primaryIdentifierType,
+                                                               Date afterDateCreated, Integer afterRequestId, Integer maxResults) {
+
+        List<PaperRecordQueueRow> rows = new ArrayList<PaperRecordQueueRow>();
+
+        // pages are keyed on the date created and id of the last row of the previous page, rather than an offset, so
+        // that fetching a later page doesn't mean reading through all the rows before it
+        boolean afterRow = afterDateCreated != null && afterRequestId != null;
+
+        Query query = sessionFactory.getCurrentSession().createQuery(
+                "select r.requestId, r.status, pr.recordId, pr.status, p.id, pi.identifier, r.requestLocation, r.dateCreated " +
+                "from PaperRecordRequest r join r.paperRecord pr join pr.patientIdentifier pi join pi.patient p " +
+                "where r.status in (:statuses)" +
+                (paperRecordStatusList != null ? " and pr.status in (:paperRecordStatuses)" : "") +
+                (recordLocation != null ? " and pr.recordLocation = :recordLocation" : "") +
+                (requestIds != null ? " and r.requestId in (:requestIds)" : "") +
+                (afterRow ? " and (r.dateCreated > :afterDateCreated or (r.dateCreated = :afterDateCreated and r.requestId > :afterRequestId))" : "") +
+                " order by r.dateCreated asc, r.requestId asc")
+                .setParameterList("statuses", statusList);
+
+        if (paperRecordStatusList != null) {
+            query.setParameterList("paperRecordStatuses", paperRecordStatusList);
+        }
+
+        if (recordLocation != null) {
+            query.setParameter("recordLocation", recordLocation);
+        }
+
+        if (requestIds != null) {
+            query.setParameterList("requestIds", requestIds);
+        }
+
+        if (afterRow) {
+            query.setTimestamp("afterDateCreated", afterDateCreated);
+            query.setInteger("afterRequestId", afterRequestId);
+        }
+
+        if (maxResults != null) {
+            query.setMaxResults(maxResults);
+        }
+
+        Set<Integer> patientIds = new HashSet<Integer>();
+
+        for (Object[] result : (List<Object[]>) query.list()) {
+            rows.add(new PaperRecordQueueRow((Integer) result[0], (PaperRecordRequest.Status) result[1], (Integer) result[2],
+                    (PaperRecord.Status) result[3], (Integer) result[4], (String) result[5], (Location) result[6], (Date) result[7]));
+            patientIds.add((Integer) result[4]);
+        }
+
+        if (!rows.isEmpty()) {
+            populatePatientNames(rows, patientIds);
+            populatePrimaryIdentifiers(rows, patientIds, primaryIdentifierType);
+        }
+
+        return rows;
+    }
+
+    private void populatePatientNames(List<PaperRecordQueueRow> rows, Set<Integer> patientIds) {
+
+        // preferred names first, so that the first name found for each patient is the one to display
+        List<Object[]> results = sessionFactory.getCurrentSession().createQuery(
+                "select pn.person.id, pn.prefix, pn.givenName, pn.middleName, pn.familyNamePrefix, pn.familyName, " +
+                "pn.familyName2, pn.familyNameSuffix, pn.degree from PersonName pn " +
+                "where pn.person.id in (:patientIds) and pn.voided = false " +
+                "order by pn.preferred desc, pn.personNameId asc")
+                .setParameterList("patientIds", patientIds)
+                .list();
+
+        Map<Integer, PersonName> names = new HashMap<Integer, PersonName>();
+        for (Object[] result : results) {
+            if (!names.containsKey(result[0])) {
+                PersonName name = new PersonName();
+                name.setPrefix((String) result[1]);
+                name.setGivenName((String) result[2]);
+                name.setMiddleName((String) result[3]);
+                name.setFamilyNamePrefix((String) result[4]);
+                name.setFamilyName((String) result[5]);
+                name.setFamilyName2((String) result[6]);
+                name.setFamilyNameSuffix((String) result[7]);
+                name.setDegree((String) result[8]);
+                names.put((Integer) result[0], name);
+            }
+        }
+
+        for (PaperRecordQueueRow row : rows) {
+            row.setPatientName(names.get(row.getPatientId()));
+        }
+    }
+
+    private void populatePrimaryIdentifiers(List<PaperRecordQueueRow> rows, Set<Integer> patientIds, PatientIdentifierType primaryIdentifierType) {
+
+        // preferred identifiers first, so that the first identifier found for each patient is the one to display
+        List<Object[]> results = sessionFactory.getCurrentSession().createQuery(
+                "select pi.patient.id, pi.identifier from PatientIdentifier pi " +
+                "where pi.patient.id in (:patientIds) and pi.identifierType = :identifierType and pi.voided = false " +
+                "order by pi.preferred desc, pi.patientIdentifierId asc")
+                .setParameterList("patientIds", patientIds)
+                .setParameter("identifierType", primaryIdentifierType)
+                .list();
+
+        Map<Integer, String> identifiers = new HashMap<Integer, String>();
+        for (Object[] result : results) {
+            if (!identifiers.containsKey(result[0])) {
+                identifiers.put((Integer) result[0], (String) result[1]);
+            }
+        }
+
+        for (PaperRecordQueueRow row : rows) {
+            row.setPrimaryIdentifier(identifiers.get(row.getPatientId()));
+        }
+    }
+
     private Criteria createPaperRecordRequestCriteria() {
         return sessionFactory.getCurrentSession().createCriteria(PaperRecordRequest.class);
 
@@ -104,6 +433,10 @@ public class HibernatePaperRecordRequestDAO extends HibernateSingleClassDAO<Pape
         }
     }
 
+    private void addPaperRecordStatusRestriction(Criteria criteria, List<PaperRecord.Status> paperRecordStatusList) {
+        criteria.add(Restrictions.in("pr.status", paperRecordStatusList));
+    }
+
     private void addPatientRestriction(Criteria criteria, Patient patient) {
         criteria.add(Restrictions.eq("pi.patient", patient));
     }
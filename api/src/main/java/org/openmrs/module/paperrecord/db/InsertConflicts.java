@@ -0,0 +1,28 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.hibernate.PessimisticLockException;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.exception.LockAcquisitionException;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+
+/**
+ * Helps with rows that are created on first use, when other nodes sharing the database may be creating the same row
+ * at the same time.
+ */
+public class InsertConflicts {
+
+    private InsertConflicts() {
+    }
+
+    /**
+     * @return true if the exception is what inserting a row another transaction is also inserting can give: a duplicate
+     *         key or, at worst, a deadlock; either way, trying again in a new transaction should find the row
+     */
+    public static boolean isInsertConflict(RuntimeException e) {
+        return e instanceof ConstraintViolationException || e instanceof LockAcquisitionException
+                || e instanceof PessimisticLockException || e instanceof DataIntegrityViolationException
+                || e instanceof ConcurrencyFailureException;
+    }
+
+}
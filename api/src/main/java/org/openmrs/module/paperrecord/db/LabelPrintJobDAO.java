@@ -0,0 +1,49 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.openmrs.Location;
+import org.openmrs.module.emrapi.db.SingleClassDAO;
+import org.openmrs.module.paperrecord.print.LabelPrintJob;
+
+import java.util.Date;
+import java.util.List;
+
+public interface LabelPrintJobDAO extends SingleClassDAO<LabelPrintJob> {
+
+    /**
+     * @return the oldest queued job for the given printer, whether or not it is due to be sent yet, or null if none
+     */
+    LabelPrintJob findNextQueuedLabelPrintJob(Integer printerId);
+
+    /**
+     * @return the ids of all printers with queued jobs
+     */
+    List<Integer> findPrinterIdsWithQueuedLabelPrintJobs();
+
+    /**
+     * @return the number of jobs for the given printer with any of the given statuses
+     */
+    int countLabelPrintJobs(Integer printerId, List<LabelPrintJob.Status> statusList);
+
+    /**
+     * @return the number of jobs for the given printer with any of the given statuses and an id no greater than
+     *         maxLabelPrintJobId, i.e. the position of that job in the queue
+     */
+    int countLabelPrintJobs(Integer printerId, List<LabelPrintJob.Status> statusList, Integer maxLabelPrintJobId);
+
+    List<LabelPrintJob> findLabelPrintJobs(List<LabelPrintJob.Status> statusList, Location location, Date createdSince);
+
+    /**
+     * Puts any jobs that were being sent when the server stopped back in the queue
+     *
+     * @return the number of jobs requeued
+     */
+    int requeueInterruptedLabelPrintJobs();
+
+    /**
+     * Deletes jobs with any of the given statuses that were created before the given date
+     *
+     * @return the number of jobs deleted
+     */
+    int purgeLabelPrintJobs(List<LabelPrintJob.Status> statusList, Date createdBefore);
+
+}
@@ -3,6 +3,7 @@ package org.openmrs.module.paperrecord.db;
 import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.emrapi.db.SingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecord;
 
@@ -15,4 +16,21 @@ public interface PaperRecordDAO extends SingleClassDAO<PaperRecord> {
     PaperRecord findPaperRecord(PatientIdentifier paperRecordIdentifier, Location paperRecordLocation);
 
     PaperRecord findPaperRecord(String paperRecordIdentifier, Location paperRecordLocation);
+
+    /**
+     * @return true if there is a non-voided paper record with the given identifier at the given location; unlike
+     *         findPaperRecord, this doesn't load the record
+     */
+    boolean paperRecordExists(String paperRecordIdentifier, Location paperRecordLocation);
+
+    /**
+     * @return true if a non-voided patient has a non-voided identifier of the given type at the given location
+     */
+    boolean patientIdentifierInUse(String identifier, PatientIdentifierType identifierType, Location location);
+
+    /**
+     * @return the ids of the non-voided patients with a non-voided identifier of the given type matching the given
+     *         identifier exactly; at most two ids are returned, enough to tell whether the identifier is ambiguous
+     */
+    List<Integer> findPatientIdsByIdentifier(String identifier, PatientIdentifierType identifierType);
 }
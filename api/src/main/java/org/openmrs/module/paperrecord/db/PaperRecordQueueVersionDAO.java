@@ -0,0 +1,19 @@
+package org.openmrs.module.paperrecord.db;
+
+public interface PaperRecordQueueVersionDAO {
+
+    /**
+     * @return the version of the queues at the given medical record location, or 0 if they have never changed
+     */
+    long getVersion(Integer recordLocationId);
+
+    /**
+     * Bumps the version of the queues at the given medical record location, in the current transaction; the version
+     * row stays locked until that transaction ends, so writes to the queues at a location are serialized, and
+     * versions become visible in the order they were handed out
+     *
+     * @return the new version
+     */
+    long incrementVersion(Integer recordLocationId);
+
+}
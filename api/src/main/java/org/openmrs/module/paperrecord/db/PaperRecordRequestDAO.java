@@ -16,11 +16,17 @@ package org.openmrs.module.paperrecord.db;
 
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.emrapi.db.SingleClassDAO;
 import org.openmrs.module.paperrecord.PaperRecord;
+import org.openmrs.module.paperrecord.PaperRecordQueueCounts;
+import org.openmrs.module.paperrecord.PaperRecordQueueRow;
 import org.openmrs.module.paperrecord.PaperRecordRequest;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 public interface PaperRecordRequestDAO extends SingleClassDAO<PaperRecordRequest> {
 
@@ -36,6 +42,126 @@ public interface PaperRecordRequestDAO extends SingleClassDAO<PaperRecordRequest
     List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, Patient patient,
                                                      Location recordLocation, String identifier);
 
+    /**
+     * Returns all the paper record requests for the given patient and given location with ANY of the specified statuses,
+     * for paper records with ANY of the specified paper record statuses
+     *
+     * @param statusList
+     * @param paperRecordStatusList the statuses of the underlying paper records (null to ignore the paper record status)
+     * @param patient
+     * @param recordLocation
+     * @param identifier
+     * @return the paper record requests for the given patient and given record location with ANY of the specified statuses,
+     *         for paper records with ANY of the specified paper record statuses
+     */
+    List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, List<PaperRecord.Status> paperRecordStatusList,
+                                                     Patient patient, Location recordLocation, String identifier);
+
     List<PaperRecordRequest> findPaperRecordRequests(List<PaperRecordRequest.Status> statusList, PaperRecord paperRecord);
 
+    /**
+     * Returns flat queue rows for all requests with ANY of the specified statuses, for paper records with ANY of the
+     * specified paper record statuses at the specified record location, ordered by date created
+     * <p/>
+     * The rows are built with a fixed number of projection queries (the requests, then the names and the primary
+     * identifiers of all the patients involved), regardless of the number of rows
+     *
+     * @param statusList
+     * @param paperRecordStatusList
+     * @param recordLocation
+     * @param primaryIdentifierType the identifier type to use for the primary identifier of each row
+     * @return the queue rows, without the "last sent" details
+     */
+    List<PaperRecordQueueRow> findPaperRecordQueueRows(List<PaperRecordRequest.Status> statusList, List<PaperRecord.Status> paperRecordStatusList,
+                                                       Location recordLocation, PatientIdentifierType primaryIdentifierType);
+
+    /**
+     * Returns one page of flat queue rows for the requests with ANY of the specified statuses, for paper records with
+     * ANY of the specified paper record statuses at the specified record location, ordered by date created and then
+     * by request id
+     *
+     * @param statusList
+     * @param paperRecordStatusList
+     * @param recordLocation
+     * @param primaryIdentifierType the identifier type to use for the primary identifier of each row
+     * @param afterDateCreated the date created of the last row of the previous page (null for the first page)
+     * @param afterRequestId the request id of the last row of the previous page (null for the first page)
+     * @param maxResults the maximum number of rows to return (null for no limit)
+     * @return the queue rows, without the "last sent" details
+     */
+    List<PaperRecordQueueRow> findPaperRecordQueueRows(List<PaperRecordRequest.Status> statusList, List<PaperRecord.Status> paperRecordStatusList,
+                                                       Location recordLocation, PatientIdentifierType primaryIdentifierType,
+                                                       Date afterDateCreated, Integer afterRequestId, Integer maxResults);
+
+    /**
+     * Returns flat queue rows for the requests with the given ids that have ANY of the specified statuses (ids of
+     * requests with other statuses are ignored), ordered by date created
+     *
+     * @param requestIds
+     * @param statusList
+     * @param primaryIdentifierType the identifier type to use for the primary identifier of each row
+     * @return the queue rows, without the "last sent" details
+     */
+    List<PaperRecordQueueRow> findPaperRecordQueueRows(Collection<Integer> requestIds, List<PaperRecordRequest.Status> statusList,
+                                                       PatientIdentifierType primaryIdentifierType);
+
+    /**
+     * Sets the location and date of the most recent "sent" request for the paper record of each of the given rows,
+     * using a single query
+     *
+     * @param rows
+     */
+    void populateLastSent(List<PaperRecordQueueRow> rows);
+
+    /**
+     * Counts the requests with ANY of the specified statuses in each queue (by request status, and whether the paper
+     * record needs to be pulled or created) at each record location, using a single grouped count query
+     *
+     * @param statusList
+     * @param recordLocation the record location to count the requests at (null for all record locations)
+     * @return the counts, by record location id; record locations without any such requests are left out
+     */
+    Map<Integer, PaperRecordQueueCounts> countPaperRecordQueueRows(List<PaperRecordRequest.Status> statusList, Location recordLocation);
+
+    /**
+     * Takes a pessimistic (SELECT ... FOR UPDATE) lock on the given request, held until the end of the current
+     * transaction, and returns the status of the request as currently stored in the database
+     *
+     * @param request
+     * @return the status of the request in the database, or null if the request has not been saved
+     */
+    PaperRecordRequest.Status lockPaperRecordRequest(PaperRecordRequest request);
+
+    /**
+     * Returns the ids of up to maxResults of the requests with ANY of the specified statuses created before the given
+     * date, for paper records with ANY of the specified paper record statuses, in order of request id starting after
+     * the given request id
+     * <p/>
+     * The requests are not loaded, so that a long backlog of stale requests can be walked cheaply in batches
+     *
+     * @param statusList
+     * @param paperRecordStatusList
+     * @param createdBefore
+     * @param afterRequestId only requests with a greater id are returned (null to start from the first request)
+     * @param maxResults
+     * @return the ids of the requests in ascending order, each mapped to the id of the record location of its paper
+     *         record
+     */
+    Map<Integer, Integer> findPaperRecordRequestIdsCreatedBefore(List<PaperRecordRequest.Status> statusList,
+                                                                 List<PaperRecord.Status> paperRecordStatusList,
+                                                                 Date createdBefore, Integer afterRequestId, int maxResults);
+
+    /**
+     * Cancels, with a single bulk update, those of the given requests that still have ANY of the specified statuses
+     * (any that have been sent or cancelled in the meantime are left alone)
+     * <p/>
+     * The requests are not loaded; any of them already loaded in the current session are refreshed, so that the stale
+     * copies can't overwrite the cancellation
+     *
+     * @param requestIds
+     * @param statusList
+     * @return the ids of the requests that were cancelled, in ascending order
+     */
+    List<Integer> cancelPaperRecordRequests(Collection<Integer> requestIds, List<PaperRecordRequest.Status> statusList);
+
 }
@@ -0,0 +1,208 @@
+package org.openmrs.module.paperrecord.identifier;
+
+import org.openmrs.Location;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.paperrecord.PaperRecordProperties;
+import org.openmrs.module.paperrecord.db.PaperRecordDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of paper record identifiers generated ahead of time for each medical record location, so that creating a paper
+ * record doesn't have to wait on the identifier generator and the check that the identifier isn't already in use.
+ * <p/>
+ * Each location's pool is topped up in the background (in an OpenMRS daemon thread) whenever it falls below half the
+ * configured size, and identifiers are checked before they go into the pool, so creating a record just takes one
+ * from the pool. If the pool for a location is empty, {@link #take} returns null and the caller generates an identifier
+ * as usual.
+ * <p/>
+ * The pool is disabled unless the paperrecord.identifierPoolSize global property is set. Note that identifiers still
+ * in the pool when the server stops are never used, leaving gaps in the dossier numbers of up to the pool size.
+ */
+public class PaperRecordIdentifierPool {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<Integer, Queue<String>> pools = new ConcurrentHashMap<Integer, Queue<String>>();
+
+    private final ConcurrentMap<Integer, AtomicBoolean> refillsRunning = new ConcurrentHashMap<Integer, AtomicBoolean>();
+
+    private IdentifierSourceService identifierSourceService;
+
+    private PaperRecordDAO paperRecordDAO;
+
+    private LocationService locationService;
+
+    private PaperRecordProperties paperRecordProperties;
+
+    private PlatformTransactionManager transactionManager;
+
+    private volatile DaemonToken daemonToken;
+
+    public void setIdentifierSourceService(IdentifierSourceService identifierSourceService) {
+        this.identifierSourceService = identifierSourceService;
+    }
+
+    public void setPaperRecordDAO(PaperRecordDAO paperRecordDAO) {
+        this.paperRecordDAO = paperRecordDAO;
+    }
+
+    public void setLocationService(LocationService locationService) {
+        this.locationService = locationService;
+    }
+
+    public void setPaperRecordProperties(PaperRecordProperties paperRecordProperties) {
+        this.paperRecordProperties = paperRecordProperties;
+    }
+
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * Starts filling the pools; until then, {@link #take} only hands out identifiers already in the pools
+     *
+     * @param daemonToken the module's daemon token, used to run the refills
+     */
+    public void start(DaemonToken daemonToken) {
+        if (daemonToken == null) {
+            log.warn("No daemon token available, paper record identifiers will not be generated ahead of time");
+        }
+        this.daemonToken = daemonToken;
+    }
+
+    public void stop() {
+        daemonToken = null;
+        pools.clear();
+    }
+
+    /**
+     * Takes a pre-generated identifier for the given medical record location from the pool, and tops up the pool in
+     * the background if it is running low
+     *
+     * @param medicalRecordLocation
+     * @return an identifier that wasn't in use when it was generated, or null if the pool is empty or disabled
+     */
+    public String take(Location medicalRecordLocation) {
+
+        int poolSize = paperRecordProperties.getIdentifierPoolSize();
+        if (poolSize <= 0 || medicalRecordLocation == null || medicalRecordLocation.getId() == null) {
+            return null;
+        }
+
+        Queue<String> pool = getPool(medicalRecordLocation.getId());
+        String identifier = pool.poll();
+
+        if (pool.size() < (poolSize + 1) / 2) {
+            refill(medicalRecordLocation.getId());
+        }
+
+        return identifier;
+    }
+
+    /**
+     * @param medicalRecordLocation
+     * @return the number of identifiers currently in the pool for the given medical record location
+     */
+    public int size(Location medicalRecordLocation) {
+        return getPool(medicalRecordLocation.getId()).size();
+    }
+
+    private void refill(final Integer locationId) {
+
+        DaemonToken token = daemonToken;
+        if (token == null) {
+            return;
+        }
+
+        refillsRunning.putIfAbsent(locationId, new AtomicBoolean(false));
+        final AtomicBoolean running = refillsRunning.get(locationId);
+
+        if (running.compareAndSet(false, true)) {
+            Daemon.runInDaemonThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fill(locationId);
+                    }
+                    catch (RuntimeException e) {
+                        log.error("Error generating paper record identifiers for location " + locationId, e);
+                    }
+                    finally {
+                        running.set(false);
+                    }
+                }
+            }, token);
+        }
+    }
+
+    /**
+     * Generates identifiers for the given medical record location until its pool is full
+     *
+     * @param locationId
+     */
+    void fill(final Integer locationId) {
+
+        int poolSize = paperRecordProperties.getIdentifierPoolSize();
+        Queue<String> pool = getPool(locationId);
+
+        while (pool.size() < poolSize) {
+
+            // generate each identifier in its own transaction, so that it is committed as soon as it is in the pool
+            String identifier = new TransactionTemplate(transactionManager).execute(new TransactionCallback<String>() {
+                @Override
+                public String doInTransaction(TransactionStatus status) {
+                    return generateUnusedIdentifier(locationService.getLocation(locationId));
+                }
+            });
+
+            if (identifier == null) {
+                log.warn("Unable to generate paper record identifiers for location " + locationId + " ahead of time");
+                return;
+            }
+
+            pool.add(identifier);
+        }
+    }
+
+    private String generateUnusedIdentifier(Location medicalRecordLocation) {
+
+        PatientIdentifierType paperRecordIdentifierType = paperRecordProperties.getPaperRecordIdentifierType();
+
+        String identifier = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
+                "generating a new paper record identifier number");
+
+        // double check to make sure this identifier is not in use
+        while (identifier != null && paperRecordDAO.patientIdentifierInUse(identifier, paperRecordIdentifierType, medicalRecordLocation)) {
+            log.error("Attempted to generate duplicate paper record identifier " + identifier);
+            identifier = identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation,
+                    "generating a new paper record identifier number");
+        }
+
+        return identifier;
+    }
+
+    private Queue<String> getPool(Integer locationId) {
+        Queue<String> pool = pools.get(locationId);
+        if (pool == null) {
+            pools.putIfAbsent(locationId, new ConcurrentLinkedQueue<String>());
+            pool = pools.get(locationId);
+        }
+        return pool;
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.openmrs.module.paperrecord.identifier;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of the patient each primary identifier belongs to, so that resolving a scanned
+ * primary identifier barcode at the archives desk usually doesn't need a query at all.
+ * <p/>
+ * Only patient ids are cached, never Patient objects, so nothing is shared across Hibernate sessions; only identifiers
+ * that were found are cached, so a newly registered patient is never missed. A patient's entries are evicted whenever
+ * the patient or one of their identifiers is saved, voided, merged or purged (see
+ * {@link org.openmrs.module.paperrecord.PatientCacheInvalidator}); a generation number guards against a thread that
+ * looked up an identifier before the eviction putting a stale result back afterwards.
+ */
+public class PatientIdentifierCache {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private final Map<String, Integer> patientIds;
+
+    private long generation;
+
+    public PatientIdentifierCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PatientIdentifierCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.patientIds = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the current generation of the cache, to pass to {@link #putPatientId} once an identifier has been looked up
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param identifier
+     * @return the id of the patient with the given primary identifier, or null if not cached
+     */
+    public synchronized Integer getPatientId(String identifier) {
+        return patientIds.get(identifier);
+    }
+
+    public synchronized void putPatientId(long generation, String identifier, Integer patientId) {
+        // if anything was evicted while the identifier was being looked up, the result may be stale
+        if (identifier != null && patientId != null && this.generation == generation) {
+            patientIds.put(identifier, patientId);
+        }
+    }
+
+    /**
+     * Evicts all the identifiers cached for the given patient
+     *
+     * @param patientId
+     */
+    public synchronized void evictPatient(Integer patientId) {
+        generation++;
+        for (Iterator<Integer> i = patientIds.values().iterator(); i.hasNext(); ) {
+            if (i.next().equals(patientId)) {
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        patientIds.clear();
+    }
+
+    public synchronized int size() {
+        return patientIds.size();
+    }
+
+}
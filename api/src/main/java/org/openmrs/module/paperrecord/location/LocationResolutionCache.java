@@ -0,0 +1,73 @@
+package org.openmrs.module.paperrecord.location;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the medical record location and archives location associated with each location, so that resolving them
+ * doesn't require walking the location hierarchy (and looking up the location tags) on every service call.
+ * <p/>
+ * Only location ids are cached, never Location objects, so nothing is shared across Hibernate sessions. The cache is
+ * cleared whenever a location or location tag is saved, retired or purged (see
+ * {@link LocationResolutionCacheInvalidator}); a generation number guards against a thread that started resolving a
+ * location before the cache was cleared putting a stale result back afterwards.
+ */
+public class LocationResolutionCache {
+
+    private final ConcurrentMap<Integer, Integer> medicalRecordLocationIds = new ConcurrentHashMap<Integer, Integer>();
+
+    private final ConcurrentMap<Integer, Integer> archivesLocationIds = new ConcurrentHashMap<Integer, Integer>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @return the current generation of the cache, to pass to the put methods once a location has been resolved
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @param locationId
+     * @return the id of the medical record location associated with the given location, or null if not cached
+     */
+    public Integer getMedicalRecordLocationId(Integer locationId) {
+        return locationId != null ? medicalRecordLocationIds.get(locationId) : null;
+    }
+
+    public void putMedicalRecordLocationId(long generation, Integer locationId, Integer medicalRecordLocationId) {
+        put(medicalRecordLocationIds, generation, locationId, medicalRecordLocationId);
+    }
+
+    /**
+     * @param medicalRecordLocationId
+     * @return the id of the archives location associated with the given medical record location, or null if not cached
+     */
+    public Integer getArchivesLocationId(Integer medicalRecordLocationId) {
+        return medicalRecordLocationId != null ? archivesLocationIds.get(medicalRecordLocationId) : null;
+    }
+
+    public void putArchivesLocationId(long generation, Integer medicalRecordLocationId, Integer archivesLocationId) {
+        put(archivesLocationIds, generation, medicalRecordLocationId, archivesLocationId);
+    }
+
+    public void clear() {
+        generation.incrementAndGet();
+        medicalRecordLocationIds.clear();
+        archivesLocationIds.clear();
+    }
+
+    private void put(ConcurrentMap<Integer, Integer> map, long generation, Integer key, Integer value) {
+        // locations that haven't been saved yet can't be cached
+        if (key == null || value == null) {
+            return;
+        }
+        map.put(key, value);
+        // if the cache was cleared while the location was being resolved, the value may be stale
+        if (this.generation.get() != generation) {
+            map.remove(key, value);
+        }
+    }
+
+}
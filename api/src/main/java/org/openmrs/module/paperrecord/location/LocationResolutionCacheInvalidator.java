@@ -0,0 +1,31 @@
+package org.openmrs.module.paperrecord.location;
+
+import org.openmrs.module.paperrecord.CacheInvalidatingAdvice;
+
+/**
+ * Advice around the LocationService that clears the {@link LocationResolutionCache} whenever a location or location
+ * tag is saved, retired or purged.
+ */
+public class LocationResolutionCacheInvalidator extends CacheInvalidatingAdvice {
+
+    public LocationResolutionCacheInvalidator() {
+        super("save", "retire", "unretire", "purge");
+    }
+
+    @Override
+    protected Runnable createEviction(Object[] args) {
+
+        final LocationResolutionCache cache = getComponent("paperRecordLocationResolutionCache", LocationResolutionCache.class);
+        if (cache == null) {
+            return null;
+        }
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                cache.clear();
+            }
+        };
+    }
+
+}
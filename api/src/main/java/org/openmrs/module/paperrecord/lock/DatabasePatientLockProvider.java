@@ -0,0 +1,129 @@
+package org.openmrs.module.paperrecord.lock;
+
+import org.openmrs.Patient;
+import org.openmrs.api.APIException;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.paperrecord.db.InsertConflicts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Patient lock provider for deployments with more than one OpenMRS node sharing a database.
+ * <p/>
+ * The lock is a row in the paperrecord_patient_lock table, taken with "SELECT ... FOR UPDATE" at the start of a
+ * transaction that wraps the locked work, so it is held until that transaction commits or rolls back. Since the
+ * work joins that transaction, nothing it writes is visible to another node before the lock is released. Only the row
+ * for the patient in question is locked, so unrelated patients are not serialized.
+ * <p/>
+ * Threads on the same node first queue on the in-JVM lock registry, so that only one thread per node (and patient
+ * stripe) is waiting on the database at any time.
+ * <p/>
+ * The lock row for a patient is created the first time the patient is locked, and then kept. There is no foreign key
+ * to the patient table, so lock rows never get in the way of purging a patient (and a patient saved but not yet
+ * committed can be locked); a lock row left behind by a purged patient is harmless.
+ */
+public class DatabasePatientLockProvider implements PatientLockProvider {
+
+    // attempts at creating a lock row, when other nodes are creating it at the same time
+    private static final int MAX_INSERT_ATTEMPTS = 3;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private DbSessionFactory sessionFactory;
+
+    private PlatformTransactionManager transactionManager;
+
+    private PatientLockRegistry patientLockRegistry;
+
+    public void setSessionFactory(DbSessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    public void setPatientLockRegistry(PatientLockRegistry patientLockRegistry) {
+        this.patientLockRegistry = patientLockRegistry;
+    }
+
+    @Override
+    public <T> T executeWithLock(final Patient patient, final Work<T> work) {
+
+        // a patient that hasn't been saved yet can't be seen by any other node
+        if (patient.getId() == null) {
+            return patientLockRegistry.executeWithLock(patient, work);
+        }
+
+        patientLockRegistry.lock(patient);
+        try {
+            createLockRowIfAbsent(patient.getId());
+
+            return new TransactionTemplate(transactionManager).execute(new TransactionCallback<T>() {
+                @Override
+                public T doInTransaction(TransactionStatus status) {
+                    if (!selectLockRowForUpdate(patient.getId())) {
+                        throw new APIException("Unable to acquire lock on patient " + patient.getId());
+                    }
+                    return work.execute();
+                }
+            });
+        } finally {
+            patientLockRegistry.unlock(patient);
+        }
+    }
+
+    // the lock row is created, if need be, in a transaction of its own, committed before the "for update" is taken;
+    // a failed insert can roll back the whole transaction it runs in (always on PostgreSQL, and on MySQL when it is
+    // chosen as a deadlock victim), so it must never run in the transaction that holds the lock
+    private void createLockRowIfAbsent(final Integer patientId) {
+
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        if (!lockRowExists(patientId)) {
+                            sessionFactory.getCurrentSession()
+                                    .createSQLQuery("insert into paperrecord_patient_lock (patient_id) values (:patientId)")
+                                    .setInteger("patientId", patientId)
+                                    .executeUpdate();
+                        }
+                    }
+                });
+                return;
+            } catch (RuntimeException e) {
+                // another node inserting the same row at the same time gives a duplicate key or, at worst, a deadlock;
+                // either way, the next attempt should find the row
+                if (!InsertConflicts.isInsertConflict(e) || attempt >= MAX_INSERT_ATTEMPTS) {
+                    throw e;
+                }
+                log.debug("Conflict inserting lock row for patient " + patientId + ", trying again", e);
+            }
+        }
+    }
+
+    private boolean lockRowExists(Integer patientId) {
+        return sessionFactory.getCurrentSession()
+                .createSQLQuery("select patient_id from paperrecord_patient_lock where patient_id = :patientId")
+                .setInteger("patientId", patientId)
+                .uniqueResult() != null;
+    }
+
+    private boolean selectLockRowForUpdate(Integer patientId) {
+        return sessionFactory.getCurrentSession()
+                .createSQLQuery("select patient_id from paperrecord_patient_lock where patient_id = :patientId for update")
+                .setInteger("patientId", patientId)
+                .uniqueResult() != null;
+    }
+
+}
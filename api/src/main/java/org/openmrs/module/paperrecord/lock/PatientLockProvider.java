@@ -0,0 +1,26 @@
+package org.openmrs.module.paperrecord.lock;
+
+import org.openmrs.Patient;
+
+/**
+ * Provides mutual exclusion on a patient, so that two callers don't request or create a paper record for the same
+ * patient at the same time.
+ */
+public interface PatientLockProvider {
+
+    /**
+     * Executes the given work while holding the lock on the given patient, blocking until the lock is available
+     *
+     * @param patient
+     * @param work
+     * @return the result of the work
+     */
+    <T> T executeWithLock(Patient patient, Work<T> work);
+
+    interface Work<T> {
+
+        T execute();
+
+    }
+
+}
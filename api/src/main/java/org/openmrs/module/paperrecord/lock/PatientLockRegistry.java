@@ -0,0 +1,146 @@
+package org.openmrs.module.paperrecord.lock;
+
+import org.openmrs.Patient;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-JVM registry of per-patient locks, used to make sure that two threads don't request or create a paper
+ * record for the same patient at the same time.
+ * <p/>
+ * Patients are mapped onto a fixed number of lock stripes, so memory use is bounded no matter how many patients
+ * are seen over the lifetime of the server; the trade-off is that two different patients may occasionally share a
+ * stripe and be serialized with respect to each other. Locks are reentrant, so a thread that already holds the lock
+ * for a patient (for instance, when requesting a record triggers the creation of a record) can safely lock again.
+ * <p/>
+ * Simple contention metrics are kept so that we can tell if the number of stripes needs to be increased.
+ * <p/>
+ * Note that these locks only protect a single JVM; see {@link DatabasePatientLockProvider} for deployments with
+ * more than one OpenMRS node.
+ */
+public class PatientLockRegistry implements PatientLockProvider {
+
+    public static final int DEFAULT_NUMBER_OF_STRIPES = 64;
+
+    private final ReentrantLock[] stripes;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private final AtomicLong contendedAcquisitions = new AtomicLong();
+
+    private final AtomicLong totalWaitTimeNanos = new AtomicLong();
+
+    public PatientLockRegistry() {
+        this(DEFAULT_NUMBER_OF_STRIPES);
+    }
+
+    /**
+     * @param numberOfStripes the number of lock stripes to use; rounded up to the next power of two
+     */
+    public PatientLockRegistry(int numberOfStripes) {
+
+        if (numberOfStripes < 1) {
+            throw new IllegalArgumentException("Number of stripes must be positive");
+        }
+
+        int size = Integer.highestOneBit(numberOfStripes);
+        if (size < numberOfStripes) {
+            size = size << 1;
+        }
+
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public <T> T executeWithLock(Patient patient, Work<T> work) {
+        lock(patient);
+        try {
+            return work.execute();
+        } finally {
+            unlock(patient);
+        }
+    }
+
+    /**
+     * Acquires the lock for the given patient, blocking until it is available
+     *
+     * @param patient
+     */
+    public void lock(Patient patient) {
+
+        ReentrantLock lock = getStripe(patient);
+        acquisitions.incrementAndGet();
+
+        if (!lock.tryLock()) {
+            contendedAcquisitions.incrementAndGet();
+            long start = System.nanoTime();
+            lock.lock();
+            totalWaitTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Releases the lock for the given patient; must be called by the thread that acquired the lock
+     *
+     * @param patient
+     */
+    public void unlock(Patient patient) {
+        getStripe(patient).unlock();
+    }
+
+    public int getNumberOfStripes() {
+        return stripes.length;
+    }
+
+    /**
+     * @return the total number of times a patient lock has been requested
+     */
+    public long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    /**
+     * @return the number of times a thread had to wait because the patient lock was held by another thread
+     */
+    public long getContendedAcquisitionCount() {
+        return contendedAcquisitions.get();
+    }
+
+    /**
+     * @return the total time, in milliseconds, threads have spent waiting on contended patient locks
+     */
+    public long getTotalWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitTimeNanos.get());
+    }
+
+    /**
+     * @return the number of threads currently waiting on any patient lock (an estimate, see {@link ReentrantLock#getQueueLength()})
+     */
+    public int getQueueLength() {
+        int queueLength = 0;
+        for (ReentrantLock stripe : stripes) {
+            queueLength += stripe.getQueueLength();
+        }
+        return queueLength;
+    }
+
+    ReentrantLock getStripe(Patient patient) {
+        // unsaved patients (without an id) all share the first stripe
+        Integer patientId = patient.getId();
+        return stripes[patientId == null ? 0 : spread(patientId) & (stripes.length - 1)];
+    }
+
+    // patient ids are sequential, but mix the bits anyway so that ids that differ only in their high bits don't collide
+    private static int spread(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+
+}
@@ -0,0 +1,145 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.paperrecord.template.LabelTemplate;
+import org.openmrs.module.paperrecord.template.StreamingLabelTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects rendered labels into as few print jobs as possible, so that printing the labels for many requests at once
+ * (for instance, when assigning a batch of requests) opens one connection to the printer instead of one per request.
+ * <p/>
+ * A job holds at most the given maximum number of labels, so that one large batch doesn't tie up a printer (or
+ * overflow its buffer); labels with different encodings always go in separate jobs.
+ * <p/>
+ * Templates that implement {@link StreamingLabelTemplate} render their labels straight into the job, printing several
+ * copies of a label without repeating it; other templates' labels are rendered once and copied into the job. If the
+ * batch is given a {@link RenderedLabelCache}, labels that have been rendered before are copied from the cache.
+ */
+public class LabelBatch {
+
+    private final int maxLabelsPerJob;
+
+    private final List<Job> jobs = new ArrayList<Job>();
+
+    private final RenderedLabelCache renderedLabelCache;
+
+    private Job currentJob;
+
+    /**
+     * @param maxLabelsPerJob the maximum number of labels in a single job; zero or less means no maximum
+     */
+    public LabelBatch(int maxLabelsPerJob) {
+        this(maxLabelsPerJob, null);
+    }
+
+    /**
+     * @param maxLabelsPerJob the maximum number of labels in a single job; zero or less means no maximum
+     * @param renderedLabelCache the cache to take previously rendered labels from, or null to always render them
+     */
+    public LabelBatch(int maxLabelsPerJob, RenderedLabelCache renderedLabelCache) {
+        this.maxLabelsPerJob = maxLabelsPerJob > 0 ? maxLabelsPerJob : Integer.MAX_VALUE;
+        this.renderedLabelCache = renderedLabelCache;
+    }
+
+    /**
+     * Adds count copies of the label for the given patient to the batch
+     *
+     * @param template
+     * @param patient
+     * @param paperRecordIdentifier
+     * @param count
+     */
+    public void add(LabelTemplate template, Patient patient, String paperRecordIdentifier, int count) {
+
+        // patients that haven't been saved can't be cached
+        boolean cacheable = renderedLabelCache != null && patient.getPatientId() != null;
+
+        int remaining = count;
+        while (remaining > 0) {
+            Job job = getJobFor(template.getEncoding());
+            int copies = Math.min(remaining, maxLabelsPerJob - job.labelCount);
+            if (cacheable) {
+                job.data.append(renderedLabelCache.getLabels(template, patient, paperRecordIdentifier, copies, Context.getLocale()));
+            } else {
+                renderLabels(job.data, template, patient, paperRecordIdentifier, copies);
+            }
+            job.labelCount += copies;
+            remaining -= copies;
+        }
+    }
+
+    /**
+     * Adds count copies of the given label to the batch
+     *
+     * @param label the rendered label
+     * @param encoding the encoding to send the label in
+     * @param count
+     */
+    public void add(String label, String encoding, int count) {
+        for (int i = 0; i < count; i++) {
+            Job job = getJobFor(encoding);
+            job.data.append(label);
+            job.labelCount++;
+        }
+    }
+
+    public List<Job> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Renders count copies of the label for the given patient onto the end of the buffer
+     */
+    static void renderLabels(StringBuilder buffer, LabelTemplate template, Patient patient, String paperRecordIdentifier, int count) {
+        if (template instanceof StreamingLabelTemplate) {
+            ((StreamingLabelTemplate) template).appendLabels(buffer, patient, paperRecordIdentifier, count);
+        } else {
+            String label = template.generateLabel(patient, paperRecordIdentifier);
+            for (int i = 0; i < count; i++) {
+                buffer.append(label);
+            }
+        }
+    }
+
+    // the current job, or a new one if the current job is full or has a different encoding
+    private Job getJobFor(String encoding) {
+        if (currentJob == null || currentJob.labelCount >= maxLabelsPerJob
+                || !ObjectUtils.equals(currentJob.encoding, encoding)) {
+            currentJob = new Job(encoding);
+            jobs.add(currentJob);
+        }
+        return currentJob;
+    }
+
+    public static class Job {
+
+        private final StringBuilder data = new StringBuilder();
+
+        private final String encoding;
+
+        private int labelCount;
+
+        private Job(String encoding) {
+            this.encoding = encoding;
+        }
+
+        public String getData() {
+            return data.toString();
+        }
+
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public int getLabelCount() {
+            return labelCount;
+        }
+
+    }
+
+}
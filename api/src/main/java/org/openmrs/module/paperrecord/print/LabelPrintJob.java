@@ -0,0 +1,171 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.openmrs.BaseOpenmrsObject;
+import org.openmrs.Location;
+
+import java.util.Date;
+
+/**
+ * A batch of labels waiting to be sent to (or already sent to) a label printer by the {@link LabelPrintSpooler}.
+ * <p/>
+ * Jobs are saved in the same transaction as the work that printed them, and only sent once that transaction
+ * commits, so a rolled back assignment never prints labels, and a request thread never waits on a printer.
+ */
+public class LabelPrintJob extends BaseOpenmrsObject {
+
+    public enum Status { QUEUED, PRINTING, PRINTED, FAILED }
+
+    private Integer labelPrintJobId;
+
+    private Integer printerId;
+
+    private Location location;
+
+    private String data;
+
+    private String encoding;
+
+    private Integer labelCount = 1;
+
+    private Status status = Status.QUEUED;
+
+    private Integer attempts = 0;
+
+    private String errorMessage;
+
+    private Date dateCreated;
+
+    private Date nextAttemptDate;
+
+    private Date datePrinted;
+
+    @Override
+    public Integer getId() {
+        return labelPrintJobId;
+    }
+
+    @Override
+    public void setId(Integer id) {
+        this.labelPrintJobId = id;
+    }
+
+    public Integer getLabelPrintJobId() {
+        return labelPrintJobId;
+    }
+
+    public void setLabelPrintJobId(Integer labelPrintJobId) {
+        this.labelPrintJobId = labelPrintJobId;
+    }
+
+    /**
+     * @return the id of the printer the job is sent to; the printer is resolved when the job is queued
+     */
+    public Integer getPrinterId() {
+        return printerId;
+    }
+
+    public void setPrinterId(Integer printerId) {
+        this.printerId = printerId;
+    }
+
+    /**
+     * @return the location the labels were printed at
+     */
+    public Location getLocation() {
+        return location;
+    }
+
+    public void setLocation(Location location) {
+        this.location = location;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return the number of labels in the job
+     */
+    public Integer getLabelCount() {
+        return labelCount;
+    }
+
+    public void setLabelCount(Integer labelCount) {
+        this.labelCount = labelCount;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    /**
+     * @return the number of times we have tried to send the job to the printer
+     */
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return the error from the most recent failed attempt, if any
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    public void setErrorMessage(String errorMessage) {
+        this.errorMessage = errorMessage;
+    }
+
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    public void setDateCreated(Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+
+    /**
+     * @return the earliest time a queued job should be sent; later than the date created if the job is being retried
+     */
+    public Date getNextAttemptDate() {
+        return nextAttemptDate;
+    }
+
+    public void setNextAttemptDate(Date nextAttemptDate) {
+        this.nextAttemptDate = nextAttemptDate;
+    }
+
+    public Date getDatePrinted() {
+        return datePrinted;
+    }
+
+    public void setDatePrinted(Date datePrinted) {
+        this.datePrinted = datePrinted;
+    }
+
+    @Override
+    public String toString() {
+        return "LabelPrintJob " + labelPrintJobId + " (" + status + ", printer " + printerId + ")";
+    }
+
+}
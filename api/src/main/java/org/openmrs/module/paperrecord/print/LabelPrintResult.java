@@ -0,0 +1,59 @@
+package org.openmrs.module.paperrecord.print;
+
+/**
+ * What happened to labels that were printed: either they were sent straight to the printer, or they were queued with
+ * the {@link LabelPrintSpooler}, in which case the result holds their position in the printer's queue.
+ */
+public class LabelPrintResult {
+
+    public static final LabelPrintResult PRINTED = new LabelPrintResult(false, 0);
+
+    private final boolean queued;
+
+    private final int queuePosition;
+
+    private LabelPrintResult(boolean queued, int queuePosition) {
+        this.queued = queued;
+        this.queuePosition = queuePosition;
+    }
+
+    /**
+     * @param queuePosition the position of the job in its printer's queue, counting from 1
+     * @return the result for labels that were queued
+     */
+    public static LabelPrintResult queued(int queuePosition) {
+        return new LabelPrintResult(true, queuePosition);
+    }
+
+    /**
+     * @return true if the labels were queued, rather than sent straight to the printer
+     */
+    public boolean isQueued() {
+        return queued;
+    }
+
+    /**
+     * @return the position in the printer's queue of the labels, if they were queued
+     */
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    /**
+     * Combines the results of labels printed together, such as a label set; if any of them were queued, the result
+     * is queued, at the position of the last of them to be queued
+     *
+     * @param other
+     * @return the combined result
+     */
+    public LabelPrintResult and(LabelPrintResult other) {
+        if (!other.queued) {
+            return this;
+        }
+        if (!queued) {
+            return other;
+        }
+        return queuePosition >= other.queuePosition ? this : other;
+    }
+
+}
@@ -0,0 +1,440 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.apache.commons.lang.StringUtils;
+import org.openmrs.Location;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.paperrecord.db.LabelPrintJobDAO;
+import org.openmrs.module.printer.Printer;
+import org.openmrs.module.printer.PrinterService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends label print jobs to the label printers in the background, so that request threads (and the database
+ * transactions and row locks they hold) never wait on a printer.
+ * <p/>
+ * Jobs are written to the paperrecord_label_print_job table (an outbox) in the caller's transaction. Once that
+ * transaction commits, the worker for the job's printer is woken up; there is at most one worker per printer, which
+ * sends that printer's jobs one at a time, oldest first, at the rate allowed by the {@link PrinterRateLimiter}. A job that can't be sent is retried with exponential backoff,
+ * and marked as failed after {@link #MAX_ATTEMPTS} attempts; while it waits to be retried, it holds up the jobs
+ * queued behind it for the same printer, so that labels always come out in the order they were printed. Workers run
+ * as OpenMRS daemon threads.
+ * <p/>
+ * Since the queue is in the database, jobs survive a restart: any queued jobs are sent when the spooler is started,
+ * and jobs that were being sent when the server stopped are sent again (so a label may occasionally be printed twice,
+ * but never lost). Printed and failed jobs are purged once they are {@link #PURGE_AFTER_MILLIS} old.
+ * <p/>
+ * The number of pending jobs for each printer is also kept in memory, so that checking whether labels can be sent
+ * straight to a printer doesn't query the queue; it only counts jobs queued on this server (and those found in the
+ * queue at startup).
+ */
+public class LabelPrintSpooler {
+
+    public static final int MAX_ATTEMPTS = 5;
+
+    public static final long INITIAL_RETRY_DELAY_MILLIS = 5000;
+
+    public static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    public static final long PURGE_AFTER_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    public static final long PURGE_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+    private static final List<LabelPrintJob.Status> PENDING_STATUSES =
+            Arrays.asList(LabelPrintJob.Status.QUEUED, LabelPrintJob.Status.PRINTING);
+
+    private static final List<LabelPrintJob.Status> COMPLETED_STATUSES =
+            Arrays.asList(LabelPrintJob.Status.PRINTED, LabelPrintJob.Status.FAILED);
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ConcurrentMap<Integer, AtomicBoolean> workersRunning = new ConcurrentHashMap<Integer, AtomicBoolean>();
+
+    private final ConcurrentMap<Integer, AtomicInteger> pendingJobCounts = new ConcurrentHashMap<Integer, AtomicInteger>();
+
+    private LabelPrintJobDAO labelPrintJobDAO;
+
+    private PrinterService printerService;
+
+    private PlatformTransactionManager transactionManager;
+
+    private PrinterRateLimiter printerRateLimiter = new PrinterRateLimiter();
+
+    private volatile DaemonToken daemonToken;
+
+    private ScheduledExecutorService scheduler;
+
+    public void setLabelPrintJobDAO(LabelPrintJobDAO labelPrintJobDAO) {
+        this.labelPrintJobDAO = labelPrintJobDAO;
+    }
+
+    public void setPrinterService(PrinterService printerService) {
+        this.printerService = printerService;
+    }
+
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    public void setPrinterRateLimiter(PrinterRateLimiter printerRateLimiter) {
+        this.printerRateLimiter = printerRateLimiter;
+    }
+
+    /**
+     * Starts sending jobs, including any left in the queue when the server was stopped
+     *
+     * @param daemonToken the module's daemon token, used to run the workers
+     */
+    public synchronized void start(DaemonToken daemonToken) {
+
+        if (daemonToken == null) {
+            log.warn("No daemon token available, label print jobs will not be sent");
+            return;
+        }
+
+        this.daemonToken = daemonToken;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "paperrecord-label-print-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        Daemon.runInDaemonThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Integer printerId : requeueInterruptedJobs()) {
+                    wakeUp(printerId);
+                }
+                purgeCompletedJobs();
+            }
+        }, daemonToken);
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                DaemonToken token = LabelPrintSpooler.this.daemonToken;
+                if (token != null) {
+                    Daemon.runInDaemonThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            purgeCompletedJobs();
+                        }
+                    }, token);
+                }
+            }
+        }, PURGE_INTERVAL_MILLIS, PURGE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        daemonToken = null;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Adds a job to the queue for the given printer, in the current transaction; the job will be sent once the
+     * transaction commits
+     *
+     * @param printer
+     * @param location the location the labels are being printed at
+     * @param data
+     * @param encoding
+     * @param labelCount the number of labels in data
+     * @return the queued job
+     */
+    public LabelPrintJob enqueue(Printer printer, Location location, String data, String encoding, int labelCount) {
+
+        LabelPrintJob job = new LabelPrintJob();
+        job.setPrinterId(printer.getId());
+        job.setLocation(location);
+        job.setData(data);
+        job.setEncoding(encoding);
+        job.setLabelCount(labelCount);
+        job.setDateCreated(new Date());
+        job.setNextAttemptDate(job.getDateCreated());
+        labelPrintJobDAO.saveOrUpdate(job);
+
+        final Integer printerId = printer.getId();
+
+        // a job only becomes pending once it is committed, so one that is rolled back is never counted
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    getPendingJobCount(printerId).incrementAndGet();
+                    wakeUp(printerId);
+                }
+            });
+        } else {
+            getPendingJobCount(printerId).incrementAndGet();
+            wakeUp(printerId);
+        }
+
+        return job;
+    }
+
+    /**
+     * @param printerId
+     * @return true if the printer has jobs waiting to be sent or being sent; anything else printed to it should then
+     *         be queued behind them, so that labels come out in the order they were printed
+     */
+    public boolean hasPendingJobs(Integer printerId) {
+        return getPendingJobCount(printerId).get() > 0;
+    }
+
+    /**
+     * @param job a queued job
+     * @return the position of the job in its printer's queue, counting from 1
+     */
+    public int getQueuePosition(LabelPrintJob job) {
+        return labelPrintJobDAO.countLabelPrintJobs(job.getPrinterId(), PENDING_STATUSES, job.getLabelPrintJobId());
+    }
+
+    /**
+     * Starts the worker for the given printer, unless it is already running
+     *
+     * @param printerId
+     */
+    public void wakeUp(final Integer printerId) {
+
+        DaemonToken token = daemonToken;
+        if (token == null) {
+            // not started yet; the job will be picked up when the spooler is started
+            return;
+        }
+
+        workersRunning.putIfAbsent(printerId, new AtomicBoolean(false));
+        final AtomicBoolean running = workersRunning.get(printerId);
+
+        if (running.compareAndSet(false, true)) {
+            Daemon.runInDaemonThread(new Runnable() {
+                @Override
+                public void run() {
+                    sendQueuedJobs(printerId, running);
+                }
+            }, token);
+        }
+    }
+
+    /**
+     * Puts any jobs that were being sent when the server stopped back in the queue, and counts the pending jobs for
+     * each printer
+     *
+     * @return the ids of the printers with queued jobs
+     */
+    List<Integer> requeueInterruptedJobs() {
+        return new TransactionTemplate(transactionManager).execute(new TransactionCallback<List<Integer>>() {
+            @Override
+            public List<Integer> doInTransaction(TransactionStatus status) {
+                int requeued = labelPrintJobDAO.requeueInterruptedLabelPrintJobs();
+                if (requeued > 0) {
+                    log.info("Requeued " + requeued + " label print jobs interrupted by server shutdown");
+                }
+                List<Integer> printerIds = labelPrintJobDAO.findPrinterIdsWithQueuedLabelPrintJobs();
+                for (Integer printerId : printerIds) {
+                    getPendingJobCount(printerId).set(labelPrintJobDAO.countLabelPrintJobs(printerId, PENDING_STATUSES));
+                }
+                return printerIds;
+            }
+        });
+    }
+
+    /**
+     * Deletes printed and failed jobs that are more than {@link #PURGE_AFTER_MILLIS} old, so the table only holds
+     * recent history
+     */
+    void purgeCompletedJobs() {
+        try {
+            new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    int purged = labelPrintJobDAO.purgeLabelPrintJobs(COMPLETED_STATUSES,
+                            new Date(System.currentTimeMillis() - PURGE_AFTER_MILLIS));
+                    if (purged > 0) {
+                        log.info("Purged " + purged + " old label print jobs");
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            log.error("Error purging old label print jobs", e);
+        }
+    }
+
+    void sendQueuedJobs(Integer printerId, AtomicBoolean running) {
+        try {
+            LabelPrintJob job = claimNextJob(printerId);
+            while (job != null) {
+                // wait until the printer can take the labels, sharing it fairly with anyone printing directly
+                printerRateLimiter.acquire(printerId, job.getLabelCount());
+                send(job);
+                job = claimNextJob(printerId);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (RuntimeException e) {
+            log.error("Error sending label print jobs to printer " + printerId, e);
+        }
+        finally {
+            running.set(false);
+        }
+
+        // a job may have been queued after we last looked, but before we stopped running
+        if (hasDueJob(printerId)) {
+            wakeUp(printerId);
+        }
+    }
+
+    private LabelPrintJob claimNextJob(final Integer printerId) {
+        return new TransactionTemplate(transactionManager).execute(new TransactionCallback<LabelPrintJob>() {
+            @Override
+            public LabelPrintJob doInTransaction(TransactionStatus status) {
+                LabelPrintJob job = findDueJob(printerId);
+                if (job != null) {
+                    job.setStatus(LabelPrintJob.Status.PRINTING);
+                    job.setAttempts(job.getAttempts() + 1);
+                    labelPrintJobDAO.saveOrUpdate(job);
+                }
+                return job;
+            }
+        });
+    }
+
+    private boolean hasDueJob(final Integer printerId) {
+        return new TransactionTemplate(transactionManager).execute(new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean doInTransaction(TransactionStatus status) {
+                return findDueJob(printerId) != null;
+            }
+        });
+    }
+
+    // only the oldest queued job for the printer is ever sent next, so a job waiting to be retried isn't overtaken by
+    // the jobs behind it
+    private LabelPrintJob findDueJob(Integer printerId) {
+        LabelPrintJob job = labelPrintJobDAO.findNextQueuedLabelPrintJob(printerId);
+        if (job == null || job.getNextAttemptDate().after(new Date())) {
+            return null;
+        }
+        return job;
+    }
+
+    private void send(final LabelPrintJob job) {
+
+        Exception error = null;
+
+        try {
+            Printer printer = printerService.getPrinterById(job.getPrinterId());
+            if (printer == null) {
+                throw new IllegalStateException("Printer " + job.getPrinterId() + " no longer exists");
+            }
+            printerService.printViaSocket(job.getData(), printer, job.getEncoding());
+        }
+        catch (Exception e) {
+            log.warn("Unable to send " + job + " (attempt " + job.getAttempts() + ")", e);
+            error = e;
+        }
+
+        final Exception finalError = error;
+        new TransactionTemplate(transactionManager).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                if (finalError == null) {
+                    recordSuccess(job);
+                } else {
+                    recordFailure(job, finalError);
+                }
+                labelPrintJobDAO.saveOrUpdate(job);
+            }
+        });
+
+        if (job.getStatus() != LabelPrintJob.Status.QUEUED) {
+            jobCompleted(job.getPrinterId());
+        }
+    }
+
+    private AtomicInteger getPendingJobCount(Integer printerId) {
+        pendingJobCounts.putIfAbsent(printerId, new AtomicInteger(0));
+        return pendingJobCounts.get(printerId);
+    }
+
+    // never goes below zero, since this server may also send jobs queued on another server
+    private void jobCompleted(Integer printerId) {
+        AtomicInteger count = getPendingJobCount(printerId);
+        int pending = count.get();
+        while (pending > 0 && !count.compareAndSet(pending, pending - 1)) {
+            pending = count.get();
+        }
+    }
+
+    private void recordSuccess(LabelPrintJob job) {
+        job.setStatus(LabelPrintJob.Status.PRINTED);
+        job.setDatePrinted(new Date());
+        job.setErrorMessage(null);
+        job.setData(null);  // no need to keep the labels once they've been printed
+    }
+
+    private void recordFailure(LabelPrintJob job, Exception error) {
+
+        job.setErrorMessage(StringUtils.abbreviate(error.getMessage(), 1024));
+
+        if (job.getAttempts() >= MAX_ATTEMPTS) {
+            job.setStatus(LabelPrintJob.Status.FAILED);
+            return;
+        }
+
+        final Integer printerId = job.getPrinterId();
+        long delay = getRetryDelay(job.getAttempts());
+        job.setStatus(LabelPrintJob.Status.QUEUED);
+        job.setNextAttemptDate(new Date(System.currentTimeMillis() + delay));
+
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        wakeUp(printerId);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @param attempts the number of attempts made so far
+     * @return how long to wait before the next attempt
+     */
+    static long getRetryDelay(int attempts) {
+        long delay = INITIAL_RETRY_DELAY_MILLIS << Math.min(attempts - 1, 16);
+        return Math.min(delay, MAX_RETRY_DELAY_MILLIS);
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.openmrs.module.paperrecord.print;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Token bucket rate limiter for the label printers, replacing the fixed delay we used to wait after every print.
+ * <p/>
+ * Each printer has a bucket holding up to burstSize labels' worth of tokens, refilled at labelsPerSecond, and
+ * printing a label takes a token. An idle printer can therefore be sent a burst of labels straight away, while
+ * concurrent users sending to the same printer share its rate between them. Request threads use the non-blocking
+ * {@link #tryAcquire} and queue their labels with the {@link LabelPrintSpooler} if the printer is saturated; the
+ * spooler's workers use the blocking {@link #acquire}. Request threads only try for tokens when the printer has
+ * nothing queued, so they can't starve a waiting worker or get their labels printed ahead of queued ones.
+ */
+public class PrinterRateLimiter {
+
+    public static final int DEFAULT_BURST_SIZE = 20;
+
+    public static final double DEFAULT_LABELS_PER_SECOND = 10;
+
+    private final ConcurrentMap<Integer, Bucket> buckets = new ConcurrentHashMap<Integer, Bucket>();
+
+    private int burstSize = DEFAULT_BURST_SIZE;
+
+    private double labelsPerSecond = DEFAULT_LABELS_PER_SECOND;
+
+    public void setBurstSize(int burstSize) {
+        if (burstSize < 1) {
+            throw new IllegalArgumentException("Burst size must be positive");
+        }
+        this.burstSize = burstSize;
+    }
+
+    public void setLabelsPerSecond(double labelsPerSecond) {
+        if (labelsPerSecond <= 0) {
+            throw new IllegalArgumentException("Labels per second must be positive");
+        }
+        this.labelsPerSecond = labelsPerSecond;
+    }
+
+    /**
+     * Takes the tokens to print the given number of labels, if the printer has them available
+     *
+     * @param printerId
+     * @param labels
+     * @return true if the labels can be sent to the printer now, false if the printer is saturated
+     */
+    public boolean tryAcquire(Integer printerId, int labels) {
+        return getBucket(printerId).tryAcquire(labels) == 0;
+    }
+
+    /**
+     * Waits until the printer has the tokens to print the given number of labels, and takes them
+     *
+     * @param printerId
+     * @param labels
+     * @throws InterruptedException
+     */
+    public void acquire(Integer printerId, int labels) throws InterruptedException {
+        Bucket bucket = getBucket(printerId);
+        long wait = bucket.tryAcquire(labels);
+        while (wait > 0) {
+            Thread.sleep(wait);
+            wait = bucket.tryAcquire(labels);
+        }
+    }
+
+    /**
+     * @return the current time in nanoseconds; overridden in tests
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    private Bucket getBucket(Integer printerId) {
+        Bucket bucket = buckets.get(printerId);
+        if (bucket == null) {
+            buckets.putIfAbsent(printerId, new Bucket(nanoTime()));
+            bucket = buckets.get(printerId);
+        }
+        return bucket;
+    }
+
+    private class Bucket {
+
+        private double tokens = burstSize;
+
+        private long lastRefill;
+
+        private Bucket(long now) {
+            this.lastRefill = now;
+        }
+
+        /**
+         * @return 0 if the tokens were taken, otherwise how many milliseconds until they should be available
+         */
+        private synchronized long tryAcquire(int labels) {
+
+            long now = nanoTime();
+            tokens = Math.min(burstSize, tokens + (now - lastRefill) * labelsPerSecond / 1e9);
+            lastRefill = now;
+
+            // a job with more labels than the burst size can be sent once the bucket is full, leaving it in debt
+            double needed = Math.min(labels, burstSize);
+
+            if (tokens >= needed) {
+                tokens -= labels;
+                return 0;
+            }
+
+            return (long) Math.ceil((needed - tokens) * 1000 / labelsPerSecond);
+        }
+
+    }
+
+}
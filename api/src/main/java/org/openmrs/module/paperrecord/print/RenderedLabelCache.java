@@ -0,0 +1,165 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.apache.commons.lang.ObjectUtils;
+import org.openmrs.Patient;
+import org.openmrs.module.paperrecord.template.LabelTemplate;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of rendered labels, so that reprinting the same labels for a patient (as happens
+ * constantly with form labels) doesn't mean traversing the patient's names, identifiers and address and rendering the
+ * label all over again.
+ * <p/>
+ * Labels are cached by template, patient, paper record identifier, number of copies and locale, along with the date
+ * the patient was last changed. Since editing a patient's name, address or identifiers doesn't always touch the
+ * patient itself, entries for a patient are also evicted whenever the patient or person services save, void or merge
+ * anything belonging to them (see {@link org.openmrs.module.paperrecord.PatientCacheInvalidator}); a generation number guards against a thread
+ * that started rendering before the eviction putting a stale label back afterwards. The whole cache is cleared when
+ * the configuration the labels are rendered with changes, such as global properties or locations (see
+ * {@link RenderedLabelCacheInvalidator}).
+ */
+public class RenderedLabelCache {
+
+    public static final int DEFAULT_CAPACITY = 500;
+
+    private final Map<Key, String> labels;
+
+    private long generation;
+
+    public RenderedLabelCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RenderedLabelCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.labels = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Gets count copies of the label for the given patient, rendering them if they aren't already cached
+     *
+     * @param template
+     * @param patient a saved patient
+     * @param paperRecordIdentifier
+     * @param count
+     * @param locale the locale the label is rendered in
+     * @return the rendered labels
+     */
+    public String getLabels(LabelTemplate template, Patient patient, String paperRecordIdentifier, int count, Locale locale) {
+
+        Key key = new Key(template, patient.getPatientId(), paperRecordIdentifier, count, locale, patient.getDateChanged());
+
+        long generation;
+        synchronized (this) {
+            String rendered = labels.get(key);
+            if (rendered != null) {
+                return rendered;
+            }
+            generation = this.generation;
+        }
+
+        StringBuilder buffer = new StringBuilder();
+        LabelBatch.renderLabels(buffer, template, patient, paperRecordIdentifier, count);
+        String rendered = buffer.toString();
+
+        synchronized (this) {
+            // if anything was evicted while the label was being rendered, it may be stale
+            if (this.generation == generation) {
+                labels.put(key, rendered);
+            }
+        }
+
+        return rendered;
+    }
+
+    /**
+     * Evicts all the labels cached for the given patient
+     *
+     * @param patientId
+     */
+    public synchronized void evictPatient(Integer patientId) {
+        generation++;
+        for (Iterator<Key> i = labels.keySet().iterator(); i.hasNext(); ) {
+            if (i.next().patientId.equals(patientId)) {
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        labels.clear();
+    }
+
+    public synchronized int size() {
+        return labels.size();
+    }
+
+    private static class Key {
+
+        // templates are compared by identity, since each one is a separately configured bean
+        private final LabelTemplate template;
+
+        private final Integer patientId;
+
+        private final String paperRecordIdentifier;
+
+        private final int count;
+
+        private final Locale locale;
+
+        private final Date dateChanged;
+
+        private Key(LabelTemplate template, Integer patientId, String paperRecordIdentifier, int count, Locale locale, Date dateChanged) {
+            this.template = template;
+            this.patientId = patientId;
+            this.paperRecordIdentifier = paperRecordIdentifier;
+            this.count = count;
+            this.locale = locale;
+            // copy the date, since Hibernate may hand us a mutable Timestamp
+            this.dateChanged = dateChanged != null ? new Date(dateChanged.getTime()) : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return template == other.template
+                    && patientId.equals(other.patientId)
+                    && count == other.count
+                    && ObjectUtils.equals(paperRecordIdentifier, other.paperRecordIdentifier)
+                    && ObjectUtils.equals(locale, other.locale)
+                    && ObjectUtils.equals(dateChanged, other.dateChanged);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(template);
+            result = 31 * result + patientId.hashCode();
+            result = 31 * result + ObjectUtils.hashCode(paperRecordIdentifier);
+            result = 31 * result + count;
+            result = 31 * result + ObjectUtils.hashCode(locale);
+            result = 31 * result + ObjectUtils.hashCode(dateChanged);
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,36 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.openmrs.module.paperrecord.CacheInvalidatingAdvice;
+
+/**
+ * Advice around the AdministrationService and LocationService that clears the {@link RenderedLabelCache} whenever a
+ * global property or a location is saved, retired or purged.
+ * <p/>
+ * Labels don't only depend on the patient: they're also rendered using configuration such as the address template,
+ * the identifier types and the location names, none of which are part of the cache key. Such changes are rare, so
+ * we simply throw away every cached label rather than working out which ones they affect. (Message text, on the
+ * other hand, only changes when the module's context is refreshed, which replaces the cache itself.)
+ */
+public class RenderedLabelCacheInvalidator extends CacheInvalidatingAdvice {
+
+    public RenderedLabelCacheInvalidator() {
+        super("save", "set", "update", "retire", "unretire", "purge");
+    }
+
+    @Override
+    protected Runnable createEviction(Object[] args) {
+
+        final RenderedLabelCache cache = getComponent("paperRecordRenderedLabelCache", RenderedLabelCache.class);
+        if (cache == null) {
+            return null;
+        }
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                cache.clear();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,37 @@
+package org.openmrs.module.paperrecord.queue;
+
+/**
+ * The version of the archives room queues at a medical record location, bumped in the same transaction as every write
+ * to a request or merge request at that location. Kept in the database so that every OpenMRS node sharing it agrees
+ * on whether the queues have changed.
+ */
+public class PaperRecordQueueVersion {
+
+    private Integer recordLocationId;
+
+    private Long version = 0L;
+
+    public PaperRecordQueueVersion() {
+    }
+
+    public PaperRecordQueueVersion(Integer recordLocationId) {
+        this.recordLocationId = recordLocationId;
+    }
+
+    public Integer getRecordLocationId() {
+        return recordLocationId;
+    }
+
+    public void setRecordLocationId(Integer recordLocationId) {
+        this.recordLocationId = recordLocationId;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+}
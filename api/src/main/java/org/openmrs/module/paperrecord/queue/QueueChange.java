@@ -0,0 +1,55 @@
+package org.openmrs.module.paperrecord.queue;
+
+/**
+ * A single entry in the {@link QueueChangeFeed}: the request or merge request with the given id, at the given medical
+ * record location, was created or changed. The change itself isn't recorded; clients fetch the current state.
+ */
+public class QueueChange {
+
+    public enum Type { REQUEST, MERGE_REQUEST }
+
+    private long version;
+
+    private Type type;
+
+    private boolean created;
+
+    private Integer id;
+
+    private Integer recordLocationId;
+
+    public QueueChange(long version, Type type, boolean created, Integer id, Integer recordLocationId) {
+        this.version = version;
+        this.type = type;
+        this.created = created;
+        this.id = id;
+        this.recordLocationId = recordLocationId;
+    }
+
+    /**
+     * @return the version of the queues at the record location that this change produced
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return true if the request or merge request was created by this change
+     */
+    public boolean isCreated() {
+        return created;
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public Integer getRecordLocationId() {
+        return recordLocationId;
+    }
+
+}
@@ -0,0 +1,239 @@
+package org.openmrs.module.paperrecord.queue;
+
+import org.openmrs.Location;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.module.paperrecord.PaperRecord;
+import org.openmrs.module.paperrecord.PaperRecordMergeRequest;
+import org.openmrs.module.paperrecord.PaperRecordRequest;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory feed of changes to the archives room queues, so that clients can fetch just what has changed since
+ * they last looked instead of reloading every queue.
+ * <p/>
+ * Clients hold the version of their medical record location's queues as their token. The version is kept in the
+ * database (see {@link PaperRecordQueueVersion}) and bumped in the same transaction as every write to a request or
+ * merge request, so whether anything has changed at a location is known for certain, even when several OpenMRS nodes
+ * share the database. Each change published here carries the version its transaction gave it; only the most recent
+ * changes are retained, and if those don't account for every version since a client's token (because the missing
+ * changes were made on another node, before a server restart, or have been discarded), the client gets null back and
+ * must reload everything.
+ * <p/>
+ * Changes are only published once the transaction that made them commits, so a client never sees a change that was
+ * rolled back, and always reads the committed state when it fetches the changed rows.
+ * <p/>
+ * Each client waiting for changes holds a servlet thread, so at most maxWaiters threads are allowed to wait at once;
+ * beyond that, clients are answered straight away and should poll instead. Waiting clients are only woken by changes
+ * made on this server.
+ */
+public class QueueChangeFeed {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    public static final int DEFAULT_MAX_WAITERS = 50;
+
+    private final int capacity;
+
+    private int maxWaiters = DEFAULT_MAX_WAITERS;
+
+    private int waiters;
+
+    private final LinkedList<QueueChange> changes = new LinkedList<QueueChange>();
+
+    // the version of the most recent change published at each medical record location
+    private final Map<Integer, Long> versions = new HashMap<Integer, Long>();
+
+    public QueueChangeFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public QueueChangeFeed(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    public synchronized void setMaxWaiters(int maxWaiters) {
+        if (maxWaiters < 0) {
+            throw new IllegalArgumentException("Max waiters must not be negative");
+        }
+        this.maxWaiters = maxWaiters;
+    }
+
+    /**
+     * @param request
+     * @param version the version the change gave the queues at the request's record location
+     */
+    public void requestCreated(PaperRecordRequest request, Long version) {
+        publishAfterCommit(QueueChange.Type.REQUEST, true, request, getRecordLocation(request.getPaperRecord()), version);
+    }
+
+    public void requestChanged(PaperRecordRequest request, Long version) {
+        publishAfterCommit(QueueChange.Type.REQUEST, false, request, getRecordLocation(request.getPaperRecord()), version);
+    }
+
+    /**
+     * Publishes changes to requests that were updated in bulk, without being loaded
+     *
+     * @param recordLocationIdsByRequestId the ids of the changed requests, each mapped to the id of the record
+     *                                     location of its paper record
+     * @param versionsByRecordLocationId the version the change gave the queues at each of those record locations
+     */
+    public void requestsChanged(final Map<Integer, Integer> recordLocationIdsByRequestId, final Map<Integer, Long> versionsByRecordLocationId) {
+        if (recordLocationIdsByRequestId.isEmpty()) {
+            return;
+        }
+        runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<Integer, Integer> entry : recordLocationIdsByRequestId.entrySet()) {
+                    publish(QueueChange.Type.REQUEST, false, entry.getKey(), entry.getValue(), versionsByRecordLocationId.get(entry.getValue()));
+                }
+            }
+        });
+    }
+
+    public void mergeRequestCreated(PaperRecordMergeRequest mergeRequest, Long version) {
+        publishAfterCommit(QueueChange.Type.MERGE_REQUEST, true, mergeRequest, getRecordLocation(mergeRequest.getPreferredPaperRecord()), version);
+    }
+
+    public void mergeRequestChanged(PaperRecordMergeRequest mergeRequest, Long version) {
+        publishAfterCommit(QueueChange.Type.MERGE_REQUEST, false, mergeRequest, getRecordLocation(mergeRequest.getPreferredPaperRecord()), version);
+    }
+
+    /**
+     * @param recordLocation
+     * @return the version of the most recent change published by this server at the given medical record location,
+     *         or 0 if there has been none; the queues may since have been changed on another node
+     */
+    public synchronized long getVersion(Location recordLocation) {
+        Long version = versions.get(recordLocation.getId());
+        return version != null ? version : 0;
+    }
+
+    /**
+     * @param sinceVersion the client's token
+     * @param recordLocation
+     * @param currentVersion the current version of the queues at the given medical record location, from the database
+     * @return the changes at the given medical record location with a version greater than sinceVersion, up to
+     *         currentVersion, or null if some of those changes aren't retained by this feed
+     */
+    public synchronized List<QueueChange> getChangesSince(long sinceVersion, Location recordLocation, long currentVersion) {
+
+        List<QueueChange> result = new ArrayList<QueueChange>();
+
+        // nothing has changed at this location, on any node, so no need to look through the changes
+        if (sinceVersion == currentVersion) {
+            return result;
+        }
+
+        // every version is given to at least one change, so there can't be enough changes retained to cover the gap
+        if (sinceVersion > currentVersion || currentVersion - sinceVersion > capacity) {
+            return null;
+        }
+
+        Set<Long> versionsFound = new HashSet<Long>();
+        for (QueueChange change : changes) {
+            if (change.getVersion() > sinceVersion && change.getVersion() <= currentVersion
+                    && recordLocation.getId().equals(change.getRecordLocationId())) {
+                result.add(change);
+                versionsFound.add(change.getVersion());
+            }
+        }
+
+        return versionsFound.size() == currentVersion - sinceVersion ? result : null;
+    }
+
+    /**
+     * Waits until this server publishes a change at the given medical record location with a version greater than
+     * sinceVersion, or until the timeout expires
+     *
+     * @param sinceVersion
+     * @param recordLocation
+     * @param timeoutMillis
+     * @return false, without waiting, if maxWaiters threads are already waiting, otherwise true
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitChangesSince(long sinceVersion, Location recordLocation, long timeoutMillis) throws InterruptedException {
+
+        if (waiters >= maxWaiters) {
+            return false;
+        }
+
+        waiters++;
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (getVersion(recordLocation) <= sinceVersion && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        finally {
+            waiters--;
+        }
+        return true;
+    }
+
+    synchronized void publish(QueueChange.Type type, boolean created, Integer id, Integer recordLocationId, Long version) {
+
+        // without a record location, the change can't be in any queue
+        if (recordLocationId == null || version == null) {
+            return;
+        }
+
+        changes.addLast(new QueueChange(version, type, created, id, recordLocationId));
+        if (changes.size() > capacity) {
+            changes.removeFirst();
+        }
+
+        // changes committed at about the same time may be published out of order
+        Long latest = versions.get(recordLocationId);
+        if (latest == null || version > latest) {
+            versions.put(recordLocationId, version);
+        }
+        notifyAll();
+    }
+
+    private void publishAfterCommit(final QueueChange.Type type, final boolean created, final OpenmrsObject object,
+                                    Location recordLocation, final Long version) {
+
+        final Integer recordLocationId = recordLocation != null ? recordLocation.getId() : null;
+
+        runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                // read the id now, since a new object may not have had one when the change was made
+                publish(type, created, object.getId(), recordLocationId, version);
+            }
+        });
+    }
+
+    private void runAfterCommit(final Runnable publication) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    publication.run();
+                }
+            });
+        } else {
+            publication.run();
+        }
+    }
+
+    private Location getRecordLocation(PaperRecord paperRecord) {
+        return paperRecord != null ? paperRecord.getRecordLocation() : null;
+    }
+
+}
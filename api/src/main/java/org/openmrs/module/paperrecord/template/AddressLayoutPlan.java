@@ -0,0 +1,130 @@
+package org.openmrs.module.paperrecord.template;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.PersonAddress;
+import org.openmrs.api.APIException;
+import org.openmrs.layout.address.AddressTemplate;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lines of an address layout template compiled down to the getters to call on a {@link PersonAddress}, so that
+ * formatting an address for a label is a walk over a flat array rather than a walk over the template's token maps,
+ * with a string comparison and a reflective method lookup for every token.
+ * <p/>
+ * A plan remembers the template it was compiled from; {@link org.openmrs.layout.address.AddressSupport} replaces its
+ * template whenever the address template global property changes, so comparing against the current template tells
+ * whether the plan needs to be recompiled.
+ */
+public class AddressLayoutPlan {
+
+    private static final Log log = LogFactory.getLog(AddressLayoutPlan.class);
+
+    private final AddressTemplate addressTemplate;
+
+    // the getters for the address properties on each line, in order
+    private final Method[][] lines;
+
+    private AddressLayoutPlan(AddressTemplate addressTemplate, Method[][] lines) {
+        this.addressTemplate = addressTemplate;
+        this.lines = lines;
+    }
+
+    /**
+     * @param addressTemplate
+     * @return the plan for the given address template, or null if the template has no lines
+     */
+    public static AddressLayoutPlan compile(AddressTemplate addressTemplate) {
+
+        if (addressTemplate == null || addressTemplate.getLines() == null) {
+            return null;
+        }
+
+        String layoutToken = addressTemplate.getLayoutToken();
+
+        List<Method[]> lines = new ArrayList<Method[]>();
+        for (List<Map<String, String>> line : addressTemplate.getLines()) {
+            List<Method> getters = new ArrayList<Method>();
+            for (Map<String, String> token : line) {
+                // only tokens are address properties; anything else is just text in the layout
+                if (layoutToken != null && layoutToken.equals(token.get("isToken"))) {
+                    Method getter = getGetter(token.get("codeName"));
+                    if (getter != null) {
+                        getters.add(getter);
+                    }
+                }
+            }
+            lines.add(getters.toArray(new Method[getters.size()]));
+        }
+
+        return new AddressLayoutPlan(addressTemplate, lines.toArray(new Method[lines.size()][]));
+    }
+
+    /**
+     * @param addressTemplate
+     * @return true if this plan was compiled from the given address template
+     */
+    public boolean isCompiledFrom(AddressTemplate addressTemplate) {
+        return this.addressTemplate == addressTemplate;
+    }
+
+    /**
+     * Formats the address one line per line of the template, separating the properties on a line with commas and
+     * leaving out blank properties and lines
+     *
+     * @param address
+     * @return the non-blank lines of the address
+     */
+    public List<String> formatLines(PersonAddress address) {
+
+        List<String> result = new ArrayList<String>(lines.length);
+        StringBuilder output = new StringBuilder();
+
+        for (Method[] line : lines) {
+            output.setLength(0);
+            for (Method getter : line) {
+                String property = getProperty(address, getter);
+                if (!StringUtils.isBlank(property)) {
+                    if (output.length() > 0) {
+                        output.append(", ");
+                    }
+                    output.append(property);
+                }
+            }
+            if (!StringUtils.isBlank(output.toString())) {
+                result.add(output.toString());
+            }
+        }
+
+        return result;
+    }
+
+    private static Method getGetter(String codeName) {
+        if (StringUtils.isBlank(codeName)) {
+            return null;
+        }
+        try {
+            return PersonAddress.class.getMethod("get" + StringUtils.capitalize(codeName));
+        }
+        catch (NoSuchMethodException e) {
+            log.error("Address template refers to unknown address property " + codeName);
+            return null;
+        }
+    }
+
+    private String getProperty(PersonAddress address, Method getter) {
+        try {
+            Object property = getter.invoke(address);
+            return property != null ? property.toString() : null;
+        }
+        catch (Exception e) {
+            throw new APIException("Unable to get address property " + getter.getName(), e);
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.openmrs.module.paperrecord.template;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fragment of ZPL compiled once from a pattern in which {0}, {1}, etc mark the fields that change from label to
+ * label, e.g. "^FO080,120^AUN^FD{0}^FS".
+ * <p/>
+ * The static text between the fields is split out when the template is compiled, so rendering a label just appends
+ * the static segments and the field values to a buffer, instead of concatenating the ZPL commands afresh for every
+ * label. Templates are immutable and can be shared between threads, so label templates keep them in static fields.
+ * <p/>
+ * Unlike {@link java.text.MessageFormat}, there is no quoting and no formatting of the values, since ZPL makes heavy
+ * use of characters such as commas that MessageFormat would treat specially.
+ */
+public class CompiledZplTemplate {
+
+    // a rough guess at the length of a field, used to size the buffer a label is rendered into
+    private static final int ESTIMATED_FIELD_LENGTH = 32;
+
+    // segments[i] is the static text before the field fields[i]; the last segment is the text after the last field
+    private final String[] segments;
+
+    private final int[] fields;
+
+    private final int staticLength;
+
+    private CompiledZplTemplate(String[] segments, int[] fields) {
+        this.segments = segments;
+        this.fields = fields;
+
+        int length = 0;
+        for (String segment : segments) {
+            length += segment.length();
+        }
+        this.staticLength = length;
+    }
+
+    /**
+     * @param pattern ZPL with {0}, {1}, etc marking the fields; a brace not enclosing a field number is left as is
+     * @return the compiled template
+     */
+    public static CompiledZplTemplate compile(String pattern) {
+
+        List<String> segments = new ArrayList<String>();
+        List<Integer> fields = new ArrayList<Integer>();
+
+        int segmentStart = 0;
+        int i = 0;
+        while (i < pattern.length()) {
+            int end = findFieldEnd(pattern, i);
+            if (end > 0) {
+                segments.add(pattern.substring(segmentStart, i));
+                fields.add(Integer.valueOf(pattern.substring(i + 1, end)));
+                segmentStart = end + 1;
+                i = end + 1;
+            } else {
+                i++;
+            }
+        }
+        segments.add(pattern.substring(segmentStart));
+
+        int[] fieldArray = new int[fields.size()];
+        for (int j = 0; j < fieldArray.length; j++) {
+            fieldArray[j] = fields.get(j);
+        }
+
+        return new CompiledZplTemplate(segments.toArray(new String[segments.size()]), fieldArray);
+    }
+
+    /**
+     * Estimates the length of a label made up of the given templates, so that it can be rendered into a buffer that
+     * rarely needs to grow
+     *
+     * @param templates
+     * @return the estimated length
+     */
+    public static int estimateLength(CompiledZplTemplate... templates) {
+        int length = 0;
+        for (CompiledZplTemplate template : templates) {
+            length += template.staticLength + template.fields.length * ESTIMATED_FIELD_LENGTH;
+        }
+        return length;
+    }
+
+    /**
+     * Appends the template to the buffer, substituting the given values for the fields; a null value is rendered as
+     * an empty string
+     *
+     * @param buffer
+     * @param values
+     */
+    public void appendTo(StringBuilder buffer, Object... values) {
+        for (int i = 0; i < fields.length; i++) {
+            buffer.append(segments[i]);
+            Object value = values[fields[i]];
+            if (value != null) {
+                buffer.append(value);
+            }
+        }
+        buffer.append(segments[fields.length]);
+    }
+
+    /**
+     * @return the template rendered with the given values
+     */
+    public String render(Object... values) {
+        StringBuilder buffer = new StringBuilder(estimateLength(this));
+        appendTo(buffer, values);
+        return buffer.toString();
+    }
+
+    // if there is a field such as {12} starting at the given index, returns the index of its closing brace
+    private static int findFieldEnd(String pattern, int start) {
+        if (pattern.charAt(start) != '{') {
+            return -1;
+        }
+        int i = start + 1;
+        while (i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+            i++;
+        }
+        return i > start + 1 && i < pattern.length() && pattern.charAt(i) == '}' ? i : -1;
+    }
+
+}
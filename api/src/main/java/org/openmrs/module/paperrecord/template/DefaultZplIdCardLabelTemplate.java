@@ -9,12 +9,43 @@ import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.paperrecord.PaperRecordProperties;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
+import static org.openmrs.module.paperrecord.template.CompiledZplTemplate.compile;
+
+public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate, StreamingLabelTemplate {
 
     private final Log log = LogFactory.getLog(getClass());
 
+    // the ZPL is compiled once, so that generating a label only has to fill in the patient's details
+
+    private static final CompiledZplTemplate HEADER = compile("^XA"
+            + "^CI28"       // specify Unicode encoding
+            + "^PW1300"     // set print width
+            + "^MTT");      // set thermal transfer type
+
+    private static final CompiledZplTemplate FOOTER = compile("^XZ");
+
+    // print more than one copy of the label without sending it more than once
+    private static final CompiledZplTemplate PRINT_QUANTITY = compile("^PQ{0}");
+
+    private static final CompiledZplTemplate NAME = compile("^FO100,40^AUN^FD{0}^FS");
+
+    private static final CompiledZplTemplate PRIMARY_IDENTIFIER = compile("^FO480,40^FB520,1,0,R,0^AUN^FD{0}^FS");
+
+    private static final CompiledZplTemplate PAPER_RECORD_IDENTIFIER = compile("^FO{0},{1}^AUN^FD{2} {3}^FS");
+
+    private static final CompiledZplTemplate EXTERNAL_IDENTIFIER = compile("^FO{0},{1}^AUN^FD{2}^FS");
+
+    private static final CompiledZplTemplate IDENTIFIER_LOCATION = compile("^FO{0},{1}^ATN^FD{2} {3}^FS");
+
+    private static final CompiledZplTemplate TEAR_LINE = compile("^FO1025,10^GB0,590,10^FS");
+
+    private static final int LABEL_LENGTH = CompiledZplTemplate.estimateLength(HEADER, NAME, PRIMARY_IDENTIFIER,
+            PAPER_RECORD_IDENTIFIER, IDENTIFIER_LOCATION, EXTERNAL_IDENTIFIER, IDENTIFIER_LOCATION, TEAR_LINE, FOOTER);
+
     private EmrApiProperties emrApiProperties;
 
     private PaperRecordProperties paperRecordProperties;
@@ -35,6 +66,13 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
 
     @Override
     public String generateLabel(Patient patient, String paperRecordIdentifier) {
+        StringBuilder data = new StringBuilder(LABEL_LENGTH);
+        appendLabels(data, patient, paperRecordIdentifier, 1);
+        return data.toString();
+    }
+
+    @Override
+    public void appendLabels(StringBuilder data, Patient patient, String paperRecordIdentifier, int count) {
 
         if (patient.getPersonName() == null) {
             throw new IllegalArgumentException("Patient needs to have at least one name");
@@ -48,11 +86,8 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
 
         // TODO: potentially pull this formatting code into a configurable template?
         // build the command to send to the printer -- written in ZPL
-        StringBuilder data = new StringBuilder();
-        data.append("^XA");
-        data.append("^CI28");   // specify Unicode encoding
-        data.append("^PW1300");  // set print width
-        data.append("^MTT");   // set thermal transfer type
+        data.ensureCapacity(data.length() + LABEL_LENGTH);
+        HEADER.appendTo(data);
 
         String patientName = null;
         if(patient.getPersonName() != null ){
@@ -64,11 +99,11 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
             if (patientName.length() > PaperRecordLabelTemplate.LABEL_PRINTER_LINE_MAX_SIZE){
                 patientName = StringUtils.substring(patientName,  0, PaperRecordLabelTemplate.LABEL_PRINTER_LINE_MAX_SIZE -1);
             }
-            data.append("^FO100,40^AUN^FD" + patientName + "^FS");
+            NAME.appendTo(data, patientName);
         }
 
         /* Primary identifier */
-        data.append("^FO480,40^FB520,1,0,R,0^AUN^FD" + primaryIdentifier.getIdentifier() + "^FS");
+        PRIMARY_IDENTIFIER.appendTo(data, primaryIdentifier.getIdentifier());
 
         List<PatientIdentifier> paperRecordIdentifiers = patient.getPatientIdentifiers(paperRecordProperties.getPaperRecordIdentifierType());
         List<PatientIdentifier> externalIdentifiers = patient.getPatientIdentifiers(paperRecordProperties.getExternalDossierIdentifierType());
@@ -77,16 +112,22 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
         int verticalPosition = 110;
         int horizontalPosition = 100;
         if (paperRecordIdentifiers != null && paperRecordIdentifiers.size() > 0) {
+
+            // the same for every identifier, so only look it up once
+            String recordNumberLabel = null;
+
             for (PatientIdentifier identifier : paperRecordIdentifiers) {
 
-                data.append("^FO" + horizontalPosition + "," + verticalPosition + "^AUN^FD"
-                        + identifier.getIdentifier().substring(0, Math.max(0, identifier.getIdentifier().length() - 6)) + " "
-                        + identifier.getIdentifier().substring(Math.max(0, identifier.getIdentifier().length() - 6))
-                        + "^FS");
+                PAPER_RECORD_IDENTIFIER.appendTo(data, horizontalPosition, verticalPosition,
+                        identifier.getIdentifier().substring(0, Math.max(0, identifier.getIdentifier().length() - 6)),
+                        identifier.getIdentifier().substring(Math.max(0, identifier.getIdentifier().length() - 6)));
 
                 if (identifier.getLocation() != null) {
-                    data.append("^FO" + horizontalPosition + "," + (verticalPosition + 50) + "^ATN^FD" + identifier.getLocation().getName() + " "
-                            + messageSourceService.getMessage("emr.archivesRoom.recordNumber.label") + "^FS");
+                    if (recordNumberLabel == null) {
+                        recordNumberLabel = messageSourceService.getMessage("emr.archivesRoom.recordNumber.label");
+                    }
+                    IDENTIFIER_LOCATION.appendTo(data, horizontalPosition, verticalPosition + 50,
+                            identifier.getLocation().getName(), recordNumberLabel);
                 }
                 verticalPosition = verticalPosition + 100;
                 count++;
@@ -104,15 +145,25 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
             }
         }
         if (externalIdentifiers != null){
+
+            // look up the name of each identifier type just once
+            Map<String, String> identifierTypeNames = new HashMap<String, String>();
+
             for (PatientIdentifier externalIdentifier: externalIdentifiers) {
                 if (count > 6) {
                     break;
                 }
                 count++;
-                data.append("^FO" + horizontalPosition + "," + verticalPosition + "^AUN^FD" + externalIdentifier.getIdentifier() + "^FS");
+                EXTERNAL_IDENTIFIER.appendTo(data, horizontalPosition, verticalPosition, externalIdentifier.getIdentifier());
                 if (externalIdentifier.getLocation() != null) {
-                    data.append("^FO" + horizontalPosition + "," + (verticalPosition + 50) + "^ATN^FD" + externalIdentifier.getLocation().getName() + " "
-                            + messageSourceService.getMessage("ui.i18n.PatientIdentifierType.name." + externalIdentifier.getIdentifierType().getUuid()) + "^FS");
+                    String identifierTypeUuid = externalIdentifier.getIdentifierType().getUuid();
+                    String identifierTypeName = identifierTypeNames.get(identifierTypeUuid);
+                    if (identifierTypeName == null) {
+                        identifierTypeName = messageSourceService.getMessage("ui.i18n.PatientIdentifierType.name." + identifierTypeUuid);
+                        identifierTypeNames.put(identifierTypeUuid, identifierTypeName);
+                    }
+                    IDENTIFIER_LOCATION.appendTo(data, horizontalPosition, verticalPosition + 50,
+                            externalIdentifier.getLocation().getName(), identifierTypeName);
                 }
                 verticalPosition = verticalPosition + 100;
                 count++;
@@ -127,12 +178,14 @@ public class DefaultZplIdCardLabelTemplate implements IdCardLabelTemplate {
 
 
         /* Draw the "tear line" */
-        data.append("^FO1025,10^GB0,590,10^FS");
+        TEAR_LINE.appendTo(data);
 
-        /* Print command */
-        data.append("^XZ");
+        if (count > 1) {
+            PRINT_QUANTITY.appendTo(data, count);
+        }
 
-        return data.toString();
+        /* Print command */
+        FOOTER.appendTo(data);
     }
 
     @Override
@@ -3,23 +3,29 @@ package org.openmrs.module.paperrecord.template;
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.PatientIdentifier;
 
+import static org.openmrs.module.paperrecord.template.CompiledZplTemplate.compile;
+
 public class DefaultZplPaperFormLabelTemplate extends DefaultZplPaperRecordLabelTemplate implements PaperFormLabelTemplate {
 
     // the paper form label template is identical to the paper record label template except that the paper record identifier
     // is smaller on the form label than the record label
 
+    private static final CompiledZplTemplate PAPER_RECORD_IDENTIFIER = compile("^FO680,40^FB520,1,0,R,0^AUN^FD{0} {1}^FS");
+
+    private static final CompiledZplTemplate BAR_CODE = compile("^FO780,100^ATN^BY4^BCN,150,N^FD{0}^FS");
+
     @Override
     protected void generateBarCodeAndIdentifier(StringBuilder data, String paperRecordIdentifier, PatientIdentifier primaryIdentifier) {
 
          /* Print the patient's paper record identifier, if it exists */
         if (StringUtils.isNotBlank(paperRecordIdentifier)) {
-            data.append("^FO680,40^FB520,1,0,R,0^AUN^FD"
-                    + paperRecordIdentifier.substring(0, Math.max(0, paperRecordIdentifier.length() - 6)) + " "
-                    + paperRecordIdentifier.substring(Math.max(0, paperRecordIdentifier.length() - 6)) + "^FS");
+            PAPER_RECORD_IDENTIFIER.appendTo(data,
+                    paperRecordIdentifier.substring(0, Math.max(0, paperRecordIdentifier.length() - 6)),
+                    paperRecordIdentifier.substring(Math.max(0, paperRecordIdentifier.length() - 6)));
         }
 
         /* Print the bar code, based on the primary identifier */
-        data.append("^FO780,100^ATN^BY4^BCN,150,N^FD" + primaryIdentifier.getIdentifier() + "^FS");    // print barcode & identifier
+        BAR_CODE.appendTo(data, primaryIdentifier.getIdentifier());    // print barcode & identifier
     }
 
 
@@ -1,30 +1,56 @@
 package org.openmrs.module.paperrecord.template;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.api.context.Context;
 import org.openmrs.layout.address.AddressSupport;
+import org.openmrs.layout.address.AddressTemplate;
 import org.openmrs.messagesource.MessageSourceService;
 import org.openmrs.module.emrapi.EmrApiProperties;
-import org.openmrs.module.emrapi.utils.GeneralUtils;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.List;
-import java.util.ListIterator;
-import java.util.Map;
+import static org.openmrs.module.paperrecord.template.CompiledZplTemplate.compile;
 
-public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTemplate {
+public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTemplate, StreamingLabelTemplate {
 
     private final Log log = LogFactory.getLog(getClass());
 
+    // the ZPL is compiled once, so that generating a label only has to fill in the patient's details
+
+    private static final CompiledZplTemplate HEADER = compile("^XA"
+            + "^CI28"       // specify Unicode encoding
+            + "^PW1300"     // set print width
+            + "^MTT");      // set thermal transfer type
+
+    private static final CompiledZplTemplate FOOTER = compile("^XZ");
+
+    // print more than one copy of the label without sending it more than once
+    private static final CompiledZplTemplate PRINT_QUANTITY = compile("^PQ{0}");
+
+    private static final CompiledZplTemplate NAME = compile("^FO080,40^A{0}N^FD{1}^FS");
+
+    private static final CompiledZplTemplate PRIMARY_IDENTIFIER = compile("^FO080,120^AUN^FD{0}^FS");
+
+    private static final CompiledZplTemplate BIRTHDATE_AND_GENDER = compile("^FO080,190^ATN^FD{0}{1}{2}^FS");
+
+    private static final CompiledZplTemplate ADDRESS_LINE = compile("^FO080,{0}^ATN^FD{1}^FS");
+
+    private static final CompiledZplTemplate PAPER_RECORD_IDENTIFIER = compile("^FO680,40^FB520,1,0,R,0^AUN,140,110^FD{0} {1} {2}^FS");
+
+    private static final CompiledZplTemplate BAR_CODE = compile("^FO780,160^ATN^BY4^BCN,150,N^FD{0}^FS");
+
+    private static final int LABEL_LENGTH = CompiledZplTemplate.estimateLength(HEADER, NAME, PRIMARY_IDENTIFIER,
+            BIRTHDATE_AND_GENDER, ADDRESS_LINE, ADDRESS_LINE, ADDRESS_LINE, PAPER_RECORD_IDENTIFIER, BAR_CODE, FOOTER);
+
     protected MessageSourceService messageSourceService;
 
     protected EmrApiProperties emrApiProperties;
 
+    private volatile AddressLayoutPlan addressLayoutPlan;
+
     public void setMessageSourceService(MessageSourceService messageSourceService) {
         this.messageSourceService = messageSourceService;
     }
@@ -35,6 +61,13 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
 
     @Override
     public String generateLabel(Patient patient, String paperRecordIdentifier) {
+        StringBuilder data = new StringBuilder(LABEL_LENGTH);
+        appendLabels(data, patient, paperRecordIdentifier, 1);
+        return data.toString();
+    }
+
+    @Override
+    public void appendLabels(StringBuilder data, Patient patient, String paperRecordIdentifier, int count) {
 
         if (patient.getPersonName() == null) {
             throw new IllegalArgumentException("Patient needs to have at least one name");
@@ -46,15 +79,13 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
             throw new IllegalArgumentException("No primary identifier for this patient");
         }
 
-        DateFormat df = new SimpleDateFormat("dd/MMM/yyyy", Context.getLocale());
+        // FastDateFormat instances are cached and thread-safe, unlike SimpleDateFormat
+        FastDateFormat df = FastDateFormat.getInstance("dd/MMM/yyyy", Context.getLocale());
 
         // TODO: potentially pull this formatting code into a configurable template?
         // build the command to send to the printer -- written in ZPL
-        StringBuilder data = new StringBuilder();
-        data.append("^XA");
-        data.append("^CI28");   // specify Unicode encoding
-        data.append("^PW1300");  // set print width
-        data.append("^MTT");   // set thermal transfer type
+        data.ensureCapacity(data.length() + LABEL_LENGTH);
+        HEADER.appendTo(data);
 
         /* LEFT COLUMN */
 
@@ -72,60 +103,35 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
             if (patientName.length() > PaperRecordLabelTemplate.CHARTLABEL_LOWER_FONT_PRINTER_LINE_MAX_SIZE){
                 patientName = StringUtils.substring(patientName,  0, PaperRecordLabelTemplate.CHARTLABEL_LOWER_FONT_PRINTER_LINE_MAX_SIZE);
             }
-            data.append("^FO080,40^A" + fontHeight + "N^FD" + patientName + "^FS");
+            NAME.appendTo(data, fontHeight, patientName);
         }
 
         /* Primary identifier */
-        data.append("^FO080,120^AUN^FD" + primaryIdentifier.getIdentifier() + "^FS");
-
+        PRIMARY_IDENTIFIER.appendTo(data, primaryIdentifier.getIdentifier());
 
         /* Birthdate & Gender */
-        data.append("^FO080,190^ATN^FD");
+        String birthdate = null;
+        String birthdateSuffix = null;
         if (patient.getBirthdate() != null) {
-            data.append(df.format(patient.getBirthdate()) + (patient.getBirthdateEstimated() ? " (*)" : "") + ", ");
+            birthdate = df.format(patient.getBirthdate());
+            birthdateSuffix = patient.getBirthdateEstimated() ? " (*), " : ", ";
         }
+        String gender = null;
         if (patient.getGender() != null) {
-            data.append(messageSourceService.getMessage("coreapps.gender." + patient.getGender()));
+            gender = messageSourceService.getMessage("coreapps.gender." + patient.getGender());
         }
-        data.append("^FS");
+        BIRTHDATE_AND_GENDER.appendTo(data, birthdate, birthdateSuffix, gender);
 
         /* Address (using address template) */
         if (patient.getPersonAddress() != null) {
 
-            int verticalPosition = 250;
-
             // print out the address using the layout format
-            // first iterate through all the lines in the format
-            if (AddressSupport.getInstance().getDefaultLayoutTemplate() != null && AddressSupport.getInstance().getDefaultLayoutTemplate().getLines() != null) {
-
-                List<List<Map<String, String>>> lines = AddressSupport.getInstance().getDefaultLayoutTemplate().getLines();
-                ListIterator<List<Map<String, String>>> iter = lines.listIterator();
-
-                while (iter.hasNext()) {
-                    List<Map<String, String>> line = iter.next();
-                    // now iterate through all the tokens in the line and build the string to print
-                    StringBuffer output = new StringBuffer();
-                    for (Map<String, String> token : line) {
-                        // find all the tokens on this line, and then add them to that output line
-                        if (token.get("isToken").equals(AddressSupport.getInstance().getDefaultLayoutTemplate().getLayoutToken())) {
-
-                            String property = GeneralUtils.getPersonAddressProperty(patient.getPersonAddress(), token.get("codeName"));
-
-                            if (!StringUtils.isBlank(property)) {
-                                output.append(property + ", ");
-                            }
-                        }
-                    }
-
-                    if (output.length() > 2) {
-                        // drop the trailing comma and space from the last token on the line
-                        output.replace(output.length() - 2, output.length(), "");
-                    }
-
-                    if (!StringUtils.isBlank(output.toString())) {
-                        data.append("^FO080," + verticalPosition + "^ATN^FD" + output.toString() + "^FS");
-                        verticalPosition = verticalPosition + 50;
-                    }
+            AddressLayoutPlan plan = getAddressLayoutPlan();
+            if (plan != null) {
+                int verticalPosition = 250;
+                for (String line : plan.formatLines(patient.getPersonAddress())) {
+                    ADDRESS_LINE.appendTo(data, verticalPosition, line);
+                    verticalPosition = verticalPosition + 50;
                 }
             } else {
                 log.error("Address template not properly configured");
@@ -135,10 +141,26 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
         /* RIGHT COLUMN */
         generateBarCodeAndIdentifier(data, paperRecordIdentifier, primaryIdentifier);
 
+        if (count > 1) {
+            PRINT_QUANTITY.appendTo(data, count);
+        }
+
         /* Print command */
-        data.append("^XZ");
+        FOOTER.appendTo(data);
+    }
 
-        return data.toString();
+    /**
+     * @return the plan for the current address layout template, compiling it if the template has changed since the
+     *         last label was generated, or null if there is no address layout template
+     */
+    protected AddressLayoutPlan getAddressLayoutPlan() {
+        AddressTemplate addressTemplate = AddressSupport.getInstance().getDefaultLayoutTemplate();
+        AddressLayoutPlan plan = addressLayoutPlan;
+        if (plan == null || !plan.isCompiledFrom(addressTemplate)) {
+            plan = AddressLayoutPlan.compile(addressTemplate);
+            addressLayoutPlan = plan;
+        }
+        return plan;
     }
 
     @Override
@@ -151,14 +173,14 @@ public class DefaultZplPaperRecordLabelTemplate implements PaperRecordLabelTempl
 
         /* Print the patient's paper record identifier, if it exists  (h x w set to 120, 110, not sure if this is accurate) */
         if (StringUtils.isNotBlank(paperRecordIdentifier)) {
-            data.append("^FO680,40^FB520,1,0,R,0^AUN,140,110^FD"
-                    + paperRecordIdentifier.substring(0, Math.max(0, paperRecordIdentifier.length() - 6)) + " "
-                    + paperRecordIdentifier.substring(Math.max(0, paperRecordIdentifier.length() - 6), Math.max(0, paperRecordIdentifier.length() - 3)) + " "
-                    + paperRecordIdentifier.substring(Math.max(0, paperRecordIdentifier.length() - 3)) + "^FS");
+            PAPER_RECORD_IDENTIFIER.appendTo(data,
+                    paperRecordIdentifier.substring(0, Math.max(0, paperRecordIdentifier.length() - 6)),
+                    paperRecordIdentifier.substring(Math.max(0, paperRecordIdentifier.length() - 6), Math.max(0, paperRecordIdentifier.length() - 3)),
+                    paperRecordIdentifier.substring(Math.max(0, paperRecordIdentifier.length() - 3)));
         }
 
         /* Print the bar code, based on the primary identifier */
-        data.append("^FO780,160^ATN^BY4^BCN,150,N^FD" + primaryIdentifier.getIdentifier() + "^FS");    // print barcode & identifier
+        BAR_CODE.appendTo(data, primaryIdentifier.getIdentifier());    // print barcode & identifier
 
     }
 }
@@ -0,0 +1,21 @@
+package org.openmrs.module.paperrecord.template;
+
+import org.openmrs.Patient;
+
+/**
+ * A label template that can render its labels straight into the buffer of a print job, rather than returning each
+ * label as a string to be copied into the job once for every label printed.
+ */
+public interface StreamingLabelTemplate extends LabelTemplate {
+
+    /**
+     * Renders count copies of the label for the given patient onto the end of the buffer
+     *
+     * @param buffer
+     * @param patient
+     * @param paperRecordIdentifier
+     * @param count the number of copies of the label to print
+     */
+    void appendLabels(StringBuilder buffer, Patient patient, String paperRecordIdentifier, int count);
+
+}
@@ -31,6 +31,7 @@ import java.util.Date;
 import java.util.List;
 
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 
 public class CloseStalePullRequestsTaskComponentTest extends BaseModuleContextSensitiveTest {
@@ -163,4 +164,52 @@ public class CloseStalePullRequestsTaskComponentTest extends BaseModuleContextSe
         assertThat(requests.get(0), is(afterExpireDate));
     }
 
+    @Test
+    public void shouldClosePullRequestsInBatches() {
+
+        // some data from standard test dataset
+        Person person = personService.getPerson(3);
+        Location recordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        // from the custom data set
+        PatientIdentifier identifier = patientService.getPatientIdentifier(2001);
+
+        Date now = new Date();
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setPatientIdentifier(identifier);
+        paperRecord.setRecordLocation(recordLocation);
+        paperRecord.updateStatus(PaperRecord.Status.ACTIVE);
+        paperRecordService.savePaperRecord(paperRecord);
+
+        for (int hoursOld : new int[] { 15, 14, 13, 11 }) {
+            PaperRecordRequest request = new PaperRecordRequest();
+            request.setPaperRecord(paperRecord);
+            request.setRequestLocation(requestLocation);
+            request.setAssignee(person);
+            request.updateStatus(PaperRecordRequest.Status.ASSIGNED);
+            paperRecordService.savePaperRecordRequest(request);
+
+            // change the date created (which we can't do when we first persist it since it is set automatically)
+            request.setDateCreated(DateUtils.addHours(now, -hoursOld));
+            paperRecordService.savePaperRecordRequest(request);
+        }
+
+        // sanity check
+        assertThat(paperRecordService.getAssignedPaperRecordRequestsToPull().size(), is(4));
+
+        // now test the scheduler
+        CloseStalePullRequestsTask closeStalePullRequestsTask = new CloseStalePullRequestsTask();
+
+        TaskDefinition taskDefinition = new TaskDefinition();
+        taskDefinition.setProperty(AbstractCloseStaleRequestsTask.EXPIRE_BATCH_SIZE_PROPERTY, "2");
+        closeStalePullRequestsTask.initialize(taskDefinition);
+
+        closeStalePullRequestsTask.execute();
+
+        assertThat(paperRecordService.getAssignedPaperRecordRequestsToPull().size(), is(1));
+        assertNull(taskDefinition.getProperty(AbstractCloseStaleRequestsTask.EXPIRE_WATERMARK_PROPERTY));
+    }
+
 }
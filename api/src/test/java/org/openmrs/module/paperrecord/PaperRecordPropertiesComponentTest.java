@@ -0,0 +1,41 @@
+package org.openmrs.module.paperrecord;
+
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PaperRecordPropertiesComponentTest extends BaseModuleContextSensitiveTest {
+
+    @Autowired
+    @Qualifier("paperRecordProperties")
+    private PaperRecordProperties paperRecordProperties;
+
+    @Autowired
+    @Qualifier("adminService")
+    private AdministrationService administrationService;
+
+    @Test
+    public void getIdentifierPoolSize_shouldReturnConfiguredSize() {
+        administrationService.saveGlobalProperty(new GlobalProperty(PaperRecordConstants.GP_IDENTIFIER_POOL_SIZE, " 20 "));
+        assertThat(paperRecordProperties.getIdentifierPoolSize(), is(20));
+    }
+
+    @Test
+    public void getIdentifierPoolSize_shouldReturnDefaultIfConfiguredSizeIsNotANumber() {
+        administrationService.saveGlobalProperty(new GlobalProperty(PaperRecordConstants.GP_IDENTIFIER_POOL_SIZE, "twenty"));
+        assertThat(paperRecordProperties.getIdentifierPoolSize(), is(PaperRecordConstants.DEFAULT_IDENTIFIER_POOL_SIZE));
+    }
+
+    @Test
+    public void getMaxLabelsPerPrintJob_shouldReturnDefaultIfConfiguredMaximumIsNotANumber() {
+        administrationService.saveGlobalProperty(new GlobalProperty(PaperRecordConstants.GP_MAX_LABELS_PER_PRINT_JOB, "50 labels"));
+        assertThat(paperRecordProperties.getMaxLabelsPerPrintJob(), is(PaperRecordConstants.DEFAULT_MAX_LABELS_PER_PRINT_JOB));
+    }
+
+}
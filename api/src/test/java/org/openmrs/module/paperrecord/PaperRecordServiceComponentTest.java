@@ -20,19 +20,23 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.openmrs.Location;
 import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
 import org.openmrs.Person;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterService;
+import org.openmrs.module.printer.PrinterType;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.Date;
 import java.util.List;
 
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
@@ -68,7 +72,10 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
         executeDataSet("paperRecordTestDataset.xml");
 
         // stub out the printer service
+        Printer labelPrinter = new Printer();
+        labelPrinter.setId(1);
         mockPrinterService = mock(PrinterService.class);
+        when(mockPrinterService.getDefaultPrinter(any(Location.class), eq(PrinterType.LABEL))).thenReturn(labelPrinter);
         paperRecordService.setPrinterService(mockPrinterService);
 
         // stub out the identifier service
@@ -306,6 +313,33 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
         Assert.assertEquals(2, paperRecordService.getOpenPaperRecordRequestsToCreate(medicalRecordLocation).size());
     }
 
+    @Test
+    public void testQueuesToPullShouldExcludeRequestsForRecordsPendingCreation() {
+
+        // from the standard test dataset
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        // the paper record for patient 7 exists in the test dataset, but patient 2 doesn't have one yet
+        PaperRecordRequest requestToPull = paperRecordService.requestPaperRecord(patientService.getPatient(7), medicalRecordLocation, requestLocation).get(0);
+        PaperRecordRequest requestToCreate = paperRecordService.requestPaperRecord(patientService.getPatient(2), medicalRecordLocation, requestLocation).get(0);
+        Assert.assertEquals(PaperRecord.Status.PENDING_CREATION, requestToCreate.getPaperRecord().getStatus());
+
+        // the paper record status is filtered on in the query, so each request should only come back in its own queue
+        assertThat(paperRecordService.getOpenPaperRecordRequestsToPull(medicalRecordLocation), contains(requestToPull));
+        assertThat(paperRecordService.getOpenPaperRecordRequestsToPull(), contains(requestToPull));
+        assertThat(paperRecordService.getOpenPaperRecordRequestsToCreate(medicalRecordLocation), contains(requestToCreate));
+
+        for (PaperRecordRequest request : new PaperRecordRequest[] { requestToPull, requestToCreate }) {
+            request.updateStatus(PaperRecordRequest.Status.ASSIGNED);
+            paperRecordService.savePaperRecordRequest(request);
+        }
+
+        assertThat(paperRecordService.getAssignedPaperRecordRequestsToPull(medicalRecordLocation), contains(requestToPull));
+        assertThat(paperRecordService.getAssignedPaperRecordRequestsToPull(), contains(requestToPull));
+        assertThat(paperRecordService.getAssignedPaperRecordRequestsToCreate(medicalRecordLocation), contains(requestToCreate));
+    }
+
     @Test
     public void testGetPaperRecordRequestById() {
 
@@ -880,4 +914,138 @@ public class PaperRecordServiceComponentTest extends BaseModuleContextSensitiveT
 
     }
 
+    @Test
+    public void testGetOpenPaperRecordQueueRowsToPullShouldIncludeMostRecentSentRequest() {
+
+        Patient patient = patientService.getPatient(7);
+
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        PaperRecordRequest paperRecordRequest1 = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, medicalRecordLocation).get(0);
+        paperRecordService.markPaperRecordRequestAsSent(paperRecordRequest1);
+
+        PaperRecordRequest paperRecordRequest2 = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation).get(0);
+        paperRecordService.markPaperRecordRequestAsSent(paperRecordRequest2);
+
+        // this request is still open, so should be returned as needing to be pulled, along with the last sent request
+        PaperRecordRequest paperRecordRequest3 = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, medicalRecordLocation).get(0);
+
+        List<PaperRecordQueueRow> rows = paperRecordService.getOpenPaperRecordQueueRowsToPull(medicalRecordLocation);
+        assertThat(rows.size(), is(1));
+        assertThat(rows.get(0).getRequestId(), is(paperRecordRequest3.getId()));
+        assertThat(rows.get(0).getLocationLastSent(), is(requestLocation));
+        assertThat(rows.get(0).getDateLastSent().getTime(), is(paperRecordRequest2.getDateStatusChanged().getTime()));
+    }
+
+    @Test
+    public void testGetOpenPaperRecordQueueRowsToPull() {
+
+        Patient patient = patientService.getPatient(7);
+
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        // the paper record for this patient exists in the test dataset, and has been sent before
+        PaperRecordRequest request = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation).get(0);
+
+        List<PaperRecordQueueRow> rows = paperRecordService.getOpenPaperRecordQueueRowsToPull(medicalRecordLocation);
+        assertThat(rows.size(), is(1));
+
+        PaperRecordQueueRow row = rows.get(0);
+        assertThat(row.getRequestId(), is(request.getId()));
+        assertThat(row.getPatientId(), is(7));
+        assertThat(row.getPaperRecordIdentifier(), is("CATBALL"));
+        assertThat(row.getPrimaryIdentifier(), is(patient.getPatientIdentifier(patientService.getPatientIdentifierType(1)).getIdentifier()));
+        assertThat(row.getPatientName().getFullName(), is(patient.getPersonName().getFullName()));
+        assertThat(row.getRequestLocation(), is(requestLocation));
+        assertThat(row.getLocationLastSent(), is(requestLocation));
+        Assert.assertNotNull(row.getDateLastSent());
+
+        // the record hasn't been created, so nothing should be in the create queue
+        assertThat(paperRecordService.getOpenPaperRecordQueueRowsToCreate(medicalRecordLocation).size(), is(0));
+    }
+
+
+    @Test
+    public void testGetOpenPaperRecordQueueRowsToPullPageByPage() {
+
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        // from the custom data set
+        PatientIdentifier identifier = patientService.getPatientIdentifier(2001);
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setPatientIdentifier(identifier);
+        paperRecord.setRecordLocation(medicalRecordLocation);
+        paperRecord.updateStatus(PaperRecord.Status.ACTIVE);
+        paperRecordService.savePaperRecord(paperRecord);
+
+        // give all the requests the same date created, so that only the request id tells them apart
+        Date dateCreated = new Date();
+
+        for (int i = 0; i < 3; i++) {
+            PaperRecordRequest request = new PaperRecordRequest();
+            request.setPaperRecord(paperRecord);
+            request.setRequestLocation(requestLocation);
+            request.updateStatus(PaperRecordRequest.Status.OPEN);
+            paperRecordService.savePaperRecordRequest(request);
+
+            // change the date created (which we can't do when we first persist it since it is set automatically)
+            request.setDateCreated(dateCreated);
+            paperRecordService.savePaperRecordRequest(request);
+        }
+
+        List<PaperRecordQueueRow> allRows = paperRecordService.getOpenPaperRecordQueueRowsToPull(medicalRecordLocation);
+        assertThat(allRows.size(), is(3));
+
+        List<PaperRecordQueueRow> firstPage = paperRecordService.getOpenPaperRecordQueueRowsToPull(medicalRecordLocation, null, null, 2);
+        assertThat(firstPage.size(), is(2));
+        assertThat(firstPage.get(0).getRequestId(), is(allRows.get(0).getRequestId()));
+        assertThat(firstPage.get(1).getRequestId(), is(allRows.get(1).getRequestId()));
+
+        PaperRecordQueueRow lastRow = firstPage.get(1);
+        List<PaperRecordQueueRow> secondPage = paperRecordService.getOpenPaperRecordQueueRowsToPull(medicalRecordLocation,
+                lastRow.getDateCreated(), lastRow.getRequestId(), 2);
+        assertThat(secondPage.size(), is(1));
+        assertThat(secondPage.get(0).getRequestId(), is(allRows.get(2).getRequestId()));
+    }
+
+
+    @Test
+    public void testGetPaperRecordQueueCounts() {
+
+        Location medicalRecordLocation = locationService.getLocation(1);
+        Location requestLocation = locationService.getLocation(2);
+
+        // from the custom data set
+        PatientIdentifier identifier = patientService.getPatientIdentifier(2001);
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setPatientIdentifier(identifier);
+        paperRecord.setRecordLocation(medicalRecordLocation);
+        paperRecord.updateStatus(PaperRecord.Status.ACTIVE);
+        paperRecordService.savePaperRecord(paperRecord);
+
+        PaperRecordQueueCounts before = paperRecordService.getPaperRecordQueueCounts(medicalRecordLocation);
+
+        for (PaperRecordRequest.Status status : new PaperRecordRequest.Status[] { PaperRecordRequest.Status.OPEN,
+                PaperRecordRequest.Status.OPEN, PaperRecordRequest.Status.ASSIGNED, PaperRecordRequest.Status.SENT }) {
+            PaperRecordRequest request = new PaperRecordRequest();
+            request.setPaperRecord(paperRecord);
+            request.setRequestLocation(requestLocation);
+            request.updateStatus(status);
+            paperRecordService.savePaperRecordRequest(request);
+        }
+
+        PaperRecordQueueCounts counts = paperRecordService.getPaperRecordQueueCounts(medicalRecordLocation);
+        assertThat(counts.getOpenToPull(), is(before.getOpenToPull() + 2));
+        assertThat(counts.getAssignedToPull(), is(before.getAssignedToPull() + 1));
+        assertThat(counts.getOpenToCreate(), is(before.getOpenToCreate()));
+        assertThat(counts.getAssignedToCreate(), is(before.getAssignedToCreate()));
+
+        assertThat(paperRecordService.getPaperRecordQueueCounts().get(medicalRecordLocation).getOpenToPull(), is(counts.getOpenToPull()));
+    }
+
 }
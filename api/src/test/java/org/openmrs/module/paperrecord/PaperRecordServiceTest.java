@@ -18,6 +18,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openmrs.Location;
 import org.openmrs.LocationTag;
 import org.openmrs.Patient;
@@ -25,6 +27,7 @@ import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.Person;
 import org.openmrs.User;
+import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.emrapi.EmrApiProperties;
@@ -32,10 +35,19 @@ import org.openmrs.module.idgen.service.IdentifierSourceService;
 import org.openmrs.module.paperrecord.PaperRecordRequest.Status;
 import org.openmrs.module.paperrecord.db.PaperRecordDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordMergeRequestDAO;
+import org.openmrs.module.paperrecord.db.PaperRecordQueueVersionDAO;
 import org.openmrs.module.paperrecord.db.PaperRecordRequestDAO;
+import org.openmrs.module.paperrecord.identifier.PaperRecordIdentifierPool;
+import org.openmrs.module.paperrecord.identifier.PatientIdentifierCache;
+import org.openmrs.module.paperrecord.print.LabelPrintJob;
+import org.openmrs.module.paperrecord.print.LabelPrintResult;
+import org.openmrs.module.paperrecord.print.LabelPrintSpooler;
+import org.openmrs.module.paperrecord.print.PrinterRateLimiter;
+import org.openmrs.module.paperrecord.queue.QueueChangeFeed;
 import org.openmrs.module.paperrecord.template.IdCardLabelTemplate;
 import org.openmrs.module.paperrecord.template.PaperFormLabelTemplate;
 import org.openmrs.module.paperrecord.template.PaperRecordLabelTemplate;
+import org.openmrs.module.printer.Printer;
 import org.openmrs.module.printer.PrinterService;
 import org.openmrs.module.printer.PrinterType;
 import org.powermock.core.classloader.annotations.PrepareForTest;
@@ -43,9 +55,9 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -56,9 +68,12 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -80,10 +95,14 @@ public class PaperRecordServiceTest {
 
     private PaperRecordMergeRequestDAO mockPaperRecordMergeRequestDAO;
 
+    private PaperRecordQueueVersionDAO mockPaperRecordQueueVersionDAO;
+
     private IdentifierSourceService mockIdentifierSourceService;
 
     private PatientService mockPatientService;
 
+    private LocationService mockLocationService;
+
     private PrinterService mockPrinterService;
 
     private EmrApiProperties mockEmrApiProperties;
@@ -102,6 +121,8 @@ public class PaperRecordServiceTest {
 
     private PatientIdentifierType primaryIdentifierType;
 
+    private Printer labelPrinter;
+
     @Before
     public void setup() {
         mockStatic(Context.class);
@@ -112,8 +133,10 @@ public class PaperRecordServiceTest {
         mockPaperRecordDAO = mock(PaperRecordDAO.class);
         mockPaperRecordRequestDAO = mock(PaperRecordRequestDAO.class);
         mockPaperRecordMergeRequestDAO = mock(PaperRecordMergeRequestDAO.class);
+        mockPaperRecordQueueVersionDAO = mock(PaperRecordQueueVersionDAO.class);
         mockIdentifierSourceService = mock(IdentifierSourceService.class);
         mockPatientService = mock(PatientService.class);
+        mockLocationService = mock(LocationService.class);
         mockPrinterService = mock(PrinterService.class);
         mockEmrApiProperties = mock(EmrApiProperties.class);
         mockPaperRecordProperties = mock(PaperRecordProperties.class);
@@ -129,12 +152,18 @@ public class PaperRecordServiceTest {
         primaryIdentifierType.setId(3);
         when(mockEmrApiProperties.getPrimaryIdentifierType()).thenReturn(primaryIdentifierType);
 
+        labelPrinter = new Printer();
+        labelPrinter.setId(1);
+        when(mockPrinterService.getDefaultPrinter(any(Location.class), eq(PrinterType.LABEL))).thenReturn(labelPrinter);
+
         paperRecordService = new PaperRecordServiceStub(paperRecordIdentifierType);
         paperRecordService.setPaperRecordDAO(mockPaperRecordDAO);
         paperRecordService.setPaperRecordRequestDAO(mockPaperRecordRequestDAO);
         paperRecordService.setPaperRecordMergeRequestDAO(mockPaperRecordMergeRequestDAO);
+        paperRecordService.setPaperRecordQueueVersionDAO(mockPaperRecordQueueVersionDAO);
         paperRecordService.setIdentifierSourceService(mockIdentifierSourceService);
         paperRecordService.setPatientService(mockPatientService);
+        paperRecordService.setLocationService(mockLocationService);
         paperRecordService.setPrinterService(mockPrinterService);
         paperRecordService.setEmrApiProperties(mockEmrApiProperties);
         paperRecordService.setPaperRecordProperties(mockPaperRecordProperties);
@@ -150,15 +179,14 @@ public class PaperRecordServiceTest {
     @Test
     public void testPaperRecordExistsWithIdentifierShouldReturnTrueIfPaperMedicalRecordExists() {
         Location medicalRecordLocation = createMedicalRecordLocation();
-        PaperRecord paperRecord = new PaperRecord();
-        when(mockPaperRecordDAO.findPaperRecord("ABCZYX", medicalRecordLocation)).thenReturn(paperRecord);
+        when(mockPaperRecordDAO.paperRecordExists("ABCZYX", medicalRecordLocation)).thenReturn(true);
         assertTrue(paperRecordService.paperRecordExistsWithIdentifier("ABCZYX", medicalRecordLocation));
     }
 
     @Test
     public void testPaperRecordExistsWithIdentifierShouldReturnFalseIfPaperMedicalRecordDoesNotExist() {
         Location medicalRecordLocation = createMedicalRecordLocation();
-        when(mockPaperRecordDAO.findPaperRecord("ABCZYX", medicalRecordLocation)).thenReturn(null);
+        when(mockPaperRecordDAO.paperRecordExists("ABCZYX", medicalRecordLocation)).thenReturn(false);
         assertFalse(paperRecordService.paperRecordExistsWithIdentifier("ABCZYX", medicalRecordLocation));
     }
 
@@ -177,7 +205,8 @@ public class PaperRecordServiceTest {
         PatientIdentifier paperRecordIdentifier = createIdentifier(medicalRecordLocation, "456123");
         patient.addIdentifier(paperRecordIdentifier);
 
-        when(mockPatientService.getPatients(null, "ABC123", Collections.singletonList(primaryIdentifierType), true)).thenReturn(Collections.singletonList(patient));
+        when(mockPaperRecordDAO.findPatientIdsByIdentifier("ABC123", primaryIdentifierType)).thenReturn(Collections.singletonList(2));
+        when(mockPatientService.getPatient(2)).thenReturn(patient);
         PaperRecord paperRecord = new PaperRecord();
         when(mockPaperRecordDAO.findPaperRecords(patient, medicalRecordLocation)).thenReturn(Collections.singletonList(paperRecord));
         assertTrue(paperRecordService.paperRecordExistsForPatientWithPrimaryIdentifier("ABC123", medicalRecordLocation));
@@ -195,11 +224,32 @@ public class PaperRecordServiceTest {
         primaryIdentifier.setIdentifierType(primaryIdentifierType);
         patient.addIdentifier(primaryIdentifier);
 
-        when(mockPatientService.getPatients(null, "ABC123", Collections.singletonList(primaryIdentifierType), true)).thenReturn(Collections.singletonList(patient));
+        when(mockPaperRecordDAO.findPatientIdsByIdentifier("ABC123", primaryIdentifierType)).thenReturn(Collections.singletonList(2));
+        when(mockPatientService.getPatient(2)).thenReturn(patient);
         when(mockPaperRecordDAO.findPaperRecords(patient, medicalRecordLocation)).thenReturn(null);
         assertFalse(paperRecordService.paperRecordExistsForPatientWithPrimaryIdentifier("ABC123", medicalRecordLocation));
     }
 
+    @Test
+    public void testPaperRecordExistsForPatientWithIdentifierShouldOnlyLookUpPrimaryIdentifierOnceIfCached() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        Patient patient = new Patient();
+        patient.setId(2);
+
+        paperRecordService.setPatientIdentifierCache(new PatientIdentifierCache());
+
+        when(mockPaperRecordDAO.findPatientIdsByIdentifier("ABC123", primaryIdentifierType)).thenReturn(Collections.singletonList(2));
+        when(mockPatientService.getPatient(2)).thenReturn(patient);
+        when(mockPaperRecordDAO.findPaperRecords(patient, medicalRecordLocation)).thenReturn(Collections.singletonList(new PaperRecord()));
+
+        assertTrue(paperRecordService.paperRecordExistsForPatientWithPrimaryIdentifier("ABC123", medicalRecordLocation));
+        assertTrue(paperRecordService.paperRecordExistsForPatientWithPrimaryIdentifier("ABC123", medicalRecordLocation));
+
+        verify(mockPaperRecordDAO, times(1)).findPatientIdsByIdentifier("ABC123", primaryIdentifierType);
+    }
+
     @Test
     public void testPaperRecordExistsForPatientWithIdentifierShouldNotFailIfNoPatientWithPrimaryIdentifier() {
 
@@ -350,13 +400,137 @@ public class PaperRecordServiceTest {
         requests.add(createPaperRecordRequest(patient, location, "ABC"));
         requests.add(createPaperRecordRequest(patient, location, "ABC"));
 
-        Map<String, List<String>> response = paperRecordService.assignRequests(requests, assignTo, null);
+        when(mockPaperRecordRequestDAO.lockPaperRecordRequest(any(PaperRecordRequest.class))).thenReturn(Status.OPEN);
 
-        assertThat(response.get("success").size(), is(3));
+        PaperRecordAssignmentResult result = paperRecordService.assignRequests(requests, assignTo, null);
 
+        assertThat(result.getAssignedIdentifiers().size(), is(3));
+        assertFalse(result.getLabelPrintResult().isQueued());
+
+        verify(mockPaperRecordRequestDAO, times(3)).lockPaperRecordRequest(any(PaperRecordRequest.class));
         verify(mockPaperRecordRequestDAO, times(3)).saveOrUpdate(argThat(new IsAssignedTo(assignTo, Status.ASSIGNED)));
     }
 
+    @Test
+    public void testAssignRequestShouldPrintLabelsForAllRequestsInASingleJob() throws Exception {
+
+        Person assignTo = new Person(15);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        when(mockPaperFormLabelTemplate.generateLabel(patient, "ABC")).thenReturn("form\n");
+        when(mockPaperFormLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        List<PaperRecordRequest> requests = new ArrayList<PaperRecordRequest>();
+        requests.add(createPaperRecordRequest(patient, location, "ABC"));
+        requests.add(createPaperRecordRequest(patient, location, "ABC"));
+        requests.add(createPaperRecordRequest(patient, location, "ABC"));
+
+        when(mockPaperRecordRequestDAO.lockPaperRecordRequest(any(PaperRecordRequest.class))).thenReturn(Status.OPEN);
+
+        paperRecordService.assignRequests(requests, assignTo, location);
+
+        // two form labels for each of the three requests
+        verify(mockPrinterService).printViaSocket("form\nform\nform\nform\nform\nform\n", labelPrinter, "UTF-8");
+    }
+
+    @Test
+    public void testAssignRequestShouldReturnQueuePositionIfLabelsQueued() throws Exception {
+
+        Person assignTo = new Person(15);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        LabelPrintSpooler mockLabelPrintSpooler = mock(LabelPrintSpooler.class);
+        paperRecordService.setLabelPrintSpooler(mockLabelPrintSpooler);
+        when(mockPaperRecordProperties.getAsynchronousLabelPrintingEnabled()).thenReturn(true);
+
+        when(mockPaperFormLabelTemplate.generateLabel(patient, "ABC")).thenReturn("form\n");
+        when(mockPaperFormLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        LabelPrintJob job = new LabelPrintJob();
+        when(mockLabelPrintSpooler.enqueue(labelPrinter, location, "form\nform\n", "UTF-8", 2)).thenReturn(job);
+        when(mockLabelPrintSpooler.getQueuePosition(job)).thenReturn(4);
+
+        when(mockPaperRecordRequestDAO.lockPaperRecordRequest(any(PaperRecordRequest.class))).thenReturn(Status.OPEN);
+
+        PaperRecordAssignmentResult result = paperRecordService.assignRequests(
+                Collections.singletonList(createPaperRecordRequest(patient, location, "ABC")), assignTo, location);
+
+        assertTrue(result.getLabelPrintResult().isQueued());
+        assertThat(result.getLabelPrintResult().getQueuePosition(), is(4));
+    }
+
+    @Test
+    public void testPrintLabelsForPaperRecordRequestsShouldSplitLabelsIntoJobsOfMaximumSize() throws Exception {
+
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        when(mockPaperRecordProperties.getMaxLabelsPerPrintJob()).thenReturn(4);
+        when(mockPaperFormLabelTemplate.generateLabel(patient, "ABC")).thenReturn("form\n");
+        when(mockPaperFormLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        List<PaperRecordRequest> requests = new ArrayList<PaperRecordRequest>();
+        requests.add(createPaperRecordRequest(patient, location, "ABC"));
+        requests.add(createPaperRecordRequest(patient, location, "ABC"));
+        requests.add(createPaperRecordRequest(patient, location, "ABC"));
+
+        paperRecordService.printLabelsForPaperRecordRequests(requests, location);
+
+        verify(mockPrinterService).printViaSocket("form\nform\nform\nform\n", labelPrinter, "UTF-8");
+        verify(mockPrinterService).printViaSocket("form\nform\n", labelPrinter, "UTF-8");
+    }
+
+    @Test
+    public void testPrintLabelsForPaperRecordRequestsShouldPrintFullLabelSetForRecordsToCreate() throws Exception {
+
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        when(mockPaperRecordLabelTemplate.generateLabel(patient, "ABC")).thenReturn("record\n");
+        when(mockPaperRecordLabelTemplate.getEncoding()).thenReturn("UTF-8");
+        when(mockPaperFormLabelTemplate.generateLabel(patient, "ABC")).thenReturn("form\n");
+        when(mockPaperFormLabelTemplate.getEncoding()).thenReturn("UTF-8");
+        when(mockIdCardLabelTemplate.generateLabel(patient, null)).thenReturn("idcard\n");
+        when(mockIdCardLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC", null, Status.OPEN, PaperRecord.Status.PENDING_CREATION);
+
+        paperRecordService.printLabelsForPaperRecordRequests(Collections.singletonList(request), location);
+
+        verify(mockPrinterService).printViaSocket("record\nform\nform\nidcard\n", labelPrinter, "UTF-8");
+    }
+
+    @Test
+    public void testAssignRequestShouldNotAssignRequestAlreadyAssignedByAnotherUser() throws Exception {
+
+        Person assignTo = new Person(15);
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        PatientIdentifier identifier = new PatientIdentifier();
+        identifier.setPatient(patient);
+        identifier.setLocation(location);
+        identifier.setIdentifierType(paperRecordIdentifierType);
+        identifier.setIdentifier("ABC");
+        patient.addIdentifier(identifier);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC");
+
+        // the request is still open in memory, but has been assigned in the database by a concurrent transaction
+        when(mockPaperRecordRequestDAO.lockPaperRecordRequest(request)).thenReturn(Status.ASSIGNED);
+
+        PaperRecordAssignmentResult result = paperRecordService.assignRequests(Collections.singletonList(request), assignTo, null);
+
+        assertThat(result.getAssignedIdentifiers().size(), is(0));
+        assertThat(result.getAlreadyAssignedIdentifiers().size(), is(1));
+        assertThat(result.getAlreadyAssignedIdentifiers().get(0), is("ABC"));
+
+        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(any(PaperRecordRequest.class));
+        verify(mockPaperFormLabelTemplate, never()).generateLabel(any(Patient.class), anyString());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testAssignRequestsShouldFailIfRequestsNull() throws Exception {
 
@@ -508,7 +682,8 @@ public class PaperRecordServiceTest {
         request.setDateCreated(new Date());
         request.updateStatus(Status.OPEN);
 
-        when(mockPatientService.getPatients(null, "Patient_ID", Collections.singletonList(primaryIdentifierType), true)).thenReturn(Collections.singletonList(patient));
+        when(mockPaperRecordDAO.findPatientIdsByIdentifier("Patient_ID", primaryIdentifierType)).thenReturn(Collections.singletonList(15));
+        when(mockPatientService.getPatient(15)).thenReturn(patient);
         when(mockPaperRecordRequestDAO.findPaperRecordRequests(argThat(new StatusListOf(PENDING_STATUSES)),
                 eq(patient), eq(medicalRecordLocation), argThat(new NullString()))).thenReturn(Collections.singletonList(request));
         IsExpectedRequest expectedRequestMatcher = new IsExpectedRequest(request);
@@ -576,7 +751,8 @@ public class PaperRecordServiceTest {
         request.setDateCreated(new Date());
         request.updateStatus(Status.ASSIGNED);
 
-        when(mockPatientService.getPatients(null, "Patient_ID", Collections.singletonList(primaryIdentifierType), true)).thenReturn(Collections.singletonList(patient));
+        when(mockPaperRecordDAO.findPatientIdsByIdentifier("Patient_ID", primaryIdentifierType)).thenReturn(Collections.singletonList(15));
+        when(mockPatientService.getPatient(15)).thenReturn(patient);
         when(mockPaperRecordRequestDAO.findPaperRecordRequests(argThat(new StatusListOf(Collections.singletonList(Status.ASSIGNED))),
                 eq(patient), eq(medicalRecordLocation), argThat(new NullString()))).thenReturn(Collections.singletonList(request));
         IsExpectedRequest expectedRequestMatcher = new IsExpectedRequest(request);
@@ -710,7 +886,8 @@ public class PaperRecordServiceTest {
         request.setDateCreated(new Date());
         request.updateStatus(Status.SENT);
 
-        when(mockPatientService.getPatients(null, "Patient_ID", Collections.singletonList(primaryIdentifierType), true)).thenReturn(Collections.singletonList(patient));
+        when(mockPaperRecordDAO.findPatientIdsByIdentifier("Patient_ID", primaryIdentifierType)).thenReturn(Collections.singletonList(15));
+        when(mockPatientService.getPatient(15)).thenReturn(patient);
         when(mockPaperRecordRequestDAO.findPaperRecordRequests(argThat(new StatusListOf(Collections.singletonList(Status.SENT))),
                 eq(patient), eq(medicalRecordLocation), argThat(new NullString()))).thenReturn(Collections.singletonList(request));
 
@@ -721,6 +898,81 @@ public class PaperRecordServiceTest {
 
     }
 
+    @Test
+    public void resolveScanShouldReturnPendingAndSentRequestsForPaperRecordIdentifier() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        PaperRecordRequest pendingRequest = createPaperRecordRequest(patient, medicalRecordLocation, "ABC123", null, Status.ASSIGNED);
+        PaperRecordRequest sentRequest = createPaperRecordRequest(patient, medicalRecordLocation, "ABC123", null, Status.SENT);
+
+        when(mockPaperRecordRequestDAO.findPaperRecordRequests(argThat(new StatusListOf(Arrays.asList(Status.OPEN, Status.ASSIGNED, Status.SENT))),
+                argThat(new NullPatient()), eq(medicalRecordLocation), eq("ABC123"))).thenReturn(Arrays.asList(sentRequest, pendingRequest));
+
+        PaperRecordScan scan = paperRecordService.resolveScan("ABC123", medicalRecordLocation);
+
+        assertThat(scan.getPaperRecord(), is(pendingRequest.getPaperRecord()));
+        assertThat(scan.getPendingRequest(), is(pendingRequest));
+        assertThat(scan.getSentRequests(), is(Collections.singletonList(sentRequest)));
+        assertThat(scan.getLatestSentRequest(), is(sentRequest));
+        verify(mockPaperRecordDAO, never()).findPatientIdsByIdentifier(anyString(), any(PatientIdentifierType.class));
+    }
+
+    @Test
+    public void resolveScanShouldNotFailIfRecordHasDuplicatePendingRequests() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        PaperRecordRequest pendingRequest = createPaperRecordRequest(patient, medicalRecordLocation, "ABC123", null, Status.OPEN);
+        PaperRecordRequest anotherPendingRequest = createPaperRecordRequest(patient, medicalRecordLocation, "ABC123", null, Status.ASSIGNED);
+        PaperRecordRequest sentRequest = createPaperRecordRequest(patient, medicalRecordLocation, "ABC123", null, Status.SENT);
+
+        when(mockPaperRecordRequestDAO.findPaperRecordRequests(argThat(new StatusListOf(Arrays.asList(Status.OPEN, Status.ASSIGNED, Status.SENT))),
+                argThat(new NullPatient()), eq(medicalRecordLocation), eq("ABC123"))).thenReturn(Arrays.asList(pendingRequest, anotherPendingRequest, sentRequest));
+
+        PaperRecordScan scan = paperRecordService.resolveScan("ABC123", medicalRecordLocation);
+
+        // the record can still be returned...
+        assertThat(scan.getSentRequests(), is(Collections.singletonList(sentRequest)));
+
+        // ...but not sent
+        try {
+            scan.getPendingRequest();
+            fail("Expected an IllegalStateException");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void resolveScanShouldReturnPaperRecordForPatientIdentifierIfNoRequests() {
+
+        Location medicalRecordLocation = createMedicalRecordLocation();
+
+        Patient patient = new Patient();
+        patient.setId(15);
+
+        PaperRecord paperRecord = new PaperRecord();
+
+        when(mockPaperRecordDAO.findPatientIdsByIdentifier("Patient_ID", primaryIdentifierType)).thenReturn(Collections.singletonList(15));
+        when(mockPatientService.getPatient(15)).thenReturn(patient);
+        when(mockPaperRecordDAO.findPaperRecords(patient, medicalRecordLocation)).thenReturn(Collections.singletonList(paperRecord));
+
+        PaperRecordScan scan = paperRecordService.resolveScan("Patient_ID", medicalRecordLocation);
+
+        assertThat(scan.getPaperRecord(), is(paperRecord));
+        assertNull(scan.getPendingRequest());
+        assertThat(scan.getSentRequests().size(), is(0));
+        assertNull(scan.getLatestSentRequest());
+    }
+
     @Test
     public void getSentPaperRecordRequestByIdentifierShouldRetrieveRequestByPaperRecordIdentifierShouldReturnEmptyListIfBlankIdentifier() {
 
@@ -1276,12 +1528,114 @@ public class PaperRecordServiceTest {
 
         PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC");
 
-        paperRecordService.printPaperRecordLabel(request, location);
+        LabelPrintResult result = paperRecordService.printPaperRecordLabel(request, location);
 
-        verify(mockPrinterService).printViaSocket("data\nlines\n", PrinterType.LABEL, location, "UTF-8", false, 600);
+        verify(mockPrinterService).printViaSocket("data\nlines\n", labelPrinter, "UTF-8");
+        assertFalse(result.isQueued());
 
     }
 
+    @Test
+    public void testPrintPaperRecordLabelShouldQueueLabelIfAsynchronousLabelPrintingEnabled() throws Exception {
+
+        Location location = new Location(1);
+        Patient patient = new Patient(1);
+
+        LabelPrintSpooler mockLabelPrintSpooler = mock(LabelPrintSpooler.class);
+        paperRecordService.setLabelPrintSpooler(mockLabelPrintSpooler);
+        when(mockPaperRecordProperties.getAsynchronousLabelPrintingEnabled()).thenReturn(true);
+
+        when(mockPaperRecordLabelTemplate.generateLabel(patient, "ABC")).thenReturn("data\nlines\n");
+        when(mockPaperRecordLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        LabelPrintJob job = new LabelPrintJob();
+        when(mockLabelPrintSpooler.enqueue(labelPrinter, location, "data\nlines\n", "UTF-8", 1)).thenReturn(job);
+        when(mockLabelPrintSpooler.getQueuePosition(job)).thenReturn(1);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC");
+
+        LabelPrintResult result = paperRecordService.printPaperRecordLabel(request, location);
+
+        verify(mockLabelPrintSpooler).enqueue(labelPrinter, location, "data\nlines\n", "UTF-8", 1);
+        verify(mockPrinterService, never()).printViaSocket(anyString(), any(Printer.class), anyString());
+        assertTrue(result.isQueued());
+        assertThat(result.getQueuePosition(), is(1));
+    }
+
+    @Test
+    public void testPrintPaperRecordLabelsShouldQueueLabelsIfPrinterSaturated() throws Exception {
+
+        Location location = new Location(1);
+        Patient patient = new Patient(1);
+
+        LabelPrintSpooler mockLabelPrintSpooler = mock(LabelPrintSpooler.class);
+        paperRecordService.setLabelPrintSpooler(mockLabelPrintSpooler);
+
+        PrinterRateLimiter printerRateLimiter = new PrinterRateLimiter();
+        printerRateLimiter.setBurstSize(3);
+        paperRecordService.setPrinterRateLimiter(printerRateLimiter);
+
+        when(mockPaperRecordLabelTemplate.generateLabel(patient, "ABC")).thenReturn("data\n");
+        when(mockPaperRecordLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        LabelPrintJob job = new LabelPrintJob();
+        when(mockLabelPrintSpooler.enqueue(labelPrinter, location, "data\ndata\n", "UTF-8", 2)).thenReturn(job);
+        when(mockLabelPrintSpooler.getQueuePosition(job)).thenReturn(3);
+
+        PaperRecordRequest request = createPaperRecordRequest(patient, location, "ABC");
+
+        // the first labels go straight to the printer, but there isn't capacity for the second lot
+        LabelPrintResult firstResult = paperRecordService.printPaperRecordLabels(request, location, 2);
+        LabelPrintResult secondResult = paperRecordService.printPaperRecordLabels(request, location, 2);
+
+        verify(mockPrinterService).printViaSocket("data\ndata\n", labelPrinter, "UTF-8");
+        verify(mockLabelPrintSpooler).enqueue(labelPrinter, location, "data\ndata\n", "UTF-8", 2);
+        assertFalse(firstResult.isQueued());
+        assertTrue(secondResult.isQueued());
+        assertThat(secondResult.getQueuePosition(), is(3));
+    }
+
+    @Test
+    public void testPrintPaperRecordLabelsShouldQueueLabelsBehindLabelsAlreadyQueuedForPrinter() throws Exception {
+
+        Location location = new Location(1);
+        Patient patient = new Patient(1);
+
+        LabelPrintSpooler mockLabelPrintSpooler = mock(LabelPrintSpooler.class);
+        paperRecordService.setLabelPrintSpooler(mockLabelPrintSpooler);
+        when(mockLabelPrintSpooler.hasPendingJobs(labelPrinter.getId())).thenReturn(true);
+
+        PrinterRateLimiter printerRateLimiter = new PrinterRateLimiter();
+        paperRecordService.setPrinterRateLimiter(printerRateLimiter);
+
+        when(mockPaperRecordLabelTemplate.generateLabel(patient, "ABC")).thenReturn("data\n");
+        when(mockPaperRecordLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        // the printer has capacity, but the labels mustn't jump ahead of those already waiting for it (or take the
+        // capacity the spooler is waiting for)
+        paperRecordService.printPaperRecordLabels(createPaperRecordRequest(patient, location, "ABC"), location, 2);
+
+        verify(mockLabelPrintSpooler).enqueue(labelPrinter, location, "data\ndata\n", "UTF-8", 2);
+        verify(mockPrinterService, never()).printViaSocket(anyString(), any(Printer.class), anyString());
+        assertTrue(printerRateLimiter.tryAcquire(labelPrinter.getId(), PrinterRateLimiter.DEFAULT_BURST_SIZE));
+    }
+
+    @Test(expected = UnableToPrintLabelException.class)
+    public void testPrintPaperRecordLabelShouldFailIfAsynchronousLabelPrintingEnabledAndNoDefaultPrinter() throws Exception {
+
+        Location location = new Location(1);
+        Patient patient = new Patient(1);
+
+        paperRecordService.setLabelPrintSpooler(mock(LabelPrintSpooler.class));
+        when(mockPaperRecordProperties.getAsynchronousLabelPrintingEnabled()).thenReturn(true);
+        when(mockPrinterService.getDefaultPrinter(location, PrinterType.LABEL)).thenReturn(null);
+
+        when(mockPaperRecordLabelTemplate.generateLabel(patient, "ABC")).thenReturn("data\nlines\n");
+        when(mockPaperRecordLabelTemplate.getEncoding()).thenReturn("UTF-8");
+
+        paperRecordService.printPaperRecordLabel(createPaperRecordRequest(patient, location, "ABC"), location);
+    }
+
     @Test
     public void testPrintPaperRecordLabelsShouldPrintThreeLabelIfCountSetToThree() throws Exception {
 
@@ -1296,7 +1650,7 @@ public class PaperRecordServiceTest {
         paperRecordService.printPaperRecordLabels(request, location, 3);
 
         verify(mockPrinterService).printViaSocket("data\nlines\ndata\n" +
-                "lines\ndata\nlines\n", PrinterType.LABEL, location, "UTF-8", false, 800);
+                "lines\ndata\nlines\n", labelPrinter, "UTF-8");
 
     }
 
@@ -1322,7 +1676,7 @@ public class PaperRecordServiceTest {
 
         paperRecordService.printPaperRecordLabels(patient, location, 1);
 
-        verify(mockPrinterService).printViaSocket("data\nlines\n", PrinterType.LABEL, location, "UTF-8", false, 600);
+        verify(mockPrinterService).printViaSocket("data\nlines\n", labelPrinter, "UTF-8");
     }
 
     @Test
@@ -1339,7 +1693,7 @@ public class PaperRecordServiceTest {
         paperRecordService.printPaperFormLabels(request, location, 3);
 
         verify(mockPrinterService).printViaSocket("data\nlines\ndata\n" +
-                "lines\ndata\nlines\n", PrinterType.LABEL, location, "UTF-8", false, 800);
+                "lines\ndata\nlines\n", labelPrinter, "UTF-8");
 
     }
 
@@ -1368,7 +1722,7 @@ public class PaperRecordServiceTest {
         paperRecordService.printPaperFormLabels(patient, location, 3);
 
         verify(mockPrinterService).printViaSocket("data\nlines\ndata\n" +
-                "lines\ndata\nlines\n", PrinterType.LABEL, location, "UTF-8", false, 800);
+                "lines\ndata\nlines\n", labelPrinter, "UTF-8");
 
     }
 
@@ -1389,227 +1743,204 @@ public class PaperRecordServiceTest {
 
         paperRecordService.printIdCardLabel(patient, location);
 
-        verify(mockPrinterService).printViaSocket("data\nlines\n", PrinterType.LABEL, location, "UTF-8", false, 600);
+        verify(mockPrinterService).printViaSocket("data\nlines\n", labelPrinter, "UTF-8");
     }
 
     @Test
-    public void testExpirePullRequestsShouldCancelPullRequestsBeforeSpecifiedDate() throws Exception {
+    public void testExpirePullRequestsShouldCancelPendingPullRequestsBeforeSpecifiedDate() throws Exception {
 
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
+        Date expireDate = new Date();
 
-        cal.set(Calendar.MINUTE, 50);
-
-        Date afterExpireDate = cal.getTime();
+        paperRecordService.expirePendingPullRequests(expireDate);
 
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
+        verify(mockPaperRecordRequestDAO).findPaperRecordRequestIdsCreatedBefore(eq(PENDING_STATUSES),
+                eq(Collections.singletonList(PaperRecord.Status.ACTIVE)), eq(expireDate), (Integer) isNull(), anyInt());
+        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(any(PaperRecordRequest.class));
+    }
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Patient patient3 = new Patient(3);
-        Patient patient4 = new Patient(4);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+    @Test
+    public void testExpireCreateRequestsShouldCancelPendingCreateRequestsBeforeSpecifiedDate() throws Exception {
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED);
-        request1.setDateCreated(beforeExpireDate);
+        Date expireDate = new Date();
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, "DEF", requestLocation,
-                Status.ASSIGNED);
-        request2.setDateCreated(afterExpireDate);
+        paperRecordService.expirePendingCreateRequests(expireDate);
 
-        PaperRecordRequest request3 = createPaperRecordRequest(patient3, recordLocation, "GHI", requestLocation,
-                Status.OPEN);
-        request3.setDateCreated(beforeExpireDate);
+        verify(mockPaperRecordRequestDAO).findPaperRecordRequestIdsCreatedBefore(eq(PENDING_STATUSES),
+                eq(Collections.singletonList(PaperRecord.Status.PENDING_CREATION)), eq(expireDate), (Integer) isNull(), anyInt());
+        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(any(PaperRecordRequest.class));
+    }
 
-        PaperRecordRequest request4 = createPaperRecordRequest(patient4, recordLocation, "JKL", requestLocation,
-                Status.OPEN);
-        request4.setDateCreated(afterExpireDate);
+    @Test
+    public void testExpirePullRequestsShouldKeepCancellingUntilLastBatchIsNotFull() throws Exception {
+
+        Date expireDate = new Date();
+
+        final List<Integer> afterRequestIds = new ArrayList<Integer>();
+        when(mockPaperRecordRequestDAO.findPaperRecordRequestIdsCreatedBefore(eq(PENDING_STATUSES),
+                eq(Collections.singletonList(PaperRecord.Status.ACTIVE)), eq(expireDate), any(Integer.class), anyInt())).thenAnswer(new Answer<Map<Integer, Integer>>() {
+            @Override
+            public Map<Integer, Integer> answer(InvocationOnMock invocation) throws Throwable {
+                Integer afterRequestId = (Integer) invocation.getArguments()[3];
+                int maxResults = (Integer) invocation.getArguments()[4];
+                afterRequestIds.add(afterRequestId);
+                // the first batch is full, the second isn't
+                int size = afterRequestId == null ? maxResults : maxResults - 1;
+                int firstRequestId = afterRequestId == null ? 1 : afterRequestId + 1;
+                Map<Integer, Integer> staleRequests = new LinkedHashMap<Integer, Integer>();
+                for (int i = 0; i < size; i++) {
+                    staleRequests.put(firstRequestId + i, 1);
+                }
+                return staleRequests;
+            }
+        });
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
-                null, null)).thenReturn(Arrays.asList(request1, request2));
+        paperRecordService.expirePendingPullRequests(expireDate);
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null)).thenReturn(Arrays.asList(request3, request4));
+        assertThat(afterRequestIds.size(), is(2));
+        assertNull(afterRequestIds.get(0));
+        assertThat(afterRequestIds.get(1), is(500));
+    }
 
-        paperRecordService.expirePendingPullRequests(expireDate);
+    @Test
+    public void testExpirePullRequestsBatchShouldReturnLastRequestIdUnlessBatchIsNotFull() throws Exception {
 
-        verify(mockPaperRecordRequestDAO).saveOrUpdate(request1);
-        verify(mockPaperRecordRequestDAO).saveOrUpdate(request3);
+        Date expireDate = new Date();
 
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request2);
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request4);
+        Map<Integer, Integer> fullBatch = new LinkedHashMap<Integer, Integer>();
+        fullBatch.put(11, 1);
+        fullBatch.put(14, 1);
+        when(mockPaperRecordRequestDAO.findPaperRecordRequestIdsCreatedBefore(PENDING_STATUSES,
+                Collections.singletonList(PaperRecord.Status.ACTIVE), expireDate, 10, 2)).thenReturn(fullBatch);
 
-        assertThat(request1.getStatus(), is(Status.CANCELLED));
-        assertThat(request3.getStatus(), is(Status.CANCELLED));
+        Map<Integer, Integer> lastBatch = new LinkedHashMap<Integer, Integer>();
+        lastBatch.put(15, 1);
+        when(mockPaperRecordRequestDAO.findPaperRecordRequestIdsCreatedBefore(PENDING_STATUSES,
+                Collections.singletonList(PaperRecord.Status.ACTIVE), expireDate, 14, 2)).thenReturn(lastBatch);
 
-        assertThat(request2.getStatus(), is(Status.ASSIGNED));
-        assertThat(request4.getStatus(), is(Status.OPEN));
+        assertThat(paperRecordService.expirePendingPullRequests(expireDate, 10, 2), is(14));
+        assertNull(paperRecordService.expirePendingPullRequests(expireDate, 14, 2));
     }
 
     @Test
-    public void testExpirePullRequestsShouldNotCancelRequestsPendingCreation() throws Exception {
-
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
-
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
+    public void testExpirePullRequestsBatchShouldOnlyReportRequestsThatWereCancelled() throws Exception {
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+        QueueChangeFeed mockQueueChangeFeed = mock(QueueChangeFeed.class);
+        paperRecordService.setQueueChangeFeed(mockQueueChangeFeed);
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED, PaperRecord.Status.PENDING_CREATION);
-        request1.setDateCreated(beforeExpireDate);
+        Date expireDate = new Date();
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, null, requestLocation,
-                Status.OPEN, PaperRecord.Status.PENDING_CREATION);
-        request2.setDateCreated(beforeExpireDate);
+        Map<Integer, Integer> staleRequests = new LinkedHashMap<Integer, Integer>();
+        staleRequests.put(11, 1);
+        staleRequests.put(14, 2);
+        when(mockPaperRecordRequestDAO.findPaperRecordRequestIdsCreatedBefore(PENDING_STATUSES,
+                Collections.singletonList(PaperRecord.Status.ACTIVE), expireDate, 10, 2)).thenReturn(staleRequests);
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
-                null, null)).thenReturn(Collections.singletonList(request1));
+        // request 11 was sent since it was found, so isn't cancelled
+        when(mockPaperRecordRequestDAO.cancelPaperRecordRequests(staleRequests.keySet(), PENDING_STATUSES))
+                .thenReturn(Collections.singletonList(14));
+        when(mockPaperRecordQueueVersionDAO.incrementVersion(2)).thenReturn(7L);
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null)).thenReturn(Collections.singletonList(request2));
+        // the next batch still starts after the last request found
+        assertThat(paperRecordService.expirePendingPullRequests(expireDate, 10, 2), is(14));
 
-        paperRecordService.expirePendingPullRequests(expireDate);
-
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request1);
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request2);
+        Map<Integer, Integer> expectedChanges = new LinkedHashMap<Integer, Integer>();
+        expectedChanges.put(14, 2);
+        verify(mockQueueChangeFeed).requestsChanged(expectedChanges, Collections.singletonMap(2, 7L));
 
-        assertThat(request1.getStatus(), is(Status.ASSIGNED));
-        assertThat(request2.getStatus(), is(Status.OPEN));
+        // only the location where a request was actually cancelled has a new version
+        verify(mockPaperRecordQueueVersionDAO).incrementVersion(2);
+        verify(mockPaperRecordQueueVersionDAO, never()).incrementVersion(1);
     }
 
-
     @Test
-    public void testExpireCreateRequestsShouldCancelCreateRequestsBeforeSpecifiedDate() throws Exception {
-
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
+    public void testRequestPaperRecordShouldPublishChangeWithNewQueueVersion() throws Exception {
 
-        cal.set(Calendar.MINUTE, 50);
+        QueueChangeFeed mockQueueChangeFeed = mock(QueueChangeFeed.class);
+        paperRecordService.setQueueChangeFeed(mockQueueChangeFeed);
 
-        Date afterExpireDate = cal.getTime();
+        Patient patient = new Patient();
+        patient.setId(15);
 
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
+        Location medicalRecordLocation = createMedicalRecordLocation();
+        Location requestLocation = createLocation(4, "Outpatient Clinic");
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Patient patient3 = new Patient(3);
-        Patient patient4 = new Patient(4);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+        PatientIdentifier identifier = createIdentifier(medicalRecordLocation, "ABCZYX");
+        patient.addIdentifier(identifier);
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED, PaperRecord.Status.PENDING_CREATION);
-        request1.setDateCreated(beforeExpireDate);
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setRecordLocation(medicalRecordLocation);
+        paperRecord.setPatientIdentifier(identifier);
+        when(mockPaperRecordDAO.findPaperRecords(patient, medicalRecordLocation)).thenReturn(Collections.singletonList(paperRecord));
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, "DEF", requestLocation,
-                Status.ASSIGNED, PaperRecord.Status.PENDING_CREATION);
-        request2.setDateCreated(afterExpireDate);
+        when(mockPaperRecordQueueVersionDAO.incrementVersion(3)).thenReturn(5L);
 
-        PaperRecordRequest request3 = createPaperRecordRequest(patient3, recordLocation, "GHI", requestLocation,
-                Status.OPEN, PaperRecord.Status.PENDING_CREATION);
-        request3.setDateCreated(beforeExpireDate);
+        List<PaperRecordRequest> returnedRequests = paperRecordService.requestPaperRecord(patient, medicalRecordLocation, requestLocation);
 
-        PaperRecordRequest request4 = createPaperRecordRequest(patient4, recordLocation, "KLM", requestLocation,
-                Status.OPEN, PaperRecord.Status.PENDING_CREATION);
-        request4.setDateCreated(afterExpireDate);
+        verify(mockQueueChangeFeed).requestCreated(returnedRequests.get(0), 5L);
+    }
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
-                null, null)).thenReturn(Arrays.asList(request1, request2));
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null)).thenReturn(Arrays.asList(request3, request4));
+    @Test
+    public void createPaperMedicalRecordNumber_shouldSkipIdentifiersAlreadyInUse() {
 
-        paperRecordService.expirePendingCreateRequests(expireDate);
+        Location medicalRecordLocation = createMedicalRecordLocation();
 
-        verify(mockPaperRecordRequestDAO).saveOrUpdate(request1);
-        verify(mockPaperRecordRequestDAO).saveOrUpdate(request3);
+        when(mockPaperRecordDAO.patientIdentifierInUse("A00001", paperRecordIdentifierType, medicalRecordLocation)).thenReturn(true);
 
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request2);
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request4);
+        when(mockIdentifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, "generating a new paper record identifier number")).thenReturn("A00001", "A00002");
 
-        assertThat(request1.getStatus(), is(Status.CANCELLED));
-        assertThat(request3.getStatus(), is(Status.CANCELLED));
+        PatientIdentifier paperMedicalRecordIdentifier = paperRecordService.createPaperRecord(new Patient(), medicalRecordLocation).getPatientIdentifier();
 
-        assertThat(request2.getStatus(), is(Status.ASSIGNED));
-        assertThat(request4.getStatus(), is(Status.OPEN));
+        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00002"));
     }
 
-
     @Test
-    public void testExpireCreateRequestsShouldNotCancelPullRequests() throws Exception {
+    public void createPaperMedicalRecordNumber_shouldUseIdentifierFromPoolIfAvailable() {
 
-        Calendar cal = Calendar.getInstance();
-        cal.set(2012, 1, 22);
-        cal.set(Calendar.HOUR_OF_DAY, 4);
-        cal.set(Calendar.MINUTE, 40);
-        Date beforeExpireDate = cal.getTime();
+        Location medicalRecordLocation = createMedicalRecordLocation();
 
-        cal.set(Calendar.MINUTE, 45);
-        Date expireDate = cal.getTime();
+        PaperRecordIdentifierPool pool = mock(PaperRecordIdentifierPool.class);
+        when(pool.take(medicalRecordLocation)).thenReturn("A00003");
+        paperRecordService.setPaperRecordIdentifierPool(pool);
 
-        Patient patient1 = new Patient(1);
-        Patient patient2 = new Patient(2);
-        Location requestLocation = new Location(1);
-        Location recordLocation = new Location(1);
+        PatientIdentifier paperMedicalRecordIdentifier = paperRecordService.createPaperRecord(new Patient(), medicalRecordLocation).getPatientIdentifier();
 
-        PaperRecordRequest request1 = createPaperRecordRequest(patient1, recordLocation, "ABC", requestLocation,
-                Status.ASSIGNED, PaperRecord.Status.ACTIVE);
-        request1.setDateCreated(beforeExpireDate);
+        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00003"));
+        verify(mockIdentifierSourceService, never()).generateIdentifier(any(PatientIdentifierType.class), any(Location.class), anyString());
+    }
 
-        PaperRecordRequest request2 = createPaperRecordRequest(patient2, recordLocation, "DEF", requestLocation,
-                Status.OPEN);
-        request2.setDateCreated(beforeExpireDate);
+    @Test
+    public void createPaperMedicalRecordNumber_shouldDiscardPooledIdentifiersUsedSinceTheyWereGenerated() {
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.ASSIGNED), null,
-                null, null)).thenReturn(Collections.singletonList(request1));
+        Location medicalRecordLocation = createMedicalRecordLocation();
 
-        when(mockPaperRecordRequestDAO.findPaperRecordRequests(Collections.singletonList(Status.OPEN), null,
-                null, null)).thenReturn(Collections.singletonList(request2));
+        PaperRecordIdentifierPool pool = mock(PaperRecordIdentifierPool.class);
+        when(pool.take(medicalRecordLocation)).thenReturn("A00003", "A00004");
+        paperRecordService.setPaperRecordIdentifierPool(pool);
 
-        paperRecordService.expirePendingCreateRequests(expireDate);
+        when(mockPaperRecordDAO.patientIdentifierInUse("A00003", paperRecordIdentifierType, medicalRecordLocation)).thenReturn(true);
 
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request1);
-        verify(mockPaperRecordRequestDAO, never()).saveOrUpdate(request2);
+        PatientIdentifier paperMedicalRecordIdentifier = paperRecordService.createPaperRecord(new Patient(), medicalRecordLocation).getPatientIdentifier();
 
-        assertThat(request1.getStatus(), is(Status.ASSIGNED));
-        assertThat(request2.getStatus(), is(Status.OPEN));
+        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00004"));
+        verify(mockIdentifierSourceService, never()).generateIdentifier(any(PatientIdentifierType.class), any(Location.class), anyString());
     }
 
-
     @Test
-    public void createPaperMedicalRecordNumber_shouldSkipIdentifiersAlreadyInUse() {
+    public void createPaperMedicalRecordNumber_shouldGenerateIdentifierIfEveryPooledIdentifierIsInUse() {
 
         Location medicalRecordLocation = createMedicalRecordLocation();
-        PatientIdentifier identifier = createIdentifier(medicalRecordLocation, "A00001");
 
-        when(mockPatientService.getPatientIdentifiers("A00001", Collections.singletonList(paperRecordIdentifierType),
-                Collections.singletonList(medicalRecordLocation), null, null))
-                .thenReturn(Collections.singletonList(identifier));
+        PaperRecordIdentifierPool pool = mock(PaperRecordIdentifierPool.class);
+        when(pool.take(medicalRecordLocation)).thenReturn("A00003", null);
+        paperRecordService.setPaperRecordIdentifierPool(pool);
 
-        when(mockIdentifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, "generating a new paper record identifier number")).thenReturn("A00001", "A00002");
+        when(mockPaperRecordDAO.patientIdentifierInUse("A00003", paperRecordIdentifierType, medicalRecordLocation)).thenReturn(true);
+        when(mockIdentifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, "generating a new paper record identifier number")).thenReturn("A00005");
 
         PatientIdentifier paperMedicalRecordIdentifier = paperRecordService.createPaperRecord(new Patient(), medicalRecordLocation).getPatientIdentifier();
 
-        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00002"));
+        assertThat(paperMedicalRecordIdentifier.getIdentifier(), is("A00005"));
     }
 
     // note that the getMedicalRecordLocation has been mocked out, so we are only testing the getArchivesLocation part here
@@ -1660,6 +1991,30 @@ public class PaperRecordServiceTest {
 
     }
 
+    @Test
+    public void getArchivesLocation_shouldOnlySearchHierarchyOnceForMedicalRecordLocation() {
+
+        LocationTag archivesTag = new LocationTag(PaperRecordConstants.LOCATION_TAG_ARCHIVES_LOCATION, null);
+        when(mockPaperRecordProperties.getArchivesLocationTag()).thenReturn(archivesTag);
+
+        Location medicalRecordLocation = createLocation(1, "Medical Record Location");
+        Location outpatientClinic = createLocation(2, "Outpatient Clinic");
+        Location archives = createLocation(3, "Archives");
+
+        archives.addTag(archivesTag);
+
+        medicalRecordLocation.addChildLocation(outpatientClinic);
+        outpatientClinic.addChildLocation(archives);
+
+        when(mockLocationService.getLocation(3)).thenReturn(archives);
+
+        assertThat(paperRecordService.getArchivesLocationAssociatedWith(medicalRecordLocation), is(archives));
+        assertThat(paperRecordService.getArchivesLocationAssociatedWith(medicalRecordLocation), is(archives));
+
+        verify(mockPaperRecordProperties, times(1)).getArchivesLocationTag();
+        verify(mockLocationService).getLocation(3);
+    }
+
     private PatientIdentifier createIdentifier(Location medicalRecordLocation, String identifier) {
         PatientIdentifier identifer = new PatientIdentifier();
         identifer.setIdentifier(identifier);
@@ -0,0 +1,127 @@
+package org.openmrs.module.paperrecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.paperrecord.identifier.PatientIdentifierCache;
+import org.openmrs.module.paperrecord.print.RenderedLabelCache;
+import org.openmrs.module.paperrecord.template.LabelTemplate;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class PatientCacheInvalidatorTest {
+
+    private RenderedLabelCache renderedLabelCache;
+
+    private PatientIdentifierCache patientIdentifierCache;
+
+    private LabelTemplate template;
+
+    private PatientCacheInvalidator invalidator;
+
+    @Before
+    public void setup() {
+        renderedLabelCache = new RenderedLabelCache();
+        patientIdentifierCache = new PatientIdentifierCache();
+
+        mockStatic(Context.class);
+        when(Context.getRegisteredComponent("paperRecordRenderedLabelCache", RenderedLabelCache.class)).thenReturn(renderedLabelCache);
+        when(Context.getRegisteredComponent("paperRecordPatientIdentifierCache", PatientIdentifierCache.class)).thenReturn(patientIdentifierCache);
+
+        template = mock(LabelTemplate.class);
+        cachePatient(7, "A000007");
+        cachePatient(8, "A000008");
+
+        invalidator = new PatientCacheInvalidator();
+    }
+
+    @After
+    public void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void shouldEvictPatientWhenIdentifierSaved() throws Throwable {
+
+        PatientIdentifier identifier = new PatientIdentifier();
+        identifier.setPatient(new Patient(7));
+
+        invalidator.afterReturning(identifier, PatientService.class.getMethod("savePatientIdentifier", PatientIdentifier.class),
+                new Object[] { identifier }, null);
+
+        assertThat(patientIdentifierCache.getPatientId("A000007"), nullValue());
+        assertThat(patientIdentifierCache.getPatientId("A000008"), is(8));
+        assertThat(renderedLabelCache.size(), is(1));
+    }
+
+    @Test
+    public void shouldEvictEveryPatientMerged() throws Throwable {
+
+        Patient preferred = new Patient(7);
+        invalidator.afterReturning(null, PatientService.class.getMethod("mergePatients", Patient.class, List.class),
+                new Object[] { preferred, Arrays.asList(new Patient(8)) }, null);
+
+        assertThat(patientIdentifierCache.size(), is(0));
+        assertThat(renderedLabelCache.size(), is(0));
+    }
+
+    @Test
+    public void shouldNotEvictPatientWhenPatientRead() throws Throwable {
+
+        invalidator.afterReturning(new Patient(7), PatientService.class.getMethod("getPatient", Integer.class),
+                new Object[] { 7 }, null);
+
+        assertThat(patientIdentifierCache.getPatientId("A000007"), is(7));
+        assertThat(renderedLabelCache.size(), is(2));
+    }
+
+    @Test
+    public void shouldEvictPatientAgainOnceTransactionCompletes() throws Throwable {
+
+        TransactionSynchronizationManager.initSynchronization();
+
+        Patient patient = new Patient(7);
+        invalidator.afterReturning(patient, PatientService.class.getMethod("savePatient", Patient.class),
+                new Object[] { patient }, null);
+
+        // another thread caches the patient again before the change is committed
+        cachePatient(7, "A000007");
+
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.afterCompletion(TransactionSynchronization.STATUS_COMMITTED);
+        }
+
+        assertThat(patientIdentifierCache.getPatientId("A000007"), nullValue());
+        assertThat(renderedLabelCache.size(), is(1));
+    }
+
+    private void cachePatient(Integer patientId, String identifier) {
+        Patient patient = new Patient(patientId);
+        when(template.generateLabel(patient, identifier)).thenReturn("label\n");
+        renderedLabelCache.getLabels(template, patient, identifier, 1, Locale.ENGLISH);
+        patientIdentifierCache.putPatientId(patientIdentifierCache.getGeneration(), identifier, patientId);
+    }
+
+}
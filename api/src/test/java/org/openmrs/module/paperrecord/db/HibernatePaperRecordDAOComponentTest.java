@@ -0,0 +1,94 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HibernatePaperRecordDAOComponentTest extends BaseModuleContextSensitiveTest {
+
+    @Autowired
+    @Qualifier("paperRecordDAO")
+    private PaperRecordDAO paperRecordDAO;
+
+    @Autowired
+    private PatientService patientService;
+
+    @Autowired
+    private LocationService locationService;
+
+    private Location medicalRecordLocation;
+
+    private Location otherMedicalRecordLocation;
+
+    private PatientIdentifierType paperRecordIdentifierType;
+
+    private PatientIdentifierType otherIdentifierType;
+
+    @Before
+    public void setup() throws Exception {
+        executeDataSet("paperRecordTestDataset.xml");
+
+        // from the standard test dataset
+        medicalRecordLocation = locationService.getLocation(1);
+        otherMedicalRecordLocation = locationService.getLocation(2);
+        paperRecordIdentifierType = patientService.getPatientIdentifierType(2);
+        otherIdentifierType = patientService.getPatientIdentifierType(1);
+    }
+
+    @Test
+    public void paperRecordExists_shouldReturnTrueIfRecordWithIdentifierExistsAtLocation() {
+        // from the paper record test dataset
+        assertTrue(paperRecordDAO.paperRecordExists("CATBALL", medicalRecordLocation));
+    }
+
+    @Test
+    public void paperRecordExists_shouldReturnFalseIfRecordIsAtAnotherLocation() {
+        assertFalse(paperRecordDAO.paperRecordExists("CATBALL", otherMedicalRecordLocation));
+    }
+
+    @Test
+    public void paperRecordExists_shouldReturnFalseIfRecordIdentifierIsVoided() {
+        // DOGBALL has a paper record in the paper record test dataset, but its identifier is voided
+        assertFalse(paperRecordDAO.paperRecordExists("DOGBALL", medicalRecordLocation));
+    }
+
+    @Test
+    public void paperRecordExists_shouldReturnFalseIfNoRecordWithIdentifier() {
+        assertFalse(paperRecordDAO.paperRecordExists("NOSUCHRECORD", medicalRecordLocation));
+    }
+
+    @Test
+    public void patientIdentifierInUse_shouldReturnTrueIfIdentifierOfTypeExistsAtLocation() {
+        assertTrue(paperRecordDAO.patientIdentifierInUse("CATBALL", paperRecordIdentifierType, medicalRecordLocation));
+    }
+
+    @Test
+    public void patientIdentifierInUse_shouldReturnFalseIfIdentifierIsOfAnotherType() {
+        assertFalse(paperRecordDAO.patientIdentifierInUse("CATBALL", otherIdentifierType, medicalRecordLocation));
+    }
+
+    @Test
+    public void patientIdentifierInUse_shouldReturnFalseIfIdentifierIsAtAnotherLocation() {
+        assertFalse(paperRecordDAO.patientIdentifierInUse("CATBALL", paperRecordIdentifierType, otherMedicalRecordLocation));
+    }
+
+    @Test
+    public void patientIdentifierInUse_shouldReturnFalseIfIdentifierIsVoided() {
+        assertFalse(paperRecordDAO.patientIdentifierInUse("DOGBALL", paperRecordIdentifierType, medicalRecordLocation));
+    }
+
+    @Test
+    public void patientIdentifierInUse_shouldReturnFalseIfNoSuchIdentifier() {
+        assertFalse(paperRecordDAO.patientIdentifierInUse("NOSUCHRECORD", paperRecordIdentifierType, medicalRecordLocation));
+    }
+
+}
@@ -0,0 +1,35 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.junit.Test;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HibernatePaperRecordQueueVersionDAOComponentTest extends BaseModuleContextSensitiveTest {
+
+    @Autowired
+    @Qualifier("paperRecordQueueVersionDAO")
+    private PaperRecordQueueVersionDAO paperRecordQueueVersionDAO;
+
+    @Test
+    public void getVersion_shouldReturnZeroIfQueuesHaveNeverChanged() {
+        assertThat(paperRecordQueueVersionDAO.getVersion(2), is(0L));
+    }
+
+    @Test
+    public void incrementVersion_shouldIncreaseVersionOfLocationByOne() {
+        assertThat(paperRecordQueueVersionDAO.incrementVersion(1), is(1L));
+        assertThat(paperRecordQueueVersionDAO.incrementVersion(1), is(2L));
+        assertThat(paperRecordQueueVersionDAO.getVersion(1), is(2L));
+    }
+
+    @Test
+    public void incrementVersion_shouldNotChangeVersionOfOtherLocations() {
+        paperRecordQueueVersionDAO.incrementVersion(1);
+        assertThat(paperRecordQueueVersionDAO.getVersion(2), is(0L));
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.openmrs.module.paperrecord.db;
+
+import org.junit.Test;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.transaction.BeforeTransaction;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that the hot request and paper record queries can use the indexes the module's liquibase changesets create.
+ * <p/>
+ * The test database schema is generated from the Hibernate mappings rather than by liquibase, so the indexes are
+ * created here from their definitions in liquibase.xml before checking the query plans.
+ */
+public class PaperRecordIndexesComponentTest extends BaseModuleContextSensitiveTest {
+
+    private static final String[] INDEX_TABLES = { "paperrecord_paper_record", "paperrecord_paper_record_request" };
+
+    private static boolean indexesCreated = false;
+
+    @BeforeTransaction
+    public void createIndexes() throws Exception {
+
+        if (indexesCreated) {
+            return;
+        }
+
+        // create the indexes on a separate connection, since DDL would commit the test transaction
+        Properties properties = getRuntimeProperties();
+        Connection connection = DriverManager.getConnection(properties.getProperty("connection.url"),
+                properties.getProperty("connection.username"), properties.getProperty("connection.password"));
+        try {
+            Statement statement = connection.createStatement();
+            for (String createIndex : getCreateIndexStatements()) {
+                statement.execute(createIndex);
+            }
+            statement.close();
+        }
+        finally {
+            connection.close();
+        }
+
+        indexesCreated = true;
+    }
+
+    @Test
+    public void shouldUseRecordStatusAndDateStatusChangedIndexToFindLastSentRequest() throws Exception {
+        assertThat(explain("select max(date_status_changed) from paperrecord_paper_record_request " +
+                "where paper_record = 1 and status = 'SENT'"),
+                containsString("IDX_PAPERRECORD_REQUEST_RECORD_STATUS_CHANGED"));
+    }
+
+    @Test
+    public void shouldUseRecordStatusAndDateStatusChangedIndexToFindRequestsForRecord() throws Exception {
+        assertThat(explain("select request_id from paperrecord_paper_record_request " +
+                "where paper_record = 1 and status = 'OPEN' order by date_status_changed desc"),
+                containsString("IDX_PAPERRECORD_REQUEST_RECORD_STATUS_CHANGED"));
+    }
+
+    @Test
+    public void shouldUseStatusAndRequestIdIndexToFindNextBatchOfStaleRequests() throws Exception {
+        assertThat(explain("select request_id from paperrecord_paper_record_request " +
+                "where status = 'OPEN' and request_id > 10 order by request_id"),
+                containsString("IDX_PAPERRECORD_REQUEST_STATUS_ID"));
+    }
+
+    @Test
+    public void shouldUseRecordLocationAndStatusIndexToFindRecordsAtLocation() throws Exception {
+        assertThat(explain("select record_id from paperrecord_paper_record " +
+                "where record_location = 1 and status = 'ACTIVE'"),
+                containsString("IDX_PAPER_RECORD_LOCATION_STATUS"));
+    }
+
+    @Test
+    public void shouldUseIndexesForQueueQueryJoiningRequestsToRecordsAtLocation() throws Exception {
+        // mirrors the sql hibernate generates for the first page of a queue in findPaperRecordQueueRows
+        String plan = explain("select r.request_id, r.status, pr.record_id, pr.status, pi.patient_id, pi.identifier, " +
+                "r.request_location, r.date_created from paperrecord_paper_record_request r " +
+                "inner join paperrecord_paper_record pr on r.paper_record = pr.record_id " +
+                "inner join patient_identifier pi on pr.patient_identifier = pi.patient_identifier_id " +
+                "inner join patient p on pi.patient_id = p.patient_id " +
+                "where r.status in ('OPEN', 'ASSIGNED') and pr.status in ('ACTIVE', 'PENDING_CREATION') " +
+                "and pr.record_location = 1 order by r.date_created asc, r.request_id asc");
+
+        assertThat(plan, anyOf(containsString("IDX_PAPER_RECORD_LOCATION_STATUS"),
+                containsString("IDX_PAPERRECORD_REQUEST_STATUS_CREATED")));
+        assertThat(plan, not(containsString("tableScan")));
+    }
+
+    @Test
+    public void shouldUseRecordStatusAndDateStatusChangedIndexForLastSentSubquery() throws Exception {
+        // mirrors the sql hibernate generates for the max(dateStatusChanged) subquery in populateLastSent
+        String plan = explain("select r.paper_record, r.request_location, r.date_status_changed, r.request_id " +
+                "from paperrecord_paper_record_request r " +
+                "where r.status = 'SENT' and r.paper_record in (1, 2) " +
+                "and r.date_status_changed = (select max(r2.date_status_changed) from paperrecord_paper_record_request r2 " +
+                "where r2.paper_record = r.paper_record and r2.status = 'SENT') " +
+                "order by r.request_id asc");
+
+        assertThat(plan, containsString("IDX_PAPERRECORD_REQUEST_RECORD_STATUS_CHANGED"));
+        assertThat(plan, not(containsString("tableScan")));
+    }
+
+    private String explain(String sql) throws Exception {
+        Statement statement = getConnection().createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("explain " + sql);
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    private List<String> getCreateIndexStatements() throws Exception {
+
+        Document changeLog;
+        InputStream in = getClass().getClassLoader().getResourceAsStream("liquibase.xml");
+        try {
+            changeLog = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        }
+        finally {
+            in.close();
+        }
+
+        List<String> statements = new ArrayList<String>();
+
+        NodeList createIndexes = changeLog.getElementsByTagName("createIndex");
+        for (int i = 0; i < createIndexes.getLength(); i++) {
+            Element createIndex = (Element) createIndexes.item(i);
+            if (!isIndexTable(createIndex.getAttribute("tableName"))) {
+                continue;
+            }
+
+            StringBuilder columns = new StringBuilder();
+            NodeList columnElements = createIndex.getElementsByTagName("column");
+            for (int j = 0; j < columnElements.getLength(); j++) {
+                if (j > 0) {
+                    columns.append(", ");
+                }
+                columns.append(((Element) columnElements.item(j)).getAttribute("name"));
+            }
+
+            statements.add("create index if not exists " + createIndex.getAttribute("indexName") + " on "
+                    + createIndex.getAttribute("tableName") + " (" + columns + ")");
+        }
+
+        return statements;
+    }
+
+    private boolean isIndexTable(String tableName) {
+        for (String indexTable : INDEX_TABLES) {
+            if (indexTable.equals(tableName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,111 @@
+package org.openmrs.module.paperrecord.identifier;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.LocationService;
+import org.openmrs.module.idgen.service.IdentifierSourceService;
+import org.openmrs.module.paperrecord.PaperRecordProperties;
+import org.openmrs.module.paperrecord.db.PaperRecordDAO;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PaperRecordIdentifierPoolTest {
+
+    private static final String COMMENT = "generating a new paper record identifier number";
+
+    private PaperRecordIdentifierPool pool;
+
+    private PaperRecordProperties paperRecordProperties;
+
+    private IdentifierSourceService identifierSourceService;
+
+    private PaperRecordDAO paperRecordDAO;
+
+    private PatientIdentifierType paperRecordIdentifierType;
+
+    private Location medicalRecordLocation;
+
+    @Before
+    public void setup() {
+
+        medicalRecordLocation = new Location(1);
+        paperRecordIdentifierType = new PatientIdentifierType(2);
+
+        paperRecordProperties = mock(PaperRecordProperties.class);
+        when(paperRecordProperties.getPaperRecordIdentifierType()).thenReturn(paperRecordIdentifierType);
+        when(paperRecordProperties.getIdentifierPoolSize()).thenReturn(3);
+
+        LocationService locationService = mock(LocationService.class);
+        when(locationService.getLocation(1)).thenReturn(medicalRecordLocation);
+
+        identifierSourceService = mock(IdentifierSourceService.class);
+        paperRecordDAO = mock(PaperRecordDAO.class);
+
+        pool = new PaperRecordIdentifierPool();
+        pool.setPaperRecordProperties(paperRecordProperties);
+        pool.setLocationService(locationService);
+        pool.setIdentifierSourceService(identifierSourceService);
+        pool.setPaperRecordDAO(paperRecordDAO);
+        pool.setTransactionManager(mock(PlatformTransactionManager.class));
+    }
+
+    @Test
+    public void shouldHandOutPreGeneratedIdentifiersInOrder() {
+
+        when(identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, COMMENT))
+                .thenReturn("A00001", "A00002", "A00003");
+
+        pool.fill(1);
+
+        assertThat(pool.size(medicalRecordLocation), is(3));
+        assertThat(pool.take(medicalRecordLocation), is("A00001"));
+        assertThat(pool.take(medicalRecordLocation), is("A00002"));
+        assertThat(pool.take(medicalRecordLocation), is("A00003"));
+        assertNull(pool.take(medicalRecordLocation));
+    }
+
+    @Test
+    public void shouldSkipIdentifiersAlreadyInUse() {
+
+        when(identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, COMMENT))
+                .thenReturn("A00001", "A00002", "A00003", "A00004");
+        when(paperRecordDAO.patientIdentifierInUse("A00002", paperRecordIdentifierType, medicalRecordLocation)).thenReturn(true);
+
+        pool.fill(1);
+
+        assertThat(pool.take(medicalRecordLocation), is("A00001"));
+        assertThat(pool.take(medicalRecordLocation), is("A00003"));
+        assertThat(pool.take(medicalRecordLocation), is("A00004"));
+    }
+
+    @Test
+    public void shouldStopFillingIfIdentifiersCannotBeGenerated() {
+
+        when(identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, COMMENT))
+                .thenReturn("A00001", null);
+
+        pool.fill(1);
+
+        assertThat(pool.size(medicalRecordLocation), is(1));
+    }
+
+    @Test
+    public void shouldNotHandOutIdentifiersIfPoolDisabled() {
+
+        when(identifierSourceService.generateIdentifier(paperRecordIdentifierType, medicalRecordLocation, COMMENT))
+                .thenReturn("A00001", "A00002", "A00003");
+        pool.fill(1);
+
+        when(paperRecordProperties.getIdentifierPoolSize()).thenReturn(0);
+
+        assertNull(pool.take(medicalRecordLocation));
+    }
+
+}
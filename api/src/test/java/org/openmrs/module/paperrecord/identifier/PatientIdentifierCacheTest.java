@@ -0,0 +1,62 @@
+package org.openmrs.module.paperrecord.identifier;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PatientIdentifierCacheTest {
+
+    @Test
+    public void shouldCachePatientIdForIdentifier() {
+
+        PatientIdentifierCache cache = new PatientIdentifierCache();
+        cache.putPatientId(cache.getGeneration(), "ABC123", 7);
+
+        assertThat(cache.getPatientId("ABC123"), is(7));
+        assertThat(cache.getPatientId("XYZ789"), nullValue());
+    }
+
+    @Test
+    public void shouldEvictAllIdentifiersForPatient() {
+
+        PatientIdentifierCache cache = new PatientIdentifierCache();
+        cache.putPatientId(cache.getGeneration(), "ABC123", 7);
+        cache.putPatientId(cache.getGeneration(), "ABC124", 7);
+        cache.putPatientId(cache.getGeneration(), "XYZ789", 8);
+
+        cache.evictPatient(7);
+
+        assertThat(cache.getPatientId("ABC123"), nullValue());
+        assertThat(cache.getPatientId("ABC124"), nullValue());
+        assertThat(cache.getPatientId("XYZ789"), is(8));
+    }
+
+    @Test
+    public void shouldNotCacheIdentifierLookedUpBeforeEviction() {
+
+        PatientIdentifierCache cache = new PatientIdentifierCache();
+        long generation = cache.getGeneration();
+
+        cache.evictPatient(7);
+        cache.putPatientId(generation, "ABC123", 7);
+
+        assertThat(cache.getPatientId("ABC123"), nullValue());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedIdentifierWhenFull() {
+
+        PatientIdentifierCache cache = new PatientIdentifierCache(2);
+        cache.putPatientId(cache.getGeneration(), "ABC123", 7);
+        cache.putPatientId(cache.getGeneration(), "ABC124", 8);
+        cache.getPatientId("ABC123");
+        cache.putPatientId(cache.getGeneration(), "ABC125", 9);
+
+        assertThat(cache.size(), is(2));
+        assertThat(cache.getPatientId("ABC123"), is(7));
+        assertThat(cache.getPatientId("ABC124"), nullValue());
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.openmrs.module.paperrecord.location;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class LocationResolutionCacheTest {
+
+    @Test
+    public void shouldReturnCachedLocationIds() {
+
+        LocationResolutionCache cache = new LocationResolutionCache();
+        long generation = cache.getGeneration();
+
+        cache.putMedicalRecordLocationId(generation, 2, 1);
+        cache.putArchivesLocationId(generation, 1, 3);
+
+        assertThat(cache.getMedicalRecordLocationId(2), is(1));
+        assertThat(cache.getArchivesLocationId(1), is(3));
+        assertNull(cache.getMedicalRecordLocationId(3));
+        assertNull(cache.getMedicalRecordLocationId(null));
+    }
+
+    @Test
+    public void shouldNotCacheLocationsThatHaveNotBeenSaved() {
+
+        LocationResolutionCache cache = new LocationResolutionCache();
+        cache.putMedicalRecordLocationId(cache.getGeneration(), null, 1);
+
+        assertNull(cache.getMedicalRecordLocationId(null));
+    }
+
+    @Test
+    public void shouldForgetEverythingWhenCleared() {
+
+        LocationResolutionCache cache = new LocationResolutionCache();
+        long generation = cache.getGeneration();
+
+        cache.putMedicalRecordLocationId(generation, 2, 1);
+        cache.putArchivesLocationId(generation, 1, 3);
+        cache.clear();
+
+        assertNull(cache.getMedicalRecordLocationId(2));
+        assertNull(cache.getArchivesLocationId(1));
+    }
+
+    @Test
+    public void shouldNotCacheLocationResolvedBeforeCacheWasCleared() {
+
+        LocationResolutionCache cache = new LocationResolutionCache();
+        long generation = cache.getGeneration();
+
+        // the location hierarchy changes while the location is being resolved
+        cache.clear();
+        cache.putMedicalRecordLocationId(generation, 2, 1);
+
+        assertNull(cache.getMedicalRecordLocationId(2));
+    }
+
+}
@@ -0,0 +1,129 @@
+package org.openmrs.module.paperrecord.lock;
+
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PersonName;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.test.context.transaction.AfterTransaction;
+import org.springframework.test.context.transaction.BeforeTransaction;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class DatabasePatientLockProviderComponentTest extends BaseModuleContextSensitiveTest {
+
+    @Autowired
+    @Qualifier("paperRecordDatabasePatientLockProvider")
+    private DatabasePatientLockProvider databasePatientLockProvider;
+
+    @Autowired
+    private PatientService patientService;
+
+    @Autowired
+    private LocationService locationService;
+
+    @BeforeTransaction
+    public void createPatientLockTable() throws Exception {
+        // the test database schema is generated from the Hibernate mappings, and the lock table isn't mapped, so
+        // create it (on a separate connection, since DDL would commit the test transaction)
+        executeOnSeparateConnection("create table if not exists paperrecord_patient_lock (patient_id int not null primary key)");
+    }
+
+    @AfterTransaction
+    public void deleteLockRows() throws Exception {
+        // lock rows are created in transactions of their own, so they aren't rolled back with the test transaction
+        executeOnSeparateConnection("delete from paperrecord_patient_lock");
+    }
+
+    @Test
+    public void shouldCreateLockRowTheFirstTimePatientIsLocked() throws Exception {
+
+        Patient patient = patientService.getPatient(7);
+        assertThat(countLockRows(patient), is(0));
+
+        String result = databasePatientLockProvider.executeWithLock(patient, new PatientLockProvider.Work<String>() {
+            @Override
+            public String execute() {
+                return "done";
+            }
+        });
+
+        assertThat(result, is("done"));
+        assertThat(countLockRows(patient), is(1));
+
+        // locking again reuses the row
+        databasePatientLockProvider.executeWithLock(patient, new PatientLockProvider.Work<String>() {
+            @Override
+            public String execute() {
+                return "done again";
+            }
+        });
+
+        assertThat(countLockRows(patient), is(1));
+    }
+
+    @Test
+    public void shouldLockPatientSavedInSameTransaction() throws Exception {
+
+        Patient patient = new Patient();
+        patient.addName(new PersonName("Jane", null, "Doe"));
+        patient.setGender("F");
+        patient.setBirthdate(new Date());
+
+        PatientIdentifier identifier = new PatientIdentifier("LOCK123", patientService.getPatientIdentifierType(2),
+                locationService.getLocation(1));
+        identifier.setPreferred(true);
+        patient.addIdentifier(identifier);
+
+        patientService.savePatient(patient);
+
+        String result = databasePatientLockProvider.executeWithLock(patient, new PatientLockProvider.Work<String>() {
+            @Override
+            public String execute() {
+                return "done";
+            }
+        });
+
+        assertThat(result, is("done"));
+        assertThat(countLockRows(patient), is(1));
+    }
+
+    private void executeOnSeparateConnection(String sql) throws Exception {
+        Properties properties = getRuntimeProperties();
+        Connection connection = DriverManager.getConnection(properties.getProperty("connection.url"),
+                properties.getProperty("connection.username"), properties.getProperty("connection.password"));
+        try {
+            Statement statement = connection.createStatement();
+            statement.execute(sql);
+            statement.close();
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    private int countLockRows(Patient patient) throws Exception {
+        Statement statement = getConnection().createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("select count(*) from paperrecord_patient_lock where patient_id = " + patient.getId());
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+}
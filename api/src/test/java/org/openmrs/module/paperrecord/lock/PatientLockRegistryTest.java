@@ -0,0 +1,85 @@
+package org.openmrs.module.paperrecord.lock;
+
+import org.junit.Test;
+import org.openmrs.Patient;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class PatientLockRegistryTest {
+
+    @Test
+    public void shouldRoundNumberOfStripesUpToPowerOfTwo() {
+        assertThat(new PatientLockRegistry(1).getNumberOfStripes(), is(1));
+        assertThat(new PatientLockRegistry(10).getNumberOfStripes(), is(16));
+        assertThat(new PatientLockRegistry(64).getNumberOfStripes(), is(64));
+    }
+
+    @Test
+    public void shouldAlwaysReturnSameLockForSamePatient() {
+        PatientLockRegistry registry = new PatientLockRegistry();
+        assertThat(registry.getStripe(new Patient(123)), sameInstance(registry.getStripe(new Patient(123))));
+        assertThat(registry.getStripe(new Patient()), sameInstance(registry.getStripe(new Patient())));
+    }
+
+    @Test
+    public void shouldAllowReentrantLocking() {
+        PatientLockRegistry registry = new PatientLockRegistry();
+        Patient patient = new Patient(1);
+
+        registry.lock(patient);
+        registry.lock(patient);
+        registry.unlock(patient);
+        registry.unlock(patient);
+
+        assertFalse(registry.getStripe(patient).isLocked());
+        assertThat(registry.getAcquisitionCount(), is(2L));
+        assertThat(registry.getContendedAcquisitionCount(), is(0L));
+    }
+
+    @Test
+    public void shouldBlockSecondThreadUntilPatientIsUnlockedAndRecordContention() throws Exception {
+
+        final PatientLockRegistry registry = new PatientLockRegistry();
+        final Patient patient = new Patient(1);
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final AtomicBoolean acquiredWhileLocked = new AtomicBoolean(false);
+
+        registry.lock(patient);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                registry.lock(patient);
+                try {
+                    acquired.countDown();
+                } finally {
+                    registry.unlock(patient);
+                }
+            }
+        });
+        thread.start();
+
+        // wait until the second thread is queued on the lock
+        while (registry.getQueueLength() == 0) {
+            Thread.sleep(10);
+        }
+        acquiredWhileLocked.set(acquired.getCount() == 0);
+        registry.unlock(patient);
+
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+
+        assertFalse(acquiredWhileLocked.get());
+        assertThat(registry.getAcquisitionCount(), is(2L));
+        assertThat(registry.getContendedAcquisitionCount(), is(1L));
+    }
+
+}
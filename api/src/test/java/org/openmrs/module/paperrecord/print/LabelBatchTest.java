@@ -0,0 +1,101 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.module.paperrecord.template.StreamingLabelTemplate;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LabelBatchTest {
+
+    @Test
+    public void shouldPutAllLabelsInOneJobIfNoMaximum() {
+
+        LabelBatch batch = new LabelBatch(0);
+        batch.add("a", "UTF-8", 2);
+        batch.add("b", "UTF-8", 1);
+
+        List<LabelBatch.Job> jobs = batch.getJobs();
+        assertThat(jobs.size(), is(1));
+        assertThat(jobs.get(0).getData(), is("aab"));
+        assertThat(jobs.get(0).getLabelCount(), is(3));
+    }
+
+    @Test
+    public void shouldStartNewJobWhenMaximumReached() {
+
+        LabelBatch batch = new LabelBatch(2);
+        batch.add("a", "UTF-8", 3);
+        batch.add("b", "UTF-8", 1);
+
+        List<LabelBatch.Job> jobs = batch.getJobs();
+        assertThat(jobs.size(), is(2));
+        assertThat(jobs.get(0).getData(), is("aa"));
+        assertThat(jobs.get(1).getData(), is("ab"));
+        assertThat(jobs.get(1).getLabelCount(), is(2));
+    }
+
+    @Test
+    public void shouldStartNewJobWhenEncodingChanges() {
+
+        LabelBatch batch = new LabelBatch(10);
+        batch.add("a", "UTF-8", 1);
+        batch.add("b", "ISO-8859-1", 1);
+
+        List<LabelBatch.Job> jobs = batch.getJobs();
+        assertThat(jobs.size(), is(2));
+        assertThat(jobs.get(0).getEncoding(), is("UTF-8"));
+        assertThat(jobs.get(1).getEncoding(), is("ISO-8859-1"));
+    }
+
+    @Test
+    public void shouldLetStreamingTemplateRenderCopiesStraightIntoJob() {
+
+        LabelBatch batch = new LabelBatch(0);
+        batch.add(new TestStreamingLabelTemplate(), new Patient(), "A000123", 3);
+        batch.add("b", "UTF-8", 1);
+
+        List<LabelBatch.Job> jobs = batch.getJobs();
+        assertThat(jobs.size(), is(1));
+        assertThat(jobs.get(0).getData(), is("[A000123 x3]b"));
+        assertThat(jobs.get(0).getLabelCount(), is(4));
+    }
+
+    @Test
+    public void shouldSplitCopiesFromStreamingTemplateWhenMaximumReached() {
+
+        LabelBatch batch = new LabelBatch(2);
+        batch.add("a", "UTF-8", 1);
+        batch.add(new TestStreamingLabelTemplate(), new Patient(), "A000123", 4);
+
+        List<LabelBatch.Job> jobs = batch.getJobs();
+        assertThat(jobs.size(), is(3));
+        assertThat(jobs.get(0).getData(), is("a[A000123 x1]"));
+        assertThat(jobs.get(1).getData(), is("[A000123 x2]"));
+        assertThat(jobs.get(2).getData(), is("[A000123 x1]"));
+        assertThat(jobs.get(2).getLabelCount(), is(1));
+    }
+
+    private class TestStreamingLabelTemplate implements StreamingLabelTemplate {
+
+        @Override
+        public void appendLabels(StringBuilder buffer, Patient patient, String paperRecordIdentifier, int count) {
+            buffer.append("[").append(paperRecordIdentifier).append(" x").append(count).append("]");
+        }
+
+        @Override
+        public String generateLabel(Patient patient, String paperRecordIdentifier) {
+            throw new UnsupportedOperationException("Labels should be streamed");
+        }
+
+        @Override
+        public String getEncoding() {
+            return "UTF-8";
+        }
+
+    }
+
+}
@@ -0,0 +1,179 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.openmrs.Location;
+import org.openmrs.api.LocationService;
+import org.openmrs.module.paperrecord.db.LabelPrintJobDAO;
+import org.openmrs.module.printer.Printer;
+import org.openmrs.module.printer.PrinterService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LabelPrintSpoolerComponentTest extends BaseModuleContextSensitiveTest {
+
+    @Autowired
+    @Qualifier("paperRecordLabelPrintJobDAO")
+    private LabelPrintJobDAO labelPrintJobDAO;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private LocationService locationService;
+
+    private PrinterService mockPrinterService;
+
+    private LabelPrintSpooler spooler;
+
+    private Printer printer;
+
+    private Location location;
+
+    @Before
+    public void setup() throws Exception {
+
+        printer = new Printer();
+        printer.setId(1);
+
+        mockPrinterService = mock(PrinterService.class);
+        when(mockPrinterService.getPrinterById(1)).thenReturn(printer);
+
+        // a spooler of our own, which isn't started, so that we can send the jobs from the test thread
+        spooler = new LabelPrintSpooler();
+        spooler.setLabelPrintJobDAO(labelPrintJobDAO);
+        spooler.setPrinterService(mockPrinterService);
+        spooler.setTransactionManager(transactionManager);
+
+        location = locationService.getLocation(1);
+    }
+
+    @Test
+    public void shouldSendQueuedJobsInOrderAndMarkThemPrinted() throws Exception {
+
+        LabelPrintJob firstJob = spooler.enqueue(printer, location, "first\n", "UTF-8", 1);
+        LabelPrintJob secondJob = spooler.enqueue(printer, location, "second\n", "UTF-8", 1);
+
+        spooler.sendQueuedJobs(printer.getId(), new AtomicBoolean(true));
+
+        InOrder inOrder = inOrder(mockPrinterService);
+        inOrder.verify(mockPrinterService).printViaSocket("first\n", printer, "UTF-8");
+        inOrder.verify(mockPrinterService).printViaSocket("second\n", printer, "UTF-8");
+
+        for (LabelPrintJob job : new LabelPrintJob[] { firstJob, secondJob }) {
+            assertThat(job.getStatus(), is(LabelPrintJob.Status.PRINTED));
+            assertThat(job.getAttempts(), is(1));
+            assertNotNull(job.getDatePrinted());
+            assertNull(job.getData());
+        }
+    }
+
+    @Test
+    public void shouldRetryJobThatCannotBeSentWithoutLettingNewerJobsOvertakeIt() throws Exception {
+
+        doThrow(new RuntimeException("Printer offline")).when(mockPrinterService).printViaSocket(eq("first\n"), any(Printer.class), anyString());
+
+        LabelPrintJob firstJob = spooler.enqueue(printer, location, "first\n", "UTF-8", 1);
+        LabelPrintJob secondJob = spooler.enqueue(printer, location, "second\n", "UTF-8", 1);
+
+        spooler.sendQueuedJobs(printer.getId(), new AtomicBoolean(true));
+
+        assertThat(firstJob.getStatus(), is(LabelPrintJob.Status.QUEUED));
+        assertThat(firstJob.getAttempts(), is(1));
+        assertThat(firstJob.getErrorMessage(), is("Printer offline"));
+        assertTrue(firstJob.getNextAttemptDate().after(new Date()));
+
+        // the second job waits for the first to be retried
+        assertThat(secondJob.getStatus(), is(LabelPrintJob.Status.QUEUED));
+        assertThat(secondJob.getAttempts(), is(0));
+        verify(mockPrinterService, never()).printViaSocket(eq("second\n"), any(Printer.class), anyString());
+    }
+
+    @Test
+    public void shouldMarkJobFailedAfterMaximumAttempts() throws Exception {
+
+        doThrow(new RuntimeException("Printer offline")).when(mockPrinterService).printViaSocket(anyString(), any(Printer.class), anyString());
+
+        LabelPrintJob job = spooler.enqueue(printer, location, "first\n", "UTF-8", 1);
+        job.setAttempts(LabelPrintSpooler.MAX_ATTEMPTS - 1);
+        labelPrintJobDAO.saveOrUpdate(job);
+
+        spooler.sendQueuedJobs(printer.getId(), new AtomicBoolean(true));
+
+        assertThat(job.getStatus(), is(LabelPrintJob.Status.FAILED));
+        assertThat(job.getAttempts(), is(LabelPrintSpooler.MAX_ATTEMPTS));
+        assertThat(job.getErrorMessage(), is("Printer offline"));
+        assertThat(labelPrintJobDAO.countLabelPrintJobs(printer.getId(), Collections.singletonList(LabelPrintJob.Status.QUEUED)), is(0));
+    }
+
+    @Test
+    public void shouldRequeueJobsInterruptedByRestart() throws Exception {
+
+        LabelPrintJob job = spooler.enqueue(printer, location, "first\n", "UTF-8", 1);
+        job.setStatus(LabelPrintJob.Status.PRINTING);
+        job.setAttempts(1);
+        labelPrintJobDAO.saveOrUpdate(job);
+
+        List<Integer> printerIds = spooler.requeueInterruptedJobs();
+
+        assertThat(printerIds, contains(printer.getId()));
+        assertThat(labelPrintJobDAO.countLabelPrintJobs(printer.getId(), Collections.singletonList(LabelPrintJob.Status.PRINTING)), is(0));
+        assertThat(labelPrintJobDAO.countLabelPrintJobs(printer.getId(), Collections.singletonList(LabelPrintJob.Status.QUEUED)), is(1));
+    }
+
+    @Test
+    public void shouldPurgeOldPrintedAndFailedJobs() throws Exception {
+
+        Date longAgo = new Date(System.currentTimeMillis() - LabelPrintSpooler.PURGE_AFTER_MILLIS - 60000);
+
+        LabelPrintJob oldPrintedJob = spooler.enqueue(printer, location, "old printed\n", "UTF-8", 1);
+        oldPrintedJob.setStatus(LabelPrintJob.Status.PRINTED);
+        oldPrintedJob.setDateCreated(longAgo);
+        labelPrintJobDAO.saveOrUpdate(oldPrintedJob);
+
+        LabelPrintJob oldFailedJob = spooler.enqueue(printer, location, "old failed\n", "UTF-8", 1);
+        oldFailedJob.setStatus(LabelPrintJob.Status.FAILED);
+        oldFailedJob.setDateCreated(longAgo);
+        labelPrintJobDAO.saveOrUpdate(oldFailedJob);
+
+        LabelPrintJob recentPrintedJob = spooler.enqueue(printer, location, "recent printed\n", "UTF-8", 1);
+        recentPrintedJob.setStatus(LabelPrintJob.Status.PRINTED);
+        labelPrintJobDAO.saveOrUpdate(recentPrintedJob);
+
+        // jobs still in the queue are never purged, however old
+        LabelPrintJob oldQueuedJob = spooler.enqueue(printer, location, "old queued\n", "UTF-8", 1);
+        oldQueuedJob.setDateCreated(longAgo);
+        labelPrintJobDAO.saveOrUpdate(oldQueuedJob);
+
+        spooler.purgeCompletedJobs();
+
+        assertThat(labelPrintJobDAO.countLabelPrintJobs(printer.getId(), Collections.singletonList(LabelPrintJob.Status.PRINTED)), is(1));
+        assertThat(labelPrintJobDAO.countLabelPrintJobs(printer.getId(), Collections.singletonList(LabelPrintJob.Status.FAILED)), is(0));
+        assertThat(labelPrintJobDAO.countLabelPrintJobs(printer.getId(), Collections.singletonList(LabelPrintJob.Status.QUEUED)), is(1));
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.openmrs.Location;
+import org.openmrs.module.paperrecord.db.LabelPrintJobDAO;
+import org.openmrs.module.printer.Printer;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class LabelPrintSpoolerTest {
+
+    private LabelPrintSpooler spooler;
+
+    private LabelPrintJobDAO mockLabelPrintJobDAO;
+
+    @Before
+    public void setup() {
+        mockLabelPrintJobDAO = mock(LabelPrintJobDAO.class);
+        spooler = new LabelPrintSpooler();
+        spooler.setLabelPrintJobDAO(mockLabelPrintJobDAO);
+    }
+
+    @Test
+    public void shouldSaveQueuedJobForPrinter() {
+
+        Printer printer = new Printer();
+        printer.setId(2);
+        Location location = new Location(1);
+
+        // the spooler hasn't been started, so the job is just queued
+        spooler.enqueue(printer, location, "data\nlines\n", "UTF-8", 2);
+
+        ArgumentCaptor<LabelPrintJob> captor = ArgumentCaptor.forClass(LabelPrintJob.class);
+        verify(mockLabelPrintJobDAO).saveOrUpdate(captor.capture());
+
+        LabelPrintJob job = captor.getValue();
+        assertThat(job.getPrinterId(), is(2));
+        assertThat(job.getLocation(), is(location));
+        assertThat(job.getData(), is("data\nlines\n"));
+        assertThat(job.getEncoding(), is("UTF-8"));
+        assertThat(job.getLabelCount(), is(2));
+        assertThat(job.getStatus(), is(LabelPrintJob.Status.QUEUED));
+        assertThat(job.getAttempts(), is(0));
+        assertNotNull(job.getDateCreated());
+        assertThat(job.getNextAttemptDate(), is(job.getDateCreated()));
+    }
+
+    @Test
+    public void shouldTrackPendingJobsForEachPrinterWithoutQueryingTheQueue() {
+
+        Printer printer = new Printer();
+        printer.setId(2);
+
+        assertFalse(spooler.hasPendingJobs(2));
+
+        spooler.enqueue(printer, new Location(1), "data\n", "UTF-8", 1);
+
+        assertTrue(spooler.hasPendingJobs(2));
+        assertFalse(spooler.hasPendingJobs(3));
+        verify(mockLabelPrintJobDAO, never()).countLabelPrintJobs(anyInt(), anyListOf(LabelPrintJob.Status.class));
+    }
+
+    @Test
+    public void shouldBackOffExponentiallyBetweenRetries() {
+        assertThat(LabelPrintSpooler.getRetryDelay(1), is(LabelPrintSpooler.INITIAL_RETRY_DELAY_MILLIS));
+        assertThat(LabelPrintSpooler.getRetryDelay(2), is(2 * LabelPrintSpooler.INITIAL_RETRY_DELAY_MILLIS));
+        assertThat(LabelPrintSpooler.getRetryDelay(3), is(4 * LabelPrintSpooler.INITIAL_RETRY_DELAY_MILLIS));
+        assertThat(LabelPrintSpooler.getRetryDelay(20), is(LabelPrintSpooler.MAX_RETRY_DELAY_MILLIS));
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrinterRateLimiterTest {
+
+    private long now;
+
+    private PrinterRateLimiter limiter;
+
+    @Before
+    public void setup() {
+        limiter = new PrinterRateLimiter() {
+            @Override
+            long nanoTime() {
+                return now;
+            }
+        };
+        limiter.setBurstSize(5);
+        limiter.setLabelsPerSecond(10);
+    }
+
+    @Test
+    public void shouldAllowBurstUpToBurstSize() {
+        assertTrue(limiter.tryAcquire(1, 3));
+        assertTrue(limiter.tryAcquire(1, 2));
+        assertFalse(limiter.tryAcquire(1, 1));
+    }
+
+    @Test
+    public void shouldRefillAtLabelsPerSecond() {
+        assertTrue(limiter.tryAcquire(1, 5));
+        assertFalse(limiter.tryAcquire(1, 2));
+
+        now += 200 * 1000000L;  // 200 ms, enough for two labels
+        assertTrue(limiter.tryAcquire(1, 2));
+        assertFalse(limiter.tryAcquire(1, 1));
+    }
+
+    @Test
+    public void shouldLimitEachPrinterSeparately() {
+        assertTrue(limiter.tryAcquire(1, 5));
+        assertTrue(limiter.tryAcquire(2, 5));
+    }
+
+    @Test
+    public void shouldAllowJobLargerThanBurstSizeOnceBucketIsFull() {
+        assertTrue(limiter.tryAcquire(1, 8));
+
+        // the bucket is now three labels in debt, so it takes 400 ms before another label can be printed
+        now += 200 * 1000000L;
+        assertFalse(limiter.tryAcquire(1, 1));
+
+        now += 200 * 1000000L;
+        assertTrue(limiter.tryAcquire(1, 1));
+    }
+
+}
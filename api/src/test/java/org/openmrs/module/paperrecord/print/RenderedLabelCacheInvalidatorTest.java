@@ -0,0 +1,76 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openmrs.GlobalProperty;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.paperrecord.template.LabelTemplate;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.Locale;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(Context.class)
+public class RenderedLabelCacheInvalidatorTest {
+
+    private RenderedLabelCache cache;
+
+    private RenderedLabelCacheInvalidator invalidator;
+
+    @Before
+    public void setup() {
+        cache = new RenderedLabelCache();
+
+        mockStatic(Context.class);
+        when(Context.getRegisteredComponent("paperRecordRenderedLabelCache", RenderedLabelCache.class)).thenReturn(cache);
+
+        Patient patient = new Patient(1);
+        LabelTemplate template = mock(LabelTemplate.class);
+        when(template.generateLabel(patient, "A000123")).thenReturn("label\n");
+        cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH);
+
+        invalidator = new RenderedLabelCacheInvalidator();
+    }
+
+    @Test
+    public void shouldClearCacheWhenGlobalPropertySaved() throws Throwable {
+
+        GlobalProperty globalProperty = new GlobalProperty("layout.address.format", "maxi");
+        invalidator.afterReturning(globalProperty, AdministrationService.class.getMethod("saveGlobalProperty", GlobalProperty.class),
+                new Object[] { globalProperty }, null);
+
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void shouldClearCacheWhenLocationSaved() throws Throwable {
+
+        Location location = new Location(1);
+        invalidator.afterReturning(location, LocationService.class.getMethod("saveLocation", Location.class),
+                new Object[] { location }, null);
+
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void shouldNotClearCacheWhenGlobalPropertyRead() throws Throwable {
+
+        invalidator.afterReturning("maxi", AdministrationService.class.getMethod("getGlobalProperty", String.class),
+                new Object[] { "layout.address.format" }, null);
+
+        assertThat(cache.size(), is(1));
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.openmrs.module.paperrecord.print;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.module.paperrecord.template.LabelTemplate;
+
+import java.util.Date;
+import java.util.Locale;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RenderedLabelCacheTest {
+
+    private LabelTemplate template;
+
+    private Patient patient;
+
+    @Before
+    public void setup() {
+        patient = new Patient(1);
+
+        template = mock(LabelTemplate.class);
+        when(template.generateLabel(patient, "A000123")).thenReturn("label\n");
+    }
+
+    @Test
+    public void shouldOnlyRenderLabelsOnce() {
+
+        RenderedLabelCache cache = new RenderedLabelCache();
+
+        assertThat(cache.getLabels(template, patient, "A000123", 2, Locale.ENGLISH), is("label\nlabel\n"));
+        assertThat(cache.getLabels(template, patient, "A000123", 2, Locale.ENGLISH), is("label\nlabel\n"));
+
+        verify(template, times(1)).generateLabel(patient, "A000123");
+    }
+
+    @Test
+    public void shouldRenderLabelsAgainForDifferentCountOrLocale() {
+
+        RenderedLabelCache cache = new RenderedLabelCache();
+
+        cache.getLabels(template, patient, "A000123", 2, Locale.ENGLISH);
+        assertThat(cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH), is("label\n"));
+        cache.getLabels(template, patient, "A000123", 1, Locale.FRENCH);
+
+        verify(template, times(3)).generateLabel(patient, "A000123");
+    }
+
+    @Test
+    public void shouldRenderLabelsAgainOncePatientChanged() {
+
+        RenderedLabelCache cache = new RenderedLabelCache();
+
+        patient.setDateChanged(new Date(1000));
+        cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH);
+
+        patient.setDateChanged(new Date(2000));
+        cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH);
+
+        verify(template, times(2)).generateLabel(patient, "A000123");
+    }
+
+    @Test
+    public void shouldRenderLabelsAgainOncePatientEvicted() {
+
+        RenderedLabelCache cache = new RenderedLabelCache();
+
+        cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH);
+        cache.evictPatient(2);
+        assertThat(cache.size(), is(1));
+
+        cache.evictPatient(1);
+        assertThat(cache.size(), is(0));
+        cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH);
+
+        verify(template, times(2)).generateLabel(patient, "A000123");
+    }
+
+    @Test
+    public void shouldDiscardLeastRecentlyUsedLabelsWhenFull() {
+
+        Patient otherPatient = new Patient(2);
+        when(template.generateLabel(otherPatient, "A000456")).thenReturn("other\n");
+
+        RenderedLabelCache cache = new RenderedLabelCache(2);
+
+        cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH);
+        cache.getLabels(template, otherPatient, "A000456", 1, Locale.ENGLISH);
+        cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH);  // now the most recently used
+        cache.getLabels(template, patient, "A000123", 2, Locale.ENGLISH);  // so this pushes out the other patient
+
+        assertThat(cache.size(), is(2));
+        cache.getLabels(template, patient, "A000123", 1, Locale.ENGLISH);
+        cache.getLabels(template, otherPatient, "A000456", 1, Locale.ENGLISH);
+
+        verify(template, times(2)).generateLabel(patient, "A000123");
+        verify(template, times(2)).generateLabel(otherPatient, "A000456");
+    }
+
+}
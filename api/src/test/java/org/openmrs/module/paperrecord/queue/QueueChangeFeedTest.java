@@ -0,0 +1,230 @@
+package org.openmrs.module.paperrecord.queue;
+
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.module.paperrecord.PaperRecord;
+import org.openmrs.module.paperrecord.PaperRecordMergeRequest;
+import org.openmrs.module.paperrecord.PaperRecordRequest;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class QueueChangeFeedTest {
+
+    @Test
+    public void shouldReturnChangesSinceVersionForLocation() {
+
+        Location location = new Location(1);
+        Location otherLocation = new Location(2);
+
+        QueueChangeFeed feed = new QueueChangeFeed();
+
+        feed.requestCreated(createRequest(10, location), 1L);
+        feed.requestChanged(createRequest(11, otherLocation), 1L);
+        feed.mergeRequestCreated(createMergeRequest(12, location), 2L);
+        feed.requestChanged(createRequest(13, location), 3L);
+
+        assertThat(feed.getVersion(location), is(3L));
+        assertThat(feed.getVersion(otherLocation), is(1L));
+
+        List<QueueChange> changes = feed.getChangesSince(1, location, 3);
+        assertThat(changes.size(), is(2));
+        assertThat(changes.get(0).getType(), is(QueueChange.Type.MERGE_REQUEST));
+        assertThat(changes.get(0).getId(), is(12));
+        assertThat(changes.get(0).isCreated(), is(true));
+        assertThat(changes.get(1).getType(), is(QueueChange.Type.REQUEST));
+        assertThat(changes.get(1).getId(), is(13));
+        assertThat(changes.get(1).isCreated(), is(false));
+
+        assertThat(feed.getChangesSince(3, location, 3).size(), is(0));
+    }
+
+    @Test
+    public void shouldNotReturnChangesAfterCurrentVersion() {
+
+        Location location = new Location(1);
+
+        QueueChangeFeed feed = new QueueChangeFeed();
+        feed.requestChanged(createRequest(10, location), 1L);
+        feed.requestChanged(createRequest(11, location), 2L);
+
+        // the client read version 1 from the database before the second change was published
+        List<QueueChange> changes = feed.getChangesSince(0, location, 1);
+        assertThat(changes.size(), is(1));
+        assertThat(changes.get(0).getId(), is(10));
+    }
+
+    @Test
+    public void shouldPublishChangesToRequestsUpdatedInBulk() {
+
+        Location location = new Location(1);
+        Location otherLocation = new Location(2);
+
+        QueueChangeFeed feed = new QueueChangeFeed();
+
+        Map<Integer, Integer> recordLocationIdsByRequestId = new LinkedHashMap<Integer, Integer>();
+        recordLocationIdsByRequestId.put(10, 1);
+        recordLocationIdsByRequestId.put(11, 2);
+        recordLocationIdsByRequestId.put(12, 1);
+
+        Map<Integer, Long> versionsByRecordLocationId = new HashMap<Integer, Long>();
+        versionsByRecordLocationId.put(1, 4L);
+        versionsByRecordLocationId.put(2, 9L);
+
+        feed.requestsChanged(recordLocationIdsByRequestId, versionsByRecordLocationId);
+
+        assertThat(feed.getVersion(location), is(4L));
+        assertThat(feed.getVersion(otherLocation), is(9L));
+
+        // both requests at the first location were changed by the one version
+        List<QueueChange> changes = feed.getChangesSince(3, location, 4);
+        assertThat(changes.size(), is(2));
+        assertThat(changes.get(0).getId(), is(10));
+        assertThat(changes.get(0).isCreated(), is(false));
+        assertThat(changes.get(1).getId(), is(12));
+    }
+
+    @Test
+    public void shouldReturnNullIfChangeWasMadeOnAnotherServer() {
+
+        Location location = new Location(1);
+
+        QueueChangeFeed feed = new QueueChangeFeed();
+        feed.requestChanged(createRequest(10, location), 1L);
+        feed.requestChanged(createRequest(11, location), 3L);
+
+        // version 2 was given to a change this feed never saw
+        assertNull(feed.getChangesSince(0, location, 3));
+        assertNull(feed.getChangesSince(1, location, 3));
+        assertThat(feed.getChangesSince(2, location, 3).size(), is(1));
+    }
+
+    @Test
+    public void shouldReturnNullIfChangesAreNoLongerRetained() {
+
+        Location location = new Location(1);
+
+        QueueChangeFeed feed = new QueueChangeFeed(2);
+
+        feed.requestChanged(createRequest(10, location), 1L);
+        feed.requestChanged(createRequest(11, location), 2L);
+        feed.requestChanged(createRequest(12, location), 3L);
+
+        assertNull(feed.getChangesSince(0, location, 3));
+        assertThat(feed.getChangesSince(1, location, 3).size(), is(2));
+    }
+
+    @Test
+    public void shouldNotReturnNullForQuietLocationAfterChangesElsewhereAreNoLongerRetained() throws Exception {
+
+        Location location = new Location(1);
+        Location otherLocation = new Location(2);
+
+        QueueChangeFeed feed = new QueueChangeFeed(2);
+        feed.requestChanged(createRequest(10, location), 1L);
+
+        feed.requestChanged(createRequest(11, otherLocation), 1L);
+        feed.requestChanged(createRequest(12, otherLocation), 2L);
+        feed.requestChanged(createRequest(13, otherLocation), 3L);
+
+        assertThat(feed.getChangesSince(1, location, 1).size(), is(0));
+        assertNull(feed.getChangesSince(0, otherLocation, 3));
+
+        // and waiting for a change at the quiet location actually waits, rather than returning straight away
+        long start = System.currentTimeMillis();
+        feed.awaitChangesSince(1, location, 200);
+        assertThat(System.currentTimeMillis() - start, greaterThanOrEqualTo(150L));
+    }
+
+    @Test
+    public void shouldReturnNullIfVersionIsAheadOfCurrentVersion() {
+        // e.g. the database was restored from a backup
+        assertNull(new QueueChangeFeed().getChangesSince(5, new Location(1), 2));
+    }
+
+    @Test
+    public void shouldStopWaitingAsSoonAsChangeIsPublished() throws Exception {
+
+        final QueueChangeFeed feed = new QueueChangeFeed();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                feed.requestChanged(createRequest(10, new Location(1)), 1L);
+            }
+        });
+        thread.start();
+
+        long start = System.currentTimeMillis();
+        feed.awaitChangesSince(0, new Location(1), 10000);
+        thread.join();
+
+        assertThat(feed.getVersion(new Location(1)), is(1L));
+        assertThat(System.currentTimeMillis() - start, lessThan(10000L));
+    }
+
+    @Test
+    public void shouldNotWaitIfTooManyClientsAreAlreadyWaiting() throws Exception {
+
+        final QueueChangeFeed feed = new QueueChangeFeed();
+        feed.setMaxWaiters(1);
+
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    feed.awaitChangesSince(0, new Location(1), 10000);
+                } catch (InterruptedException e) {
+                    // just stop waiting
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(200);
+
+        long start = System.currentTimeMillis();
+        assertFalse(feed.awaitChangesSince(0, new Location(2), 10000));
+        assertThat(System.currentTimeMillis() - start, lessThan(10000L));
+
+        // once the first client has stopped waiting, there is room again
+        feed.requestChanged(createRequest(10, new Location(1)), 1L);
+        waiter.join();
+        assertTrue(feed.awaitChangesSince(0, new Location(1), 10000));
+    }
+
+    private PaperRecordRequest createRequest(Integer id, Location recordLocation) {
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setRecordLocation(recordLocation);
+
+        PaperRecordRequest request = new PaperRecordRequest();
+        request.setId(id);
+        request.setPaperRecord(paperRecord);
+        return request;
+    }
+
+    private PaperRecordMergeRequest createMergeRequest(Integer id, Location recordLocation) {
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setRecordLocation(recordLocation);
+
+        PaperRecordMergeRequest mergeRequest = new PaperRecordMergeRequest();
+        mergeRequest.setId(id);
+        mergeRequest.setPreferredPaperRecord(paperRecord);
+        return mergeRequest;
+    }
+
+}
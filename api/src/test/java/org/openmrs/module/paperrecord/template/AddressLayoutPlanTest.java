@@ -0,0 +1,95 @@
+package org.openmrs.module.paperrecord.template;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.PersonAddress;
+import org.openmrs.layout.address.AddressTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AddressLayoutPlanTest {
+
+    private AddressTemplate addressTemplate;
+
+    @Before
+    public void setup() {
+        List<List<Map<String, String>>> lines = new ArrayList<List<Map<String, String>>>();
+        lines.add(asList(token("address2"), text("Street"), token("address1")));
+        lines.add(asList(token("address3")));
+        lines.add(asList(token("cityVillage"), token("countyDistrict")));
+        lines.add(asList(token("country"), token("unknownProperty")));
+
+        addressTemplate = mock(AddressTemplate.class);
+        when(addressTemplate.getLayoutToken()).thenReturn("IS_ADDR_TOKEN");
+        when(addressTemplate.getLines()).thenReturn(lines);
+    }
+
+    @Test
+    public void shouldFormatEachLineOfAddress() {
+
+        PersonAddress address = new PersonAddress();
+        address.setAddress2("2eme rue");
+        address.setAddress1("Cange");
+        address.setAddress3("3ème La Hoye");
+        address.setCityVillage("Lascahobas");
+        address.setCountyDistrict("Centre");
+        address.setCountry("Haiti");
+
+        List<String> lines = AddressLayoutPlan.compile(addressTemplate).formatLines(address);
+
+        assertThat(lines, is(asList("2eme rue, Cange", "3ème La Hoye", "Lascahobas, Centre", "Haiti")));
+    }
+
+    @Test
+    public void shouldLeaveOutBlankPropertiesAndLines() {
+
+        PersonAddress address = new PersonAddress();
+        address.setAddress1("Cange");
+        address.setAddress3(" ");
+        address.setCountyDistrict("Centre");
+
+        List<String> lines = AddressLayoutPlan.compile(addressTemplate).formatLines(address);
+
+        assertThat(lines, is(asList("Cange", "Centre")));
+    }
+
+    @Test
+    public void shouldKnowWhichTemplateItWasCompiledFrom() {
+        AddressLayoutPlan plan = AddressLayoutPlan.compile(addressTemplate);
+        assertTrue(plan.isCompiledFrom(addressTemplate));
+        assertFalse(plan.isCompiledFrom(mock(AddressTemplate.class)));
+    }
+
+    @Test
+    public void shouldNotCompileTemplateWithoutLines() {
+        assertNull(AddressLayoutPlan.compile(null));
+        assertNull(AddressLayoutPlan.compile(mock(AddressTemplate.class)));
+    }
+
+    private Map<String, String> token(String codeName) {
+        Map<String, String> token = new HashMap<String, String>();
+        token.put("isToken", "IS_ADDR_TOKEN");
+        token.put("codeName", codeName);
+        return token;
+    }
+
+    private Map<String, String> text(String displayText) {
+        Map<String, String> token = new HashMap<String, String>();
+        token.put("isToken", "IS_NOT_ADDR_TOKEN");
+        token.put("displayText", displayText);
+        return token;
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.openmrs.module.paperrecord.template;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class CompiledZplTemplateTest {
+
+    @Test
+    public void shouldSubstituteFieldsIntoStaticText() {
+        CompiledZplTemplate template = CompiledZplTemplate.compile("^FO{0},{1}^AUN^FD{2}^FS");
+        assertThat(template.render(100, 110, "A 000123"), is("^FO100,110^AUN^FDA 000123^FS"));
+    }
+
+    @Test
+    public void shouldAllowFieldsToBeRepeatedAndOutOfOrder() {
+        CompiledZplTemplate template = CompiledZplTemplate.compile("{1}-{0}-{1}");
+        assertThat(template.render("a", "b"), is("b-a-b"));
+    }
+
+    @Test
+    public void shouldRenderNullValueAsEmptyString() {
+        CompiledZplTemplate template = CompiledZplTemplate.compile("^FD{0}{1}^FS");
+        assertThat(template.render("02/Dec/2010", null), is("^FD02/Dec/2010^FS"));
+    }
+
+    @Test
+    public void shouldLeaveBracesThatAreNotFieldsAsIs() {
+        CompiledZplTemplate template = CompiledZplTemplate.compile("{}{a}{0");
+        assertThat(template.render(), is("{}{a}{0"));
+    }
+
+    @Test
+    public void shouldRenderTemplateWithoutFields() {
+        CompiledZplTemplate template = CompiledZplTemplate.compile("^XA^CI28^PW1300^MTT");
+        assertThat(template.render(), is("^XA^CI28^PW1300^MTT"));
+    }
+
+}
@@ -145,6 +145,27 @@ public class DefaultZplPaperRecordLabelTemplateTest {
 
     }
 
+    @Test
+    public void testAppendLabelsShouldPrintCopiesWithPrintQuantityCommand() {
+
+        Patient patient = new Patient();
+        patient.setGender("F");
+
+        PatientIdentifier primaryIdentifier = new PatientIdentifier();
+        primaryIdentifier.setIdentifierType(primaryIdentifierType);
+        primaryIdentifier.setIdentifier("ABC");
+        patient.addIdentifier(primaryIdentifier);
+
+        PersonName name = new PersonName();
+        name.setFamilyName("Jones");
+        name.setGivenName("Indiana");
+        patient.addName(name);
+
+        StringBuilder data = new StringBuilder("^XA^XZ");
+        template.appendLabels(data, patient, "A000123", 3);
+        assertThat(data.toString(), is("^XA^XZ^XA^CI28^PW1300^MTT^FO080,40^AVN^FDJones, Indiana^FS^FO080,120^AUN^FDABC^FS^FO080,190^ATN^FDFemale^FS^FO680,40^FB520,1,0,R,0^AUN,140,110^FDA 000 123^FS^FO780,160^ATN^BY4^BCN,150,N^FDABC^FS^PQ3^XZ"));
+    }
+
     // the following test requires that the label printer actually be online and available
     // (and that the ip address and port are set properly)
 
@@ -2,15 +2,22 @@ package org.openmrs.module.paperrecord.fragment.controller;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Location;
 import org.openmrs.Person;
 import org.openmrs.module.appui.UiSessionContext;
-import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.patient.PatientDomainWrapper;
-import org.openmrs.module.paperrecord.PaperRecord;
+import org.openmrs.module.paperrecord.PaperRecordAssignmentResult;
 import org.openmrs.module.paperrecord.PaperRecordMergeRequest;
+import org.openmrs.module.paperrecord.PaperRecordQueueCounts;
+import org.openmrs.module.paperrecord.PaperRecordQueueRow;
 import org.openmrs.module.paperrecord.PaperRecordRequest;
+import org.openmrs.module.paperrecord.PaperRecordScan;
 import org.openmrs.module.paperrecord.PaperRecordService;
 import org.openmrs.module.paperrecord.UnableToPrintLabelException;
+import org.openmrs.module.paperrecord.print.LabelPrintJob;
+import org.openmrs.module.paperrecord.print.LabelPrintResult;
+import org.openmrs.module.paperrecord.queue.QueueChange;
+import org.openmrs.module.paperrecord.queue.QueueChangeFeed;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
 import org.openmrs.ui.framework.annotation.SpringBean;
@@ -22,7 +29,13 @@ import org.springframework.web.bind.annotation.RequestParam;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ArchivesRoomFragmentController {
 
@@ -37,31 +50,43 @@ public class ArchivesRoomFragmentController {
 
     private DateFormat dateAndTimeFormat = new SimpleDateFormat("dd/MM HH:mm");
 
+    // how long a request for queue changes waits for something to change before returning empty-handed
+    public static final long QUEUE_CHANGES_TIMEOUT = 25000;
+
+    // how far back to look for label print jobs that could not be sent
+    public static final long FAILED_LABEL_PRINT_JOBS_PERIOD = 24 * 60 * 60 * 1000;
+
     public List<SimpleObject> getOpenRecordsToPull(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
-                                                   @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
+                                                   @RequestParam(value = "afterDateCreated", required = false) Long afterDateCreated,
+                                                   @RequestParam(value = "afterRequestId", required = false) Integer afterRequestId,
+                                                   @RequestParam(value = "limit", required = false) Integer limit,
                                                    UiSessionContext uiSessionContext,
                                                    UiUtils ui) {
 
-        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToPull(uiSessionContext.getSessionLocation());
+        List<PaperRecordQueueRow> rows = paperRecordService.getOpenPaperRecordQueueRowsToPull(uiSessionContext.getSessionLocation(),
+                toDate(afterDateCreated), afterRequestId, limit);
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
-        if (requests != null && requests.size() > 0) {
-            results = convertPaperRecordRequestsToSimpleObjects(requests, paperRecordService, emrApiProperties, ui);
+        if (rows != null && rows.size() > 0) {
+            results = convertPaperRecordQueueRowsToSimpleObjects(rows, ui);
         }
 
         return results;
     }
 
     public List<SimpleObject> getOpenRecordsToCreate(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
-                                                     @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
+                                                     @RequestParam(value = "afterDateCreated", required = false) Long afterDateCreated,
+                                                     @RequestParam(value = "afterRequestId", required = false) Integer afterRequestId,
+                                                     @RequestParam(value = "limit", required = false) Integer limit,
                                                      UiSessionContext uiSessionContext,
                                                      UiUtils ui) {
 
-        List<PaperRecordRequest> requests = paperRecordService.getOpenPaperRecordRequestsToCreate(uiSessionContext.getSessionLocation());
+        List<PaperRecordQueueRow> rows = paperRecordService.getOpenPaperRecordQueueRowsToCreate(uiSessionContext.getSessionLocation(),
+                toDate(afterDateCreated), afterRequestId, limit);
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
-        if (requests != null && requests.size() > 0) {
-            results = convertPaperRecordRequestsToSimpleObjects(requests, paperRecordService, emrApiProperties, ui);
+        if (rows != null && rows.size() > 0) {
+            results = convertPaperRecordQueueRowsToSimpleObjects(rows, ui);
         }
 
         return results;
@@ -82,35 +107,107 @@ public class ArchivesRoomFragmentController {
     }
 
     public List<SimpleObject> getAssignedRecordsToPull(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
-                                                       @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
+                                                       @RequestParam(value = "afterDateCreated", required = false) Long afterDateCreated,
+                                                       @RequestParam(value = "afterRequestId", required = false) Integer afterRequestId,
+                                                       @RequestParam(value = "limit", required = false) Integer limit,
                                                        UiSessionContext uiSessionContext,
                                                        UiUtils ui) {
 
-        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToPull(uiSessionContext.getSessionLocation());
+        List<PaperRecordQueueRow> rows = paperRecordService.getAssignedPaperRecordQueueRowsToPull(uiSessionContext.getSessionLocation(),
+                toDate(afterDateCreated), afterRequestId, limit);
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
-        if (requests != null && requests.size() > 0) {
-            results = convertPaperRecordRequestsToSimpleObjects(requests, paperRecordService, emrApiProperties, ui);
+        if (rows != null && rows.size() > 0) {
+            results = convertPaperRecordQueueRowsToSimpleObjects(rows, ui);
         }
 
         return results;
     }
 
     public List<SimpleObject> getAssignedRecordsToCreate(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
-                                                         @SpringBean("emrApiProperties") EmrApiProperties emrApiProperties,
+                                                         @RequestParam(value = "afterDateCreated", required = false) Long afterDateCreated,
+                                                         @RequestParam(value = "afterRequestId", required = false) Integer afterRequestId,
+                                                         @RequestParam(value = "limit", required = false) Integer limit,
                                                          UiSessionContext uiSessionContext,
                                                          UiUtils ui) {
 
-        List<PaperRecordRequest> requests = paperRecordService.getAssignedPaperRecordRequestsToCreate(uiSessionContext.getSessionLocation());
+        List<PaperRecordQueueRow> rows = paperRecordService.getAssignedPaperRecordQueueRowsToCreate(uiSessionContext.getSessionLocation(),
+                toDate(afterDateCreated), afterRequestId, limit);
         List<SimpleObject> results = new ArrayList<SimpleObject>();
 
-        if (requests != null && requests.size() > 0) {
-            results = convertPaperRecordRequestsToSimpleObjects(requests, paperRecordService, emrApiProperties, ui);
+        if (rows != null && rows.size() > 0) {
+            results = convertPaperRecordQueueRowsToSimpleObjects(rows, ui);
         }
 
         return results;
     }
 
+    /**
+     * Returns just the number of requests in each queue at the session's medical record location, from a single
+     * count query, so it is cheap enough to poll frequently for badges and tab titles
+     */
+    public SimpleObject getQueueCounts(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                       UiSessionContext uiSessionContext) {
+
+        PaperRecordQueueCounts counts = paperRecordService.getPaperRecordQueueCounts(uiSessionContext.getSessionLocation());
+
+        SimpleObject result = new SimpleObject();
+        result.put("openToPull", counts.getOpenToPull());
+        result.put("openToCreate", counts.getOpenToCreate());
+        result.put("assignedToPull", counts.getAssignedToPull());
+        result.put("assignedToCreate", counts.getAssignedToCreate());
+        return result;
+    }
+
+    /**
+     * Long-polling alternative to reloading all the queues: waits (up to QUEUE_CHANGES_TIMEOUT) for a change to any
+     * request or merge request at the session's medical record location after the given version, and then returns
+     * the changes in the same format as {@link #getQueueChangesSinceVersion}
+     * <p/>
+     * If too many clients are already waiting, returns straight away with "busy" set, in which case the client should
+     * wait a while before asking again, rather than holding yet another servlet thread
+     */
+    public SimpleObject getQueueChanges(@RequestParam(value = "since", required = false) Long since,
+                                        @SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                        @SpringBean("paperRecordQueueChangeFeed") QueueChangeFeed queueChangeFeed,
+                                        UiSessionContext uiSessionContext,
+                                        UiUtils ui) throws InterruptedException {
+
+        Location recordLocation = paperRecordService.getMedicalRecordLocationAssociatedWith(uiSessionContext.getSessionLocation());
+
+        // only wait if nothing has changed yet; changes made on another server don't wake a waiting client
+        boolean waited = true;
+        if (since != null && since == paperRecordService.getPaperRecordQueueVersion(recordLocation)) {
+            waited = queueChangeFeed.awaitChangesSince(since, recordLocation, QUEUE_CHANGES_TIMEOUT);
+        }
+
+        SimpleObject result = buildQueueChanges(since, recordLocation, paperRecordService, queueChangeFeed, ui);
+        result.put("busy", !waited);
+        return result;
+    }
+
+    /**
+     * Returns what has changed in the queues at the session's medical record location since the given version
+     * (a version returned by a previous call), without waiting:
+     * <ul>
+     * <li>"notModified" if nothing has changed</li>
+     * <li>"reset" if no version is given, or the changes since the given version are no longer available, in
+     * which case the client should reload all the queues</li>
+     * <li>otherwise the inserted and updated rows, each with the queue it now belongs in, the ids of the rows that
+     * should be removed from the queues, and the same for merge requests</li>
+     * </ul>
+     * The current "version" is always included, to pass in on the next call.
+     */
+    public SimpleObject getQueueChangesSinceVersion(@RequestParam(value = "since", required = false) Long since,
+                                                    @SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                                    @SpringBean("paperRecordQueueChangeFeed") QueueChangeFeed queueChangeFeed,
+                                                    UiSessionContext uiSessionContext,
+                                                    UiUtils ui) {
+
+        Location recordLocation = paperRecordService.getMedicalRecordLocationAssociatedWith(uiSessionContext.getSessionLocation());
+        return buildQueueChanges(since, recordLocation, paperRecordService, queueChangeFeed, ui);
+    }
+
     public FragmentActionResult assignPullRequests(@RequestParam("requestId[]") List<PaperRecordRequest> requests,
                                                    @SpringBean("paperRecordService") PaperRecordService paperRecordService,
                                                    UiSessionContext sessionContext, UiUtils ui) {
@@ -118,8 +215,9 @@ public class ArchivesRoomFragmentController {
         Person assignTo = sessionContext.getCurrentUser().getPerson();
 
         try {
-            paperRecordService.assignRequests(requests, assignTo, sessionContext.getSessionLocation());
-            return new SuccessResult(ui.message("paperrecord.archivesRoom.pullRequests.message"));
+            PaperRecordAssignmentResult result = paperRecordService.assignRequests(requests, assignTo, sessionContext.getSessionLocation());
+            return new SuccessResult(getPrintedMessage("paperrecord.archivesRoom.pullRequests.message",
+                    "paperrecord.archivesRoom.pullRequests.queued.message", result.getLabelPrintResult(), ui));
         }
         catch (UnableToPrintLabelException ex) {
             log.warn("Unable to assign pull requests: User " + sessionContext.getCurrentUser()
@@ -140,8 +238,9 @@ public class ArchivesRoomFragmentController {
         Person assignTo = sessionContext.getCurrentUser().getPerson();
 
         try {
-            paperRecordService.assignRequests(requests, assignTo, sessionContext.getSessionLocation());
-            return new SuccessResult(ui.message("paperrecord.archivesRoom.createRequests.message"));
+            PaperRecordAssignmentResult result = paperRecordService.assignRequests(requests, assignTo, sessionContext.getSessionLocation());
+            return new SuccessResult(getPrintedMessage("paperrecord.archivesRoom.createRequests.message",
+                    "paperrecord.archivesRoom.createRequests.queued.message", result.getLabelPrintResult(), ui));
         }
         catch (UnableToPrintLabelException ex) {
             log.warn("Unable to assign create requests: User " + sessionContext.getCurrentUser()
@@ -173,20 +272,19 @@ public class ArchivesRoomFragmentController {
                                                              UiUtils ui) {
 
         try {
-            // fetch the pending request associated with this identifier
-            PaperRecordRequest paperRecordRequest = paperRecordService.getPendingPaperRecordRequestByIdentifier(identifier, uiSessionContext.getSessionLocation());
+            // fetch the pending and sent requests associated with this identifier
+            PaperRecordScan scan = paperRecordService.resolveScan(identifier, uiSessionContext.getSessionLocation());
+            PaperRecordRequest paperRecordRequest = scan.getPendingRequest();
 
             if (paperRecordRequest == null) {
                 // if no matching request found, determine what error we need to return
-                List<PaperRecordRequest> sentRequests = paperRecordService.getSentPaperRecordRequestByIdentifier(identifier, uiSessionContext.getSessionLocation());
-                if (sentRequests == null || sentRequests.size() == 0) {
+                PaperRecordRequest sentRequest = scan.getLatestSentRequest();
+                if (sentRequest == null) {
                     return new FailureResult(ui.message("paperrecord.archivesRoom.error.paperRecordNotRequested", ui.format(identifier)));
                 }
                 else {
-                    // note that if for some reason there are multiple sent requests, we just return the identifier of
-                    // the last request in the list (under the possibly faulty assumption that this is the most recent)
-                    return new FailureResult(ui.message("paperrecord.archivesRoom.error.paperRecordAlreadySent", ui.format(sentRequests.get(sentRequests.size() - 1).getPaperRecord().getPatientIdentifier().getIdentifier()),
-                            ui.format(sentRequests.get(sentRequests.size() - 1).getRequestLocation()), ui.format(sentRequests.get(sentRequests.size() - 1).getDateStatusChanged())));
+                    return new FailureResult(ui.message("paperrecord.archivesRoom.error.paperRecordAlreadySent", ui.format(sentRequest.getPaperRecord().getPatientIdentifier().getIdentifier()),
+                            ui.format(sentRequest.getRequestLocation()), ui.format(sentRequest.getDateStatusChanged())));
                 }
             }
             else {
@@ -221,13 +319,13 @@ public class ArchivesRoomFragmentController {
 
         try {
             // fetch the send requests associated with this message
-            List<PaperRecordRequest> sentRequests = paperRecordService.getSentPaperRecordRequestByIdentifier(identifier, sessionContext.getSessionLocation());
+            PaperRecordScan scan = paperRecordService.resolveScan(identifier, sessionContext.getSessionLocation());
+            List<PaperRecordRequest> sentRequests = scan.getSentRequests();
 
             // handle not finding a match
-            if (sentRequests == null || sentRequests.size() == 0) {
+            if (sentRequests.size() == 0) {
                 // as long as this identifier exists, we can return a success message (no error if they mistakenly scan a record twice)
-                if (paperRecordService.paperRecordExistsWithIdentifier(identifier, sessionContext.getSessionLocation())
-                        || paperRecordService.paperRecordExistsForPatientWithPrimaryIdentifier(identifier, sessionContext.getSessionLocation()) ) {
+                if (scan.getPaperRecord() != null) {
                     return new SuccessResult(ui.message("paperrecord.archivesRoom.recordReturned.message"));
                 }
                 else {
@@ -272,8 +370,9 @@ public class ArchivesRoomFragmentController {
                                            UiUtils ui) {
 
         try {
-            paperRecordService.printPaperFormLabels(request, sessionContext.getSessionLocation(), 1);
-            return new SuccessResult(ui.message("paperrecord.archivesRoom.printedLabel.message", request.getPaperRecord().getPatientIdentifier().getIdentifier()));
+            LabelPrintResult printResult = paperRecordService.printPaperFormLabels(request, sessionContext.getSessionLocation(), 1);
+            return new SuccessResult(getPrintedMessage("paperrecord.archivesRoom.printedLabel.message", "paperrecord.archivesRoom.queuedLabel.message",
+                    printResult, ui, request.getPaperRecord().getPatientIdentifier().getIdentifier()));
         }
         catch (UnableToPrintLabelException e) {
             log.warn("User " + sessionContext.getCurrentUser() + " unable to print paper record label at location "
@@ -290,8 +389,9 @@ public class ArchivesRoomFragmentController {
                                            UiUtils ui) {
 
         try {
-            paperRecordService.printPaperRecordLabelSet(request, sessionContext.getSessionLocation());
-            return new SuccessResult(ui.message("paperrecord.archivesRoom.printedLabels.message", request.getPaperRecord().getPatientIdentifier().getIdentifier()));
+            LabelPrintResult printResult = paperRecordService.printPaperRecordLabelSet(request, sessionContext.getSessionLocation());
+            return new SuccessResult(getPrintedMessage("paperrecord.archivesRoom.printedLabels.message", "paperrecord.archivesRoom.queuedLabels.message",
+                    printResult, ui, request.getPaperRecord().getPatientIdentifier().getIdentifier()));
         }
         catch (UnableToPrintLabelException e) {
             log.warn("User " + sessionContext.getCurrentUser() + " unable to print paper record label at location "
@@ -302,53 +402,182 @@ public class ArchivesRoomFragmentController {
 
     }
 
-    private List<SimpleObject> convertPaperRecordRequestsToSimpleObjects(List<PaperRecordRequest> requests,
-                                                                         PaperRecordService paperRecordService,
-                                                                         EmrApiProperties emrApiProperties, UiUtils ui) {
+    /**
+     * Returns the label print jobs at the session location that are still waiting to be sent to the printer
+     * ("pending"), and those from the last day that could not be sent ("failed"), so the archives room can show
+     * whether the labels it printed have come out; only relevant when asynchronous label printing is enabled
+     */
+    public SimpleObject getLabelPrintJobs(@SpringBean("paperRecordService") PaperRecordService paperRecordService,
+                                          UiSessionContext uiSessionContext,
+                                          UiUtils ui) {
+
+        Location location = uiSessionContext.getSessionLocation();
+        Date failedSince = new Date(System.currentTimeMillis() - FAILED_LABEL_PRINT_JOBS_PERIOD);
+
+        SimpleObject result = new SimpleObject();
+        result.put("pending", convertLabelPrintJobsToSimpleObjects(paperRecordService.getPendingLabelPrintJobs(location), ui));
+        result.put("failed", convertLabelPrintJobsToSimpleObjects(paperRecordService.getFailedLabelPrintJobs(location, failedSince), ui));
+        return result;
+    }
 
-        List<SimpleObject> results = new ArrayList<SimpleObject>();
+    // labels are queued rather than printed straight away if the printer is saturated, in which case we tell the user
+    // where they are in the queue (the message for the queued case takes the queue position as its last argument)
+    private String getPrintedMessage(String printedCode, String queuedCode, LabelPrintResult printResult,
+                                     UiUtils ui, Object... args) {
+
+        if (printResult.isQueued()) {
+            Object[] queuedArgs = Arrays.copyOf(args, args.length + 1);
+            queuedArgs[args.length] = printResult.getQueuePosition();
+            return ui.message(queuedCode, queuedArgs);
+        }
+
+        return ui.message(printedCode, args);
+    }
+
+    private SimpleObject buildQueueChanges(Long since, Location recordLocation, PaperRecordService paperRecordService,
+                                           QueueChangeFeed queueChangeFeed, UiUtils ui) {
+
+        SimpleObject result = new SimpleObject();
+
+        // the client's token is the version of this location's queues, which is kept in the database, so all servers
+        // agree on it; fetching it before the changes means we may send a change committed in the meantime twice, but
+        // never miss one
+        long version = paperRecordService.getPaperRecordQueueVersion(recordLocation);
+        result.put("version", version);
+        result.put("notModified", false);
+        result.put("reset", false);
+
+        List<QueueChange> changes = since != null ? queueChangeFeed.getChangesSince(since, recordLocation, version) : null;
+
+        if (changes == null) {
+            result.put("reset", true);
+            return result;
+        }
+
+        if (changes.isEmpty()) {
+            result.put("notModified", true);
+            return result;
+        }
+
+        Set<Integer> requestIds = new LinkedHashSet<Integer>();
+        Set<Integer> createdRequestIds = new HashSet<Integer>();
+        Set<Integer> mergeRequestIds = new LinkedHashSet<Integer>();
 
-        for (PaperRecordRequest request : requests) {
-             SimpleObject result = SimpleObject.fromObject(request, ui, "requestId", "requestLocation");
+        for (QueueChange change : changes) {
+            if (change.getType() == QueueChange.Type.REQUEST) {
+                requestIds.add(change.getId());
+                if (change.isCreated()) {
+                    createdRequestIds.add(change.getId());
+                }
+            }
+            else {
+                mergeRequestIds.add(change.getId());
+            }
+        }
 
-            // manually add the date, patient, paper record identifier, and patient identifier
-            result.put("identifier", ui.format(request.getPaperRecord().getPatientIdentifier().getIdentifier()));
-            result.put("dateCreated", timeAndDateFormat.format(request.getDateCreated()));
-            result.put("dateCreatedSortable", request.getDateCreated());
-            result.put("patient", ui.format(request.getPaperRecord().getPatientIdentifier().getPatient()));
+        List<SimpleObject> insertedRequests = new ArrayList<SimpleObject>();
+        List<SimpleObject> updatedRequests = new ArrayList<SimpleObject>();
 
-            // this should never be null, but ran into a random case a patient was merged and the requests for the non-preferred patient weren't cancelled
-            // this just makes sure that if it happens again a NPE won't take down the system
-            if (request.getPaperRecord().getPatientIdentifier().getPatient().getPatientIdentifier(emrApiProperties.getPrimaryIdentifierType()) == null) {
-                log.error("Primary identifier is null for patient " + request.getPaperRecord().getPatientIdentifier().getPatient().getId());
+        for (PaperRecordQueueRow row : paperRecordService.getPendingPaperRecordQueueRows(requestIds)) {
+            SimpleObject request = convertPaperRecordQueueRowToSimpleObject(row, ui);
+            request.put("queue", getQueueName(row));
+            if (createdRequestIds.contains(row.getRequestId())) {
+                insertedRequests.add(request);
             }
             else {
-                result.put("patientIdentifier", ui.format(request.getPaperRecord().getPatientIdentifier().getPatient().getPatientIdentifier(emrApiProperties.getPrimaryIdentifierType()).getIdentifier()));
+                updatedRequests.add(request);
             }
+            requestIds.remove(row.getRequestId());
+        }
 
-            // add the last sent and last sent date to any pending pull requests
-            if (PaperRecordRequest.PENDING_STATUSES.contains(request.getStatus()) && !request.getPaperRecord().getStatus().equals(PaperRecord.Status.PENDING_CREATION)) {
+        List<SimpleObject> mergeRequests = new ArrayList<SimpleObject>();
+        for (Iterator<Integer> i = mergeRequestIds.iterator(); i.hasNext(); ) {
+            PaperRecordMergeRequest mergeRequest = paperRecordService.getPaperRecordMergeRequestById(i.next());
+            if (mergeRequest != null && mergeRequest.getStatus() == PaperRecordMergeRequest.Status.OPEN) {
+                mergeRequests.add(createASingleMergeRequestResult(ui, mergeRequest));
+                i.remove();
+            }
+        }
 
-                // note that we are just using this first paper in the case of multiple paper records
-                PaperRecordRequest lastSentRequest = paperRecordService.getMostRecentSentPaperRecordRequest(request.getPaperRecord());
+        // anything left over is no longer pending, so should be removed from the queues
+        result.put("insertedRequests", insertedRequests);
+        result.put("updatedRequests", updatedRequests);
+        result.put("removedRequestIds", requestIds);
+        result.put("mergeRequests", mergeRequests);
+        result.put("removedMergeRequestIds", mergeRequestIds);
+        return result;
+    }
 
-                // the second check here, where we confirm that the last send request is not equal to the request we are trying to display,
-                // is a hack to work around some transactional issues we were seeing: sometimes we were finding that a request was changed to "sent"
-                // in a different thread while this method was running, resulting in the same request being returned as the most recent request;
-                // ideally, the call to getMostRecentSentPaperRecordRequestsByIdentifier should not occur here, but during the same @Transactional block as when we fetch the main requests list
-                if (lastSentRequest != null && !lastSentRequest.equals(request)) {
-                    result.put("locationLastSent", ui.format(lastSentRequest.getRequestLocation()));
-                    result.put("dateLastSent", timeAndDateFormat.format(lastSentRequest.getDateStatusChanged()));
-                }
+    private List<SimpleObject> convertLabelPrintJobsToSimpleObjects(List<LabelPrintJob> jobs, UiUtils ui) {
 
-           }
+        List<SimpleObject> results = new ArrayList<SimpleObject>();
 
+        for (LabelPrintJob job : jobs) {
+            SimpleObject result = new SimpleObject();
+            result.put("uuid", job.getUuid());
+            result.put("status", job.getStatus().toString());
+            result.put("attempts", job.getAttempts());
+            result.put("errorMessage", job.getErrorMessage() != null ? ui.format(job.getErrorMessage()) : null);
+            result.put("dateCreated", timeAndDateFormat.format(job.getDateCreated()));
             results.add(result);
         }
 
         return results;
     }
 
+    private Date toDate(Long millis) {
+        return millis != null ? new Date(millis) : null;
+    }
+
+    private List<SimpleObject> convertPaperRecordQueueRowsToSimpleObjects(List<PaperRecordQueueRow> rows, UiUtils ui) {
+
+        List<SimpleObject> results = new ArrayList<SimpleObject>();
+
+        for (PaperRecordQueueRow row : rows) {
+            results.add(convertPaperRecordQueueRowToSimpleObject(row, ui));
+        }
+
+        return results;
+    }
+
+    private SimpleObject convertPaperRecordQueueRowToSimpleObject(PaperRecordQueueRow row, UiUtils ui) {
+
+        SimpleObject result = new SimpleObject();
+
+        result.put("requestId", row.getRequestId());
+        result.put("requestLocation", ui.format(row.getRequestLocation()));
+        result.put("identifier", ui.format(row.getPaperRecordIdentifier()));
+        result.put("dateCreated", timeAndDateFormat.format(row.getDateCreated()));
+        result.put("dateCreatedSortable", row.getDateCreated());
+        result.put("patient", ui.format(row.getPatientName()));
+
+        // this should never be null, but ran into a random case a patient was merged and the requests for the non-preferred patient weren't cancelled
+        // this just makes sure that if it happens again a NPE won't take down the system
+        if (row.getPrimaryIdentifier() == null) {
+            log.error("Primary identifier is null for patient " + row.getPatientId());
+        }
+        else {
+            result.put("patientIdentifier", ui.format(row.getPrimaryIdentifier()));
+        }
+
+        // only rows for records that need to be pulled have a last sent location and date
+        if (row.getLocationLastSent() != null) {
+            result.put("locationLastSent", ui.format(row.getLocationLastSent()));
+            result.put("dateLastSent", timeAndDateFormat.format(row.getDateLastSent()));
+        }
+
+        return result;
+    }
+
+    private String getQueueName(PaperRecordQueueRow row) {
+        if (row.getStatus() == PaperRecordRequest.Status.OPEN) {
+            return row.isToCreate() ? "openToCreate" : "openToPull";
+        }
+        else {
+            return row.isToCreate() ? "assignedToCreate" : "assignedToPull";
+        }
+    }
+
 
     private List<SimpleObject> convertPaperRecordMergeRequestsToSimpleObjects(List<PaperRecordMergeRequest> requests, UiUtils ui) {
         List<SimpleObject> results = new ArrayList<SimpleObject>();
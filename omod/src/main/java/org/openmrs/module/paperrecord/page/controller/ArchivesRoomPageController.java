@@ -0,0 +1,17 @@
+package org.openmrs.module.paperrecord.page.controller;
+
+import org.openmrs.module.paperrecord.PaperRecordProperties;
+import org.openmrs.ui.framework.annotation.SpringBean;
+import org.openmrs.ui.framework.page.PageModel;
+
+public class ArchivesRoomPageController {
+
+    public void controller(@SpringBean("paperRecordProperties") PaperRecordProperties paperRecordProperties,
+                           PageModel pageModel) {
+
+        // queue changes are only announced to pages on the server that made them, so when there is more than one
+        // server the page has to fall back on refreshing the queues often
+        pageModel.addAttribute("clusteredPatientLocking", paperRecordProperties.getClusteredPatientLockingEnabled());
+    }
+
+}
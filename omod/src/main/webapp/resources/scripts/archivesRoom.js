@@ -22,13 +22,30 @@ jq(document).ready( function() {
     ko.applyBindings(mergeRequestsViewModel, document.getElementById('mergeRequests'));
 
 
-    // load the tables
-    refreshAllQueues();
+    // load the tables, and then keep them up-to-date by listening for changes
+    pollForQueueChanges();
 
-    // set up auto-refresh of tables every 20 seconds
+    // changes made on other servers don't show up as queue changes, so still do a full refresh every now and then
+    // (every 20 seconds when there is more than one server, see archivesRoom.gsp)
     setInterval(function() {
         refreshAllQueues();
-    }, 20000)
+    }, queueRefreshMillis)
+
+    // load the next page of whichever queue is showing when the user scrolls to the bottom of it
+    jq(window).scroll(function() {
+        if (jq(window).scrollTop() + jq(window).height() >= jq(document).height() - 200) {
+            jQuery.each({
+                pullrequest: pullRequestsViewModel,
+                createrequest: createRequestsViewModel,
+                assignedpullrequest: assignedPullRequestsViewModel,
+                assignedcreaterequest: assignedCreateRequestsViewModel
+            }, function(id, viewModel) {
+                if (jq('#' + id).is(':visible')) {
+                    viewModel.loadMore();
+                }
+            });
+        }
+    });
 
     // handle entering identifiers to mark records as pulled
     jq('.mark-as-pulled').submit(function (e) {
@@ -45,12 +62,9 @@ jq(document).ready( function() {
                 type: 'POST'
             })
                 .success(function(data) {
-                    // clear out the input box
+                    // clear out the input box (the change to the lists will be picked up by pollForQueueChanges)
                     jq('.mark-as-pulled-identifier:visible').val('');
 
-                    // reload the lists
-                    refreshAllQueues();
-
                     emr.successAlert(data.message);
                 })
                 .error(function(xhr, status, err) {
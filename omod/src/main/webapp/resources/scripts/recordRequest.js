@@ -38,6 +38,69 @@ function MergeRequestsModel(mergeRequestId, preferredName, preferredIdentifier,
 }
 
 
+// number of requests to load into a queue at a time; more are loaded as the user scrolls to the bottom of the queue
+var QUEUE_PAGE_SIZE = 100;
+
+/**
+ * Loads the requests in a queue a page at a time; a page starts after the date created and id of the last request
+ * already loaded, so that requests added or removed in the meantime don't cause requests to be skipped or repeated.
+ * Reloading the queue loads at least as many requests as are already showing, so a periodic refresh doesn't lose
+ * the user's place.
+ */
+function loadQueuePage(api, queue, action, append) {
+
+    var items = queue();
+    var params = {};
+
+    if (append) {
+        if (!api.hasMore() || api.loadingMore || items.length == 0) {
+            return;
+        }
+        api.loadingMore = true;
+        params.afterDateCreated = items[items.length - 1].timeRequestedSortable;
+        params.afterRequestId = items[items.length - 1].requestId;
+        params.limit = QUEUE_PAGE_SIZE;
+    }
+    else {
+        params.limit = Math.max(QUEUE_PAGE_SIZE, items.length);
+    }
+
+    jQuery.getJSON(emr.fragmentActionLink("paperrecord", "archivesRoom", action, params))
+        .success(function(data) {
+
+            // fetch all the ids of any existing selected ids (so we can hold selection state)
+            var selectedRequestIds = jQuery.map(jQuery.grep(queue(), function(item) {
+                return item.selected();
+            }), function(request) {
+                return request.requestId;
+            });
+
+            // remove any existing entries
+            if (!append) {
+                queue.removeAll();
+            }
+
+            jQuery.each(data, function(index, request) {
+                // a queue change may already have added the request
+                queue.remove(function(item) {
+                    return item.requestId == request.requestId;
+                });
+                queue.push(RecordRequestModel(request.requestId, request.patient,
+                    request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
+                    request.dateCreatedSortable, request.dateLastSent, request.locationLastSent, selectedRequestIds.indexOf(request.requestId) == -1 ? false : true));
+            });
+
+            api.hasMore(data.length == params.limit);
+        })
+        .error(function(xhr) {
+            emr.handleError(xhr);
+        })
+        .complete(function() {
+            api.loadingMore = false;
+        });
+}
+
+
 function PullRequestsViewModel(recordsToPull) {
     var api = {};
     api.recordsToPull = ko.observableArray(recordsToPull);
@@ -75,32 +138,14 @@ function PullRequestsViewModel(recordsToPull) {
         openCancelPaperRecordRequestDialog(request);
     }
 
-    api.load = function() {
-
-        // reload via ajax
-        jQuery.getJSON(emr.fragmentActionLink("paperrecord", "archivesRoom", "getOpenRecordsToPull"))
-            .success(function(data) {
-
-                // fetch all the ids of any existing selected ids (so we can hold selection state)
-                var selectedRequestIds = jQuery.map(api.selectedRequests(), function(request) {
-                    return request.requestId;
-                });
-
-                // remove any existing entries
-                api.recordsToPull.removeAll();
-
-                // create the new list
-                jQuery.each(data, function(index, request) {
-                    api.recordsToPull.push(RecordRequestModel(request.requestId, request.patient,
-                        request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
-                        request.dateCreatedSortable, request.dateLastSent, request.locationLastSent, selectedRequestIds.indexOf(request.requestId) == -1 ? false : true));
-                });
+    api.hasMore = ko.observable(false);
 
-            })
-            .error(function(xhr) {
-                emr.handleError(xhr);
-            });
+    api.load = function() {
+        loadQueuePage(api, api.recordsToPull, "getOpenRecordsToPull", false);
+    }
 
+    api.loadMore = function() {
+        loadQueuePage(api, api.recordsToPull, "getOpenRecordsToPull", true);
     }
 
     return api;
@@ -138,32 +183,14 @@ function CreateRequestsViewModel(recordsToCreate) {
         openCancelPaperRecordRequestDialog(request);
     }
 
-    api.load = function() {
+    api.hasMore = ko.observable(false);
 
-        // reload via ajax
-        jQuery.getJSON(emr.fragmentActionLink("paperrecord", "archivesRoom", "getOpenRecordsToCreate"))
-            .success(function(data) {
-
-                // fetch all the ids of any existing selected ids (so we can hold selection state)
-                var selectedRequestIds = jQuery.map(api.selectedRequests(), function(request) {
-                    return request.requestId;
-                });
-
-                // remove any existing entries
-                api.recordsToCreate.removeAll();
-
-                // create the new list
-                jQuery.each(data, function(index, request) {
-                    api.recordsToCreate.push(RecordRequestModel(request.requestId, request.patient,
-                        request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
-                        request.dateCreatedSortable, undefined, undefined, selectedRequestIds.indexOf(request.requestId) == -1 ? false : true));
-                });
-
-            })
-            .error(function(xhr) {
-                emr.handleError(xhr);
-            });
+    api.load = function() {
+        loadQueuePage(api, api.recordsToCreate, "getOpenRecordsToCreate", false);
+    }
 
+    api.loadMore = function() {
+        loadQueuePage(api, api.recordsToCreate, "getOpenRecordsToCreate", true);
     }
 
     return api;
@@ -177,27 +204,14 @@ function AssignedPullRequestsViewModel(assignedRecordsToPull) {
         openCancelPaperRecordRequestDialog(request);
     }
 
-    api.load = function() {
-
-        // reload via ajax
-        jQuery.getJSON(emr.fragmentActionLink("paperrecord", "archivesRoom", "getAssignedRecordsToPull"))
-            .success(function(data) {
-
-                // remove any existing entries
-                api.assignedRecordsToPull.removeAll();
-
-                // create the new list
-                jQuery.each(data, function(index, request) {
-                    api.assignedRecordsToPull.push(RecordRequestModel(request.requestId, request.patient,
-                        request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
-                        request.dateCreatedSortable, request.dateLastSent, request.locationLastSent));
-                });
+    api.hasMore = ko.observable(false);
 
-            })
-            .error(function(xhr) {
-                emr.handleError(xhr);
-            });
+    api.load = function() {
+        loadQueuePage(api, api.assignedRecordsToPull, "getAssignedRecordsToPull", false);
+    }
 
+    api.loadMore = function() {
+        loadQueuePage(api, api.assignedRecordsToPull, "getAssignedRecordsToPull", true);
     }
 
     api.printLabel = function (request) {
@@ -226,27 +240,14 @@ function AssignedCreateRequestsViewModel(assignedRecordsToCreate) {
         openCancelPaperRecordRequestDialog(request);
     }
 
-    api.load = function() {
-
-        // reload via ajax
-        jQuery.getJSON(emr.fragmentActionLink("paperrecord", "archivesRoom", "getAssignedRecordsToCreate"))
-            .success(function(data) {
-
-                // remove any existing entries
-                api.assignedRecordsToCreate.removeAll();
+    api.hasMore = ko.observable(false);
 
-                // create the new list
-                jQuery.each(data, function(index, request) {
-                    api.assignedRecordsToCreate.push(RecordRequestModel(request.requestId, request.patient,
-                        request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
-                        request.dateCreatedSortable));
-                });
-
-            })
-            .error(function(xhr) {
-                emr.handleError(xhr);
-            });
+    api.load = function() {
+        loadQueuePage(api, api.assignedRecordsToCreate, "getAssignedRecordsToCreate", false);
+    }
 
+    api.loadMore = function() {
+        loadQueuePage(api, api.assignedRecordsToCreate, "getAssignedRecordsToCreate", true);
     }
 
 
@@ -306,6 +307,141 @@ function MergeRequestsViewModel(requestsToMerge){
 
 }
 
+// version of the queues we are displaying (null until the first check returns)
+var queueVersion = null;
+
+function pollForQueueChanges() {
+
+    var params = queueVersion == null ? {} : { since: queueVersion };
+
+    jQuery.getJSON(emr.fragmentActionLink("paperrecord", "archivesRoom", "getQueueChanges", params))
+        .success(function(data) {
+            handleQueueChanges(data);
+            if (data.busy) {
+                // the server has too many clients waiting for changes already, so ask again in a while
+                setTimeout(pollForQueueChanges, 20000);
+            }
+            else {
+                pollForQueueChanges();
+            }
+        })
+        .error(function(xhr) {
+            // long polling isn't working (the server may be down, or a proxy may be cutting off long requests), so
+            // fall back to checking for changes every 20 seconds, which is cheap when nothing has changed
+            setTimeout(checkForQueueChanges, 20000);
+        });
+}
+
+function checkForQueueChanges() {
+
+    var params = queueVersion == null ? {} : { since: queueVersion };
+
+    jQuery.getJSON(emr.fragmentActionLink("paperrecord", "archivesRoom", "getQueueChangesSinceVersion", params))
+        .success(function(data) {
+            handleQueueChanges(data);
+        })
+        .complete(function() {
+            setTimeout(checkForQueueChanges, 20000);
+        });
+}
+
+function handleQueueChanges(data) {
+
+    if (data.reset) {
+        refreshAllQueues();
+    }
+    else if (!data.notModified) {
+        applyQueueChanges(data);
+    }
+
+    queueVersion = data.version;
+}
+
+function applyQueueChanges(data) {
+
+    var queues = {
+        openToPull: pullRequestsViewModel.recordsToPull,
+        openToCreate: createRequestsViewModel.recordsToCreate,
+        assignedToPull: assignedPullRequestsViewModel.assignedRecordsToPull,
+        assignedToCreate: assignedCreateRequestsViewModel.assignedRecordsToCreate
+    };
+
+    var viewModels = {
+        openToPull: pullRequestsViewModel,
+        openToCreate: createRequestsViewModel,
+        assignedToPull: assignedPullRequestsViewModel,
+        assignedToCreate: assignedCreateRequestsViewModel
+    };
+
+    jQuery.each(data.removedRequestIds, function(index, requestId) {
+        removeRequestFromQueues(queues, requestId);
+    });
+
+    jQuery.each(data.insertedRequests.concat(data.updatedRequests), function(index, request) {
+
+        // hold the selection state of a request that is still in the same queue
+        var existing = jQuery.grep(queues[request.queue](), function(item) {
+            return item.requestId == request.requestId;
+        });
+        var selected = existing.length > 0 && existing[0].selected();
+
+        removeRequestFromQueues(queues, request.requestId);
+
+        var model = RecordRequestModel(request.requestId, request.patient,
+            request.patientIdentifier, request.identifier, request.requestLocation, request.dateCreated,
+            request.dateCreatedSortable, request.dateLastSent, request.locationLastSent, selected);
+
+        // requests after the last page loaded turn up when the user scrolls down to them
+        if (!isAfterLoadedPages(viewModels[request.queue], queues[request.queue], model)) {
+            insertSortedByDateCreated(queues[request.queue], model);
+        }
+    });
+
+    jQuery.each(data.removedMergeRequestIds, function(index, mergeRequestId) {
+        removeMergeRequestFromQueue(mergeRequestId);
+    });
+
+    jQuery.each(data.mergeRequests, function(index, request) {
+        removeMergeRequestFromQueue(request.mergeRequestId);
+        mergeRequestsViewModel.requestsToMerge.push(MergeRequestsModel(request.mergeRequestId, request.preferredName,
+            request.preferredIdentifier, request.notPreferredIdentifier, request.notPreferredName,
+            request.dateCreated, request.dateCreatedSortable));
+    });
+}
+
+function removeRequestFromQueues(queues, requestId) {
+    jQuery.each(queues, function(name, queue) {
+        queue.remove(function(item) {
+            return item.requestId == requestId;
+        });
+    });
+}
+
+function removeMergeRequestFromQueue(mergeRequestId) {
+    mergeRequestsViewModel.requestsToMerge.remove(function(item) {
+        return item.mergeRequestId == mergeRequestId;
+    });
+}
+
+function isAfterLoadedPages(viewModel, queue, model) {
+    var items = queue();
+    if (!viewModel.hasMore() || items.length == 0) {
+        return false;
+    }
+    var last = items[items.length - 1];
+    return model.timeRequestedSortable > last.timeRequestedSortable
+        || (model.timeRequestedSortable == last.timeRequestedSortable && model.requestId > last.requestId);
+}
+
+function insertSortedByDateCreated(queue, model) {
+    var items = queue();
+    var i = 0;
+    while (i < items.length && items[i].timeRequestedSortable <= model.timeRequestedSortable) {
+        i++;
+    }
+    queue.splice(i, 0, model);
+}
+
 function refreshAllQueues() {
     pullRequestsViewModel.load();
     createRequestsViewModel.load()
@@ -10,10 +10,15 @@ import org.openmrs.Person;
 import org.openmrs.PersonName;
 import org.openmrs.User;
 import org.openmrs.module.appui.UiSessionContext;
-import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.paperrecord.PaperRecord;
+import org.openmrs.module.paperrecord.PaperRecordAssignmentResult;
+import org.openmrs.module.paperrecord.PaperRecordQueueCounts;
+import org.openmrs.module.paperrecord.PaperRecordQueueRow;
 import org.openmrs.module.paperrecord.PaperRecordRequest;
+import org.openmrs.module.paperrecord.PaperRecordScan;
 import org.openmrs.module.paperrecord.PaperRecordService;
+import org.openmrs.module.paperrecord.print.LabelPrintResult;
+import org.openmrs.module.paperrecord.queue.QueueChangeFeed;
 import org.openmrs.ui.framework.SimpleObject;
 import org.openmrs.ui.framework.UiUtils;
 import org.openmrs.ui.framework.fragment.action.FailureResult;
@@ -21,19 +26,25 @@ import org.openmrs.ui.framework.fragment.action.FragmentActionResult;
 import org.openmrs.ui.framework.fragment.action.SuccessResult;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -45,8 +56,6 @@ public class ArchivesRoomFragmentControllerTest {
 
     private PaperRecordService paperRecordService;
 
-    private EmrApiProperties emrApiProperties;
-
     private UiSessionContext uiSessionContext;
 
     private User authenicatedUser;
@@ -67,7 +76,6 @@ public class ArchivesRoomFragmentControllerTest {
         ui = new TestUiUtils();
 
         paperRecordService = mock(PaperRecordService.class);
-        emrApiProperties = mock(EmrApiProperties.class);
         uiSessionContext = mock(UiSessionContext.class);
 
         authenicatedUserPerson = new Person();
@@ -83,8 +91,7 @@ public class ArchivesRoomFragmentControllerTest {
     @Test
     public void testControllerShouldReturnFailureResultIfNoMatchingRequestFound() throws Exception {
 
-        when(paperRecordService.getAssignedPaperRecordRequestByIdentifier(eq("123"), eq(sessionLocation))).thenReturn(null);
-        when(paperRecordService.getSentPaperRecordRequestByIdentifier(eq("123"), eq(sessionLocation))).thenReturn(null);
+        when(paperRecordService.resolveScan(eq("123"), eq(sessionLocation))).thenReturn(new PaperRecordScan("123", null, null, null));
 
         FragmentActionResult result = controller.markPaperRecordRequestAsSent("123", paperRecordService, uiSessionContext, ui);
 
@@ -110,8 +117,8 @@ public class ArchivesRoomFragmentControllerTest {
         request.setRequestLocation(location);
         request.setPaperRecord(paperRecord);
 
-        when(paperRecordService.getAssignedPaperRecordRequestByIdentifier(eq("123"), eq(sessionLocation))).thenReturn(null);
-        when(paperRecordService.getSentPaperRecordRequestByIdentifier(eq("123"), eq(sessionLocation))).thenReturn(Collections.singletonList(request));
+        when(paperRecordService.resolveScan(eq("123"), eq(sessionLocation)))
+                .thenReturn(new PaperRecordScan("123", paperRecord, null, Collections.singletonList(request)));
 
         FragmentActionResult result = controller.markPaperRecordRequestAsSent("123", paperRecordService, uiSessionContext, ui);
 
@@ -139,7 +146,7 @@ public class ArchivesRoomFragmentControllerTest {
         request.setDateCreated(new Date());
         request.updateStatus(PaperRecordRequest.Status.ASSIGNED);
 
-        when(paperRecordService.getPendingPaperRecordRequestByIdentifier(eq("123"),eq(sessionLocation))).thenReturn(request);
+        when(paperRecordService.resolveScan(eq("123"), eq(sessionLocation))).thenReturn(new PaperRecordScan("123", paperRecord, Collections.singletonList(request), null));
 
         FragmentActionResult result = controller.markPaperRecordRequestAsSent("123", paperRecordService, uiSessionContext, ui);
 
@@ -168,7 +175,8 @@ public class ArchivesRoomFragmentControllerTest {
         request.setDateCreated(new Date());
         request.updateStatus(PaperRecordRequest.Status.SENT);
 
-        when(paperRecordService.getSentPaperRecordRequestByIdentifier(eq("123"), eq(sessionLocation))).thenReturn(Collections.singletonList(request));
+        when(paperRecordService.resolveScan(eq("123"), eq(sessionLocation)))
+                .thenReturn(new PaperRecordScan("123", paperRecord, null, Collections.singletonList(request)));
 
         FragmentActionResult result = controller.markPaperRecordRequestAsReturned("123", paperRecordService, uiSessionContext, ui);
         assertThat(result, instanceOf(SuccessResult.class));
@@ -177,6 +185,61 @@ public class ArchivesRoomFragmentControllerTest {
 
     }
 
+    @Test
+    public void testControllerShouldMarkRecordAsReturnedEvenIfRecordHasDuplicatePendingRequests() throws Exception {
+
+        PatientIdentifier identifier = new PatientIdentifier();
+        identifier.setIdentifier("123");
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setPatientIdentifier(identifier);
+        paperRecord.updateStatus(PaperRecord.Status.ACTIVE);
+
+        PaperRecordRequest sentRequest = new PaperRecordRequest();
+        sentRequest.setPaperRecord(paperRecord);
+        sentRequest.updateStatus(PaperRecordRequest.Status.SENT);
+
+        PaperRecordRequest pendingRequest = new PaperRecordRequest();
+        pendingRequest.setPaperRecord(paperRecord);
+        pendingRequest.updateStatus(PaperRecordRequest.Status.OPEN);
+
+        PaperRecordRequest anotherPendingRequest = new PaperRecordRequest();
+        anotherPendingRequest.setPaperRecord(paperRecord);
+        anotherPendingRequest.updateStatus(PaperRecordRequest.Status.OPEN);
+
+        when(paperRecordService.resolveScan(eq("123"), eq(sessionLocation))).thenReturn(new PaperRecordScan("123", paperRecord,
+                Arrays.asList(pendingRequest, anotherPendingRequest), Collections.singletonList(sentRequest)));
+
+        FragmentActionResult result = controller.markPaperRecordRequestAsReturned("123", paperRecordService, uiSessionContext, ui);
+
+        verify(paperRecordService).markPaperRecordRequestAsReturned(sentRequest);
+        assertThat(result, instanceOf(SuccessResult.class));
+        assertThat(((SuccessResult) result).getMessage(), containsString("123"));
+    }
+
+    @Test
+    public void testControllerShouldReturnFailureResultWhenMarkingRecordAsSentIfRecordHasDuplicatePendingRequests() throws Exception {
+
+        PaperRecord paperRecord = new PaperRecord();
+
+        PaperRecordRequest pendingRequest = new PaperRecordRequest();
+        pendingRequest.setPaperRecord(paperRecord);
+        pendingRequest.updateStatus(PaperRecordRequest.Status.OPEN);
+
+        PaperRecordRequest anotherPendingRequest = new PaperRecordRequest();
+        anotherPendingRequest.setPaperRecord(paperRecord);
+        anotherPendingRequest.updateStatus(PaperRecordRequest.Status.ASSIGNED);
+
+        when(paperRecordService.resolveScan(eq("123"), eq(sessionLocation))).thenReturn(new PaperRecordScan("123", paperRecord,
+                Arrays.asList(pendingRequest, anotherPendingRequest), null));
+
+        FragmentActionResult result = controller.markPaperRecordRequestAsSent("123", paperRecordService, uiSessionContext, ui);
+
+        verify(paperRecordService, never()).markPaperRecordRequestAsSent(any(PaperRecordRequest.class));
+        assertThat(result, instanceOf(FailureResult.class));
+        assertThat(((FailureResult) result).getSingleError(), containsString("coreapps.error.systemError"));
+    }
+
     @Test
     public void testControllerShouldMarkRecordAsCancelled() throws Exception {
 
@@ -204,13 +267,9 @@ public class ArchivesRoomFragmentControllerTest {
     @Test
     public void testControllerShouldReturnOpenRequestsToPull() throws Exception {
 
-        List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
-
-        when(paperRecordService.getOpenPaperRecordRequestsToPull(sessionLocation)).thenReturn(requests);
-        when(paperRecordService.getMostRecentSentPaperRecordRequest(requests.get(0).getPaperRecord())).thenReturn(createSampleSentRequest());
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+        when(paperRecordService.getOpenPaperRecordQueueRowsToPull(sessionLocation, null, null, null)).thenReturn(createSamplePullQueueRows());
 
-        List<SimpleObject> results = controller.getOpenRecordsToPull(paperRecordService, emrApiProperties, uiSessionContext, ui);
+        List<SimpleObject> results = controller.getOpenRecordsToPull(paperRecordService, null, null, null, uiSessionContext, ui);
 
         assertProperPullResultsList(results);
     }
@@ -218,12 +277,9 @@ public class ArchivesRoomFragmentControllerTest {
     @Test
     public void testControllerShouldReturnOpenRequestsToCreate() throws Exception {
 
-        List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
+        when(paperRecordService.getOpenPaperRecordQueueRowsToCreate(sessionLocation, null, null, null)).thenReturn(createSampleCreateQueueRows());
 
-        when(paperRecordService.getOpenPaperRecordRequestsToCreate(sessionLocation)).thenReturn(requests);
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
-
-        List<SimpleObject> results = controller.getOpenRecordsToCreate(paperRecordService, emrApiProperties, uiSessionContext, ui);
+        List<SimpleObject> results = controller.getOpenRecordsToCreate(paperRecordService, null, null, null, uiSessionContext, ui);
 
         assertProperCreateResultsList(results);
     }
@@ -231,13 +287,9 @@ public class ArchivesRoomFragmentControllerTest {
     @Test
     public void testControllerShouldReturnAssignedRequestsToPull() throws Exception {
 
-        List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
-
-        when(paperRecordService.getAssignedPaperRecordRequestsToPull(sessionLocation)).thenReturn(requests);
-        when(paperRecordService.getMostRecentSentPaperRecordRequest(requests.get(0).getPaperRecord())).thenReturn(createSampleSentRequest());
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+        when(paperRecordService.getAssignedPaperRecordQueueRowsToPull(sessionLocation, null, null, null)).thenReturn(createSamplePullQueueRows());
 
-        List<SimpleObject> results = controller.getAssignedRecordsToPull(paperRecordService, emrApiProperties, uiSessionContext, ui);
+        List<SimpleObject> results = controller.getAssignedRecordsToPull(paperRecordService, null, null, null, uiSessionContext, ui);
 
         assertProperPullResultsList(results);
     }
@@ -245,20 +297,209 @@ public class ArchivesRoomFragmentControllerTest {
     @Test
     public void testControllerShouldReturnAssignedRequestsToCreate() throws Exception {
 
-        List<PaperRecordRequest> requests = createSampleCreatePaperRecordRequestList();
-
-        when(paperRecordService.getAssignedPaperRecordRequestsToCreate(sessionLocation)).thenReturn(requests);
-        when(emrApiProperties.getPrimaryIdentifierType()).thenReturn(patientIdentifierType);
+        when(paperRecordService.getAssignedPaperRecordQueueRowsToCreate(sessionLocation, null, null, null)).thenReturn(createSampleCreateQueueRows());
 
-        List<SimpleObject> results = controller.getAssignedRecordsToCreate(paperRecordService, emrApiProperties, uiSessionContext, ui);
+        List<SimpleObject> results = controller.getAssignedRecordsToCreate(paperRecordService, null, null, null, uiSessionContext, ui);
 
         assertProperCreateResultsList(results);
     }
 
+    @Test
+    public void testControllerShouldReturnPageOfOpenRequestsToPullAfterGivenRequest() throws Exception {
+
+        Date afterDateCreated = new Date();
+        when(paperRecordService.getOpenPaperRecordQueueRowsToPull(sessionLocation, afterDateCreated, 10, 2)).thenReturn(createSamplePullQueueRows());
+
+        List<SimpleObject> results = controller.getOpenRecordsToPull(paperRecordService, afterDateCreated.getTime(), 10, 2, uiSessionContext, ui);
+
+        assertProperPullResultsList(results);
+    }
+
+    @Test
+    public void testControllerShouldReturnQueueCounts() throws Exception {
+
+        PaperRecordQueueCounts counts = new PaperRecordQueueCounts();
+        counts.add(PaperRecordRequest.Status.OPEN, PaperRecord.Status.ACTIVE, 3);
+        counts.add(PaperRecordRequest.Status.OPEN, PaperRecord.Status.PENDING_CREATION, 2);
+        counts.add(PaperRecordRequest.Status.ASSIGNED, PaperRecord.Status.ACTIVE, 1);
+
+        when(paperRecordService.getPaperRecordQueueCounts(sessionLocation)).thenReturn(counts);
+
+        SimpleObject result = controller.getQueueCounts(paperRecordService, uiSessionContext);
+
+        assertThat((Long) result.get("openToPull"), is(3L));
+        assertThat((Long) result.get("openToCreate"), is(2L));
+        assertThat((Long) result.get("assignedToPull"), is(1L));
+        assertThat((Long) result.get("assignedToCreate"), is(0L));
+    }
+
+    @Test
+    public void testGetQueueChangesShouldReturnResetIfNoVersionSpecified() throws Exception {
+
+        sessionLocation.setId(1);
+        when(paperRecordService.getMedicalRecordLocationAssociatedWith(sessionLocation)).thenReturn(sessionLocation);
+        when(paperRecordService.getPaperRecordQueueVersion(sessionLocation)).thenReturn(12L);
+
+        QueueChangeFeed queueChangeFeed = new QueueChangeFeed();
+
+        SimpleObject result = controller.getQueueChanges(null, paperRecordService, queueChangeFeed, uiSessionContext, ui);
+
+        assertThat((Boolean) result.get("reset"), is(true));
+        assertThat((Long) result.get("version"), is(12L));
+    }
+
+    @Test
+    public void testGetQueueChangesShouldReturnInsertedUpdatedAndRemovedRequests() throws Exception {
+
+        sessionLocation.setId(1);
+        when(paperRecordService.getMedicalRecordLocationAssociatedWith(sessionLocation)).thenReturn(sessionLocation);
+        when(paperRecordService.getPaperRecordQueueVersion(sessionLocation)).thenReturn(13L);
+
+        QueueChangeFeed queueChangeFeed = new QueueChangeFeed();
+        long version = 10L;
+
+        queueChangeFeed.requestChanged(createSampleRequestWithId(1), 11L);
+        queueChangeFeed.requestCreated(createSampleRequestWithId(2), 12L);
+        queueChangeFeed.requestChanged(createSampleRequestWithId(3), 13L);
+
+        // requests 1 and 2 are still pending
+        when(paperRecordService.getPendingPaperRecordQueueRows(anyCollectionOf(Integer.class))).thenReturn(createSamplePullQueueRows());
+
+        SimpleObject result = controller.getQueueChanges(version, paperRecordService, queueChangeFeed, uiSessionContext, ui);
+
+        assertThat((Boolean) result.get("reset"), is(false));
+        assertThat((Boolean) result.get("notModified"), is(false));
+        assertThat((Long) result.get("version"), is(13L));
+
+        List<SimpleObject> updatedRequests = (List<SimpleObject>) result.get("updatedRequests");
+        assertThat(updatedRequests.size(), is(1));
+        assertThat((Integer) updatedRequests.get(0).get("requestId"), is(1));
+        assertThat((String) updatedRequests.get(0).get("queue"), is("openToPull"));
+        assertThat((String) updatedRequests.get(0).get("locationLastSent"), is("Previously sent location"));
+
+        List<SimpleObject> insertedRequests = (List<SimpleObject>) result.get("insertedRequests");
+        assertThat(insertedRequests.size(), is(1));
+        assertThat((Integer) insertedRequests.get(0).get("requestId"), is(2));
+        assertThat((String) insertedRequests.get(0).get("queue"), is("assignedToPull"));
+
+        assertThat((Set<Integer>) result.get("removedRequestIds"), contains(3));
+    }
+
+    @Test
+    public void testGetQueueChangesShouldReturnBusyWithoutWaitingIfTooManyClientsAreWaiting() throws Exception {
+
+        sessionLocation.setId(1);
+        when(paperRecordService.getMedicalRecordLocationAssociatedWith(sessionLocation)).thenReturn(sessionLocation);
+        when(paperRecordService.getPaperRecordQueueVersion(sessionLocation)).thenReturn(5L);
+
+        QueueChangeFeed queueChangeFeed = new QueueChangeFeed();
+        queueChangeFeed.setMaxWaiters(0);
+
+        SimpleObject result = controller.getQueueChanges(5L, paperRecordService, queueChangeFeed, uiSessionContext, ui);
+
+        assertThat((Boolean) result.get("busy"), is(true));
+        assertThat((Boolean) result.get("notModified"), is(true));
+        assertThat((Long) result.get("version"), is(5L));
+    }
+
+    @Test
+    public void testGetQueueChangesShouldReturnResetWithoutWaitingIfChangedOnAnotherServer() throws Exception {
+
+        sessionLocation.setId(1);
+        when(paperRecordService.getMedicalRecordLocationAssociatedWith(sessionLocation)).thenReturn(sessionLocation);
+        when(paperRecordService.getPaperRecordQueueVersion(sessionLocation)).thenReturn(6L);
+
+        // this server never saw the change that gave version 6
+        QueueChangeFeed queueChangeFeed = new QueueChangeFeed();
+        queueChangeFeed.setMaxWaiters(0);
+
+        SimpleObject result = controller.getQueueChanges(5L, paperRecordService, queueChangeFeed, uiSessionContext, ui);
+
+        assertThat((Boolean) result.get("busy"), is(false));
+        assertThat((Boolean) result.get("reset"), is(true));
+        assertThat((Long) result.get("version"), is(6L));
+    }
+
+    @Test
+    public void testGetQueueChangesSinceVersionShouldReturnNotModifiedIfNothingHasChanged() throws Exception {
+
+        sessionLocation.setId(1);
+        when(paperRecordService.getMedicalRecordLocationAssociatedWith(sessionLocation)).thenReturn(sessionLocation);
+        when(paperRecordService.getPaperRecordQueueVersion(sessionLocation)).thenReturn(1L);
+
+        QueueChangeFeed queueChangeFeed = new QueueChangeFeed();
+        queueChangeFeed.requestChanged(createSampleRequestWithId(1), 1L);
+
+        SimpleObject result = controller.getQueueChangesSinceVersion(1L, paperRecordService, queueChangeFeed, uiSessionContext, ui);
+
+        assertThat((Boolean) result.get("notModified"), is(true));
+        assertThat((Long) result.get("version"), is(1L));
+        verify(paperRecordService, never()).getPendingPaperRecordQueueRows(anyCollectionOf(Integer.class));
+    }
+
+    @Test
+    public void testGetQueueChangesSinceVersionShouldReturnNotModifiedEvenIfThisServerHasNeverSeenAChange() throws Exception {
+
+        sessionLocation.setId(1);
+        when(paperRecordService.getMedicalRecordLocationAssociatedWith(sessionLocation)).thenReturn(sessionLocation);
+        when(paperRecordService.getPaperRecordQueueVersion(sessionLocation)).thenReturn(8L);
+
+        // e.g. the client's token was handed out by another server, or before a restart
+        SimpleObject result = controller.getQueueChangesSinceVersion(8L, paperRecordService, new QueueChangeFeed(), uiSessionContext, ui);
+
+        assertThat((Boolean) result.get("reset"), is(false));
+        assertThat((Boolean) result.get("notModified"), is(true));
+    }
+
+    @Test
+    public void testGetQueueChangesSinceVersionShouldReturnResetIfChangesNoLongerAvailable() throws Exception {
+
+        sessionLocation.setId(1);
+        when(paperRecordService.getMedicalRecordLocationAssociatedWith(sessionLocation)).thenReturn(sessionLocation);
+        when(paperRecordService.getPaperRecordQueueVersion(sessionLocation)).thenReturn(2L);
+
+        QueueChangeFeed queueChangeFeed = new QueueChangeFeed(1);
+        queueChangeFeed.requestChanged(createSampleRequestWithId(1), 1L);
+        queueChangeFeed.requestChanged(createSampleRequestWithId(2), 2L);
+
+        SimpleObject result = controller.getQueueChangesSinceVersion(0L, paperRecordService, queueChangeFeed, uiSessionContext, ui);
+
+        assertThat((Boolean) result.get("reset"), is(true));
+        assertThat((Long) result.get("version"), is(2L));
+    }
+
+    @Test
+    public void testGetQueueChangesSinceVersionShouldNotResetQuietLocationAfterChangesElsewhereOverflowFeed() throws Exception {
+
+        sessionLocation.setId(1);
+        when(paperRecordService.getMedicalRecordLocationAssociatedWith(sessionLocation)).thenReturn(sessionLocation);
+        when(paperRecordService.getPaperRecordQueueVersion(sessionLocation)).thenReturn(1L);
+
+        Location otherLocation = new Location(2);
+
+        QueueChangeFeed queueChangeFeed = new QueueChangeFeed(2);
+        queueChangeFeed.requestChanged(createSampleRequestWithId(1), 1L);
+
+        // more changes at another location than the feed retains
+        for (int i = 10; i < 15; i++) {
+            PaperRecordRequest request = createSampleRequestWithId(i);
+            request.getPaperRecord().setRecordLocation(otherLocation);
+            queueChangeFeed.requestChanged(request, (long) i);
+        }
+
+        SimpleObject result = controller.getQueueChangesSinceVersion(1L, paperRecordService, queueChangeFeed, uiSessionContext, ui);
+
+        assertThat((Boolean) result.get("reset"), is(false));
+        assertThat((Boolean) result.get("notModified"), is(true));
+        assertThat((Long) result.get("version"), is(1L));
+    }
+
     @Test
     public void testControllerShouldAssignRequests() throws Exception {
 
         List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
+        when(paperRecordService.assignRequests(eq(requests), eq(authenicatedUser.getPerson()), eq(sessionLocation)))
+                .thenReturn(new PaperRecordAssignmentResult());
 
         FragmentActionResult result = controller.assignPullRequests(requests, paperRecordService, uiSessionContext, ui);
 
@@ -266,39 +507,78 @@ public class ArchivesRoomFragmentControllerTest {
         verify(paperRecordService).assignRequests(eq(requests), eq(authenicatedUser.getPerson()), eq(sessionLocation));
     }
 
-    private List<PaperRecordRequest> createSampleCreatePaperRecordRequestList() {
+    @Test
+    public void testControllerShouldReportQueuePositionIfAssignedRequestLabelsQueued() throws Exception {
 
-        Patient patient = new Patient();
-        PersonName name = new PersonName();
-        name.setFamilyName("Jones");
-        name.setGivenName("Tom");
-        patient.addName(name);
+        List<PaperRecordRequest> requests = createSamplePullPaperRecordRequestList();
 
-        PatientIdentifier patientIdentifier = new PatientIdentifier();
-        patientIdentifier.setIdentifier("987");
-        patientIdentifier.setIdentifierType(patientIdentifierType);
-        patient.addIdentifier(patientIdentifier);
+        PaperRecordAssignmentResult assignmentResult = new PaperRecordAssignmentResult();
+        assignmentResult.getAssignedIdentifiers().add("123");
+        assignmentResult.setLabelPrintResult(LabelPrintResult.queued(3));
+        when(paperRecordService.assignRequests(eq(requests), eq(authenicatedUser.getPerson()), eq(sessionLocation))).thenReturn(assignmentResult);
 
-        PatientIdentifier paperRecordIdentifier = new PatientIdentifier();
-        paperRecordIdentifier.setIdentifier("123");
-        paperRecordIdentifier.setIdentifierType(paperRecordIdentifierType);
-        patient.addIdentifier(paperRecordIdentifier);
+        FragmentActionResult result = controller.assignPullRequests(requests, paperRecordService, uiSessionContext, ui);
 
-        Patient patient2 = new Patient();
-        name = new PersonName();
-        name.setFamilyName("Wallace");
-        name.setGivenName("Mike");
-        patient2.addName(name);
+        assertThat(result, instanceOf(SuccessResult.class));
+        assertThat(((SuccessResult) result).getMessage(), is("paperrecord.archivesRoom.pullRequests.queued.message:3"));
+    }
 
-        PatientIdentifier patientIdentifier2 = new PatientIdentifier();
-        patientIdentifier2.setIdentifier("763");
-        patientIdentifier2.setIdentifierType(patientIdentifierType);
-        patient2.addIdentifier(patientIdentifier2);
+    @Test
+    public void testControllerShouldReportQueuePositionIfLabelQueued() throws Exception {
 
-        PatientIdentifier paperRecordIdentifier2 = new PatientIdentifier();
-        paperRecordIdentifier2.setIdentifier("ABC");
-        paperRecordIdentifier2.setIdentifierType(paperRecordIdentifierType);
-        patient2.addIdentifier(paperRecordIdentifier2);
+        PaperRecordRequest request = createSampleRequestWithId(1);
+        PatientIdentifier identifier = new PatientIdentifier();
+        identifier.setIdentifier("123");
+        request.getPaperRecord().setPatientIdentifier(identifier);
+
+        when(paperRecordService.printPaperFormLabels(request, sessionLocation, 1)).thenReturn(LabelPrintResult.queued(2));
+
+        FragmentActionResult result = controller.printLabel(request, paperRecordService, uiSessionContext, ui);
+
+        assertThat(result, instanceOf(SuccessResult.class));
+        assertThat(((SuccessResult) result).getMessage(), is("paperrecord.archivesRoom.queuedLabel.message:123,2"));
+    }
+
+    @Test
+    public void testControllerShouldReportLabelPrintedIfNotQueued() throws Exception {
+
+        PaperRecordRequest request = createSampleRequestWithId(1);
+        PatientIdentifier identifier = new PatientIdentifier();
+        identifier.setIdentifier("123");
+        request.getPaperRecord().setPatientIdentifier(identifier);
+
+        when(paperRecordService.printPaperFormLabels(request, sessionLocation, 1)).thenReturn(LabelPrintResult.PRINTED);
+
+        FragmentActionResult result = controller.printLabel(request, paperRecordService, uiSessionContext, ui);
+
+        assertThat(result, instanceOf(SuccessResult.class));
+        assertThat(((SuccessResult) result).getMessage(), is("paperrecord.archivesRoom.printedLabel.message:123"));
+    }
+
+    private PaperRecordRequest createSampleRequestWithId(Integer id) {
+
+        PaperRecord paperRecord = new PaperRecord();
+        paperRecord.setRecordLocation(sessionLocation);
+
+        PaperRecordRequest request = new PaperRecordRequest();
+        request.setId(id);
+        request.setPaperRecord(paperRecord);
+        return request;
+    }
+
+    private List<PaperRecordQueueRow> createSampleCreateQueueRows() {
+        return createSampleQueueRows(PaperRecord.Status.PENDING_CREATION);
+    }
+
+    private List<PaperRecordQueueRow> createSampleQueueRows(PaperRecord.Status paperRecordStatus) {
+
+        PersonName name = new PersonName();
+        name.setFamilyName("Jones");
+        name.setGivenName("Tom");
+
+        PersonName name2 = new PersonName();
+        name2.setFamilyName("Wallace");
+        name2.setGivenName("Mike");
 
         Location location = new Location();
         location.setName("Test location");
@@ -309,34 +589,38 @@ public class ArchivesRoomFragmentControllerTest {
         Calendar calendar = Calendar.getInstance();
         calendar.set(2012, 2, 22, 11, 10);
 
-        PaperRecord paperRecord = new PaperRecord();
-        paperRecord.setPatientIdentifier(paperRecordIdentifier);
-        paperRecord.updateStatus(PaperRecord.Status.PENDING_CREATION);
+        PaperRecordQueueRow row = new PaperRecordQueueRow(1, PaperRecordRequest.Status.OPEN, 1, paperRecordStatus, 1, "123", location, calendar.getTime());
+        row.setPatientName(name);
+        row.setPrimaryIdentifier("987");
 
-        PaperRecordRequest request = new PaperRecordRequest();
-        request.setId(1);
-        request.setPaperRecord(paperRecord);
-        request.setRequestLocation(location);
-        request.setDateCreated(calendar.getTime());
-        request.updateStatus(PaperRecordRequest.Status.OPEN);
+        calendar.set(2012,2,22,12, 11);
 
-        PaperRecord paperRecord2 = new PaperRecord();
-        paperRecord2.setPatientIdentifier(paperRecordIdentifier2);
-        paperRecord2.updateStatus(PaperRecord.Status.PENDING_CREATION);
+        PaperRecordQueueRow row2 = new PaperRecordQueueRow(2, PaperRecordRequest.Status.ASSIGNED, 2, paperRecordStatus, 2, "ABC", location2, calendar.getTime());
+        row2.setPatientName(name2);
+        row2.setPrimaryIdentifier("763");
 
-        PaperRecordRequest request2 = new PaperRecordRequest();
-        request2.setId(2);
-        request2.setPaperRecord(paperRecord2);
-        request2.setRequestLocation(location2);
-        calendar.set(2012,2,22,12, 11);
-        request2.setDateCreated(calendar.getTime());
-        request2.updateStatus(PaperRecordRequest.Status.ASSIGNED);
+        List<PaperRecordQueueRow> rows = new ArrayList<PaperRecordQueueRow>();
+        rows.add(row);
+        rows.add(row2);
 
-        List<PaperRecordRequest> requests = new ArrayList<PaperRecordRequest>();
-        requests.add(request);
-        requests.add(request2);
+        return rows;
+    }
 
-        return requests;
+    private List<PaperRecordQueueRow> createSamplePullQueueRows() {
+
+        List<PaperRecordQueueRow> rows = createSampleQueueRows(PaperRecord.Status.ACTIVE);
+
+        Location location = new Location();
+        location.setName("Previously sent location");
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2012, 2, 22, 11, 10);
+
+        // only the first record has been sent before
+        rows.get(0).setLocationLastSent(location);
+        rows.get(0).setDateLastSent(calendar.getTime());
+
+        return rows;
     }
 
     private List<PaperRecordRequest> createSamplePullPaperRecordRequestList() {
@@ -413,44 +697,6 @@ public class ArchivesRoomFragmentControllerTest {
     }
 
 
-    private PaperRecordRequest createSampleSentRequest() {
-
-        Patient patient = new Patient();
-        PersonName name = new PersonName();
-        name.setFamilyName("Jones");
-        name.setGivenName("Tom");
-        patient.addName(name);
-
-        PatientIdentifier patientIdentifier = new PatientIdentifier();
-        patientIdentifier.setIdentifier("987");
-        patientIdentifier.setIdentifierType(patientIdentifierType);
-        patient.addIdentifier(patientIdentifier);
-
-        PatientIdentifier paperRecordIdentifier = new PatientIdentifier();
-        paperRecordIdentifier.setIdentifier("123");
-        paperRecordIdentifier.setIdentifierType(paperRecordIdentifierType);
-        patient.addIdentifier(paperRecordIdentifier);
-
-        Location location = new Location();
-        location.setName("Previously sent location");
-
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(2012, 2, 22, 11, 10);
-
-        PaperRecord paperRecord = new PaperRecord();
-        paperRecord.setPatientIdentifier(paperRecordIdentifier);
-        paperRecord.updateStatus(PaperRecord.Status.ACTIVE);
-
-        PaperRecordRequest request = new PaperRecordRequest();
-        request.setId(3);
-        request.setPaperRecord(paperRecord);
-        request.setRequestLocation(location);
-        request.setDateCreated(calendar.getTime());
-        request.updateStatus(PaperRecordRequest.Status.SENT);
-
-        return request;
-    }
-
     private void assertProperCreateResultsList(List<SimpleObject> results) {
 
         assertThat(results.size(), is(2));
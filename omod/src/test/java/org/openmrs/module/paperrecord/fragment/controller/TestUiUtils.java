@@ -3,6 +3,7 @@ package org.openmrs.module.paperrecord.fragment.controller;
 import org.openmrs.Concept;
 import org.openmrs.OpenmrsMetadata;
 import org.openmrs.Person;
+import org.openmrs.PersonName;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.ui.framework.BasicUiUtils;
 import org.openmrs.ui.framework.FormatterImpl;
@@ -51,6 +52,9 @@ public class TestUiUtils extends BasicUiUtils {
             // skip using the name support bean
             return ((Person) o).getPersonName().getFullName();
         }
+        else if (o instanceof PersonName) {
+            return ((PersonName) o).getFullName();
+        }
         else if (o instanceof OpenmrsMetadata) {
             // simplify formatting metadata to not need to access messages source
             return ((OpenmrsMetadata) o).getName();